@@ -0,0 +1,90 @@
+package com.ppublica.shopify.security.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
+import org.springframework.security.oauth2.client.registration.InMemoryClientRegistrationRepository;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.ClientAuthenticationMethod;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+
+import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
+import com.ppublica.shopify.security.configuration.SecurityBeansConfig;
+
+/**
+ * The objects the benchmarks share, configured as SecurityBeansConfig does by default.
+ * 
+ * @author N F
+ */
+final class BenchmarkFixtures {
+	
+	static final String CLIENT_ID = "benchmark-client-id";
+	static final String CLIENT_SECRET = "benchmark-client-secret";
+	static final String REGISTRATION_ID = SecurityBeansConfig.SHOPIFY_REGISTRATION_ID;
+	static final String SHOP = "benchmark-shop.myshopify.com";
+	
+	static final String INSTALL_PATH = "/install";
+	static final String AUTHORIZATION_REDIRECT_PATH = "/login/app/oauth2/code";
+	
+	private BenchmarkFixtures() { }
+	
+	static ClientRegistration clientRegistration() {
+		return ClientRegistration.withRegistrationId(REGISTRATION_ID)
+	            .clientId(CLIENT_ID)
+	            .clientSecret(CLIENT_SECRET)
+	            .clientAuthenticationMethod(ClientAuthenticationMethod.POST)
+	            .authorizationGrantType(AuthorizationGrantType.AUTHORIZATION_CODE)
+	            .redirectUriTemplate("{baseUrl}" + AUTHORIZATION_REDIRECT_PATH + "/{registrationId}")
+	            .scope("read_products", "write_products")
+	            .authorizationUri("https://{shop}/admin/oauth/authorize")
+	            .tokenUri("https://{shop}/admin/oauth/access_token")
+	            .clientName("Shopify")
+	            .build();
+	}
+	
+	static ClientRegistrationRepository clientRegistrationRepository() {
+		return new InMemoryClientRegistrationRepository(clientRegistration());
+	}
+	
+	static OAuth2AuthorizationRequest authorizationRequest(String state) {
+		return OAuth2AuthorizationRequest.authorizationCode()
+				.clientId(CLIENT_ID)
+				.authorizationUri("https://" + SHOP + "/admin/oauth/authorize")
+				.redirectUri("https://localhost" + AUTHORIZATION_REDIRECT_PATH + "/" + REGISTRATION_ID)
+				.scopes(clientRegistration().getScopes())
+				.state(state)
+				.build();
+	}
+	
+	/*
+	 * A query string signed as Shopify signs the installation request: the hmac parameter is first.
+	 */
+	static String signedQuery(String unsignedQuery) {
+		return ShopifyVerificationStrategy.HMAC_PARAMETER + "=" + ShopifyVerificationStrategy.hash(CLIENT_SECRET, unsignedQuery) + "&" + unsignedQuery;
+	}
+	
+	/*
+	 * A JSON-like webhook body of the given size. The content is random, so that the JIT can't specialize on it.
+	 */
+	static byte[] webhookBody(int size) {
+		byte[] body = new byte[size];
+		Random random = new Random(size);
+		
+		Arrays.fill(body, (byte)' ');
+		byte[] prefix = "{\"id\":689034,\"note\":\"".getBytes(StandardCharsets.US_ASCII);
+		System.arraycopy(prefix, 0, body, 0, Math.min(prefix.length, size));
+		for(int i = prefix.length; i < size - 2; i++) {
+			body[i] = (byte)('a' + random.nextInt(26));
+		}
+		if(size >= prefix.length + 2) {
+			body[size - 2] = '"';
+			body[size - 1] = '}';
+		}
+		
+		return body;
+	}
+
+}
@@ -0,0 +1,34 @@
+package com.ppublica.shopify.security.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The main class of benchmarks.jar. It takes the usual JMH options (a regex to select benchmarks, -p to set a 
+ * parameter, -f, -wi, -i, ...), and always adds the GC profiler, so that every result has its allocation rate 
+ * (gc.alloc.rate.norm, in bytes per operation) next to its throughput.
+ * 
+ * <pre>
+ * mvn -f benchmarks/pom.xml package
+ * java -jar benchmarks/target/benchmarks.jar VerificationStrategyBenchmark
+ * </pre>
+ * 
+ * @author N F
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build();
+		
+		new Runner(options).run();
+	}
+
+}
@@ -0,0 +1,207 @@
+package com.ppublica.shopify.security.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jol.info.GraphLayout;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.security.web.context.HttpSessionSecurityContextRepository;
+
+import com.ppublica.shopify.security.authentication.CipherPassword;
+import com.ppublica.shopify.security.cache.ExpiringCache;
+import com.ppublica.shopify.security.repository.ShopifyTokenRepositoryImpl;
+import com.ppublica.shopify.security.serialization.CompactSecurityContext;
+import com.ppublica.shopify.security.service.EncryptedTokenAndSalt;
+import com.ppublica.shopify.security.service.ShopifyOAuth2AuthorizedClientService;
+import com.ppublica.shopify.security.service.ShopifyStore;
+import com.ppublica.shopify.security.service.TokenService;
+import com.ppublica.shopify.security.web.ShopifyHttpSessionOAuth2AuthorizationRequestRepository;
+import com.ppublica.shopify.security.web.ShopifyOAuth2AuthorizationRequestResolver;
+
+/**
+ * Measures the heap an active merchant costs: the session attributes this library adds, and the entry of each store
+ * in the cache of recently loaded clients. Sizes are retained sizes, measured with JOL by walking the object graph
+ * of all the sessions (or the whole cache) at once, so objects shared between sessions (interned strings, enum
+ * constants, ...) are counted once, and divided among them.
+ *
+ * <p>For N merchants, it builds N sessions as the app leaves them:</p>
+ * <ul>
+ * 	<li>authenticated: the CompactSecurityContext holding the OAuth2AuthenticationToken and its ShopifyStore, as
+ * 		ShopifyExistingTokenFilter saves it</li>
+ * 	<li>pending: the authorization requests ShopifyOAuth2AuthorizationRequestResolver saves when a merchant starts
+ * 		an installation, pendingRequests per session</li>
+ * 	<li>both at once, as when a merchant reinstalls the app from a logged-in session</li>
+ * </ul>
+ *
+ * <p>The serialized size of a session is the sum of its attributes serialized one by one, as a session replicated
+ * by Spring Session or a servlet container would be; the same objects with Spring Security's default serialized
+ * form (SecurityContextImpl and HashMap) are shown for comparison.</p>
+ *
+ * <p>The cache holds N stores loaded by ShopifyOAuth2AuthorizedClientService from an in-memory HSQLDB database, as
+ * SecurityBeansConfig configures it. Loading a store derives its key, which is slow by design, so the default is
+ * 1000 merchants.</p>
+ *
+ * <pre>
+ * mvn -f benchmarks/pom.xml package
+ * java -Djdk.attach.allowAttachSelf -cp benchmarks/target/benchmarks.jar com.ppublica.shopify.security.benchmarks.FootprintReport [merchants] [pendingRequests]
+ * </pre>
+ *
+ * @author N F
+ * @see com.ppublica.shopify.security.serialization.CompactSecurityContext
+ * @see com.ppublica.shopify.security.serialization.CompactAuthorizationRequestMap
+ */
+public class FootprintReport {
+
+	private static final String SECURITY_CONTEXT = HttpSessionSecurityContextRepository.SPRING_SECURITY_CONTEXT_KEY;
+
+	public static void main(String[] args) throws IOException {
+		int merchants = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int pendingRequests = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+
+		System.out.println("Merchants: " + merchants + ", pending authorization requests per session: " + pendingRequests);
+		System.out.println();
+
+		System.out.println(String.format("%-28s %18s %18s %18s", "session", "retained B", "serialized B", "default serial. B"));
+		sessionRow("authenticated", sessions(merchants, true, 0));
+		sessionRow("pending", sessions(merchants, false, pendingRequests));
+		sessionRow("authenticated + pending", sessions(merchants, true, pendingRequests));
+		System.out.println();
+
+		System.out.println(String.format("%-28s %18s", "per shop", "retained B"));
+		System.out.println(String.format("%-28s %18d", "client cache entry", cachedClientSize(merchants)));
+	}
+
+	/*
+	 * A session for each merchant, with the attributes the app saves.
+	 */
+	static List<MockHttpSession> sessions(int merchants, boolean authenticated, int pendingRequests) {
+		ShopifyHttpSessionOAuth2AuthorizationRequestRepository repository = new ShopifyHttpSessionOAuth2AuthorizationRequestRepository(BenchmarkFixtures.INSTALL_PATH);
+		ShopifyOAuth2AuthorizationRequestResolver resolver = new ShopifyOAuth2AuthorizationRequestResolver(BenchmarkFixtures.clientRegistrationRepository(),
+				repository, BenchmarkFixtures.INSTALL_PATH, "/init");
+
+		List<MockHttpSession> sessions = new ArrayList<>(merchants);
+
+		for(int i = 0; i < merchants; i++) {
+			String shop = TokenStoreFixtures.shop(i);
+			MockHttpSession session = new MockHttpSession();
+
+			for(int j = 0; j < pendingRequests; j++) {
+				resolver.resolve(installRequest(session, shop));
+			}
+
+			if(authenticated) {
+				// every store has its own token
+				ShopifyStore store = new ShopifyStore(shop, "shpat_" + UUID.randomUUID().toString().replace("-", ""), BenchmarkFixtures.CLIENT_ID, null);
+				session.setAttribute(SECURITY_CONTEXT, new CompactSecurityContext(new OAuth2AuthenticationToken(store, null, BenchmarkFixtures.REGISTRATION_ID)));
+			}
+
+			sessions.add(session);
+		}
+
+		return sessions;
+	}
+
+	private static MockHttpServletRequest installRequest(MockHttpSession session, String shop) {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", BenchmarkFixtures.INSTALL_PATH + "/" + BenchmarkFixtures.REGISTRATION_ID);
+		request.setServletPath(BenchmarkFixtures.INSTALL_PATH + "/" + BenchmarkFixtures.REGISTRATION_ID);
+		request.setScheme("https");
+		request.setServerPort(443);
+		request.setParameter("shop", shop);
+		request.setSession(session);
+
+		return request;
+	}
+
+	private static void sessionRow(String name, List<MockHttpSession> sessions) throws IOException {
+		List<Object> attributes = new ArrayList<>();
+		long serialized = 0;
+		long defaultSerialized = 0;
+
+		for(MockHttpSession session : sessions) {
+			for(String attribute : Collections.list(session.getAttributeNames())) {
+				Object value = session.getAttribute(attribute);
+				attributes.add(value);
+				serialized += serializedSize(value);
+				defaultSerialized += serializedSize(withDefaultForm(value));
+			}
+		}
+
+		long retained = GraphLayout.parseInstance(attributes.toArray()).totalSize();
+		int count = sessions.size();
+
+		System.out.println(String.format("%-28s %18d %18d %18d", name, retained / count, serialized / count, defaultSerialized / count));
+	}
+
+	/*
+	 * The same attribute, as Spring Security would save it without this library's compact forms.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Object withDefaultForm(Object attribute) {
+		if(attribute instanceof CompactSecurityContext) {
+			return new SecurityContextImpl(((CompactSecurityContext)attribute).getAuthentication());
+		}
+		if(attribute instanceof Map) {
+			return new HashMap<>((Map<String, OAuth2AuthorizationRequest>)attribute);
+		}
+		return attribute;
+	}
+
+	private static long serializedSize(Object value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(value);
+		}
+
+		return bytes.size();
+	}
+
+	/*
+	 * The retained size of the cache of recently loaded clients, full of stores, less the empty cache, per store.
+	 */
+	static long cachedClientSize(int shops) {
+		JdbcTemplate jdbc = new JdbcTemplate(TokenStoreFixtures.dataSource());
+		TokenStoreFixtures.createTable(jdbc, true);
+
+		try {
+			ShopifyTokenRepositoryImpl repository = new ShopifyTokenRepositoryImpl();
+			repository.setJdbc(jdbc);
+			TokenService tokenService = new TokenService(repository, new CipherPassword(TokenStoreFixtures.CIPHER_PASSWORD), BenchmarkFixtures.clientRegistrationRepository());
+
+			EncryptedTokenAndSalt encryptedToken = TokenStoreFixtures.encryptedToken();
+			for(int i = 0; i < shops; i++) {
+				repository.saveNewStore(TokenStoreFixtures.persistedToken(TokenStoreFixtures.shop(i), encryptedToken));
+			}
+
+			ExpiringCache<String, OAuth2AuthorizedClient> cache = new ExpiringCache<>(TimeUnit.HOURS.toMillis(1), shops);
+			long empty = GraphLayout.parseInstance(cache).totalSize();
+
+			ShopifyOAuth2AuthorizedClientService clientService = new ShopifyOAuth2AuthorizedClientService(tokenService, null, cache);
+			for(int i = 0; i < shops; i++) {
+				if(clientService.loadAuthorizedClient(BenchmarkFixtures.REGISTRATION_ID, TokenStoreFixtures.shop(i)) == null) {
+					throw new IllegalStateException("The store " + TokenStoreFixtures.shop(i) + " doesn't load");
+				}
+			}
+
+			return (GraphLayout.parseInstance(cache).totalSize() - empty) / shops;
+
+		} finally {
+			TokenStoreFixtures.shutdown(jdbc);
+		}
+	}
+
+}
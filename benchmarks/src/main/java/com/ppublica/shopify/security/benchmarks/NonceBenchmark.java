@@ -0,0 +1,83 @@
+package com.ppublica.shopify.security.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpSession;
+
+import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
+import com.ppublica.shopify.security.web.ShopifyHttpSessionOAuth2AuthorizationRequestRepository;
+
+/**
+ * ShopifyVerificationStrategy.hasValidNonce(...) with sessionSize OAuth2AuthorizationRequests saved in the 
+ * session: a session collects one for each installation started in it. The nonce is either the last one saved, 
+ * or unknown (which also url-decodes it and looks again).
+ * 
+ * @author N F
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NonceBenchmark {
+	
+	@Param({"1", "4", "16", "64"})
+	public int sessionSize;
+	
+	private ShopifyVerificationStrategy strategy;
+	private MockHttpServletRequest knownNonceRequest;
+	private MockHttpServletRequest unknownNonceRequest;
+	
+	@Setup
+	public void setup() {
+		ShopifyHttpSessionOAuth2AuthorizationRequestRepository authReqRepository = 
+						new ShopifyHttpSessionOAuth2AuthorizationRequestRepository(BenchmarkFixtures.INSTALL_PATH);
+		strategy = new ShopifyVerificationStrategy(BenchmarkFixtures.clientRegistrationRepository(), authReqRepository);
+		
+		MockHttpSession session = new MockHttpSession();
+		MockHttpServletRequest saving = new MockHttpServletRequest();
+		saving.setSession(session);
+		
+		String lastState = null;
+		for(int i = 0; i < sessionSize; i++) {
+			lastState = "0.67842414041608" + i;
+			authReqRepository.saveAuthorizationRequest(BenchmarkFixtures.authorizationRequest(lastState), saving);
+		}
+		
+		knownNonceRequest = new MockHttpServletRequest();
+		knownNonceRequest.setSession(session);
+		knownNonceRequest.setParameter(ShopifyVerificationStrategy.NONCE_PARAMETER, lastState);
+		
+		unknownNonceRequest = new MockHttpServletRequest();
+		unknownNonceRequest.setSession(session);
+		unknownNonceRequest.setParameter(ShopifyVerificationStrategy.NONCE_PARAMETER, "0.1234567890%2B");
+		
+		if(!strategy.hasValidNonce(knownNonceRequest) || strategy.hasValidNonce(unknownNonceRequest)) {
+			throw new IllegalStateException("The benchmark nonces aren't verified as expected");
+		}
+	}
+	
+	@Benchmark
+	public boolean hasValidNonceKnown() {
+		return strategy.hasValidNonce(knownNonceRequest);
+	}
+	
+	@Benchmark
+	public boolean hasValidNonceUnknown() {
+		return strategy.hasValidNonce(unknownNonceRequest);
+	}
+
+}
@@ -0,0 +1,118 @@
+package com.ppublica.shopify.security.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
+import com.ppublica.shopify.security.filters.ShopifyOriginFilter;
+import com.ppublica.shopify.security.web.ShopifyHttpSessionOAuth2AuthorizationRequestRepository;
+
+/**
+ * ShopifyOriginFilter.doFilter(...) with mock servlet objects, for: a request the filter doesn't apply to, the 
+ * installation request from Shopify (which sets a ShopifyOriginToken), and the authorization redirect from 
+ * Shopify (which also checks the nonce).
+ * 
+ * <p>The SecurityContext is cleared after each call, as the SecurityContextPersistenceFilter would.</p>
+ * 
+ * @author N F
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class OriginFilterBenchmark {
+	
+	private static final String NONCE = "0.6784241404160823";
+	
+	private ShopifyOriginFilter filter;
+	private MockHttpServletRequest otherRequest;
+	private MockHttpServletRequest installRequest;
+	private MockHttpServletRequest authorizationRedirectRequest;
+	private MockHttpServletResponse response;
+	private FilterChain chain;
+	private boolean passed;
+	
+	@Setup
+	public void setup() throws Exception {
+		ShopifyHttpSessionOAuth2AuthorizationRequestRepository authReqRepository = 
+						new ShopifyHttpSessionOAuth2AuthorizationRequestRepository(BenchmarkFixtures.INSTALL_PATH);
+		ShopifyVerificationStrategy strategy = new ShopifyVerificationStrategy(BenchmarkFixtures.clientRegistrationRepository(), authReqRepository);
+		
+		filter = new ShopifyOriginFilter(strategy, BenchmarkFixtures.AUTHORIZATION_REDIRECT_PATH + "/**", BenchmarkFixtures.INSTALL_PATH + "/**");
+		response = new MockHttpServletResponse();
+		chain = (req, resp) -> passed = true;
+		
+		otherRequest = new MockHttpServletRequest("GET", "/products");
+		otherRequest.setServletPath("/products");
+		
+		String unsignedInstallQuery = "shop=" + BenchmarkFixtures.SHOP + "&timestamp=1337178173";
+		installRequest = VerificationStrategyBenchmark.installRequest(BenchmarkFixtures.signedQuery(unsignedInstallQuery),
+						ShopifyVerificationStrategy.hash(BenchmarkFixtures.CLIENT_SECRET, unsignedInstallQuery));
+		installRequest.setSession(new MockHttpSession());
+		
+		String path = BenchmarkFixtures.AUTHORIZATION_REDIRECT_PATH + "/" + BenchmarkFixtures.REGISTRATION_ID;
+		String unsignedRedirectQuery = "code=0907a61c0c8d55e99db179b68161bc00&shop=" + BenchmarkFixtures.SHOP + "&state=" + NONCE + "&timestamp=1337178173";
+		authorizationRedirectRequest = VerificationStrategyBenchmark.installRequest(BenchmarkFixtures.signedQuery(unsignedRedirectQuery),
+						ShopifyVerificationStrategy.hash(BenchmarkFixtures.CLIENT_SECRET, unsignedRedirectQuery));
+		authorizationRedirectRequest.setRequestURI(path);
+		authorizationRedirectRequest.setServletPath(path);
+		authorizationRedirectRequest.setSession(new MockHttpSession());
+		authReqRepository.saveAuthorizationRequest(BenchmarkFixtures.authorizationRequest(NONCE), authorizationRedirectRequest);
+		
+		for(MockHttpServletRequest request : new MockHttpServletRequest[] {otherRequest, installRequest, authorizationRedirectRequest}) {
+			passed = false;
+			doFilter(request, null);
+			if(!passed) {
+				throw new IllegalStateException("The benchmark request to " + request.getServletPath() + " was rejected");
+			}
+		}
+	}
+	
+	@Benchmark
+	public void doFilterNotApplied(Blackhole blackhole) throws IOException, ServletException {
+		doFilter(otherRequest, blackhole);
+	}
+	
+	@Benchmark
+	public void doFilterInstallation(Blackhole blackhole) throws IOException, ServletException {
+		doFilter(installRequest, blackhole);
+	}
+	
+	@Benchmark
+	public void doFilterAuthorizationRedirect(Blackhole blackhole) throws IOException, ServletException {
+		doFilter(authorizationRedirectRequest, blackhole);
+	}
+	
+	private void doFilter(MockHttpServletRequest request, Blackhole blackhole) throws IOException, ServletException {
+		try {
+			filter.doFilter(request, response, chain);
+			if(blackhole != null) {
+				blackhole.consume(SecurityContextHolder.getContext().getAuthentication());
+			}
+		} finally {
+			SecurityContextHolder.clearContext();
+		}
+	}
+
+}
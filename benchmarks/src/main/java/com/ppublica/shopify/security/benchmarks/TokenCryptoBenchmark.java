@@ -0,0 +1,118 @@
+package com.ppublica.shopify.security.benchmarks;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+import org.springframework.security.crypto.keygen.KeyGenerators;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+
+import com.ppublica.shopify.security.repository.PersistedStoreAccessToken;
+import com.ppublica.shopify.security.repository.PersistedStoreAccessTokenUtility;
+import com.ppublica.shopify.security.service.DecryptedTokenAndSalt;
+import com.ppublica.shopify.security.service.EncryptedTokenAndSalt;
+
+/**
+ * The steps of TokenService.getStore(...) and saveNewStore(...) other than the database call, one at a time: 
+ * deriving the key with Encryptors.queryableText(...) (PBKDF2), decrypting or encrypting the token with a 
+ * derived key, mapping a row with ShopifyTokenRepositoryImpl's PersistedStoreAccessTokenMapper, and building the 
+ * OAuth2AuthorizedClient with PersistedStoreAccessTokenUtility.
+ * 
+ * <p>Compare with TokenServiceBenchmark to see how much of a load or a save is the database.</p>
+ * 
+ * @author N F
+ * @see TokenServiceBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenCryptoBenchmark {
+	
+	private EncryptedTokenAndSalt encryptedToken;
+	private TextEncryptor derivedEncryptor;
+	private ResultSet row;
+	private RowMapper<PersistedStoreAccessToken> mapper;
+	private PersistedStoreAccessToken persistedToken;
+	private DecryptedTokenAndSalt decryptedToken;
+	private ClientRegistration clientRegistration;
+	private PersistedStoreAccessTokenUtility utility;
+	
+	@SuppressWarnings("unchecked")
+	@Setup
+	public void setup() throws Exception {
+		encryptedToken = TokenStoreFixtures.encryptedToken();
+		derivedEncryptor = Encryptors.queryableText(TokenStoreFixtures.CIPHER_PASSWORD, encryptedToken.getSalt());
+		
+		persistedToken = TokenStoreFixtures.persistedToken(BenchmarkFixtures.SHOP, encryptedToken);
+		row = TokenStoreFixtures.row(persistedToken);
+		decryptedToken = new DecryptedTokenAndSalt(TokenStoreFixtures.ACCESS_TOKEN, encryptedToken.getSalt());
+		clientRegistration = BenchmarkFixtures.clientRegistration();
+		utility = new PersistedStoreAccessTokenUtility();
+		
+		// the mapper is package-private
+		java.lang.reflect.Constructor<?> constructor = Class.forName("com.ppublica.shopify.security.repository.ShopifyTokenRepositoryImpl$PersistedStoreAccessTokenMapper")
+						.getDeclaredConstructor();
+		constructor.setAccessible(true);
+		mapper = (RowMapper<PersistedStoreAccessToken>) constructor.newInstance();
+		
+		if(!TokenStoreFixtures.ACCESS_TOKEN.equals(derivePlusDecrypt())) {
+			throw new IllegalStateException("The benchmark token doesn't decrypt");
+		}
+	}
+	
+	@Benchmark
+	public TextEncryptor deriveKey() {
+		return Encryptors.queryableText(TokenStoreFixtures.CIPHER_PASSWORD, encryptedToken.getSalt());
+	}
+	
+	@Benchmark
+	public String decryptWithDerivedKey() {
+		return derivedEncryptor.decrypt(encryptedToken.getEncryptedToken());
+	}
+	
+	/*
+	 * What getStore(...) does for each load.
+	 */
+	@Benchmark
+	public String derivePlusDecrypt() {
+		return Encryptors.queryableText(TokenStoreFixtures.CIPHER_PASSWORD, encryptedToken.getSalt()).decrypt(encryptedToken.getEncryptedToken());
+	}
+	
+	/*
+	 * What saveNewStore(...) and updateStore(...) do for each save: a new salt, so a new key.
+	 */
+	@Benchmark
+	public String saltDerivePlusEncrypt() {
+		String salt = KeyGenerators.string().generateKey();
+		
+		return Encryptors.queryableText(TokenStoreFixtures.CIPHER_PASSWORD, salt).encrypt(TokenStoreFixtures.ACCESS_TOKEN);
+	}
+	
+	@Benchmark
+	public PersistedStoreAccessToken mapRow() throws SQLException {
+		return mapper.mapRow(row, 0);
+	}
+	
+	@Benchmark
+	public OAuth2AuthorizedClient toAuthorizedClient() {
+		return utility.fromPersistedStoreAccessTokenToOAuth2AuthorizedClient(persistedToken, decryptedToken, clientRegistration);
+	}
+
+}
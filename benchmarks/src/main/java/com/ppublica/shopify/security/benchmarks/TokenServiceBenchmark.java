@@ -0,0 +1,144 @@
+package com.ppublica.shopify.security.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+
+import com.ppublica.shopify.security.authentication.CipherPassword;
+import com.ppublica.shopify.security.cache.ExpiringCache;
+import com.ppublica.shopify.security.repository.PersistedStoreAccessToken;
+import com.ppublica.shopify.security.repository.ShopifyTokenRepositoryImpl;
+import com.ppublica.shopify.security.service.EncryptedTokenAndSalt;
+import com.ppublica.shopify.security.service.ShopifyOAuth2AuthorizedClientService;
+import com.ppublica.shopify.security.service.TokenService;
+
+/**
+ * TokenService against an in-memory HSQLDB database holding shopCount stores, with or without an index on 
+ * storeDomain (the documented schema doesn't require one).
+ * 
+ * <ul>
+ * 	<li>queryOnly: the SELECT of getStore(...), reading one column: the database round trip alone</li>
+ * 	<li>findTokenForStore: the SELECT and PersistedStoreAccessTokenMapper</li>
+ * 	<li>getStore: the synchronous load: the SELECT, deriving the key, decrypting and mapping</li>
+ * 	<li>loadAuthorizedClientCached: ShopifyOAuth2AuthorizedClientService with its cache of recently loaded 
+ * 		clients, as SecurityBeansConfig configures it; every store is loaded before measuring</li>
+ * 	<li>updateStore: a new salt, deriving the key, encrypting, and the UPDATE</li>
+ * 	<li>saveNewStoreAndUninstall: saveNewStore(...) then uninstallStore(...), to keep shopCount stores</li>
+ * </ul>
+ * 
+ * <p>The key derivation, decryption and mapping are measured alone in TokenCryptoBenchmark; the bulk variants of 
+ * uninstalling, in UninstallStoresBenchmark.</p>
+ * 
+ * @author N F
+ * @see TokenCryptoBenchmark
+ * @see UninstallStoresBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenServiceBenchmark {
+	
+	@Param({"10", "1000", "10000"})
+	public int shopCount;
+	
+	@Param({"false", "true"})
+	public boolean storeDomainIndex;
+	
+	private JdbcTemplate jdbc;
+	private ShopifyTokenRepositoryImpl repository;
+	private TokenService tokenService;
+	private ShopifyOAuth2AuthorizedClientService cachedClientService;
+	private String[] shops;
+	private int next;
+	private String newShop;
+	
+	@Setup
+	public void setup() {
+		jdbc = new JdbcTemplate(TokenStoreFixtures.dataSource());
+		TokenStoreFixtures.createTable(jdbc, storeDomainIndex);
+		
+		repository = new ShopifyTokenRepositoryImpl();
+		repository.setJdbc(jdbc);
+		tokenService = new TokenService(repository, new CipherPassword(TokenStoreFixtures.CIPHER_PASSWORD), BenchmarkFixtures.clientRegistrationRepository());
+		
+		EncryptedTokenAndSalt encryptedToken = TokenStoreFixtures.encryptedToken();
+		shops = new String[shopCount];
+		for(int i = 0; i < shopCount; i++) {
+			shops[i] = TokenStoreFixtures.shop(i);
+			repository.saveNewStore(TokenStoreFixtures.persistedToken(shops[i], encryptedToken));
+		}
+		newShop = TokenStoreFixtures.shop(shopCount);
+		
+		cachedClientService = new ShopifyOAuth2AuthorizedClientService(tokenService, null, new ExpiringCache<>(TimeUnit.HOURS.toMillis(1), shopCount));
+		for(String shop : shops) {
+			if(cachedClientService.loadAuthorizedClient(BenchmarkFixtures.REGISTRATION_ID, shop) == null) {
+				throw new IllegalStateException("The store " + shop + " doesn't load");
+			}
+		}
+	}
+	
+	@TearDown
+	public void tearDown() {
+		TokenStoreFixtures.shutdown(jdbc);
+	}
+	
+	@Benchmark
+	public Long queryOnly() {
+		return jdbc.queryForObject("SELECT id FROM StoreAccessTokens WHERE storeDomain=?", Long.class, nextShop());
+	}
+	
+	@Benchmark
+	public PersistedStoreAccessToken findTokenForStore() {
+		return repository.findTokenForStore(nextShop());
+	}
+	
+	@Benchmark
+	public OAuth2AuthorizedClient getStore() {
+		return tokenService.getStore(nextShop());
+	}
+	
+	@Benchmark
+	public OAuth2AuthorizedClient loadAuthorizedClientCached() {
+		return cachedClientService.loadAuthorizedClient(BenchmarkFixtures.REGISTRATION_ID, nextShop());
+	}
+	
+	@Benchmark
+	public void updateStore() {
+		String shop = nextShop();
+		
+		tokenService.updateStore(TokenStoreFixtures.authorizedClient(shop), TokenStoreFixtures.principal(shop));
+	}
+	
+	@Benchmark
+	public void saveNewStoreAndUninstall() {
+		tokenService.saveNewStore(TokenStoreFixtures.authorizedClient(newShop), TokenStoreFixtures.principal(newShop));
+		tokenService.uninstallStore(newShop);
+	}
+	
+	/*
+	 * Every store in turn, so that the database doesn't serve the same row every time.
+	 */
+	private String nextShop() {
+		String shop = shops[next];
+		next = next + 1 == shops.length ? 0 : next + 1;
+		
+		return shop;
+	}
+
+}
@@ -0,0 +1,102 @@
+package com.ppublica.shopify.security.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import com.ppublica.shopify.security.authentication.CipherPassword;
+import com.ppublica.shopify.security.repository.ShopifyTokenRepositoryImpl;
+import com.ppublica.shopify.security.service.EncryptedTokenAndSalt;
+import com.ppublica.shopify.security.service.TokenService;
+
+/**
+ * Uninstalling batchSize stores from a table of shopCount stores: one DELETE per store with uninstallStore(...), 
+ * or one DELETE ... IN (...) per 100 stores with uninstallStores(...), as UninstallBatcher does.
+ * 
+ * <p>The batch is inserted again before each call (not measured), so each call takes well over a millisecond at 
+ * the larger sizes; the smaller sizes are dominated by JMH's per-invocation overhead and are only comparable with 
+ * each other.</p>
+ * 
+ * @author N F
+ * @see TokenServiceBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UninstallStoresBenchmark {
+	
+	@Param({"1000", "10000"})
+	public int shopCount;
+	
+	@Param({"10", "100", "500"})
+	public int batchSize;
+	
+	private JdbcTemplate jdbc;
+	private ShopifyTokenRepositoryImpl repository;
+	private TokenService tokenService;
+	private EncryptedTokenAndSalt encryptedToken;
+	private List<String> batch;
+	
+	@Setup
+	public void setup() {
+		jdbc = new JdbcTemplate(TokenStoreFixtures.dataSource());
+		TokenStoreFixtures.createTable(jdbc, true);
+		
+		repository = new ShopifyTokenRepositoryImpl();
+		repository.setJdbc(jdbc);
+		tokenService = new TokenService(repository, new CipherPassword(TokenStoreFixtures.CIPHER_PASSWORD), BenchmarkFixtures.clientRegistrationRepository());
+		
+		encryptedToken = TokenStoreFixtures.encryptedToken();
+		for(int i = 0; i < shopCount; i++) {
+			repository.saveNewStore(TokenStoreFixtures.persistedToken(TokenStoreFixtures.shop(i), encryptedToken));
+		}
+		
+		batch = new ArrayList<>();
+		for(int i = shopCount; i < shopCount + batchSize; i++) {
+			batch.add(TokenStoreFixtures.shop(i));
+		}
+	}
+	
+	@Setup(Level.Invocation)
+	public void insertBatch() {
+		for(String shop : batch) {
+			repository.saveNewStore(TokenStoreFixtures.persistedToken(shop, encryptedToken));
+		}
+	}
+	
+	@TearDown
+	public void tearDown() {
+		TokenStoreFixtures.shutdown(jdbc);
+	}
+	
+	@Benchmark
+	public void uninstallStoreOneByOne() {
+		for(String shop : batch) {
+			tokenService.uninstallStore(shop);
+		}
+	}
+	
+	@Benchmark
+	public void uninstallStoresBulk() {
+		tokenService.uninstallStores(batch);
+	}
+
+}
@@ -0,0 +1,99 @@
+package com.ppublica.shopify.security.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.util.UriUtils;
+
+import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
+import com.ppublica.shopify.security.web.ShopifyHttpSessionOAuth2AuthorizationRequestRepository;
+
+/**
+ * ShopifyVerificationStrategy.hash(...) and isShopifyRequest(...), for the installation request Shopify sends 
+ * when a merchant opens the app: with a valid HMAC, with an invalid one (both the raw and the url-decoded query 
+ * string are hashed), and with a query string that was url-encoded again (the raw query fails first).
+ * 
+ * <p>The strategy is the default one: no timestamp check, no replay cache, and the secret is looked up in the 
+ * ClientRegistrationRepository for every request.</p>
+ * 
+ * @author N F
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VerificationStrategyBenchmark {
+	
+	private static final String UNSIGNED_QUERY = "shop=" + BenchmarkFixtures.SHOP + "&timestamp=1337178173";
+	
+	private ShopifyVerificationStrategy strategy;
+	private MockHttpServletRequest validRequest;
+	private MockHttpServletRequest invalidRequest;
+	private MockHttpServletRequest encodedRequest;
+	
+	@Setup
+	public void setup() {
+		strategy = new ShopifyVerificationStrategy(BenchmarkFixtures.clientRegistrationRepository(),
+						new ShopifyHttpSessionOAuth2AuthorizationRequestRepository(BenchmarkFixtures.INSTALL_PATH));
+		
+		String hmac = ShopifyVerificationStrategy.hash(BenchmarkFixtures.CLIENT_SECRET, UNSIGNED_QUERY);
+		
+		validRequest = installRequest(BenchmarkFixtures.signedQuery(UNSIGNED_QUERY), hmac);
+		invalidRequest = installRequest(BenchmarkFixtures.signedQuery(UNSIGNED_QUERY).replace("1337178173", "1337178174"), hmac);
+		encodedRequest = installRequest(ShopifyVerificationStrategy.HMAC_PARAMETER + "=" + hmac + "&" 
+						+ UriUtils.encode(UNSIGNED_QUERY, StandardCharsets.UTF_8), hmac);
+		
+		if(!strategy.isShopifyRequest(validRequest) || strategy.isShopifyRequest(invalidRequest) || !strategy.isShopifyRequest(encodedRequest)) {
+			throw new IllegalStateException("The benchmark requests aren't verified as expected");
+		}
+	}
+	
+	@Benchmark
+	public String hash() {
+		return ShopifyVerificationStrategy.hash(BenchmarkFixtures.CLIENT_SECRET, UNSIGNED_QUERY);
+	}
+	
+	@Benchmark
+	public boolean isShopifyRequestValid() {
+		return strategy.isShopifyRequest(validRequest);
+	}
+	
+	@Benchmark
+	public boolean isShopifyRequestInvalid() {
+		return strategy.isShopifyRequest(invalidRequest);
+	}
+	
+	@Benchmark
+	public boolean isShopifyRequestUrlEncoded() {
+		return strategy.isShopifyRequest(encodedRequest);
+	}
+	
+	static MockHttpServletRequest installRequest(String queryString, String hmac) {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", BenchmarkFixtures.INSTALL_PATH + "/" + BenchmarkFixtures.REGISTRATION_ID);
+		request.setServletPath(BenchmarkFixtures.INSTALL_PATH + "/" + BenchmarkFixtures.REGISTRATION_ID);
+		request.setQueryString(queryString);
+		
+		// the container url-decodes the parameters
+		for(String parameter : UriUtils.decode(queryString, StandardCharsets.UTF_8).split("&")) {
+			int eq = parameter.indexOf('=');
+			request.addParameter(parameter.substring(0, eq), parameter.substring(eq + 1));
+		}
+		request.setParameter(ShopifyVerificationStrategy.HMAC_PARAMETER, hmac);
+		
+		return request;
+	}
+
+}
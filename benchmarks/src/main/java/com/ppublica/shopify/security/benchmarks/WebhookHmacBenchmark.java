@@ -0,0 +1,77 @@
+package com.ppublica.shopify.security.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ppublica.shopify.security.authentication.ClientSecretKeyRing;
+import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
+
+/**
+ * The HMAC check of a webhook body of bodySize bytes: isShopifyHeaderRequest(...), given the secret, and 
+ * isHeaderShopifyRequest(...) through a ClientSecretKeyRing, as SecurityBeansConfig configures it. The String 
+ * variant, used by UninstallFilter, decodes the body first.
+ * 
+ * @author N F
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WebhookHmacBenchmark {
+	
+	@Param({"1024", "16384", "131072", "1048576"})
+	public int bodySize;
+	
+	private ShopifyVerificationStrategy strategy;
+	private ShopifyVerificationStrategy keyRingStrategy;
+	private byte[] body;
+	private String stringBody;
+	private String hmac;
+	
+	@Setup
+	public void setup() {
+		strategy = new ShopifyVerificationStrategy(BenchmarkFixtures.clientRegistrationRepository(), null);
+		keyRingStrategy = new ShopifyVerificationStrategy(BenchmarkFixtures.clientRegistrationRepository(), null, 0, null,
+						new ClientSecretKeyRing(BenchmarkFixtures.CLIENT_SECRET, null), Clock.systemUTC());
+		
+		body = BenchmarkFixtures.webhookBody(bodySize);
+		stringBody = new String(body, StandardCharsets.UTF_8);
+		hmac = Base64.getEncoder().encodeToString(ShopifyVerificationStrategy.hash(BenchmarkFixtures.CLIENT_SECRET, body).getBytes(StandardCharsets.US_ASCII));
+		
+		if(!isShopifyHeaderRequestBytes() || !isShopifyHeaderRequestString() || !isHeaderShopifyRequestKeyRing()) {
+			throw new IllegalStateException("The benchmark body isn't verified as expected");
+		}
+	}
+	
+	@Benchmark
+	public boolean isShopifyHeaderRequestBytes() {
+		return strategy.isShopifyHeaderRequest(body, hmac, BenchmarkFixtures.CLIENT_SECRET);
+	}
+	
+	@Benchmark
+	public boolean isShopifyHeaderRequestString() {
+		return strategy.isShopifyHeaderRequest(stringBody, hmac, BenchmarkFixtures.CLIENT_SECRET);
+	}
+	
+	@Benchmark
+	public boolean isHeaderShopifyRequestKeyRing() {
+		return keyRingStrategy.isHeaderShopifyRequest(body, hmac, BenchmarkFixtures.REGISTRATION_ID);
+	}
+
+}
@@ -0,0 +1,430 @@
+package com.ppublica.shopify.security.authentication;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.ppublica.shopify.security.cache.ReplayCache;
+
+/**
+ * Verifies the signature Shopify adds to app proxy requests.
+ *
+ * <p>Shopify signs an app proxy request by sorting its query parameters (except "signature") by name, writing each
+ * as "name=value" (several values of the same parameter joined with ","), concatenating them with no separator,
+ * and hashing the result with the client secret (HMAC-SHA256, hex-encoded).</p>
+ *
+ * <p>Storefront traffic goes through the app proxy, so this is done without building the canonical string: the
+ * raw query string is url-decoded once into a per-thread buffer, the parameters are sorted by their offsets in
+ * that buffer, and the Mac is updated directly from it. The Macs, already initialized with the secret, are kept
+ * per thread by ClientSecretKeyRing, so verifying a request allocates almost nothing.</p>
+ *
+ * <p>While the client secret is being rotated, a signature that doesn't match the current secret is checked with
+ * the previous one; the query string is only parsed once.</p>
+ *
+ * <p>The query string is read before the request is authenticated, so a query string longer than
+ * MAX_QUERY_LENGTH, or with more than MAX_PARAMETERS parameters, is rejected without being parsed.</p>
+ *
+ * <p>Like ShopifyVerificationStrategy, a signed query can be limited in time: if a maximum timestamp skew is set,
+ * the "timestamp" parameter must be within it of the current time, and if a ReplayCache is set, a signature that
+ * was already accepted is rejected. Shopify's timestamp is in seconds, so two identical storefront requests in the
+ * same second have the same signature, and the second one is rejected.</p>
+ *
+ * @author N F
+ * @see com.ppublica.shopify.security.filters.ShopifyAppProxyFilter
+ * @see ClientSecretKeyRing
+ */
+public class AppProxySignatureVerifier {
+	private final Log logger = LogFactory.getLog(AppProxySignatureVerifier.class);
+
+	public static final String SIGNATURE_PARAMETER = "signature";
+	public static final String TIMESTAMP_PARAMETER = "timestamp";
+
+	public static final int MAX_QUERY_LENGTH = 8 * 1024;
+	public static final int MAX_PARAMETERS = 128;
+
+	private static final byte[] SIGNATURE_NAME = SIGNATURE_PARAMETER.getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] TIMESTAMP_NAME = TIMESTAMP_PARAMETER.getBytes(StandardCharsets.US_ASCII);
+
+	// buffers grown past this size aren't kept by the thread
+	private static final int MAX_RETAINED_BUFFER = 16 * 1024;
+
+	private final ClientSecretKeyRing keyRing;
+	private final long maxTimestampSkewMillis;
+	private final ReplayCache replayCache;
+	private final Clock clock;
+	private final ThreadLocal<Canonicalizer> canonicalizers = ThreadLocal.withInitial(Canonicalizer::new);
+
+	/**
+	 * Create an AppProxySignatureVerifier.
+	 *
+	 * @param secret The client secret; if null, no request is valid
+	 */
+	public AppProxySignatureVerifier(String secret) {
+		this(secret == null || secret.isEmpty() ? null : new ClientSecretKeyRing(secret, null));
+	}
+
+	/**
+	 * Create an AppProxySignatureVerifier that uses the current and previous client secrets.
+	 *
+	 * @param keyRing The client secrets; if null, no request is valid
+	 */
+	public AppProxySignatureVerifier(ClientSecretKeyRing keyRing) {
+		this(keyRing, 0, null, Clock.systemUTC());
+	}
+
+	/**
+	 * Create an AppProxySignatureVerifier that also checks the timestamp and rejects replayed signatures.
+	 *
+	 * @param keyRing The client secrets; if null, no request is valid
+	 * @param maxTimestampSkewMillis How far the "timestamp" parameter may be from the current time, or 0 not to 
+	 * 			check it
+	 * @param replayCache To reject a signature seen before, or null not to check
+	 * @param clock To check the timestamp
+	 */
+	public AppProxySignatureVerifier(ClientSecretKeyRing keyRing, long maxTimestampSkewMillis, ReplayCache replayCache, Clock clock) {
+		this.keyRing = keyRing;
+		this.maxTimestampSkewMillis = maxTimestampSkewMillis;
+		this.replayCache = replayCache;
+		this.clock = clock;
+	}
+
+	/**
+	 * Check the "signature" parameter of the raw (not url-decoded) query string.
+	 *
+	 * @param rawQueryString The query string, as returned by HttpServletRequest.getQueryString()
+	 * @return true if the signature is valid, false otherwise
+	 */
+	public boolean isValid(String rawQueryString) {
+		if(keyRing == null) {
+			logger.debug("No client secret to verify the app proxy signature");
+			return false;
+		}
+
+		if(rawQueryString == null || rawQueryString.isEmpty()) {
+			logger.debug("No query string found");
+			return false;
+		}
+
+		if(rawQueryString.length() > MAX_QUERY_LENGTH) {
+			logger.debug("The query string is longer than " + MAX_QUERY_LENGTH);
+			return false;
+		}
+
+		Canonicalizer canonicalizer = canonicalizers.get();
+		try {
+			if(!canonicalizer.parse(rawQueryString) || !isTimestampInWindow(canonicalizer.timestamp())
+					|| !keyRing.verify(canonicalizer::matches)) {
+				return false;
+			}
+
+			// the decoded bytes, so that the same signature in another case or encoding is still a replay
+			if(replayCache != null && !replayCache.markSeen(Base64.getEncoder().encodeToString(canonicalizer.expected))) {
+				logger.debug("The app proxy signature has already been used");
+				return false;
+			}
+
+			return true;
+
+		} finally {
+			canonicalizer.trim();
+		}
+	}
+
+	/*
+	 * The timestamp is in seconds, -1 if it's missing or malformed.
+	 */
+	private boolean isTimestampInWindow(long timestamp) {
+		if(maxTimestampSkewMillis <= 0) {
+			return true;
+		}
+
+		if(timestamp < 0 || timestamp > Long.MAX_VALUE / 1000 || Math.abs(clock.millis() - timestamp * 1000) > maxTimestampSkewMillis) {
+			logger.debug("The app proxy timestamp is missing or outside the allowed window");
+			return false;
+		}
+
+		return true;
+	}
+
+	public long getMaxTimestampSkewMillis() {
+		return this.maxTimestampSkewMillis;
+	}
+
+	/**
+	 * The cache of signatures seen recently.
+	 *
+	 * @return The ReplayCache, or null if replays aren't checked
+	 */
+	public ReplayCache getReplayCache() {
+		return this.replayCache;
+	}
+
+	/*
+	 * Per-thread state. The decoded query string is held in buf; params holds, for each parameter, the offsets of
+	 * its name and value in buf: [nameStart, nameEnd, valueStart, valueEnd]. order holds the parameters sorted by
+	 * name once the query string is parsed. timestampStart and timestampEnd are the offsets of the value of the
+	 * "timestamp" parameter, -1 if there's none or more than one.
+	 */
+	private static class Canonicalizer {
+
+		private final byte[] expected = new byte[32];
+		private byte[] buf = new byte[512];
+		private int[] params = new int[64];
+		private int[] order = new int[16];
+		private int count;
+		private int timestampStart;
+		private int timestampEnd;
+
+		/*
+		 * Decode and sort the parameters, and read the signature into expected. Returns false if the query string
+		 * is malformed or has no valid signature.
+		 */
+		boolean parse(String query) {
+			int length = query.length();
+			// a char decodes to 3 bytes at most
+			ensureBuffer(length * 3);
+
+			int count = 0;
+			int pos = 0;
+			int bufPos = 0;
+			boolean hasSignature = false;
+			timestampStart = timestampEnd = -1;
+			boolean hasTimestamp = false;
+
+			while(pos <= length) {
+				int end = query.indexOf('&', pos);
+				if(end < 0) {
+					end = length;
+				}
+
+				if(end > pos) {
+					int eq = query.indexOf('=', pos);
+					if(eq < 0 || eq > end) {
+						eq = end;
+					}
+
+					int nameStart = bufPos;
+					bufPos = decode(query, pos, eq, bufPos);
+					int nameEnd = bufPos;
+					int valueEnd = bufPos = decode(query, Math.min(eq + 1, end), end, bufPos);
+
+					if(nameEnd < 0 || valueEnd < 0) {
+						return false;
+					}
+
+					if(equals(nameStart, nameEnd, SIGNATURE_NAME)) {
+						if(hasSignature || !decodeHex(nameEnd, valueEnd)) {
+							return false;
+						}
+						hasSignature = true;
+					} else {
+						if(count == MAX_PARAMETERS) {
+							return false;
+						}
+						if(equals(nameStart, nameEnd, TIMESTAMP_NAME)) {
+							timestampStart = hasTimestamp ? -1 : nameEnd;
+							timestampEnd = hasTimestamp ? -1 : valueEnd;
+							hasTimestamp = true;
+						}
+						ensureParams(count + 1);
+						int p = count * 4;
+						params[p] = nameStart;
+						params[p + 1] = nameEnd;
+						params[p + 2] = nameEnd;
+						params[p + 3] = valueEnd;
+						count++;
+					}
+				}
+
+				pos = end + 1;
+			}
+
+			if(!hasSignature) {
+				return false;
+			}
+
+			sort(count);
+			this.count = count;
+
+			return true;
+		}
+
+		/*
+		 * The value of the "timestamp" parameter, -1 if it's missing, repeated, or not a number.
+		 */
+		long timestamp() {
+			if(timestampStart < 0 || timestampEnd == timestampStart || timestampEnd - timestampStart > 18) {
+				return -1;
+			}
+
+			long timestamp = 0;
+			for(int i = timestampStart; i < timestampEnd; i++) {
+				int digit = Character.digit(buf[i], 10);
+				if(digit < 0) {
+					return -1;
+				}
+				timestamp = timestamp * 10 + digit;
+			}
+
+			return timestamp;
+		}
+
+		/*
+		 * Digest the sorted parameters with the Mac, and compare the result with the signature.
+		 */
+		boolean matches(Mac mac) {
+			for(int i = 0; i < count; i++) {
+				int p = order[i] * 4;
+				boolean sameAsPrevious = i > 0 && compareNames(order[i - 1], order[i]) == 0;
+
+				if(sameAsPrevious) {
+					mac.update((byte)',');
+				} else {
+					mac.update(buf, params[p], params[p + 1] - params[p]);
+					mac.update((byte)'=');
+				}
+				mac.update(buf, params[p + 2], params[p + 3] - params[p + 2]);
+			}
+
+			return MessageDigest.isEqual(mac.doFinal(), expected);
+		}
+
+		/*
+		 * Url-decode query[from, to) into buf at bufPos, '+' being a space. Returns the new position in buf, or -1
+		 * if the query string is malformed.
+		 */
+		private int decode(String query, int from, int to, int bufPos) {
+			if(bufPos < 0) {
+				return -1;
+			}
+
+			for(int i = from; i < to; i++) {
+				char c = query.charAt(i);
+
+				if(c == '%') {
+					if(i + 2 >= to) {
+						return -1;
+					}
+					int hi = Character.digit(query.charAt(i + 1), 16);
+					int lo = Character.digit(query.charAt(i + 2), 16);
+					if(hi < 0 || lo < 0) {
+						return -1;
+					}
+					buf[bufPos++] = (byte)((hi << 4) | lo);
+					i += 2;
+				} else if(c == '+') {
+					buf[bufPos++] = ' ';
+				} else if(c < 0x80) {
+					buf[bufPos++] = (byte)c;
+				} else if(c < 0x800) {
+					buf[bufPos++] = (byte)(0xC0 | (c >> 6));
+					buf[bufPos++] = (byte)(0x80 | (c & 0x3F));
+				} else if(Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(query.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, query.charAt(++i));
+					buf[bufPos++] = (byte)(0xF0 | (cp >> 18));
+					buf[bufPos++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+					buf[bufPos++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+					buf[bufPos++] = (byte)(0x80 | (cp & 0x3F));
+				} else {
+					buf[bufPos++] = (byte)(0xE0 | (c >> 12));
+					buf[bufPos++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+					buf[bufPos++] = (byte)(0x80 | (c & 0x3F));
+				}
+			}
+
+			return bufPos;
+		}
+
+		private boolean decodeHex(int from, int to) {
+			if(to - from != expected.length * 2) {
+				return false;
+			}
+
+			for(int i = 0; i < expected.length; i++) {
+				int hi = Character.digit(buf[from + i * 2], 16);
+				int lo = Character.digit(buf[from + i * 2 + 1], 16);
+				if(hi < 0 || lo < 0) {
+					return false;
+				}
+				expected[i] = (byte)((hi << 4) | lo);
+			}
+
+			return true;
+		}
+
+		private boolean equals(int from, int to, byte[] name) {
+			if(to - from != name.length) {
+				return false;
+			}
+			for(int i = 0; i < name.length; i++) {
+				if(buf[from + i] != name[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/*
+		 * Stable insertion sort by name: a request has a handful of parameters (MAX_PARAMETERS at most), and values
+		 * of the same parameter must keep their order.
+		 */
+		private void sort(int count) {
+			if(order.length < count) {
+				order = new int[Math.max(count, order.length * 2)];
+			}
+
+			for(int i = 0; i < count; i++) {
+				int current = i;
+				int j = i - 1;
+				while(j >= 0 && compareNames(order[j], current) > 0) {
+					order[j + 1] = order[j];
+					j--;
+				}
+				order[j + 1] = current;
+			}
+		}
+
+		private int compareNames(int a, int b) {
+			int aPos = params[a * 4];
+			int aEnd = params[a * 4 + 1];
+			int bPos = params[b * 4];
+			int bEnd = params[b * 4 + 1];
+
+			while(aPos < aEnd && bPos < bEnd) {
+				int diff = (buf[aPos++] & 0xFF) - (buf[bPos++] & 0xFF);
+				if(diff != 0) {
+					return diff;
+				}
+			}
+
+			return (aEnd - aPos) - (bEnd - bPos);
+		}
+
+		private void ensureBuffer(int size) {
+			if(buf.length < size) {
+				buf = new byte[size];
+			}
+		}
+
+		private void ensureParams(int count) {
+			if(params.length < count * 4) {
+				params = Arrays.copyOf(params, params.length * 2);
+			}
+		}
+
+		void trim() {
+			if(buf.length > MAX_RETAINED_BUFFER) {
+				buf = new byte[512];
+			}
+			count = 0;
+		}
+	}
+
+}
@@ -0,0 +1,164 @@
+package com.ppublica.shopify.security.authentication;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Watches a file that holds the client secret, and updates the ClientSecretKeyRing when it changes, so that the
+ * secret can be rotated without restarting the application.
+ *
+ * <p>The first line of the file is the current secret. The second line, if any, is the previous secret, still
+ * accepted while Shopify signs requests with it. If the file only has one line, a new secret makes the old current
+ * secret the previous one, and the current secret alone stops accepting the previous one. Blank lines are
+ * ignored.</p>
+ *
+ * <p>The file is polled: its modification time is checked every pollInterval, and it's only read when that
+ * changes. A file that can't be read, or is empty, leaves the keys as they are.</p>
+ *
+ * @author N F
+ * @see ClientSecretKeyRing
+ */
+public class ClientSecretFileWatcher implements DisposableBean {
+	private final Log logger = LogFactory.getLog(ClientSecretFileWatcher.class);
+
+	public static final long DEFAULT_POLL_INTERVAL = 10000;
+
+	private final Path file;
+	private final ClientSecretKeyRing keyRing;
+	private final ScheduledExecutorService scheduler;
+
+	// guarded by this
+	private long lastModified = Long.MIN_VALUE;
+	private List<String> lastSecrets;
+
+	private final AtomicLong reloadCount = new AtomicLong();
+	private final AtomicLong failedReloadCount = new AtomicLong();
+
+	/**
+	 * Create a ClientSecretFileWatcher, and start polling the file. A null value selects the default.
+	 *
+	 * @param file The file that holds the secret
+	 * @param keyRing The keys to update
+	 * @param pollIntervalMillis How often the file is checked, or 0 to only check when check() is called
+	 */
+	public ClientSecretFileWatcher(Path file, ClientSecretKeyRing keyRing, Long pollIntervalMillis) {
+		this.file = file;
+		this.keyRing = keyRing;
+
+		long pollInterval = pollIntervalMillis != null ? pollIntervalMillis : DEFAULT_POLL_INTERVAL;
+
+		if(pollInterval < 0) {
+			throw new RuntimeException("Invalid client secret file poll interval: " + pollInterval + "ms");
+		}
+
+		if(pollInterval > 0) {
+			this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "shopify-client-secret-watcher");
+				thread.setDaemon(true);
+				return thread;
+			});
+			this.scheduler.scheduleWithFixedDelay(this::check, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+		} else {
+			this.scheduler = null;
+		}
+
+		if(logger.isDebugEnabled()) {
+			logger.debug("***ClientSecretFileWatcher using: ***");
+			logger.debug("File:             " + file);
+			logger.debug("Poll interval:    " + pollInterval + "ms");
+		}
+	}
+
+	/**
+	 * Read the file if it has changed since it was last read, and update the keys.
+	 *
+	 * @return true if the keys were updated, false otherwise
+	 */
+	public synchronized boolean check() {
+		List<String> secrets;
+
+		try {
+			long modified = Files.getLastModifiedTime(file).toMillis();
+
+			if(modified == lastModified) {
+				return false;
+			}
+
+			secrets = readSecrets(file);
+			lastModified = modified;
+
+		} catch (IOException | RuntimeException e) {
+			failedReloadCount.incrementAndGet();
+			logger.warn("Unable to read the client secret from " + file, e);
+			return false;
+		}
+
+		if(secrets.isEmpty()) {
+			failedReloadCount.incrementAndGet();
+			logger.warn("No client secret found in " + file);
+			return false;
+		}
+
+		if(secrets.equals(lastSecrets)) {
+			return false;
+		}
+
+		if(secrets.size() == 1 && !secrets.get(0).equals(keyRing.getCurrentSecret())) {
+			keyRing.rotate(secrets.get(0));
+		} else if(secrets.size() == 1 && lastSecrets != null) {
+			// the previous secret was removed from the file; when first read, the file doesn't override the
+			// previous secret set on the key ring
+			keyRing.setSecrets(secrets.get(0), null);
+		} else if(secrets.size() > 1) {
+			keyRing.setSecrets(secrets.get(0), secrets.get(1));
+		}
+
+		lastSecrets = secrets;
+		reloadCount.incrementAndGet();
+
+		return true;
+	}
+
+	public long getReloadCount() {
+		return reloadCount.get();
+	}
+
+	public long getFailedReloadCount() {
+		return failedReloadCount.get();
+	}
+
+	@Override
+	public void destroy() {
+		if(scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	/**
+	 * Read the secrets from the file: the current one, then, if present, the previous one.
+	 *
+	 * @param file The file
+	 * @return The secrets, without blank lines
+	 * @throws IOException If the file can't be read
+	 */
+	public static List<String> readSecrets(Path file) throws IOException {
+		return Files.readAllLines(file, StandardCharsets.UTF_8).stream()
+				.map(String::trim)
+				.filter(line -> !line.isEmpty())
+				.limit(2)
+				.collect(Collectors.toList());
+	}
+
+}
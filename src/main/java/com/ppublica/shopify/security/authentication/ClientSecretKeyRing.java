@@ -0,0 +1,218 @@
+package com.ppublica.shopify.security.authentication;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Clock;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Holds the HMAC keys made from the client secret: the current one and, while a secret is being rotated, the
+ * previous one.
+ *
+ * <p>The keys are made once for each secret, and both are replaced together, atomically, when the secrets change
+ * (see ClientSecretFileWatcher). Each thread keeps a Mac initialized with each key, and makes new ones only after
+ * the secrets change.</p>
+ *
+ * <p>A signature is checked with the current key first, then with the previous one. Counters show which key
+ * matched, and when the previous key last did, so it's clear when it can be removed.</p>
+ *
+ * @author N F
+ * @see ClientSecretFileWatcher
+ * @see ShopifyVerificationStrategy
+ * @see AppProxySignatureVerifier
+ */
+public class ClientSecretKeyRing {
+	private final Log logger = LogFactory.getLog(ClientSecretKeyRing.class);
+
+	private static final String ALGORITHM = "HmacSHA256";
+
+	private final AtomicReference<Keys> keys = new AtomicReference<>();
+	private final ThreadLocal<Macs> macs = new ThreadLocal<>();
+	private final Clock clock;
+
+	private final AtomicLong currentKeyMatchCount = new AtomicLong();
+	private final AtomicLong previousKeyMatchCount = new AtomicLong();
+	private final AtomicLong noKeyMatchCount = new AtomicLong();
+	private final AtomicLong lastPreviousKeyMatch = new AtomicLong();
+	private final AtomicLong rotationCount = new AtomicLong();
+
+	/**
+	 * Create a ClientSecretKeyRing.
+	 *
+	 * @param currentSecret The client secret
+	 * @param previousSecret The secret being replaced, or null
+	 */
+	public ClientSecretKeyRing(String currentSecret, String previousSecret) {
+		this(currentSecret, previousSecret, Clock.systemUTC());
+	}
+
+	public ClientSecretKeyRing(String currentSecret, String previousSecret, Clock clock) {
+		if(currentSecret == null || currentSecret.isEmpty()) {
+			throw new RuntimeException("A client secret is required");
+		}
+		this.clock = clock;
+		this.keys.set(new Keys(currentSecret, previousSecret));
+	}
+
+	/**
+	 * Replace both secrets at once. Does nothing if they haven't changed.
+	 *
+	 * @param currentSecret The client secret
+	 * @param previousSecret The secret being replaced, or null
+	 */
+	public void setSecrets(String currentSecret, String previousSecret) {
+		if(currentSecret == null || currentSecret.isEmpty()) {
+			throw new IllegalArgumentException("A client secret is required");
+		}
+
+		Keys next = new Keys(currentSecret, previousSecret);
+		Keys old = keys.getAndSet(next);
+
+		if(!next.sameSecrets(old)) {
+			rotationCount.incrementAndGet();
+			logger.info("The client secret has been replaced" + (next.previous != null ? "; the previous secret is still accepted" : ""));
+		}
+	}
+
+	/**
+	 * Make the given secret the current one, and keep the current one as the previous.
+	 *
+	 * @param newSecret The new client secret
+	 */
+	public void rotate(String newSecret) {
+		Keys old = keys.get();
+
+		if(!old.currentSecret.equals(newSecret)) {
+			setSecrets(newSecret, old.currentSecret);
+		}
+	}
+
+	public String getCurrentSecret() {
+		return keys.get().currentSecret;
+	}
+
+	public String getPreviousSecret() {
+		return keys.get().previousSecret;
+	}
+
+	/**
+	 * Check a signature with the current key, then with the previous one. The Mac given to the check has been
+	 * reset, and is initialized with the key.
+	 *
+	 * @param check Computes the signature with the Mac and compares it
+	 * @return true if the check passed with either key, false otherwise
+	 */
+	public boolean verify(Predicate<Mac> check) {
+		Macs threadMacs = macs();
+
+		threadMacs.current.reset();
+		if(check.test(threadMacs.current)) {
+			currentKeyMatchCount.incrementAndGet();
+			return true;
+		}
+
+		if(threadMacs.previous != null) {
+			threadMacs.previous.reset();
+			if(check.test(threadMacs.previous)) {
+				previousKeyMatchCount.incrementAndGet();
+				lastPreviousKeyMatch.set(clock.millis());
+				return true;
+			}
+		}
+
+		noKeyMatchCount.incrementAndGet();
+		return false;
+	}
+
+	public long getCurrentKeyMatchCount() {
+		return currentKeyMatchCount.get();
+	}
+
+	public long getPreviousKeyMatchCount() {
+		return previousKeyMatchCount.get();
+	}
+
+	public long getNoKeyMatchCount() {
+		return noKeyMatchCount.get();
+	}
+
+	/**
+	 * When a signature last matched the previous key only.
+	 *
+	 * @return The time in milliseconds since the epoch, or 0 if it never has
+	 */
+	public long getLastPreviousKeyMatch() {
+		return lastPreviousKeyMatch.get();
+	}
+
+	public long getRotationCount() {
+		return rotationCount.get();
+	}
+
+	private Macs macs() {
+		Keys current = keys.get();
+		Macs threadMacs = macs.get();
+
+		if(threadMacs == null || threadMacs.keys != current) {
+			threadMacs = new Macs(current);
+			macs.set(threadMacs);
+		}
+
+		return threadMacs;
+	}
+
+	private static Mac newMac(SecretKeySpec key) {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(key);
+			return mac;
+		} catch (GeneralSecurityException e) {
+			throw new ShopifyVerificationException("Error hashing");
+		}
+	}
+
+	/*
+	 * Immutable: a new instance replaces the old one when the secrets change.
+	 */
+	private static class Keys {
+		final String currentSecret;
+		final String previousSecret;
+		final SecretKeySpec current;
+		final SecretKeySpec previous;
+
+		Keys(String currentSecret, String previousSecret) {
+			boolean hasPrevious = previousSecret != null && !previousSecret.isEmpty() && !previousSecret.equals(currentSecret);
+
+			this.currentSecret = currentSecret;
+			this.previousSecret = hasPrevious ? previousSecret : null;
+			this.current = new SecretKeySpec(currentSecret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+			this.previous = hasPrevious ? new SecretKeySpec(previousSecret.getBytes(StandardCharsets.UTF_8), ALGORITHM) : null;
+		}
+
+		boolean sameSecrets(Keys other) {
+			return other != null && currentSecret.equals(other.currentSecret)
+					&& (previousSecret == null ? other.previousSecret == null : previousSecret.equals(other.previousSecret));
+		}
+	}
+
+	private static class Macs {
+		final Keys keys;
+		final Mac current;
+		final Mac previous;
+
+		Macs(Keys keys) {
+			this.keys = keys;
+			this.current = newMac(keys.current);
+			this.previous = keys.previous == null ? null : newMac(keys.previous);
+		}
+	}
+
+}
@@ -0,0 +1,50 @@
+package com.ppublica.shopify.security.authentication;
+
+import java.util.Collection;
+
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.Transient;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.core.user.OAuth2User;
+
+/**
+ * The Authentication for a request Shopify forwarded through the app proxy. The principal is the store the request
+ * was made on.
+ *
+ * <p>App proxy requests come from the storefront, one per page view, so this token only lasts for the request:
+ * it's never saved in the HttpSession, and no session is created for it.</p>
+ *
+ * @author N F
+ * @see com.ppublica.shopify.security.filters.ShopifyAppProxyFilter
+ */
+@Transient
+public class ShopifyAppProxyToken extends OAuth2AuthenticationToken {
+
+	private static final long serialVersionUID = -3187429012458911730L;
+
+	private final String loggedInCustomerId;
+
+	/**
+	 * Create a ShopifyAppProxyToken.
+	 *
+	 * @param principal The store
+	 * @param authorities The authorities
+	 * @param authorizedClientRegistrationId The registration id
+	 * @param loggedInCustomerId The "logged_in_customer_id" parameter; may be null or empty
+	 */
+	public ShopifyAppProxyToken(OAuth2User principal, Collection<? extends GrantedAuthority> authorities,
+					String authorizedClientRegistrationId, String loggedInCustomerId) {
+		super(principal, authorities, authorizedClientRegistrationId);
+		this.loggedInCustomerId = loggedInCustomerId;
+	}
+
+	/**
+	 * The id of the customer logged into the storefront.
+	 *
+	 * @return The customer id, or null if no customer is logged in
+	 */
+	public String getLoggedInCustomerId() {
+		return loggedInCustomerId == null || loggedInCustomerId.isEmpty() ? null : loggedInCustomerId;
+	}
+
+}
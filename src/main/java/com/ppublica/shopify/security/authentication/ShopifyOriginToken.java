@@ -1,15 +1,23 @@
 package com.ppublica.shopify.security.authentication;
 
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.Collection;
 
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.GrantedAuthority;
 
+import com.ppublica.shopify.security.serialization.CompactSerialization;
+
 
 /**
  * The presence of this token indicates that the request came from Shopify. It's a short-lived Authentication 
  * object; it never exists past ShopifyExistingTokenFilter. 
  * 
+ * <p>Since it carries no state, its serialized form is a single version byte.</p>
+ * 
  * @author N F
  * @see com.ppublica.shopify.security.filters.ShopifyExistingTokenFilter
  */
@@ -55,5 +63,32 @@ public class ShopifyOriginToken implements Authentication {
 	public void setAuthenticated(boolean isAuthenticated) throws IllegalArgumentException {
 		
 	}
+	
+	private Object writeReplace() {
+		return new CompactForm();
+	}
+	
+	/**
+	 * The versioned, compact serialized form of a ShopifyOriginToken.
+	 */
+	static final class CompactForm implements Externalizable {
+		private static final long serialVersionUID = 1L;
+		
+		public CompactForm() { }
+
+		@Override
+		public void writeExternal(ObjectOutput out) throws IOException {
+			out.writeByte(CompactSerialization.VERSION_1);
+		}
+
+		@Override
+		public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+			CompactSerialization.checkVersion(in.readByte(), ShopifyOriginToken.class);
+		}
+		
+		private Object readResolve() {
+			return new ShopifyOriginToken();
+		}
+	}
 
 }
@@ -3,6 +3,8 @@ package com.ppublica.shopify.security.authentication;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Clock;
 import java.util.Base64;
 import java.util.Iterator;
 import java.util.Map;
@@ -12,6 +14,7 @@ import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import javax.servlet.http.HttpServletRequest;
 
+import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
@@ -23,6 +26,9 @@ import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequ
 import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
 import org.springframework.web.util.UriUtils;
 
+import com.ppublica.shopify.security.cache.ReplayCache;
+import com.ppublica.shopify.security.events.ShopifyEvent;
+import com.ppublica.shopify.security.events.ShopifyEvents;
 import com.ppublica.shopify.security.web.ShopifyHttpSessionOAuth2AuthorizationRequestRepository;
 
 
@@ -31,11 +37,24 @@ import com.ppublica.shopify.security.web.ShopifyHttpSessionOAuth2AuthorizationRe
  * ShopifyHttpSessionOAuth2AuthorizationRequestRepository to verify the nonce in the "state" request parameter for 
  * the "whitelisted redirection url". ClientRegistrationRepository is used to obtain the secret to check the HMAC.
  * 
+ * <p>A signed query can be limited in time: if a maximum timestamp skew is set, the "timestamp" parameter must be 
+ * within it of the current time. If a ReplayCache is set, a query whose HMAC was already accepted is rejected, 
+ * so that a captured url can't be used again to log into the store.</p>
+ * 
+ * <p>If a ClientSecretKeyRing is set, HMACs are checked with its keys instead of the secret in the 
+ * ClientRegistration: the current secret first, then the previous one, so that the secret can be rotated without 
+ * a restart.</p>
+ * 
+ * <p>The HMAC and nonce checks of a request are recorded as ShopifyHmacVerify and ShopifyNonceCheck events (see 
+ * ShopifyEvents).</p>
+ * 
  * 
  * @author N F
  * @see com.ppublica.shopify.security.web.ShopifyHttpSessionOAuth2AuthorizationRequestRepository
  * @see com.ppublica.shopify.security.filters.ShopifyOriginFilter
  * @see com.ppublica.shopify.security.filters.UninstallFilter
+ * @see com.ppublica.shopify.security.filters.ShopifyWebhookFilter
+ * @see ClientSecretKeyRing
  */
 public class ShopifyVerificationStrategy {
 	private final Log logger = LogFactory.getLog(ShopifyVerificationStrategy.class);
@@ -43,20 +62,73 @@ public class ShopifyVerificationStrategy {
 	public static final String NONCE_PARAMETER = OAuth2ParameterNames.STATE;
 	public static final String HMAC_PARAMETER = "hmac";
 	public static final String HMAC_HEADER = "X-Shopify-Hmac-SHA256";
+	public static final String TIMESTAMP_PARAMETER = "timestamp";
+	
+	private static final String SHOP_PARAMETER = "shop";
+	private static final String SHOP_DOMAIN_HEADER = "X-Shopify-Shop-Domain";
+	
+	// the outcomes of the ShopifyHmacVerify and ShopifyNonceCheck events
+	private static final String VALID = "valid";
+	private static final String MISSING = "missing";
+	private static final String EXPIRED = "expired";
+	private static final String INVALID = "invalid";
+	private static final String REPLAYED = "replayed";
+	private static final String UNKNOWN = "unknown";
 
 	
 	private ShopifyHttpSessionOAuth2AuthorizationRequestRepository authReqRepository;
 	private ClientRegistrationRepository clientRegistrationRepository;
+	private long maxTimestampSkewMillis;
+	private ReplayCache replayCache;
+	private ClientSecretKeyRing keyRing;
+	private Clock clock;
 	
 	/**
-	 * Create a new ShopifyVerificationStrategy
+	 * Create a new ShopifyVerificationStrategy that doesn't check the timestamp or replays.
 	 * 
 	 * @param clientRegistrationRepository The ClientRegistrationRepository
 	 * @param authReqRepository The ShopifyHttpSessionOAuth2AuthorizationRequestRepository
 	 */
 	public ShopifyVerificationStrategy(ClientRegistrationRepository clientRegistrationRepository, ShopifyHttpSessionOAuth2AuthorizationRequestRepository authReqRepository) {
+		this(clientRegistrationRepository, authReqRepository, 0, null, Clock.systemUTC());
+
+	}
+	
+	/**
+	 * Create a new ShopifyVerificationStrategy
+	 * 
+	 * @param clientRegistrationRepository The ClientRegistrationRepository
+	 * @param authReqRepository The ShopifyHttpSessionOAuth2AuthorizationRequestRepository
+	 * @param maxTimestampSkewMillis How far the "timestamp" parameter may be from the current time, or 0 not to 
+	 * 			check it
+	 * @param replayCache To reject an HMAC seen before, or null not to check
+	 * @param clock The clock
+	 */
+	public ShopifyVerificationStrategy(ClientRegistrationRepository clientRegistrationRepository, ShopifyHttpSessionOAuth2AuthorizationRequestRepository authReqRepository,
+						long maxTimestampSkewMillis, ReplayCache replayCache, Clock clock) {
+		this(clientRegistrationRepository, authReqRepository, maxTimestampSkewMillis, replayCache, null, clock);
+
+	}
+	
+	/**
+	 * Create a new ShopifyVerificationStrategy
+	 * 
+	 * @param clientRegistrationRepository The ClientRegistrationRepository
+	 * @param authReqRepository The ShopifyHttpSessionOAuth2AuthorizationRequestRepository
+	 * @param maxTimestampSkewMillis How far the "timestamp" parameter may be from the current time, or 0 not to 
+	 * 			check it
+	 * @param replayCache To reject an HMAC seen before, or null not to check
+	 * @param keyRing The current and previous client secrets, or null to use the ClientRegistration's secret
+	 * @param clock The clock
+	 */
+	public ShopifyVerificationStrategy(ClientRegistrationRepository clientRegistrationRepository, ShopifyHttpSessionOAuth2AuthorizationRequestRepository authReqRepository,
+						long maxTimestampSkewMillis, ReplayCache replayCache, ClientSecretKeyRing keyRing, Clock clock) {
 		this.clientRegistrationRepository = clientRegistrationRepository;
 		this.authReqRepository = authReqRepository;
+		this.maxTimestampSkewMillis = maxTimestampSkewMillis;
+		this.replayCache = replayCache;
+		this.keyRing = keyRing;
+		this.clock = clock;
 
 	}
 	
@@ -68,15 +140,32 @@ public class ShopifyVerificationStrategy {
 	 * <p>This method checks in case the query string has been URL encoded. Tomcat by default decodes request 
 	 * parameters, so hmac is expected to be url decoded.</p>
 	 * 
+	 * <p>The timestamp is checked before the HMAC, and the HMAC is recorded in the ReplayCache only once it's 
+	 * valid.</p>
+	 * 
 	 * @param request The HttpServletRequest
 	 * @return true if HMAC is valid, false otherwise
 	 */
 	public boolean isShopifyRequest(HttpServletRequest request) {
+		ShopifyEvent event = ShopifyEvents.hmacVerify();
+		
+		String outcome = verifyQueryHmac(request);
+		
+		event.record(request.getParameter(SHOP_PARAMETER), request.getRequestURI(), outcome);
+		
+		return VALID.equals(outcome);
+		
+	}
+	
+	/*
+	 * The outcome of the check, for the ShopifyHmacVerify event: VALID, or why the request was rejected.
+	 */
+	private String verifyQueryHmac(HttpServletRequest request) {
 		Map<String,String[]> requestParameters = this.getRequestParameters(request);
 				
 		if(requestParameters == null) {
 			logger.debug("No request parameters found");
-			return false;
+			return MISSING;
 			
 		}
 		
@@ -84,30 +173,78 @@ public class ShopifyVerificationStrategy {
 		
 		if(hmacValues == null || hmacValues.length != 1) {
 			logger.debug("No HMAC parameter found");
-			return false;
+			return MISSING;
 		}
 		
 		String hmacValue = hmacValues[0];
 		
 		if(hmacValue.isEmpty()) {
 			logger.debug("HMAC parameter is empty");
-			return false;
+			return MISSING;
 		}
 		
-		String secret = getClientSecret(request);
+		if(!isTimestampInWindow(requestParameters.get(TIMESTAMP_PARAMETER))) {
+			return EXPIRED;
+		}
 		
-		if(!isShopifyQueryRequest(request.getQueryString(), hmacValue, secret)) {
-			logger.debug("url-decoding request query string");
-			// try again...
-			// sometimes the query string has been url encoded (by the server...?)
-			return isShopifyQueryRequest(UriUtils.decode(request.getQueryString(), StandardCharsets.UTF_8), hmacValue, secret);
-
+		if(keyRing != null) {
+			if(!isShopifyQueryRequest(request.getQueryString(), hmacValue)) {
+				return INVALID;
+			}
+			
+		} else {
+			String secret = getClientSecret(request);
+			
+			if(!isShopifyQueryRequest(request.getQueryString(), hmacValue, secret)) {
+				logger.debug("url-decoding request query string");
+				// try again...
+				// sometimes the query string has been url encoded (by the server...?)
+				if(!isShopifyQueryRequest(UriUtils.decode(request.getQueryString(), StandardCharsets.UTF_8), hmacValue, secret)) {
+					return INVALID;
+				}
+	
+			}
 		}
-		return true;
+		
+		if(replayCache != null && !replayCache.markSeen(hmacValue)) {
+			logger.debug("HMAC has already been used");
+			return REPLAYED;
+		}
+		
+		return VALID;
 
 		
 	}
 	
+	/*
+	 * The timestamp is in seconds.
+	 */
+	private boolean isTimestampInWindow(String[] timestampValues) {
+		if(maxTimestampSkewMillis <= 0) {
+			return true;
+		}
+		
+		if(timestampValues == null || timestampValues.length != 1) {
+			logger.debug("No timestamp parameter found");
+			return false;
+		}
+		
+		long timestamp;
+		try {
+			timestamp = Long.parseLong(timestampValues[0].trim());
+		} catch (NumberFormatException e) {
+			logger.debug("Timestamp parameter is not a number");
+			return false;
+		}
+		
+		if(timestamp < 0 || timestamp > Long.MAX_VALUE / 1000 || Math.abs(clock.millis() - timestamp * 1000) > maxTimestampSkewMillis) {
+			logger.debug("Timestamp is outside the allowed window");
+			return false;
+		}
+		
+		return true;
+	}
+	
 	/*
 	 * 1. Constructs the hmac parameter as it should appear in the url.
 	 * 2. Removes it from the query string.
@@ -115,6 +252,60 @@ public class ShopifyVerificationStrategy {
 	 * 4. If the hash equals the hmac value, the request came from Shopify.
 	 */
 	private boolean isShopifyQueryRequest(String rawQueryString, String hmac, String secret) {
+		String processedQuery = removeHmac(rawQueryString, hmac);
+		
+		if(processedQuery == null) {
+			return false;
+		}
+		
+		String shaOfQuery = hash(secret, processedQuery);
+		
+		if(shaOfQuery.equals(hmac)) {
+			return true;
+		}
+
+		return false;
+		
+	}
+	
+	/*
+	 * Same as above, with the keys of the ClientSecretKeyRing. The query string is url-decoded only if it doesn't 
+	 * match as it is, and both are tried with each key before the counters of the key ring are updated.
+	 */
+	private boolean isShopifyQueryRequest(String rawQueryString, String hmac) {
+		byte[] expected;
+		try {
+			expected = Hex.decodeHex(hmac);
+		} catch (DecoderException e) {
+			logger.debug("HMAC parameter is not hex-encoded");
+			return false;
+		}
+		
+		byte[] processedQuery = toBytes(removeHmac(rawQueryString, hmac));
+		byte[][] decodedQuery = new byte[1][];
+		
+		return keyRing.verify(mac -> {
+			if(processedQuery != null && MessageDigest.isEqual(mac.doFinal(processedQuery), expected)) {
+				return true;
+			}
+			if(decodedQuery[0] == null) {
+				logger.debug("url-decoding request query string");
+				byte[] decoded = toBytes(removeHmac(UriUtils.decode(rawQueryString, StandardCharsets.UTF_8), hmac));
+				decodedQuery[0] = decoded == null ? new byte[0] : decoded;
+			}
+			return decodedQuery[0].length > 0 && MessageDigest.isEqual(mac.doFinal(decodedQuery[0]), expected);
+		});
+		
+	}
+	
+	private static byte[] toBytes(String query) {
+		return query == null ? null : query.getBytes(StandardCharsets.UTF_8);
+	}
+	
+	/*
+	 * The query string without the hmac parameter, or null if the parameter isn't found.
+	 */
+	private String removeHmac(String rawQueryString, String hmac) {
 		String hmacQueryStringPiece = HMAC_PARAMETER + "=" + hmac + "&";
 
 		String processedQuery = rawQueryString.replaceFirst(Pattern.quote(hmacQueryStringPiece), "");
@@ -131,19 +322,13 @@ public class ShopifyVerificationStrategy {
 				// ... unless there is an encoding issue
 				// (hmac as it appears in query string is encoded, whereas in parameter map it is decoded
 				logger.debug("HMAC parameter not found in query string");
-				return false;
+				return null;
 
 			}
 			
 		}
 		
-		String shaOfQuery = hash(secret, processedQuery);
-		
-		if(shaOfQuery.equals(hmac)) {
-			return true;
-		}
-
-		return false;
+		return processedQuery;
 		
 	}
 
@@ -159,18 +344,32 @@ public class ShopifyVerificationStrategy {
 	 * @return true if the nonce is valid, false otherwise
 	 */
 	public boolean hasValidNonce(HttpServletRequest request) {
+		ShopifyEvent event = ShopifyEvents.nonceCheck();
+		
+		String outcome = checkNonce(request);
+		
+		event.record(request.getParameter(SHOP_PARAMETER), request.getRequestURI(), outcome);
+		
+		return VALID.equals(outcome);
+		
+	}
+	
+	/*
+	 * The outcome of the check, for the ShopifyNonceCheck event.
+	 */
+	private String checkNonce(HttpServletRequest request) {
 		String nonce = request.getParameter(NONCE_PARAMETER);
 		
 		if(nonce == null || nonce.isEmpty()) {
 			logger.debug("No NONCE parameter found");
-			return false;
+			return MISSING;
 		}
 		
 		Map<String,OAuth2AuthorizationRequest> authorizationRequests = authReqRepository.getAuthorizationRequests(request);
 		
 		if(authorizationRequests != null) {
 			if(authorizationRequests.keySet().contains(nonce)) {
-				return true;
+				return VALID;
 			}
 			
 			// try again...
@@ -178,12 +377,12 @@ public class ShopifyVerificationStrategy {
 			logger.debug("url-decoding nonce");
 			nonce = UriUtils.decode(nonce, StandardCharsets.UTF_8);
 			if(authorizationRequests.keySet().contains(nonce)) {
-				return true;
+				return VALID;
 			}
 		}
 	
 		logger.debug("No matching OAuth2AuthorizationRequest found for the nonce");
-		return false;
+		return UNKNOWN;
 		
 	}
 	
@@ -309,6 +508,23 @@ public class ShopifyVerificationStrategy {
 	 * @throws ShopifyVerificationException if hashing error occurs
 	 */
 	public static String hash(String secret, String message) {
+		if(message == null) {
+			throw new ShopifyVerificationException("Error hashing");
+		}
+		
+		return hash(secret, message.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	
+	/**
+	 * Hashes the raw message using the secret.
+	 * 
+	 * @param secret The secret
+	 * @param message The message bytes
+	 * @return The hashed message
+	 * @throws ShopifyVerificationException if hashing error occurs
+	 */
+	public static String hash(String secret, byte[] message) {
 		
 		String hash = null;
 		
@@ -318,7 +534,7 @@ public class ShopifyVerificationStrategy {
 		    SecretKeySpec secret_key = new SecretKeySpec(secret.getBytes("UTF-8"), "HmacSHA256");
 		    sha256_HMAC.init(secret_key);
 
-		    hash = Hex.encodeHexString(sha256_HMAC.doFinal(message.getBytes("UTF-8")));
+		    hash = Hex.encodeHexString(sha256_HMAC.doFinal(message));
 		    
 		} catch (Exception e){
 		    throw new ShopifyVerificationException("Error hashing");
@@ -341,7 +557,7 @@ public class ShopifyVerificationStrategy {
 		String body = null;
 		try {
 			in = req.getInputStream();
-			IOUtils.toString(in, "UTF-8");
+			body = IOUtils.toString(in, "UTF-8");
 		} catch(IOException ex) {
 			throw new ShopifyVerificationException("There was an error parsing the request body");
 		}
@@ -371,6 +587,59 @@ public class ShopifyVerificationStrategy {
 	}
 	
 	
+	/**
+	 * Uses a secret to hash the raw body, without decoding it first. The result is then base64-encoded to compare 
+	 * to the base64-encoded hmac.
+	 * 
+	 * @param body The request body
+	 * @param hmac The hmac
+	 * @param secret The secret
+	 * @return true if the request has a valid hmac, false otherwise
+	 */
+	public boolean isShopifyHeaderRequest(byte[] body, String hmac, String secret) {
+		if(hmac == null || hmac.isEmpty() || secret == null) {
+			return false;
+		}
+		
+		String hashValue = hash(secret, body);
+		
+		String encodedValue = Base64.getEncoder().encodeToString(hashValue.getBytes(StandardCharsets.US_ASCII));
+
+		return MessageDigest.isEqual(encodedValue.getBytes(StandardCharsets.US_ASCII), hmac.getBytes(StandardCharsets.US_ASCII));
+	}
+	
+	
+	/**
+	 * Checks the hmac of the raw body with the client secret: with the keys of the ClientSecretKeyRing if there is 
+	 * one, otherwise with the secret of the ClientRegistration with the given id.
+	 * 
+	 * @param body The request body
+	 * @param hmac The base64-encoded hmac
+	 * @param registrationId The registration id
+	 * @return true if the request has a valid hmac, false otherwise
+	 */
+	public boolean isHeaderShopifyRequest(byte[] body, String hmac, String registrationId) {
+		if(hmac == null || hmac.isEmpty()) {
+			return false;
+		}
+		
+		if(keyRing == null) {
+			return isShopifyHeaderRequest(body, hmac, getClientSecretByRegistrationId(registrationId));
+		}
+		
+		// the header is the base64 encoding of the hex-encoded hash
+		byte[] expected;
+		try {
+			expected = Hex.decodeHex(new String(Base64.getDecoder().decode(hmac), StandardCharsets.US_ASCII));
+		} catch (IllegalArgumentException | DecoderException e) {
+			logger.debug("HMAC header is not encoded as expected");
+			return false;
+		}
+		
+		return keyRing.verify(mac -> MessageDigest.isEqual(mac.doFinal(body), expected));
+	}
+	
+	
 	/**
 	 * Checks that the request has the  X-Shopify-Hmac-SHA256 header and a correct hmac in the body.
 	 * This method is used when verifying a request to uninstall an app.
@@ -380,18 +649,47 @@ public class ShopifyVerificationStrategy {
 	 * @return true if the hmac is valid, false otherwise
 	 */
 	public boolean isHeaderShopifyRequest(HttpServletRequest request, String registrationId) {
+		ShopifyEvent event = ShopifyEvents.hmacVerify();
+		
+		String outcome = verifyHeaderHmac(request, registrationId);
+		
+		event.record(request.getHeader(SHOP_DOMAIN_HEADER), request.getRequestURI(), outcome);
+		
+		return VALID.equals(outcome);
+	}
+	
+	/*
+	 * The outcome of the check, for the ShopifyHmacVerify event.
+	 */
+	private String verifyHeaderHmac(HttpServletRequest request, String registrationId) {
 		String hmacValue = request.getHeader(HMAC_HEADER);
 		
 		if(hmacValue == null || hmacValue.isEmpty()) {
 			logger.debug("No HMAC header found");
-			return false;
+			return MISSING;
 		}
 		
-		String secret = getClientSecretByRegistrationId(registrationId);
-		
 		String body = getBody(request);
+		boolean valid;
+		
+		if(keyRing != null) {
+			valid = isHeaderShopifyRequest(body.getBytes(StandardCharsets.UTF_8), hmacValue, registrationId);
+		} else {
+			String secret = getClientSecretByRegistrationId(registrationId);
+			
+			valid = isShopifyHeaderRequest(body, hmacValue, secret);
+		}
+		
+		return valid ? VALID : INVALID;
+	}
 	
-		return isShopifyHeaderRequest(body, hmacValue, secret);
+	/**
+	 * The cache of HMACs seen recently.
+	 * 
+	 * @return The ReplayCache, or null if replays aren't checked
+	 */
+	public ReplayCache getReplayCache() {
+		return this.replayCache;
 	}
 	
 
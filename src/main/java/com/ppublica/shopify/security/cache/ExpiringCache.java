@@ -0,0 +1,237 @@
+package com.ppublica.shopify.security.cache;
+
+import java.time.Clock;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe in-memory cache whose entries expire a fixed time after they're written, and that never holds
+ * more than a maximum number of entries.
+ *
+ * <p>Entries are kept in the order they're written, which, with a fixed ttl, is the order they expire. Expired 
+ * entries are never returned. They are removed when they're read, and from the head of the order on every write; 
+ * if the cache is still full, the entry closest to expiring is evicted. A write therefore costs the same whatever 
+ * the size of the cache. The entries are guarded by a single lock.</p>
+ *
+ * @author N F
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public class ExpiringCache<K, V> {
+
+	private final long ttlMillis;
+	private final int maxSize;
+	private final Clock clock;
+
+	// guarded by itself
+	private final LinkedHashMap<K, Entry<V>> entries;
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	/**
+	 * Create an ExpiringCache that uses the system clock.
+	 *
+	 * @param ttlMillis How long an entry lives
+	 * @param maxSize The maximum number of entries
+	 */
+	public ExpiringCache(long ttlMillis, int maxSize) {
+		this(ttlMillis, maxSize, Clock.systemUTC());
+	}
+
+	public ExpiringCache(long ttlMillis, int maxSize, Clock clock) {
+		if(ttlMillis <= 0 || maxSize <= 0) {
+			throw new RuntimeException("The ttl and the maximum size of a cache must be positive");
+		}
+		this.ttlMillis = ttlMillis;
+		this.maxSize = maxSize;
+		this.clock = clock;
+		this.entries = new LinkedHashMap<K, Entry<V>>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+				return size() > ExpiringCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Get the value for the key.
+	 *
+	 * @param key The key
+	 * @return The value, or null if absent or expired
+	 */
+	public V get(K key) {
+		long now = clock.millis();
+		Entry<V> entry;
+		
+		synchronized(entries) {
+			entry = entries.get(key);
+			if(entry != null && entry.isExpired(now)) {
+				entries.remove(key);
+				entry = null;
+			}
+		}
+		
+		if(entry == null) {
+			missCount.incrementAndGet();
+			return null;
+		}
+		hitCount.incrementAndGet();
+		return entry.value;
+	}
+
+	/**
+	 * Add or replace the value for the key.
+	 *
+	 * @param key The key
+	 * @param value The value
+	 */
+	public void put(K key, V value) {
+		long now = clock.millis();
+		
+		synchronized(entries) {
+			write(key, new Entry<>(value, now + ttlMillis), now);
+		}
+	}
+
+	/**
+	 * Add the value if there's no unexpired value for the key.
+	 *
+	 * @param key The key
+	 * @param value The value
+	 * @return The existing value, or null if the given value was added
+	 */
+	public V putIfAbsent(K key, V value) {
+		long now = clock.millis();
+		
+		synchronized(entries) {
+			Entry<V> existing = entries.get(key);
+			if(existing != null && !existing.isExpired(now)) {
+				return existing.value;
+			}
+			write(key, new Entry<>(value, now + ttlMillis), now);
+			return null;
+		}
+	}
+
+	/**
+	 * Remove the entry for the key.
+	 *
+	 * @param key The key
+	 */
+	public void remove(K key) {
+		synchronized(entries) {
+			entries.remove(key);
+		}
+	}
+
+	/**
+	 * Remove the entry for the key only if it currently holds the given value.
+	 *
+	 * @param key The key
+	 * @param value The expected value
+	 */
+	public void remove(K key, V value) {
+		synchronized(entries) {
+			Entry<V> existing = entries.get(key);
+			if(existing != null && existing.value == value) {
+				entries.remove(key);
+			}
+		}
+	}
+
+	public void clear() {
+		synchronized(entries) {
+			entries.clear();
+		}
+	}
+
+	/**
+	 * The number of entries, including expired entries that haven't been swept yet.
+	 *
+	 * @return The number of entries
+	 */
+	public int size() {
+		synchronized(entries) {
+			return entries.size();
+		}
+	}
+
+	public long getTtlMillis() {
+		return this.ttlMillis;
+	}
+
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	/**
+	 * The number of calls to get that found an unexpired value.
+	 *
+	 * @return The number of hits since the cache was created
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * The number of calls to get that found no value, or an expired one.
+	 *
+	 * @return The number of misses since the cache was created
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * Remove all expired entries.
+	 */
+	public void evictExpired() {
+		long now = clock.millis();
+		
+		synchronized(entries) {
+			evictExpired(now);
+		}
+	}
+
+	/*
+	 * Removes the expired entries at the head of the order, and stops at the first that isn't: the ones after it 
+	 * expire later. Must hold the lock.
+	 */
+	private void evictExpired(long now) {
+		Iterator<Entry<V>> it = entries.values().iterator();
+		while(it.hasNext() && it.next().isExpired(now)) {
+			it.remove();
+		}
+	}
+
+	/*
+	 * Moves the key to the tail of the order. If the cache is full, removeEldestEntry evicts the head. Must hold 
+	 * the lock.
+	 */
+	private void write(K key, Entry<V> entry, long now) {
+		evictExpired(now);
+		entries.remove(key);
+		entries.put(key, entry);
+	}
+
+
+	private static final class Entry<V> {
+		private final V value;
+		private final long expiresAt;
+
+		Entry(V value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+
+		boolean isExpired(long now) {
+			return now >= expiresAt;
+		}
+	}
+
+}
@@ -0,0 +1,169 @@
+package com.ppublica.shopify.security.cache;
+
+import java.time.Clock;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A thread-safe, bounded record of the values seen recently, used to reject a signed request that's sent again.
+ *
+ * <p>Values are kept in time buckets: a value is added to the bucket of the current time slice, and a whole bucket
+ * is dropped once its slice is older than the window. A value is remembered for at least the window, and at most
+ * the window plus one slice. Expiring values costs nothing per value, and the buckets aren't behind a 
+ * single lock, unlike ExpiringCache's entries.</p>
+ *
+ * <p>If the cache holds maxSize values, the oldest bucket is dropped early. The window of the requests' timestamp
+ * check should be no longer than this cache's window, so that a value that was dropped is then rejected for its
+ * timestamp.</p>
+ *
+ * @author N F
+ * @see com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy
+ */
+public class ReplayCache {
+
+	private static final int BUCKETS = 4;
+
+	private final long sliceMillis;
+	private final int maxSize;
+	private final Clock clock;
+
+	private final AtomicReferenceArray<Bucket> buckets = new AtomicReferenceArray<>(BUCKETS);
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicLong replayCount = new AtomicLong();
+	private final AtomicLong droppedBucketCount = new AtomicLong();
+
+	/**
+	 * Create a ReplayCache that uses the system clock.
+	 *
+	 * @param windowMillis How long a value is remembered, at least
+	 * @param maxSize The maximum number of values
+	 */
+	public ReplayCache(long windowMillis, int maxSize) {
+		this(windowMillis, maxSize, Clock.systemUTC());
+	}
+
+	public ReplayCache(long windowMillis, int maxSize, Clock clock) {
+		if(windowMillis <= 0 || maxSize <= 0) {
+			throw new RuntimeException("The window and the maximum size of a replay cache must be positive");
+		}
+		// BUCKETS - 1 slices always cover the window; the last bucket is the one being filled
+		this.sliceMillis = Math.max(1, (windowMillis + BUCKETS - 2) / (BUCKETS - 1));
+		this.maxSize = maxSize;
+		this.clock = clock;
+
+		for(int i = 0; i < BUCKETS; i++) {
+			buckets.set(i, new Bucket(Long.MIN_VALUE));
+		}
+	}
+
+	/**
+	 * Record the value, unless it has been seen within the window.
+	 *
+	 * @param value The value, such as the HMAC of a request
+	 * @return true if the value is new, false if it's a replay
+	 */
+	public boolean markSeen(String value) {
+		long slice = clock.millis() / sliceMillis;
+		Bucket current = bucketFor(slice);
+
+		for(int i = 0; i < BUCKETS; i++) {
+			Bucket bucket = buckets.get(i);
+			if(bucket != current && bucket.slice > slice - BUCKETS && bucket.values.contains(value)) {
+				replayCount.incrementAndGet();
+				return false;
+			}
+		}
+
+		if(!current.values.add(value)) {
+			replayCount.incrementAndGet();
+			return false;
+		}
+
+		if(size.incrementAndGet() > maxSize) {
+			dropOldest(current);
+		}
+
+		return true;
+	}
+
+	/**
+	 * The number of values, approximately: a value added while its bucket is dropped may still be counted.
+	 *
+	 * @return The number of values
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	public long getReplayCount() {
+		return replayCount.get();
+	}
+
+	/**
+	 * The number of buckets dropped before their time because the cache was full.
+	 *
+	 * @return The number of buckets
+	 */
+	public long getDroppedBucketCount() {
+		return droppedBucketCount.get();
+	}
+
+	private Bucket bucketFor(long slice) {
+		int index = (int)Math.floorMod(slice, (long)BUCKETS);
+		Bucket bucket = buckets.get(index);
+
+		if(bucket.slice == slice) {
+			return bucket;
+		}
+
+		synchronized(this) {
+			bucket = buckets.get(index);
+			if(bucket.slice < slice) {
+				// the bucket held an old slice
+				size.addAndGet(-bucket.values.size());
+				bucket = new Bucket(slice);
+				buckets.set(index, bucket);
+			}
+			return bucket;
+		}
+	}
+
+	private synchronized void dropOldest(Bucket current) {
+		Bucket oldest = null;
+		int oldestIndex = -1;
+
+		for(int i = 0; i < BUCKETS; i++) {
+			Bucket bucket = buckets.get(i);
+			if(bucket != current && !bucket.values.isEmpty() && (oldest == null || bucket.slice < oldest.slice)) {
+				oldest = bucket;
+				oldestIndex = i;
+			}
+		}
+
+		if(oldest == null) {
+			// everything is in the current bucket: let it grow until its slice ends
+			return;
+		}
+
+		size.addAndGet(-oldest.values.size());
+		buckets.compareAndSet(oldestIndex, oldest, new Bucket(oldest.slice));
+		droppedBucketCount.incrementAndGet();
+	}
+
+	private static class Bucket {
+		final long slice;
+		final Set<String> values = ConcurrentHashMap.newKeySet();
+
+		Bucket(long slice) {
+			this.slice = slice;
+		}
+	}
+
+}
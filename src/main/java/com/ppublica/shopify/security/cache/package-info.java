@@ -0,0 +1,5 @@
+/**
+ * Bounded, time-limited in-memory caches
+ * 
+ */
+package com.ppublica.shopify.security.cache;
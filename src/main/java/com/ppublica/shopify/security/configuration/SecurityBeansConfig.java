@@ -1,11 +1,20 @@
 package com.ppublica.shopify.security.configuration;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Clock;
+import java.util.List;
+import java.util.stream.Collectors;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.DependsOn;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
 import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
 import org.springframework.security.oauth2.client.endpoint.OAuth2AccessTokenResponseClient;
 import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
@@ -22,17 +31,27 @@ import org.springframework.security.web.authentication.AuthenticationSuccessHand
 import org.springframework.security.web.csrf.CookieCsrfTokenRepository;
 import org.springframework.security.web.csrf.CsrfTokenRepository;
 
+import com.ppublica.shopify.security.cache.ExpiringCache;
+import com.ppublica.shopify.security.cache.ReplayCache;
 import com.ppublica.shopify.security.service.DefaultShopifyUserService;
+import com.ppublica.shopify.security.service.ShopifyDiagnostics;
 import com.ppublica.shopify.security.service.ShopifyOAuth2AuthorizedClientService;
+import com.ppublica.shopify.security.service.StoreActivityRecorder;
+import com.ppublica.shopify.security.service.TokenCacheWarmer;
 import com.ppublica.shopify.security.service.TokenService;
 import com.ppublica.shopify.security.web.AuthorizationSuccessPageStrategy;
 import com.ppublica.shopify.security.web.ForwardAuthorizationSuccessPageStrategy;
 import com.ppublica.shopify.security.web.GenerateDefaultAuthorizationPageStrategy;
 import com.ppublica.shopify.security.web.NoRedirectSuccessHandler;
+import com.ppublica.shopify.security.web.ServerTimingSampler;
 import com.ppublica.shopify.security.web.ShopifyAuthorizationCodeTokenResponseClient;
 import com.ppublica.shopify.security.web.ShopifyHttpSessionOAuth2AuthorizationRequestRepository;
+import com.ppublica.shopify.security.web.ShopifyHttpTransport;
 import com.ppublica.shopify.security.web.ShopifyOAuth2AuthorizationRequestResolver;
+import com.ppublica.shopify.security.authentication.AppProxySignatureVerifier;
 import com.ppublica.shopify.security.authentication.CipherPassword;
+import com.ppublica.shopify.security.authentication.ClientSecretFileWatcher;
+import com.ppublica.shopify.security.authentication.ClientSecretKeyRing;
 import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
 import com.ppublica.shopify.security.configurer.delegates.ShopifyChannelSecurity;
 import com.ppublica.shopify.security.configurer.delegates.ShopifyCsrf;
@@ -41,6 +60,19 @@ import com.ppublica.shopify.security.configurer.delegates.ShopifyLogout;
 import com.ppublica.shopify.security.configurer.delegates.ShopifyOAuth2;
 import com.ppublica.shopify.security.repository.ShopifyTokenRepositoryImpl;
 import com.ppublica.shopify.security.repository.TokenRepository;
+import com.ppublica.shopify.security.resilience.CircuitBreakerRegistry;
+import com.ppublica.shopify.security.resilience.ResilientCallExecutor;
+import com.ppublica.shopify.security.resilience.RetryPolicy;
+import com.ppublica.shopify.security.webhook.GdprWebhookCallback;
+import com.ppublica.shopify.security.webhook.GdprWebhookHandler;
+import com.ppublica.shopify.security.webhook.InMemoryWebhookDeduplicationStore;
+import com.ppublica.shopify.security.webhook.JdbcWebhookDeduplicationStore;
+import com.ppublica.shopify.security.webhook.UninstallBatcher;
+import com.ppublica.shopify.security.webhook.UninstallWebhookHandler;
+import com.ppublica.shopify.security.webhook.WebhookBodyReader;
+import com.ppublica.shopify.security.webhook.WebhookDeduplicationStore;
+import com.ppublica.shopify.security.webhook.WebhookExecutor;
+import com.ppublica.shopify.security.webhook.WebhookJournal;
 
 
 /**
@@ -59,6 +91,8 @@ import com.ppublica.shopify.security.repository.TokenRepository;
  * 	<li>ShopifyPaths</li>
  * 	<li>CipherPassword</li>
  * 	<li>OAuth2UserService&lt;OAuth2UserRequest, OAuth2User&gt;</li>
+ * 	<li>ShopifyHttpTransport</li>
+ * 	<li>ResilientCallExecutor</li>
  * 	<li>OAuth2AccessTokenResponseClient&lt;OAuth2AuthorizationCodeGrantRequest&gt;</li>
  * 	<li>AuthorizationSuccessPageStrategy</li>
  * 	<li>AuthenticationSuccessHandler</li>
@@ -66,9 +100,23 @@ import com.ppublica.shopify.security.repository.TokenRepository;
  * 	<li>ClientRegistrationRepository</li>
  * 	<li>TokenService</li>
  * 	<li>OAuth2AuthorizedClientService</li>
+ * 	<li>StoreActivityRecorder (only if ppublica.shopify.security.last-active.enabled is true)</li>
+ * 	<li>TokenCacheWarmer (only if ppublica.shopify.security.warm-up.max-stores is set)</li>
  * 	<li>ShopifyHttpSessionOAuth2AuthorizationRequestRepository</li>
  * 	<li>OAuth2AuthorizationRequestResolver</li>
+ * 	<li>ClientSecretKeyRing</li>
+ * 	<li>ClientSecretFileWatcher (only if ppublica.shopify.security.client.client_secret_file is set)</li>
  * 	<li>ShopifyVerificationStrategy</li>
+ * 	<li>AppProxySignatureVerifier</li>
+ * 	<li>WebhookExecutor</li>
+ * 	<li>WebhookBodyReader</li>
+ * 	<li>UninstallBatcher</li>
+ * 	<li>UninstallWebhookHandler</li>
+ * 	<li>GdprWebhookHandler</li>
+ * 	<li>WebhookDeduplicationStore</li>
+ * 	<li>WebhookJournal (only if ppublica.shopify.security.webhooks.journal.directory is set)</li>
+ * 	<li>ServerTimingSampler (only if ppublica.shopify.security.server-timing.sample-rate or admin-token is set)</li>
+ * 	<li>ShopifyDiagnostics (only if ppublica.shopify.security.diagnostics.admin-token is set)</li>
  * 	<li>CsrfTokenRepository</li>
  * 	<li>ShopifyHeaders</li>
  * 	<li>ShopifyChannelSecurity</li>
@@ -86,14 +134,68 @@ import com.ppublica.shopify.security.repository.TokenRepository;
  * 	<li>ppublica.shopify.security.endpoints.logout=</li>
  * 	<li>ppublica.shopify.security.endpoints.authentication-failure=</li>
  * 	<li>ppublica.shopify.security.endpoints.uninstall=</li>
+ * 	<li>ppublica.shopify.security.endpoints.webhooks=</li>
+ * 	<li>ppublica.shopify.security.endpoints.app-proxy=</li>
  * 	<li>ppublica.shopify.security.endpoints.enable-default-info-page=</li>
+ * 	<li>ppublica.shopify.security.endpoints.enable-diagnostics= (requires diagnostics.admin-token)</li>
  * 	<li>ppublica.shopify.security.endpoints.menu-link=</li>
  * 
  * 	<li>ppublica.shopify.security.cipher.password= **required**</li>
  * 
  * 	<li>ppublica.shopify.security.client.client_id= **required**</li>
- * 	<li>ppublica.shopify.security.client.client_secret= **required**</li>
+ * 	<li>ppublica.shopify.security.client.client_secret= **required, unless client_secret_file is set**</li>
+ * 	<li>ppublica.shopify.security.client.client_secret_file= (a file whose first line is the secret, and second line 
+ * 		the previous secret; watched for changes)</li>
+ * 	<li>ppublica.shopify.security.client.client_secret_file.poll-interval= (milliseconds)</li>
+ * 	<li>ppublica.shopify.security.client.previous_client_secret= (still accepted while the secret is rotated)</li>
  * 	<li>ppublica.shopify.security.client.scope= **required**</li>
+ * 
+ * 	<li>ppublica.shopify.security.http.implementation= (auto, apache, http2, or jdk)</li>
+ * 	<li>ppublica.shopify.security.http.connect-timeout= (milliseconds)</li>
+ * 	<li>ppublica.shopify.security.http.read-timeout= (milliseconds)</li>
+ * 	<li>ppublica.shopify.security.http.connection-request-timeout= (milliseconds)</li>
+ * 	<li>ppublica.shopify.security.http.max-connections=</li>
+ * 	<li>ppublica.shopify.security.http.max-connections-per-host=</li>
+ * 	<li>ppublica.shopify.security.http.retry.max-attempts=</li>
+ * 	<li>ppublica.shopify.security.http.retry.initial-backoff= (milliseconds)</li>
+ * 	<li>ppublica.shopify.security.http.retry.max-backoff= (milliseconds)</li>
+ * 	<li>ppublica.shopify.security.http.circuit-breaker.failure-threshold=</li>
+ * 	<li>ppublica.shopify.security.http.circuit-breaker.open-duration= (milliseconds)</li>
+ * 
+ * 	<li>ppublica.shopify.security.verification.timestamp-skew= (milliseconds, 0 to disable; also for app proxy requests)</li>
+ * 	<li>ppublica.shopify.security.verification.replay-cache.max-size= (0 to disable; also for app proxy requests)</li>
+ * 	<li>ppublica.shopify.security.client-cache.ttl= (milliseconds, 0 to disable)</li>
+ * 	<li>ppublica.shopify.security.client-cache.max-size=</li>
+ * 	<li>ppublica.shopify.security.last-active.enabled= (true to record when each store was last active, in the 
+ * 		lastActiveAt column of StoreAccessTokens)</li>
+ * 	<li>ppublica.shopify.security.last-active.granularity= (milliseconds)</li>
+ * 	<li>ppublica.shopify.security.last-active.flush-interval= (milliseconds)</li>
+ * 	<li>ppublica.shopify.security.last-active.max-pending=</li>
+ * 	<li>ppublica.shopify.security.warm-up.max-stores= (the most recently active stores to cache at startup)</li>
+ * 	<li>ppublica.shopify.security.warm-up.threads=</li>
+ * 	<li>ppublica.shopify.security.warm-up.timeout= (milliseconds)</li>
+ * 
+ * 	<li>ppublica.shopify.security.webhooks.threads=</li>
+ * 	<li>ppublica.shopify.security.webhooks.queue-capacity=</li>
+ * 	<li>ppublica.shopify.security.webhooks.shutdown-timeout= (milliseconds)</li>
+ * 	<li>ppublica.shopify.security.webhooks.max-body-size= (bytes)</li>
+ * 	<li>ppublica.shopify.security.webhooks.uninstall-batch.window= (milliseconds)</li>
+ * 	<li>ppublica.shopify.security.webhooks.uninstall-batch.max-size=</li>
+ * 	<li>ppublica.shopify.security.webhooks.dedup.ttl= (milliseconds)</li>
+ * 	<li>ppublica.shopify.security.webhooks.dedup.max-size=</li>
+ * 	<li>ppublica.shopify.security.webhooks.dedup.jdbc= (true to share webhook ids through the ShopifyWebhooks table)</li>
+ * 	<li>ppublica.shopify.security.webhooks.journal.directory= (a local directory, to journal queued webhooks)</li>
+ * 	<li>ppublica.shopify.security.webhooks.journal.segment-size= (bytes)</li>
+ * 	<li>ppublica.shopify.security.webhooks.journal.fsync= (true to force every journaled webhook to disk)</li>
+ * 	<li>ppublica.shopify.security.webhooks.journal.max-attempts= (how many times a journaled webhook is processed before it's dropped)</li>
+ * 
+ * 	<li>ppublica.shopify.security.server-timing.sample-rate= (0 to 1, the fraction of requests that get a 
+ * 		Server-Timing header)</li>
+ * 	<li>ppublica.shopify.security.server-timing.admin-token= (a secret: requests with the "shopify_server_timing" 
+ * 		cookie set to it always get the header)</li>
+ * 
+ * 	<li>ppublica.shopify.security.diagnostics.admin-token= (a secret: the diagnostics endpoint only answers requests 
+ * 		that send it as a bearer token)</li>
  * </ul>
  * 
  * @author N F
@@ -105,6 +207,20 @@ public class SecurityBeansConfig {
 
 	public static final String SHOPIFY_REGISTRATION_ID = "shopify";
 	
+	// the hashes of the tokens just saved, so that a store that logs in again doesn't save the same token
+	private static final long RECENTLY_SAVED_TTL = 60000;
+	private static final int RECENTLY_SAVED_MAX_SIZE = 10000;
+	
+	private static final long DEFAULT_TIMESTAMP_SKEW = 5 * 60 * 1000L;
+	private static final int DEFAULT_REPLAY_CACHE_MAX_SIZE = 100000;
+	
+	private static final long DEFAULT_CLIENT_CACHE_TTL = 30000;
+	private static final int DEFAULT_CLIENT_CACHE_MAX_SIZE = 10000;
+	
+	// Shopify retries a webhook for up to 48 hours
+	private static final long DEFAULT_WEBHOOK_DEDUP_TTL = 48 * 60 * 60 * 1000L;
+	private static final int DEFAULT_WEBHOOK_DEDUP_MAX_SIZE = 100000;
+	
 	
 	@Bean
 	public TokenRepository getTokenRepository(JdbcTemplate jdbc) {
@@ -121,7 +237,10 @@ public class SecurityBeansConfig {
 							  @Value("${ppublica.shopify.security.endpoints.logout:}") String logoutEndpoint,
 							  @Value("${ppublica.shopify.security.endpoints.authentication-failure:}") String authenticationFailureUri,
 							  @Value("${ppublica.shopify.security.endpoints.uninstall:}") String uninstallUri,
+							  @Value("${ppublica.shopify.security.endpoints.webhooks:}") String webhookUri,
+							  @Value("${ppublica.shopify.security.endpoints.app-proxy:}") String appProxyUri,
 							  @Value("${ppublica.shopify.security.endpoints.enable-default-info-page:}") String enableDefaultInfoPage,
+							  @Value("${ppublica.shopify.security.endpoints.enable-diagnostics:}") String enableDiagnostics,
 							  @Value("${ppublica.shopify.security.endpoints.menu-link:}") String menuLink) {
 		
 		if(logger.isDebugEnabled()) {
@@ -132,7 +251,10 @@ public class SecurityBeansConfig {
 			logger.debug("Logout:                 " + logoutEndpoint);
 			logger.debug("Authentication failure: " + authenticationFailureUri);
 			logger.debug("Uninstallation path:    " + uninstallUri);
+			logger.debug("Webhook path:           " + webhookUri);
+			logger.debug("App proxy path:         " + appProxyUri);
 			logger.debug("Should enable app info: " + enableDefaultInfoPage);
+			logger.debug("Should enable diagnostics: " + enableDiagnostics);
 			logger.debug("Menu link:              " + menuLink);
 
 		}
@@ -140,8 +262,13 @@ public class SecurityBeansConfig {
 		if(enableDefaultInfoPage != null) {
 			enableDefaultInfo = Boolean.parseBoolean(enableDefaultInfoPage);
 		}
+		boolean enableDiagnosticsEndpoint = false;
+		if(enableDiagnostics != null) {
+			enableDiagnosticsEndpoint = Boolean.parseBoolean(enableDiagnostics);
+		}
 		return new ShopifyPaths(installPath, authorizationRedirectPath, loginEndpoint,
-								logoutEndpoint, authenticationFailureUri, uninstallUri, enableDefaultInfo, menuLink);
+								logoutEndpoint, authenticationFailureUri, uninstallUri, enableDefaultInfo, menuLink, webhookUri, appProxyUri,
+								enableDiagnosticsEndpoint);
 		
 	}
 
@@ -162,8 +289,45 @@ public class SecurityBeansConfig {
 	
 	
 	@Bean
-	public OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> accessTokenResponseClient() {
-		return new ShopifyAuthorizationCodeTokenResponseClient();
+	public ShopifyHttpTransport shopifyHttpTransport(@Value("${ppublica.shopify.security.http.implementation:}") String implementation,
+							  @Value("${ppublica.shopify.security.http.connect-timeout:}") String connectTimeout,
+							  @Value("${ppublica.shopify.security.http.read-timeout:}") String readTimeout,
+							  @Value("${ppublica.shopify.security.http.connection-request-timeout:}") String connectionRequestTimeout,
+							  @Value("${ppublica.shopify.security.http.max-connections:}") String maxConnections,
+							  @Value("${ppublica.shopify.security.http.max-connections-per-host:}") String maxConnectionsPerHost) {
+		
+		return new ShopifyHttpTransport(implementation, parseInteger(connectTimeout, "http.connect-timeout"), parseInteger(readTimeout, "http.read-timeout"),
+						parseInteger(connectionRequestTimeout, "http.connection-request-timeout"), parseInteger(maxConnections, "http.max-connections"),
+						parseInteger(maxConnectionsPerHost, "http.max-connections-per-host"));
+	}
+	
+	
+	@Bean
+	public ResilientCallExecutor tokenExchangeCallExecutor(@Value("${ppublica.shopify.security.http.retry.max-attempts:}") String maxAttempts,
+							  @Value("${ppublica.shopify.security.http.retry.initial-backoff:}") String initialBackoff,
+							  @Value("${ppublica.shopify.security.http.retry.max-backoff:}") String maxBackoff,
+							  @Value("${ppublica.shopify.security.http.circuit-breaker.failure-threshold:}") String failureThreshold,
+							  @Value("${ppublica.shopify.security.http.circuit-breaker.open-duration:}") String openDuration) {
+		
+		RetryPolicy retryPolicy = new RetryPolicy(parseInteger(maxAttempts, "http.retry.max-attempts"), parseLong(initialBackoff, "http.retry.initial-backoff"),
+						parseLong(maxBackoff, "http.retry.max-backoff"));
+		CircuitBreakerRegistry circuitBreakers = new CircuitBreakerRegistry(parseInteger(failureThreshold, "http.circuit-breaker.failure-threshold"),
+						parseLong(openDuration, "http.circuit-breaker.open-duration"), Clock.systemUTC());
+		
+		return new ResilientCallExecutor(retryPolicy, circuitBreakers);
+	}
+	
+	
+	@Bean
+	public OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> accessTokenResponseClient(ShopifyHttpTransport shopifyHttpTransport,
+							  ResilientCallExecutor tokenExchangeCallExecutor,
+							  ClientSecretKeyRing clientSecretKeyRing) {
+		
+		ShopifyAuthorizationCodeTokenResponseClient client = new ShopifyAuthorizationCodeTokenResponseClient(shopifyHttpTransport.getRequestFactory(),
+						tokenExchangeCallExecutor);
+		client.setClientSecretKeyRing(clientSecretKeyRing);
+		
+		return client;
 	}
 	
 	@Bean
@@ -187,6 +351,7 @@ public class SecurityBeansConfig {
 	@Bean
 	protected ClientRegistration shopifyClientRegistration(@Value("${ppublica.shopify.security.client.client_id:#{null}}")String clientId,
 			 @Value("${ppublica.shopify.security.client.client_secret:#{null}}")String clientSecret, 
+			 @Value("${ppublica.shopify.security.client.client_secret_file:}")String clientSecretFile, 
 			 @Value("${ppublica.shopify.security.client.scope:#{null}}")String scope,
 			 ShopifyPaths shopifyPaths) {
 		
@@ -194,6 +359,10 @@ public class SecurityBeansConfig {
 			throw new RuntimeException("Client id is required! Set the property ppublica.shopify.security.client.client_id");
 		}
 		
+		if(clientSecret == null && !clientSecretFile.trim().isEmpty()) {
+			clientSecret = readClientSecret(clientSecretFile.trim());
+		}
+		
 		if(clientSecret == null) {
 			throw new RuntimeException("Client secret is required! Set the property ppublica.shopify.security.client.client_secret");
 		}
@@ -229,8 +398,63 @@ public class SecurityBeansConfig {
 	
 	// used by AuthenticatedPrincipalOAuth2AuthorizedClientRepository
 	@Bean
-	public OAuth2AuthorizedClientService clientService(TokenService tokenService) {
-		return new ShopifyOAuth2AuthorizedClientService(tokenService);
+	public OAuth2AuthorizedClientService clientService(TokenService tokenService,
+							  ObjectProvider<StoreActivityRecorder> storeActivityRecorder,
+							  @Value("${ppublica.shopify.security.client-cache.ttl:}") String clientCacheTtl,
+							  @Value("${ppublica.shopify.security.client-cache.max-size:}") String clientCacheMaxSize) {
+		Long clientTtl = parseLong(clientCacheTtl, "client-cache.ttl");
+		Integer clientSize = parseInteger(clientCacheMaxSize, "client-cache.max-size");
+		long resolvedClientTtl = clientTtl != null ? clientTtl : DEFAULT_CLIENT_CACHE_TTL;
+		
+		ExpiringCache<String, OAuth2AuthorizedClient> recentlyLoaded = resolvedClientTtl == 0 ? null :
+					new ExpiringCache<>(resolvedClientTtl, clientSize != null ? clientSize : DEFAULT_CLIENT_CACHE_MAX_SIZE);
+		
+		ShopifyOAuth2AuthorizedClientService clientService = new ShopifyOAuth2AuthorizedClientService(tokenService, 
+					new ExpiringCache<>(RECENTLY_SAVED_TTL, RECENTLY_SAVED_MAX_SIZE), recentlyLoaded);
+		clientService.setActivityRecorder(storeActivityRecorder.getIfAvailable());
+		
+		return clientService;
+	}
+	
+	
+	/*
+	 * Recording the last activity of the stores needs the lastActiveAt column: this bean is null unless it's enabled.
+	 */
+	@Bean
+	public StoreActivityRecorder storeActivityRecorder(TokenService tokenService,
+							  @Value("${ppublica.shopify.security.last-active.enabled:}") String enabled,
+							  @Value("${ppublica.shopify.security.last-active.granularity:}") String granularity,
+							  @Value("${ppublica.shopify.security.last-active.flush-interval:}") String flushInterval,
+							  @Value("${ppublica.shopify.security.last-active.max-pending:}") String maxPending) {
+		if(!Boolean.parseBoolean(enabled)) {
+			return null;
+		}
+		
+		return new StoreActivityRecorder(tokenService, parseLong(granularity, "last-active.granularity"),
+						parseLong(flushInterval, "last-active.flush-interval"), parseInteger(maxPending, "last-active.max-pending"));
+	}
+	
+	
+	/*
+	 * The warm-up reads the lastActiveAt column: this bean is null unless a number of stores is set.
+	 */
+	@Bean
+	public TokenCacheWarmer tokenCacheWarmer(TokenService tokenService, OAuth2AuthorizedClientService clientService,
+							  @Value("${ppublica.shopify.security.warm-up.max-stores:}") String maxStores,
+							  @Value("${ppublica.shopify.security.warm-up.threads:}") String threads,
+							  @Value("${ppublica.shopify.security.warm-up.timeout:}") String timeout) {
+		Integer stores = parseInteger(maxStores, "warm-up.max-stores");
+		
+		if(stores == null || stores == 0) {
+			return null;
+		}
+		
+		if(!(clientService instanceof ShopifyOAuth2AuthorizedClientService)) {
+			throw new RuntimeException("The warm-up needs the ShopifyOAuth2AuthorizedClientService! Unset the property ppublica.shopify.security.warm-up.max-stores");
+		}
+		
+		return new TokenCacheWarmer(tokenService, (ShopifyOAuth2AuthorizedClientService)clientService, stores,
+						parseInteger(threads, "warm-up.threads"), parseLong(timeout, "warm-up.timeout"));
 	}
 	
 	
@@ -248,10 +472,187 @@ public class SecurityBeansConfig {
 	}
 	
 	
+	/*
+	 * The secret of the ClientRegistration is the current secret when the application starts. If a secret file is 
+	 * set, the ClientSecretFileWatcher replaces the secrets when the file changes.
+	 */
+	@Bean
+	public ClientSecretKeyRing clientSecretKeyRing(ClientRegistration shopifyClientRegistration,
+					@Value("${ppublica.shopify.security.client.previous_client_secret:}") String previousClientSecret) {
+		return new ClientSecretKeyRing(shopifyClientRegistration.getClientSecret(), previousClientSecret.trim());
+	}
+	
+	
+	/*
+	 * The secret isn't watched unless a file is configured: this bean is then null.
+	 */
+	@Bean
+	public ClientSecretFileWatcher clientSecretFileWatcher(ClientSecretKeyRing clientSecretKeyRing,
+					@Value("${ppublica.shopify.security.client.client_secret_file:}") String clientSecretFile,
+					@Value("${ppublica.shopify.security.client.client_secret_file.poll-interval:}") String pollInterval) {
+		if(clientSecretFile.trim().isEmpty()) {
+			return null;
+		}
+		
+		ClientSecretFileWatcher watcher = new ClientSecretFileWatcher(Paths.get(clientSecretFile.trim()), clientSecretKeyRing,
+					parseLong(pollInterval, "client.client_secret_file.poll-interval"));
+		// the file may also hold the previous secret
+		watcher.check();
+		
+		return watcher;
+	}
+	
+	
 	@Bean
 	public ShopifyVerificationStrategy shopifyVerficationStrategy(ClientRegistrationRepository clientRegistrationRepository,
-					ShopifyHttpSessionOAuth2AuthorizationRequestRepository customAuthorizationRequestRepository) {
-		return new ShopifyVerificationStrategy(clientRegistrationRepository, customAuthorizationRequestRepository);
+					ShopifyHttpSessionOAuth2AuthorizationRequestRepository customAuthorizationRequestRepository,
+					ClientSecretKeyRing clientSecretKeyRing,
+					@Value("${ppublica.shopify.security.verification.timestamp-skew:}") String timestampSkew,
+					@Value("${ppublica.shopify.security.verification.replay-cache.max-size:}") String replayCacheMaxSize) {
+		Long skew = parseLong(timestampSkew, "verification.timestamp-skew");
+		Integer size = parseInteger(replayCacheMaxSize, "verification.replay-cache.max-size");
+		
+		long resolvedSkew = skew != null ? skew : DEFAULT_TIMESTAMP_SKEW;
+		int resolvedSize = size != null ? size : DEFAULT_REPLAY_CACHE_MAX_SIZE;
+		
+		// a timestamp is accepted on either side of now, so an HMAC stays valid for twice the skew
+		ReplayCache replayCache = resolvedSkew > 0 && resolvedSize > 0 ? new ReplayCache(2 * resolvedSkew, resolvedSize) : null;
+		
+		return new ShopifyVerificationStrategy(clientRegistrationRepository, customAuthorizationRequestRepository, resolvedSkew,
+					replayCache, clientSecretKeyRing, Clock.systemUTC());
+	}
+	
+	
+	@Bean
+	public AppProxySignatureVerifier appProxySignatureVerifier(ClientSecretKeyRing clientSecretKeyRing,
+					@Value("${ppublica.shopify.security.verification.timestamp-skew:}") String timestampSkew,
+					@Value("${ppublica.shopify.security.verification.replay-cache.max-size:}") String replayCacheMaxSize) {
+		Long skew = parseLong(timestampSkew, "verification.timestamp-skew");
+		Integer size = parseInteger(replayCacheMaxSize, "verification.replay-cache.max-size");
+		
+		long resolvedSkew = skew != null ? skew : DEFAULT_TIMESTAMP_SKEW;
+		int resolvedSize = size != null ? size : DEFAULT_REPLAY_CACHE_MAX_SIZE;
+		
+		// app proxy signatures are kept apart from the HMACs of ShopifyVerificationStrategy
+		ReplayCache replayCache = resolvedSkew > 0 && resolvedSize > 0 ? new ReplayCache(2 * resolvedSkew, resolvedSize) : null;
+		
+		return new AppProxySignatureVerifier(clientSecretKeyRing, resolvedSkew, replayCache, Clock.systemUTC());
+	}
+	
+	
+	/*
+	 * The workers use the batcher and the journal: the executor is destroyed first, so it drains while they're 
+	 * still open.
+	 */
+	@Bean
+	@DependsOn({"uninstallBatcher", "webhookJournal"})
+	public WebhookExecutor shopifyWebhookExecutor(@Value("${ppublica.shopify.security.webhooks.threads:}") String threads,
+							  @Value("${ppublica.shopify.security.webhooks.queue-capacity:}") String queueCapacity,
+							  @Value("${ppublica.shopify.security.webhooks.shutdown-timeout:}") String shutdownTimeout) {
+		
+		return new WebhookExecutor(parseInteger(threads, "webhooks.threads"), parseInteger(queueCapacity, "webhooks.queue-capacity"),
+						parseLong(shutdownTimeout, "webhooks.shutdown-timeout"));
+	}
+	
+	
+	@Bean
+	public WebhookBodyReader webhookBodyReader(@Value("${ppublica.shopify.security.webhooks.max-body-size:}") String maxBodySize) {
+		return new WebhookBodyReader(parseLong(maxBodySize, "webhooks.max-body-size"));
+	}
+	
+	
+	@Bean
+	public UninstallBatcher uninstallBatcher(OAuth2AuthorizedClientService clientService,
+							  @Value("${ppublica.shopify.security.webhooks.uninstall-batch.window:}") String window,
+							  @Value("${ppublica.shopify.security.webhooks.uninstall-batch.max-size:}") String maxSize) {
+		return new UninstallBatcher(clientService, parseLong(window, "webhooks.uninstall-batch.window"), parseInteger(maxSize, "webhooks.uninstall-batch.max-size"));
+	}
+	
+	
+	@Bean
+	public UninstallWebhookHandler uninstallWebhookHandler(OAuth2AuthorizedClientService clientService, UninstallBatcher uninstallBatcher) {
+		return new UninstallWebhookHandler(clientService, uninstallBatcher);
+	}
+	
+	
+	/*
+	 * Every GdprWebhookCallback bean in the ApplicationContext is called, in order.
+	 */
+	@Bean
+	public GdprWebhookHandler gdprWebhookHandler(UninstallWebhookHandler uninstallWebhookHandler, ObjectProvider<GdprWebhookCallback> callbacks) {
+		return new GdprWebhookHandler(uninstallWebhookHandler, callbacks.orderedStream().collect(Collectors.toList()));
+	}
+	
+	
+	@Bean
+	public WebhookDeduplicationStore webhookDeduplicationStore(JdbcTemplate jdbc,
+							  @Value("${ppublica.shopify.security.webhooks.dedup.ttl:}") String ttl,
+							  @Value("${ppublica.shopify.security.webhooks.dedup.max-size:}") String maxSize,
+							  @Value("${ppublica.shopify.security.webhooks.dedup.jdbc:}") String useJdbc) {
+		Long ttlMillis = parseLong(ttl, "webhooks.dedup.ttl");
+		Integer size = parseInteger(maxSize, "webhooks.dedup.max-size");
+		
+		long resolvedTtl = ttlMillis != null ? ttlMillis : DEFAULT_WEBHOOK_DEDUP_TTL;
+		ExpiringCache<String, Boolean> seen = new ExpiringCache<>(resolvedTtl, size != null ? size : DEFAULT_WEBHOOK_DEDUP_MAX_SIZE);
+		
+		WebhookDeduplicationStore backingStore = Boolean.parseBoolean(useJdbc) ? new JdbcWebhookDeduplicationStore(jdbc, resolvedTtl) : null;
+		
+		return new InMemoryWebhookDeduplicationStore(seen, backingStore);
+	}
+	
+	
+	/*
+	 * The journal is off unless a directory is configured: this bean is then null.
+	 */
+	@Bean
+	public WebhookJournal webhookJournal(@Value("${ppublica.shopify.security.webhooks.journal.directory:}") String directory,
+							  @Value("${ppublica.shopify.security.webhooks.journal.segment-size:}") String segmentSize,
+							  @Value("${ppublica.shopify.security.webhooks.journal.fsync:}") String fsync,
+							  @Value("${ppublica.shopify.security.webhooks.journal.max-attempts:}") String maxAttempts) {
+		if(directory == null || directory.trim().isEmpty()) {
+			return null;
+		}
+		
+		return new WebhookJournal(Paths.get(directory.trim()), parseInteger(segmentSize, "webhooks.journal.segment-size"), Boolean.parseBoolean(fsync),
+						parseInteger(maxAttempts, "webhooks.journal.max-attempts"));
+	}
+	
+	
+	/*
+	 * The Server-Timing header is off unless a sampling rate or an admin token is configured: this bean is then null.
+	 */
+	@Bean
+	public ServerTimingSampler serverTimingSampler(@Value("${ppublica.shopify.security.server-timing.sample-rate:}") String sampleRate,
+							  @Value("${ppublica.shopify.security.server-timing.admin-token:}") String adminToken) {
+		Double rate = parseDouble(sampleRate, "server-timing.sample-rate");
+		boolean hasAdminToken = adminToken != null && !adminToken.trim().isEmpty();
+		
+		if((rate == null || rate == 0) && !hasAdminToken) {
+			return null;
+		}
+		
+		return new ServerTimingSampler(rate != null ? rate : 0, hasAdminToken ? adminToken.trim() : null);
+	}
+	
+	
+	/*
+	 * The diagnostics endpoint must be enabled in ShopifyPaths, and needs an admin token: this bean is null without 
+	 * one.
+	 */
+	@Bean
+	public ShopifyDiagnostics shopifyDiagnostics(OAuth2AuthorizedClientService clientService,
+							  ShopifyVerificationStrategy shopifyVerficationStrategy,
+							  WebhookExecutor shopifyWebhookExecutor,
+							  WebhookDeduplicationStore webhookDeduplicationStore,
+							  ShopifyHttpTransport shopifyHttpTransport,
+							  ResilientCallExecutor tokenExchangeCallExecutor,
+							  @Value("${ppublica.shopify.security.diagnostics.admin-token:}") String adminToken) {
+		if(adminToken == null || adminToken.trim().isEmpty()) {
+			return null;
+		}
+		
+		return new ShopifyDiagnostics(adminToken, clientService, shopifyVerficationStrategy, shopifyWebhookExecutor,
+						webhookDeduplicationStore, shopifyHttpTransport, tokenExchangeCallExecutor);
 	}
 	
 	
@@ -275,7 +676,7 @@ public class SecurityBeansConfig {
 	
 	@Bean
 	public ShopifyCsrf shopifyCsrf(ShopifyPaths shopifyPaths, CsrfTokenRepository csrfTokenRepo) {
-		return new ShopifyCsrf(shopifyPaths.getUninstallUri(), csrfTokenRepo);
+		return new ShopifyCsrf(csrfTokenRepo, shopifyPaths.getUninstallUri(), shopifyPaths.getWebhookUri(), shopifyPaths.getAppProxyUri());
 	}
 	
 	@Bean
@@ -287,6 +688,46 @@ public class SecurityBeansConfig {
 	public ShopifyOAuth2 shopifyOAuth2(ShopifyPaths shopifyPaths) {
 		return new ShopifyOAuth2(shopifyPaths.getAnyAuthorizationRedirectPath(), shopifyPaths.getLoginEndpoint(), shopifyPaths.getAuthenticationFailureUri());
 	}
+	
+	
+	private static String readClientSecret(String file) {
+		List<String> secrets;
+		try {
+			secrets = ClientSecretFileWatcher.readSecrets(Paths.get(file));
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to read the client secret from " + file, e);
+		}
+		
+		return secrets.isEmpty() ? null : secrets.get(0);
+	}
+	
+	private static Integer parseInteger(String value, String property) {
+		Long parsed = parseLong(value, property);
+		
+		return parsed == null ? null : Math.toIntExact(parsed);
+	}
+	
+	private static Double parseDouble(String value, String property) {
+		if(value == null || value.trim().isEmpty()) {
+			return null;
+		}
+		try {
+			return Double.valueOf(value.trim());
+		} catch (NumberFormatException e) {
+			throw new RuntimeException("The property ppublica.shopify.security." + property + " must be a number");
+		}
+	}
+	
+	private static Long parseLong(String value, String property) {
+		if(value == null || value.trim().isEmpty()) {
+			return null;
+		}
+		try {
+			return Long.valueOf(value.trim());
+		} catch (NumberFormatException e) {
+			throw new RuntimeException("The property ppublica.shopify.security." + property + " must be a number");
+		}
+	}
 		
 	
 }
\ No newline at end of file
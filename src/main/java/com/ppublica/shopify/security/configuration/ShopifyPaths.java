@@ -27,7 +27,10 @@ public class ShopifyPaths {
 	private String logoutEndpoint = "/logout";
 	private String authenticationFailureUri = "/auth/error";
 	private String uninstallUri = "/store/uninstall";
+	private String webhookUri = "/store/webhooks";
+	private String appProxyUri = "/apps";
 	private String userInfoPagePath = "/info";
+	private String diagnosticsPath = "/diagnostics";
 	
 	private boolean isCustomInstallPath;
 	private boolean isCustomAuthorizationRedirectPath;
@@ -35,7 +38,10 @@ public class ShopifyPaths {
 	private boolean isCustomLogoutEndpoint;
 	private boolean isCustomAuthenticationFailureUri;
 	private boolean isCustomUninstallUri;
+	private boolean isCustomWebhookUri;
+	private boolean isCustomAppProxyUri;
 	private boolean isUserInfoPageEnabled;
+	private boolean isDiagnosticsEnabled;
 	private Map<String,String> menuLinks;
 	
 	/**
@@ -43,7 +49,26 @@ public class ShopifyPaths {
 	 * 
 	 */
 	public ShopifyPaths() {
-		this(null,null,null,null,null,null,null, null);
+		this(null,null,null,null,null,null,null, null, null, null, null);
+	}
+	
+	/**
+	 * Build a ShopifyPaths object with custom paths and the default webhook path.
+	 *  
+	 * @param installPath Path to install the app with Shopify
+	 * @param authorizationRedirectPath Path Shopify redirects to with the auth code
+	 * @param loginEndpoint Path to select a store to log into
+	 * @param logoutEndpoint Path to log out
+	 * @param authenticationFailureUri Path that handles OAuth failure
+	 * @param uninstallUri Path Shopify calls to uninstall
+	 * @param enableInfoPath Whether to create an app info page
+	 * @param menuLinks A string with a map of labels and links
+	 */
+	public ShopifyPaths(String installPath, String authorizationRedirectPath, String loginEndpoint,
+						String logoutEndpoint, String authenticationFailureUri, String uninstallUri, Boolean enableInfoPath,
+						String menuLinks) {
+		this(installPath, authorizationRedirectPath, loginEndpoint, logoutEndpoint, authenticationFailureUri, uninstallUri,
+				enableInfoPath, menuLinks, null);
 	}
 	
 	/**
@@ -60,10 +85,56 @@ public class ShopifyPaths {
 	 * @param uninstallUri Path Shopify calls to uninstall
 	 * @param enableInfoPath Whether to create an app info page
 	 * @param menuLinks A string with a map of labels and links
+	 * @param webhookUri Path Shopify sends webhooks to
 	 */
 	public ShopifyPaths(String installPath, String authorizationRedirectPath, String loginEndpoint,
 						String logoutEndpoint, String authenticationFailureUri, String uninstallUri, Boolean enableInfoPath,
-						String menuLinks) {
+						String menuLinks, String webhookUri) {
+		this(installPath, authorizationRedirectPath, loginEndpoint, logoutEndpoint, authenticationFailureUri, uninstallUri,
+				enableInfoPath, menuLinks, webhookUri, null);
+	}
+	
+	/**
+	 * Build a ShopifyPaths object with custom paths. If any of the strings is neither null nor empty, it will 
+	 * be immediately considered as a custom path.
+	 *  
+	 * @param installPath Path to install the app with Shopify
+	 * @param authorizationRedirectPath Path Shopify redirects to with the auth code
+	 * @param loginEndpoint Path to select a store to log into
+	 * @param logoutEndpoint Path to log out
+	 * @param authenticationFailureUri Path that handles OAuth failure
+	 * @param uninstallUri Path Shopify calls to uninstall
+	 * @param enableInfoPath Whether to create an app info page
+	 * @param menuLinks A string with a map of labels and links
+	 * @param webhookUri Path Shopify sends webhooks to
+	 * @param appProxyUri Path Shopify forwards app proxy requests to
+	 */
+	public ShopifyPaths(String installPath, String authorizationRedirectPath, String loginEndpoint,
+						String logoutEndpoint, String authenticationFailureUri, String uninstallUri, Boolean enableInfoPath,
+						String menuLinks, String webhookUri, String appProxyUri) {
+		this(installPath, authorizationRedirectPath, loginEndpoint, logoutEndpoint, authenticationFailureUri, uninstallUri,
+				enableInfoPath, menuLinks, webhookUri, appProxyUri, null);
+	}
+	
+	/**
+	 * Build a ShopifyPaths object with custom paths. If any of the strings is neither null nor empty, it will 
+	 * be immediately considered as a custom path.
+	 *  
+	 * @param installPath Path to install the app with Shopify
+	 * @param authorizationRedirectPath Path Shopify redirects to with the auth code
+	 * @param loginEndpoint Path to select a store to log into
+	 * @param logoutEndpoint Path to log out
+	 * @param authenticationFailureUri Path that handles OAuth failure
+	 * @param uninstallUri Path Shopify calls to uninstall
+	 * @param enableInfoPath Whether to create an app info page
+	 * @param menuLinks A string with a map of labels and links
+	 * @param webhookUri Path Shopify sends webhooks to
+	 * @param appProxyUri Path Shopify forwards app proxy requests to
+	 * @param enableDiagnostics Whether to create the diagnostics endpoint
+	 */
+	public ShopifyPaths(String installPath, String authorizationRedirectPath, String loginEndpoint,
+						String logoutEndpoint, String authenticationFailureUri, String uninstallUri, Boolean enableInfoPath,
+						String menuLinks, String webhookUri, String appProxyUri, Boolean enableDiagnostics) {
 		
 		if(installPath != null && !installPath.trim().isEmpty()) {
 			this.installPath = installPath;
@@ -97,10 +168,24 @@ public class ShopifyPaths {
 			this.isCustomUninstallUri = true;
 		}
 		
+		if(webhookUri != null && !webhookUri.trim().isEmpty()) {
+			this.webhookUri = webhookUri;
+			this.isCustomWebhookUri = true;
+		}
+		
+		if(appProxyUri != null && !appProxyUri.trim().isEmpty()) {
+			this.appProxyUri = appProxyUri;
+			this.isCustomAppProxyUri = true;
+		}
+		
 		if(enableInfoPath != null && enableInfoPath == true) {
 			this.isUserInfoPageEnabled = true;
 		}
 		
+		if(enableDiagnostics != null && enableDiagnostics == true) {
+			this.isDiagnosticsEnabled = true;
+		}
+		
 		this.menuLinks = new LinkedHashMap<>();
 		if(menuLinks != null && !menuLinks.trim().isEmpty()) {
 			this.menuLinks.putAll(processMenuLinks(menuLinks));
@@ -114,7 +199,10 @@ public class ShopifyPaths {
 			logger.debug("Logout:                 " + logoutEndpoint);
 			logger.debug("Authentication failure: " + authenticationFailureUri);
 			logger.debug("Uninstallation path:    " + uninstallUri);
+			logger.debug("Webhook path:           " + webhookUri);
+			logger.debug("App proxy path:         " + appProxyUri);
 			logger.debug("Should enable app info: " + isUserInfoPageEnabled);
+			logger.debug("Should enable diagnostics: " + isDiagnosticsEnabled);
 			logger.debug("Menu link:              " + menuLinks);
 
 		}
@@ -177,6 +265,22 @@ public class ShopifyPaths {
 		return this.isCustomUninstallUri;
 	}
 	
+	public String getWebhookUri() {
+		return this.webhookUri;
+	}
+	
+	public boolean isCustomWebhookUri() {
+		return this.isCustomWebhookUri;
+	}
+	
+	public String getAppProxyUri() {
+		return this.appProxyUri;
+	}
+	
+	public boolean isCustomAppProxyUri() {
+		return this.isCustomAppProxyUri;
+	}
+	
 	public String getUserInfoPagePath() {
 		return this.userInfoPagePath;
 	}
@@ -185,6 +289,14 @@ public class ShopifyPaths {
 		return this.isUserInfoPageEnabled;
 	}
 	
+	public String getDiagnosticsPath() {
+		return this.diagnosticsPath;
+	}
+	
+	public boolean isDiagnosticsEnabled() {
+		return this.isDiagnosticsEnabled;
+	}
+	
 	public Map<String, String> getMenuLinks() {
 		return this.menuLinks;
 	}
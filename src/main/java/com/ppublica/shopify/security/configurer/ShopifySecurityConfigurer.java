@@ -7,15 +7,19 @@ import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
 import org.springframework.security.config.annotation.web.HttpSecurityBuilder;
 import org.springframework.security.config.annotation.web.configurers.AbstractHttpConfigurer;
 import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
 import org.springframework.security.oauth2.client.web.OAuth2AuthorizationRequestRedirectFilter;
+import org.springframework.security.web.access.channel.ChannelProcessingFilter;
 import org.springframework.security.web.access.intercept.FilterSecurityInterceptor;
 import org.springframework.security.web.authentication.logout.LogoutFilter;
 import org.springframework.security.web.authentication.ui.DefaultLogoutPageGeneratingFilter;
+import org.springframework.security.web.csrf.CsrfFilter;
 import org.springframework.security.web.session.ConcurrentSessionFilter;
 
+import com.ppublica.shopify.security.authentication.AppProxySignatureVerifier;
 import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
 import com.ppublica.shopify.security.configuration.ShopifyPaths;
 import com.ppublica.shopify.security.configurer.delegates.HttpSecurityBuilderConfigurerDelegate;
@@ -23,10 +27,21 @@ import com.ppublica.shopify.security.filters.DefaultAuthenticationFailureFilter;
 import com.ppublica.shopify.security.filters.DefaultInstallFilter;
 import com.ppublica.shopify.security.filters.DefaultLoginEndpointFilter;
 import com.ppublica.shopify.security.filters.DefaultUserInfoFilter;
+import com.ppublica.shopify.security.filters.DiagnosticsFilter;
+import com.ppublica.shopify.security.filters.ServerTimingFilter;
+import com.ppublica.shopify.security.filters.ShopifyAppProxyFilter;
 import com.ppublica.shopify.security.filters.ShopifyExistingTokenFilter;
 import com.ppublica.shopify.security.filters.ShopifyOriginFilter;
+import com.ppublica.shopify.security.filters.ShopifyWebhookFilter;
 import com.ppublica.shopify.security.filters.UninstallFilter;
 import com.ppublica.shopify.security.service.ShopifyBeansUtils;
+import com.ppublica.shopify.security.service.ShopifyDiagnostics;
+import com.ppublica.shopify.security.web.ServerTimingSampler;
+import com.ppublica.shopify.security.webhook.UninstallWebhookHandler;
+import com.ppublica.shopify.security.webhook.WebhookBodyReader;
+import com.ppublica.shopify.security.webhook.WebhookDeduplicationStore;
+import com.ppublica.shopify.security.webhook.WebhookExecutor;
+import com.ppublica.shopify.security.webhook.WebhookJournal;
 
 
 /**
@@ -91,12 +106,16 @@ public class ShopifySecurityConfigurer<H extends HttpSecurityBuilder<H>>
 	 * <ul>
 	 * 	<li>ShopifyOriginFilter</li>
 	 * 	<li>ShopifyExistingTokenFilter</li>
+	 * 	<li>ShopifyAppProxyFilter</li>
 	 * 	<li>UninstallFilter</li>
+	 * 	<li>ShopifyWebhookFilter</li>
 	 * 
 	 *	<li>DefaultInstallFilter</li>
 	 *	<li>DefaultLoginEndpointFilter</li>
 	 * 	<li>DefaultAuthenticationFailureFilter</li>
 	 * 	<li>DefaultUserInfoFilter</li>
+	 * 	<li>DiagnosticsFilter (if enabled in ShopifyPaths)</li>
+	 * 	<li>ServerTimingFilter (if there's a ServerTimingSampler)</li>
 	 * </ul>
 	 * 
 	 * @param http The HttpSecurity
@@ -111,15 +130,40 @@ public class ShopifySecurityConfigurer<H extends HttpSecurityBuilder<H>>
 		ShopifyVerificationStrategy verStr = ShopifyBeansUtils.getShopifyVerificationStrategy(http);
 		OAuth2AuthorizedClientService cS = ShopifyBeansUtils.getAuthorizedClientService(http);
 		ShopifyPaths sP = ShopifyBeansUtils.getShopifyPaths(http);
+		WebhookExecutor wE = ShopifyBeansUtils.getWebhookExecutor(http);
+		MappingJackson2HttpMessageConverter jC = ShopifyBeansUtils.getJacksonConverter(http);
+		WebhookDeduplicationStore dS = ShopifyBeansUtils.getWebhookDeduplicationStore(http);
+		WebhookJournal wJ = ShopifyBeansUtils.getWebhookJournal(http);
+		UninstallWebhookHandler uH = ShopifyBeansUtils.getUninstallWebhookHandler(http);
+		WebhookBodyReader bR = ShopifyBeansUtils.getWebhookBodyReader(http);
+		AppProxySignatureVerifier aV = ShopifyBeansUtils.getAppProxySignatureVerifier(http);
 		
 		http.addFilterAfter(new ShopifyOriginFilter(verStr, sP.getAnyAuthorizationRedirectPath(), sP.getAnyInstallPath()), LogoutFilter.class);
 		http.addFilterAfter(new ShopifyExistingTokenFilter(cS, sP.getInstallPath()), ShopifyOriginFilter.class);
-		http.addFilterBefore(new UninstallFilter(sP.getUninstallUri(), verStr, cS, ShopifyBeansUtils.getJacksonConverter(http)), OAuth2AuthorizationRequestRedirectFilter.class);
+		http.addFilterAfter(new ShopifyAppProxyFilter(sP.getAppProxyUri(), aV, cS), ShopifyExistingTokenFilter.class);
+		
+		UninstallFilter uF = new UninstallFilter(sP.getUninstallUri(), verStr, cS, jC);
+		uF.setUninstallHandler(uH);
+		uF.setWebhookExecutor(wE);
+		uF.setDeduplicationStore(dS);
+		uF.setJournal(wJ);
+		uF.setBodyReader(bR);
+		http.addFilterBefore(uF, OAuth2AuthorizationRequestRedirectFilter.class);
+		
+		ShopifyWebhookFilter wF = new ShopifyWebhookFilter(sP.getWebhookUri(), verStr, ShopifyBeansUtils.getWebhookHandlers(http).values(), wE, jC.getObjectMapper());
+		wF.setDeduplicationStore(dS);
+		wF.setJournal(wJ);
+		wF.setBodyReader(bR);
+		// replays the journal once the handlers' beans are ready
+		ShopifyBeansUtils.startWithContext(http, wF);
+		http.addFilterBefore(wF, OAuth2AuthorizationRequestRedirectFilter.class);
 		
 		logger.info("***ShopifySecurityConfigurer configure... filters added:");
 		logger.info("ShopifyOriginFilter");
 		logger.info("ShopifyExistingTokenFilter");
+		logger.info("ShopifyAppProxyFilter");
 		logger.info("UninstallFilter");
+		logger.info("ShopifyWebhookFilter");
 
 		Map<String, String> menuLinks = new HashMap<>();
 		boolean isCustomInstallPath = sP.isCustomInstallPath();
@@ -156,6 +200,25 @@ public class ShopifySecurityConfigurer<H extends HttpSecurityBuilder<H>>
 			logger.info("DefaultUserInfoFilter");
 		}
 		
+		//DiagnosticsFilter
+		if(sP.isDiagnosticsEnabled()) {
+			ShopifyDiagnostics dG = ShopifyBeansUtils.getShopifyDiagnostics(http);
+			if(dG == null) {
+				throw new RuntimeException("The diagnostics endpoint requires an admin token! Set the property ppublica.shopify.security.diagnostics.admin-token");
+			}
+			// implements own security, with a bearer token instead of a cookie: no CSRF token needed
+			http.addFilterBefore(new DiagnosticsFilter(sP.getDiagnosticsPath(), dG, jC.getObjectMapper()), CsrfFilter.class);
+			logger.info("DiagnosticsFilter");
+		}
+		
+		//ServerTimingFilter
+		ServerTimingSampler sT = ShopifyBeansUtils.getServerTimingSampler(http);
+		if(sT != null) {
+			// first, so that the header is added whatever the other filters do
+			http.addFilterBefore(new ServerTimingFilter(sT), ChannelProcessingFilter.class);
+			logger.info("ServerTimingFilter");
+		}
+		
 	}
 
 }
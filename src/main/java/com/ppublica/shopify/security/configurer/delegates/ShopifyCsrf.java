@@ -9,7 +9,8 @@ import org.springframework.security.web.csrf.CsrfTokenRepository;
 
 
 /**
- * Ensures that no CSRF token is required to uninstall the store. Since WebSecurityConfigurerAdapter applies the 
+ * Ensures that no CSRF token is required to uninstall the store or to receive webhooks: Shopify authenticates 
+ * those requests with an HMAC instead. Since WebSecurityConfigurerAdapter applies the 
  * CsrfConfigurer by default, no configuration is necessary.
  * 
  * @author N F
@@ -18,7 +19,7 @@ import org.springframework.security.web.csrf.CsrfTokenRepository;
 public class ShopifyCsrf implements HttpSecurityBuilderConfigurerDelegate {
 	private final Log logger = LogFactory.getLog(ShopifyCsrf.class);
 
-	private String uninstallUri;
+	private String[] ignoredUris;
 	private CsrfTokenRepository csrfTokenRepo;
 	
 	/**
@@ -29,7 +30,18 @@ public class ShopifyCsrf implements HttpSecurityBuilderConfigurerDelegate {
 	 * 
 	 */
 	public ShopifyCsrf(String uninstallUri, CsrfTokenRepository csrfTokenRepo) {
-		this.uninstallUri = uninstallUri;
+		this(csrfTokenRepo, uninstallUri);
+	}
+	
+	/**
+	 * Construct a ShopifyCsrf.
+	 * 
+	 * @param csrfTokenRepo - The CsrfTokenRepository
+	 * @param ignoredUris - The paths Shopify calls that shouldn't require a CSRF token
+	 * 
+	 */
+	public ShopifyCsrf(CsrfTokenRepository csrfTokenRepo, String... ignoredUris) {
+		this.ignoredUris = ignoredUris;
 		this.csrfTokenRepo = csrfTokenRepo;
 	}
 	
@@ -40,7 +52,7 @@ public class ShopifyCsrf implements HttpSecurityBuilderConfigurerDelegate {
 	}
 
 	/**
-	 * Apply the custom CsrfTokenRepository and ensure the uninstall uri doesn't require a CSRF token.
+	 * Apply the custom CsrfTokenRepository and ensure the ignored uris don't require a CSRF token.
 	 * 
 	 * @param http The HttpSecurityBuilder
 	 */
@@ -57,7 +69,9 @@ public class ShopifyCsrf implements HttpSecurityBuilderConfigurerDelegate {
 		}
 		
 		configurer.csrfTokenRepository(csrfTokenRepo);
-		configurer.ignoringAntMatchers(this.uninstallUri + "/**");
+		for(String uri : this.ignoredUris) {
+			configurer.ignoringAntMatchers(uri + "/**");
+		}
 	}
 
 
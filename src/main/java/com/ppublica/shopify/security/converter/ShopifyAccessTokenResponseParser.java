@@ -0,0 +1,160 @@
+package com.ppublica.shopify.security.converter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenResponse;
+import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.ppublica.shopify.security.web.ShopifyOAuth2AuthorizationRequestResolver;
+
+/**
+ * Reads Shopify's token response JSON directly into an OAuth2AccessTokenResponse in a single streaming pass.
+ *
+ * <p>It applies the same rules as ShopifyOAuth2AccessTokenResponseConverter: the token type defaults to "bearer",
+ * the scope is delimited by ",", and the token expires in 1 year unless Shopify sends "expires_in" (as it does for
+ * online tokens). Every other field, such as "associated_user_scope" and the "associated_user" object of an online
+ * token, is kept as an additional parameter; nested objects become Maps. The shop the token belongs to is added as
+ * the "shop" additional parameter, replacing any value sent by Shopify.</p>
+ *
+ * @author N F
+ * @see ShopifyOAuth2AccessTokenResponseConverter
+ * @see com.ppublica.shopify.security.web.ShopifyAuthorizationCodeTokenResponseClient
+ */
+public class ShopifyAccessTokenResponseParser {
+	public static final long DEFAULT_EXPIRES_IN_SECONDS = 31536000L;
+
+	private static final String SHOP_PARAMETER = ShopifyOAuth2AuthorizationRequestResolver.SHOPIFY_SHOP_PARAMETER_KEY_FOR_TOKEN;
+
+	private final JsonFactory jsonFactory;
+
+	public ShopifyAccessTokenResponseParser() {
+		this(new JsonFactory());
+	}
+
+	public ShopifyAccessTokenResponseParser(JsonFactory jsonFactory) {
+		this.jsonFactory = jsonFactory;
+	}
+
+	/**
+	 * Parse the token response.
+	 *
+	 * @param body The response body
+	 * @param shop The shop the token was requested for
+	 * @return The OAuth2AccessTokenResponse
+	 * @throws IOException If the body can't be read, isn't a JSON object, or has no access token
+	 */
+	public OAuth2AccessTokenResponse parse(InputStream body, String shop) throws IOException {
+		String accessToken = null;
+		String refreshToken = null;
+		Set<String> scopes = Collections.emptySet();
+		long expiresIn = DEFAULT_EXPIRES_IN_SECONDS;
+		Map<String, Object> additionalParameters = new LinkedHashMap<>();
+
+		try (JsonParser parser = jsonFactory.createParser(body)) {
+			if(parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new JsonParseException(parser, "The token response is not a JSON object");
+			}
+
+			while(parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+
+				switch(name) {
+					case OAuth2ParameterNames.ACCESS_TOKEN:
+						accessToken = parser.getValueAsString();
+						break;
+					case OAuth2ParameterNames.REFRESH_TOKEN:
+						refreshToken = parser.getValueAsString();
+						break;
+					case OAuth2ParameterNames.SCOPE:
+						scopes = parseScopes(parser.getValueAsString());
+						break;
+					case OAuth2ParameterNames.EXPIRES_IN:
+						expiresIn = parser.getValueAsLong(DEFAULT_EXPIRES_IN_SECONDS);
+						break;
+					case OAuth2ParameterNames.TOKEN_TYPE:
+						// Shopify tokens are always bearer tokens
+						parser.skipChildren();
+						break;
+					default:
+						additionalParameters.put(name, readValue(parser, token));
+				}
+			}
+		}
+
+		if(accessToken == null) {
+			throw new IOException("The token response doesn't contain an access token");
+		}
+
+		additionalParameters.put(SHOP_PARAMETER, shop);
+
+		return OAuth2AccessTokenResponse.withToken(accessToken)
+				.expiresIn(expiresIn > 0 ? expiresIn : DEFAULT_EXPIRES_IN_SECONDS)
+				.tokenType(OAuth2AccessToken.TokenType.BEARER)
+				.scopes(scopes)
+				.refreshToken(refreshToken)
+				.additionalParameters(additionalParameters)
+				.build();
+
+	}
+
+	private static Set<String> parseScopes(String scope) {
+		if(scope == null || scope.isEmpty()) {
+			return Collections.emptySet();
+		}
+		Set<String> scopes = new LinkedHashSet<>();
+		int start = 0;
+		while(start <= scope.length()) {
+			int end = scope.indexOf(',', start);
+			if(end < 0) {
+				end = scope.length();
+			}
+			String s = scope.substring(start, end).trim();
+			if(!s.isEmpty()) {
+				scopes.add(s);
+			}
+			start = end + 1;
+		}
+		return scopes;
+	}
+
+	/*
+	 * Scalars are kept as Strings, like OAuth2AccessTokenResponseHttpMessageConverter does.
+	 */
+	private static Object readValue(JsonParser parser, JsonToken token) throws IOException {
+		switch(token) {
+			case START_OBJECT:
+				Map<String, Object> object = new LinkedHashMap<>();
+				while(parser.nextToken() == JsonToken.FIELD_NAME) {
+					String name = parser.getCurrentName();
+					object.put(name, readValue(parser, parser.nextToken()));
+				}
+				return object;
+			case START_ARRAY:
+				List<Object> array = new ArrayList<>();
+				JsonToken next;
+				while((next = parser.nextToken()) != JsonToken.END_ARRAY) {
+					array.add(readValue(parser, next));
+				}
+				return array;
+			case VALUE_NULL:
+				return null;
+			default:
+				return parser.getValueAsString();
+		}
+	}
+
+}
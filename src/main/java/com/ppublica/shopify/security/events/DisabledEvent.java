@@ -0,0 +1,24 @@
+package com.ppublica.shopify.security.events;
+
+/**
+ * The event returned when Java Flight Recorder isn't recording it, or isn't available. It does nothing, and it's 
+ * shared, so that the stages cost nothing extra.
+ * 
+ * @author N F
+ */
+final class DisabledEvent implements TokenLookupEvent {
+	
+	static final DisabledEvent INSTANCE = new DisabledEvent();
+	
+	private DisabledEvent() { }
+
+	@Override
+	public void record(String shop, String route, String outcome) { }
+
+	@Override
+	public void databaseDone() { }
+
+	@Override
+	public void decryptDone() { }
+
+}
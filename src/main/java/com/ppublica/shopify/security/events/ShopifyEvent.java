@@ -0,0 +1,24 @@
+package com.ppublica.shopify.security.events;
+
+/**
+ * A stage of the security checks, timed from when it's obtained from ShopifyEvents until record(...) is called. 
+ * When Java Flight Recorder isn't recording the event, record(...) does nothing.
+ * 
+ * <p>An event is only recorded once, by the thread that obtained it. An event that's never recorded (because the 
+ * stage threw an exception) is simply dropped.</p>
+ * 
+ * @author N F
+ * @see ShopifyEvents
+ */
+public interface ShopifyEvent {
+	
+	/**
+	 * End the stage and commit the event.
+	 * 
+	 * @param shop The shop domain, or null if it isn't known
+	 * @param route The request path, or the operation for a stage that isn't tied to a request
+	 * @param outcome How the stage ended (e.g. "valid", "invalid")
+	 */
+	void record(String shop, String route, String outcome);
+
+}
@@ -0,0 +1,81 @@
+package com.ppublica.shopify.security.events;
+
+/**
+ * Starts the Java Flight Recorder events of the security checks:
+ * 
+ * <ul>
+ * 	<li>ShopifyHmacVerify: ShopifyVerificationStrategy checks the hmac of a request from Shopify, in the query 
+ * 		string or in the X-Shopify-Hmac-SHA256 header</li>
+ * 	<li>ShopifyNonceCheck: ShopifyVerificationStrategy matches the state of the OAuth callback with a saved 
+ * 		authorization request</li>
+ * 	<li>ShopifyTokenLookup: TokenService loads a store, with the durations of the database query and of the 
+ * 		decryption of its token</li>
+ * 	<li>ShopifyTokenExchange: ShopifyAuthorizationCodeTokenResponseClient exchanges an authorization code for a 
+ * 		token with Shopify</li>
+ * 	<li>ShopifyWebhookHandled: UninstallFilter handles an "app/uninstalled" webhook</li>
+ * </ul>
+ * 
+ * <p>Every event has the shop domain, the route and the outcome of the stage.</p>
+ * 
+ * <p>This library runs on Java 8, and its jar is a multi-release jar: on Java 11 and later, this class is 
+ * replaced by one that emits the events (in the "Shopify" category) with jdk.jfr. This version is used on 
+ * Java 8, and only returns an event that does nothing. In both cases, an event that isn't being recorded is a 
+ * shared instance whose methods are empty.</p>
+ * 
+ * <p>For example, to record them with the other events of the default configuration:</p>
+ * <pre>
+ * java -XX:StartFlightRecording=settings=default,filename=app.jfr ...
+ * </pre>
+ * 
+ * @author N F
+ */
+public final class ShopifyEvents {
+	
+	private ShopifyEvents() { }
+	
+	/**
+	 * Start a ShopifyHmacVerify event.
+	 * 
+	 * @return The event
+	 */
+	public static ShopifyEvent hmacVerify() {
+		return DisabledEvent.INSTANCE;
+	}
+	
+	/**
+	 * Start a ShopifyNonceCheck event.
+	 * 
+	 * @return The event
+	 */
+	public static ShopifyEvent nonceCheck() {
+		return DisabledEvent.INSTANCE;
+	}
+	
+	/**
+	 * Start a ShopifyTokenLookup event.
+	 * 
+	 * @return The event
+	 */
+	public static TokenLookupEvent tokenLookup() {
+		return DisabledEvent.INSTANCE;
+	}
+	
+	/**
+	 * Start a ShopifyTokenExchange event.
+	 * 
+	 * @return The event
+	 */
+	public static ShopifyEvent tokenExchange() {
+		return DisabledEvent.INSTANCE;
+	}
+	
+	/**
+	 * Start a ShopifyWebhookHandled event.
+	 * 
+	 * @return The event
+	 */
+	public static ShopifyEvent webhookHandled() {
+		return DisabledEvent.INSTANCE;
+	}
+
+}
@@ -0,0 +1,22 @@
+package com.ppublica.shopify.security.events;
+
+/**
+ * The lookup of a store's token, which also times its 2 parts: the database query, and the decryption of the 
+ * token.
+ * 
+ * @author N F
+ * @see ShopifyEvents#tokenLookup()
+ */
+public interface TokenLookupEvent extends ShopifyEvent {
+	
+	/**
+	 * The database query is done; the decryption starts.
+	 */
+	void databaseDone();
+	
+	/**
+	 * The decryption is done.
+	 */
+	void decryptDone();
+
+}
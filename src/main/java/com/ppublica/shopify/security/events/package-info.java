@@ -0,0 +1,5 @@
+/**
+ * Java Flight Recorder events for the stages of the security checks
+ * 
+ */
+package com.ppublica.shopify.security.events;
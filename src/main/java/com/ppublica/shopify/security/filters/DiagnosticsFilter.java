@@ -0,0 +1,175 @@
+package com.ppublica.shopify.security.filters;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ppublica.shopify.security.service.ShopifyDiagnostics;
+
+
+/**
+ * This filter responds to the diagnosticsPath it's provided with the state of the caches, queues and HTTP clients
+ * of the app, as JSON (see ShopifyDiagnostics):
+ * <ul>
+ * <li>GET: a snapshot</li>
+ * <li>POST with a "shop" parameter: the store is evicted from the cache of loaded stores, so that its next request
+ * reads it from the database again</li>
+ * </ul>
+ *
+ * <p>It implements its own security: every request must send the admin token in an "Authorization: Bearer" header,
+ * or it gets a 401. The token isn't a cookie, so the POST doesn't need a CSRF token either; this filter is added
+ * before CsrfFilter.</p>
+ *
+ * @author N F
+ * @see com.ppublica.shopify.security.configuration.ShopifyPaths
+ * @see com.ppublica.shopify.security.configurer.ShopifySecurityConfigurer
+ */
+public class DiagnosticsFilter implements Filter {
+	private final Log logger = LogFactory.getLog(DiagnosticsFilter.class);
+
+	public static final String SHOP_PARAMETER = "shop";
+
+	private static final String BEARER_PREFIX = "Bearer ";
+
+	private String diagnosticsPath;
+	private ShopifyDiagnostics diagnostics;
+	private ObjectMapper objectMapper;
+
+	/**
+	 * Construct a DiagnosticsFilter
+	 *
+	 * @param diagnosticsPath The path to access the diagnostics
+	 * @param diagnostics The ShopifyDiagnostics
+	 * @param objectMapper To write the JSON
+	 */
+	public DiagnosticsFilter(String diagnosticsPath, ShopifyDiagnostics diagnostics, ObjectMapper objectMapper) {
+		this.diagnosticsPath = diagnosticsPath;
+		this.diagnostics = diagnostics;
+		this.objectMapper = objectMapper;
+	}
+
+
+	/**
+	 * If the request matches this filter, check the admin token and respond.
+	 *
+	 * @param request The request
+	 * @param response The response
+	 * @param chain The security filter chain
+	 *
+	 * @throws IOException If unable to write request
+	 * @throws ServletException When invoking the chain
+	 */
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+			throws IOException, ServletException {
+		HttpServletRequest req = (HttpServletRequest) request;
+		HttpServletResponse resp = (HttpServletResponse) response;
+
+		if(!isDiagnosticsRequest(req)) {
+			chain.doFilter(req, resp);
+			return;
+		}
+
+		resp.setHeader("Cache-Control", "no-store");
+
+		if(!diagnostics.isAdminToken(getBearerToken(req))) {
+			logger.warn("Diagnostics requested without the admin token from " + req.getRemoteAddr());
+			resp.setHeader("WWW-Authenticate", "Bearer");
+			resp.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+			return;
+		}
+
+		if("GET".equals(req.getMethod())) {
+			writeJson(resp, diagnostics.snapshot());
+			return;
+		}
+
+		if("POST".equals(req.getMethod())) {
+			evict(req, resp);
+			return;
+		}
+
+		resp.setHeader("Allow", "GET, POST");
+		resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+
+	}
+
+	private void evict(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		String shop = req.getParameter(SHOP_PARAMETER);
+
+		if(shop == null || shop.trim().isEmpty()) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "The shop parameter is required");
+			return;
+		}
+
+		if(!diagnostics.evict(shop.trim())) {
+			resp.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED, "The OAuth2AuthorizedClientService has no cache");
+			return;
+		}
+
+		logger.info("Store " + shop.trim() + " evicted through the diagnostics endpoint");
+		writeJson(resp, Collections.singletonMap("evicted", shop.trim()));
+
+	}
+
+	private void writeJson(HttpServletResponse resp, Object body) throws IOException {
+		byte[] json = objectMapper.writeValueAsBytes(body);
+
+		resp.setContentType("application/json;charset=UTF-8");
+		resp.setContentLength(json.length);
+		resp.getOutputStream().write(json);
+
+	}
+
+	private String getBearerToken(HttpServletRequest req) {
+		String authorization = req.getHeader("Authorization");
+
+		if(authorization == null || !authorization.regionMatches(true, 0, BEARER_PREFIX, 0, BEARER_PREFIX.length())) {
+			return null;
+		}
+
+		return authorization.substring(BEARER_PREFIX.length()).trim();
+
+	}
+
+	private boolean isDiagnosticsRequest(HttpServletRequest req) {
+		String uri = req.getRequestURI();
+
+		int pathParamIndex = uri.indexOf(';');
+
+		if (pathParamIndex > 0) {
+			// strip everything after the first semi-colon
+			uri = uri.substring(0, pathParamIndex);
+		}
+
+		if ("".equals(req.getContextPath())) {
+			return uri.equals(diagnosticsPath);
+		}
+
+		return uri.equals(req.getContextPath() + diagnosticsPath);
+
+	}
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+
+	}
+
+	@Override
+	public void destroy() {
+
+	}
+
+}
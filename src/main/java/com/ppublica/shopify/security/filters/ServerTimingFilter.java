@@ -0,0 +1,116 @@
+package com.ppublica.shopify.security.filters;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.security.web.util.OnCommittedResponseWrapper;
+
+import com.ppublica.shopify.security.web.ServerTiming;
+import com.ppublica.shopify.security.web.ServerTimingSampler;
+
+
+/**
+ * This filter adds a Server-Timing header to the requests the ServerTimingSampler chooses, with the duration of 
+ * each stage of the request: the checks of ShopifyOriginFilter, the store lookup of ShopifyExistingTokenFilter, 
+ * the authorization request built by ShopifyOAuth2AuthorizationRequestResolver, and the token exchange. For 
+ * example:
+ * 
+ * <pre>
+ * Server-Timing: origin;dur=0.41, token;dur=2.87, total;dur=6.12
+ * </pre>
+ * 
+ * <p>The browser's developer tools show it with the request, also when the app is in the iframe of the Shopify 
+ * admin. The header is added when the response is about to be committed, so the total is the time until then.</p>
+ * 
+ * <p>It's only added to the filter chain if a ServerTimingSampler bean exists (see SecurityBeansConfig).</p>
+ * 
+ * @author N F
+ * @see com.ppublica.shopify.security.web.ServerTiming
+ * @see com.ppublica.shopify.security.configurer.ShopifySecurityConfigurer
+ */
+public class ServerTimingFilter implements Filter {
+	
+	private ServerTimingSampler sampler;
+	
+	/**
+	 * Construct a ServerTimingFilter
+	 * 
+	 * @param sampler To choose the requests to time
+	 */
+	public ServerTimingFilter(ServerTimingSampler sampler) {
+		this.sampler = sampler;
+	}
+
+	/**
+	 * Time the request if it's chosen, and add the header before the response is committed.
+	 * 
+	 * @param request The request
+	 * @param response The response
+	 * @param chain The security filter chain
+	 * @throws IOException When invoking the chain
+	 * @throws ServletException When invoking the chain
+	 */
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+			throws IOException, ServletException {
+		HttpServletRequest req = (HttpServletRequest)request;
+		
+		if(ServerTiming.isActive() || !sampler.isTimed(req)) {
+			// not chosen, or already timed
+			chain.doFilter(request, response);
+			return;
+		}
+		
+		ServerTiming timing = ServerTiming.bind();
+		TimedResponse resp = new TimedResponse((HttpServletResponse)response, timing);
+		
+		try {
+			chain.doFilter(request, resp);
+		} finally {
+			ServerTiming.unbind();
+		}
+		
+		// nothing committed the response yet
+		resp.addTimingHeader();
+		
+	}
+	
+	
+	static class TimedResponse extends OnCommittedResponseWrapper {
+		private final ServerTiming timing;
+		private boolean added;
+
+		TimedResponse(HttpServletResponse response, ServerTiming timing) {
+			super(response);
+			this.timing = timing;
+		}
+
+		@Override
+		protected void onResponseCommitted() {
+			addTimingHeader();
+		}
+		
+		void addTimingHeader() {
+			if(!added && !isCommitted()) {
+				added = true;
+				setHeader(ServerTiming.HEADER, timing.toHeaderValue());
+			}
+		}
+		
+	}
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException { }
+
+	@Override
+	public void destroy() { }
+
+}
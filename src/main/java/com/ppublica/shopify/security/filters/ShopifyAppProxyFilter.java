@@ -0,0 +1,140 @@
+package com.ppublica.shopify.security.filters;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
+import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+import org.springframework.web.filter.GenericFilterBean;
+
+import com.ppublica.shopify.security.authentication.AppProxySignatureVerifier;
+import com.ppublica.shopify.security.authentication.ShopifyAppProxyToken;
+import com.ppublica.shopify.security.configuration.SecurityBeansConfig;
+import com.ppublica.shopify.security.service.ShopifyStore;
+import com.ppublica.shopify.security.service.TokenService;
+
+
+/**
+ * This filter authenticates the requests Shopify forwards through the app proxy. By default, it matches the path
+ * "/apps/**" (see ShopifyPaths).
+ *
+ * <p>The "signature" parameter is checked with AppProxySignatureVerifier, which also rejects a query whose
+ * "timestamp" is outside the allowed window or whose signature was already used. If it's invalid, a 403 error code is
+ * sent back. If it's valid, and the store in the "shop" parameter has been installed, a ShopifyAppProxyToken for
+ * the store is set as the Authentication. The token lasts for this request only. If the store has not been
+ * installed, the request continues without an Authentication.</p>
+ *
+ * <p>The OAuth2AuthorizedClient is loaded with the OAuth2AuthorizedClientService; by default,
+ * ShopifyOAuth2AuthorizedClientService, which caches recently loaded clients.</p>
+ *
+ * @author N F
+ * @see com.ppublica.shopify.security.configuration.ShopifyPaths
+ * @see com.ppublica.shopify.security.configurer.ShopifySecurityConfigurer
+ * @see com.ppublica.shopify.security.authentication.AppProxySignatureVerifier
+ */
+public class ShopifyAppProxyFilter extends GenericFilterBean {
+	private final Log logger = LogFactory.getLog(ShopifyAppProxyFilter.class);
+
+	public static final String LOGGED_IN_CUSTOMER_ID_PARAMETER = "logged_in_customer_id";
+
+	private static final String REGISTRATION_ID = SecurityBeansConfig.SHOPIFY_REGISTRATION_ID;
+
+	private final AntPathRequestMatcher requestMatcher;
+	private final AppProxySignatureVerifier verifier;
+	private final OAuth2AuthorizedClientService clientService;
+
+	/**
+	 * Construct a ShopifyAppProxyFilter.
+	 *
+	 * @param appProxyUri The path Shopify forwards app proxy requests to
+	 * @param verifier To check the signature
+	 * @param clientService To obtain the token for the store
+	 */
+	public ShopifyAppProxyFilter(String appProxyUri, AppProxySignatureVerifier verifier, OAuth2AuthorizedClientService clientService) {
+		this.requestMatcher = new AntPathRequestMatcher(appProxyUri + "/**");
+		this.verifier = verifier;
+		this.clientService = clientService;
+	}
+
+	/**
+	 * If the request matches this filter, verify its signature and set a ShopifyAppProxyToken for the store.
+	 *
+	 * @param request The request
+	 * @param response The response
+	 * @param chain The security filter chain
+	 * @throws IOException When invoking chain
+	 * @throws ServletException When invoking the chain
+	 */
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+			throws IOException, ServletException {
+
+		HttpServletRequest req = (HttpServletRequest) request;
+
+		if(!requestMatcher.matches(req)) {
+			chain.doFilter(request, response);
+
+			return;
+		}
+
+		if(!verifier.isValid(req.getQueryString())) {
+			proxyFailure(req, (HttpServletResponse)response);
+
+			return;
+		}
+
+		ShopifyAppProxyToken token = getToken(req);
+
+		if(token != null) {
+			SecurityContextHolder.getContext().setAuthentication(token);
+		}
+
+		chain.doFilter(request, response);
+
+	}
+
+	/**
+	 * Send a 403 status code if the signature is invalid.
+	 *
+	 * @param req The request
+	 * @param resp The response
+	 * @throws IOException Unable to send an error
+	 */
+	protected void proxyFailure(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		logger.debug("App proxy request failed signature verification");
+
+		resp.sendError(403, "This request must come from Shopify");
+	}
+
+	private ShopifyAppProxyToken getToken(HttpServletRequest request) {
+		String shopName = request.getParameter(TokenService.SHOP_ATTRIBUTE_NAME);
+
+		if(shopName == null || shopName.isEmpty()) {
+			logger.debug("No shop name found in the app proxy request");
+			return null;
+		}
+
+		OAuth2AuthorizedClient client = clientService.loadAuthorizedClient(REGISTRATION_ID, shopName);
+
+		if(client == null) {
+			logger.debug("The store " + shopName + " has not been installed.");
+			return null;
+		}
+
+		ShopifyStore store = new ShopifyStore(client.getPrincipalName(), client.getAccessToken().getTokenValue(),
+												client.getClientRegistration().getClientId(), null);
+
+		return new ShopifyAppProxyToken(store, null, REGISTRATION_ID, request.getParameter(LOGGED_IN_CUSTOMER_ID_PARAMETER));
+	}
+
+}
@@ -22,7 +22,9 @@ import org.springframework.web.filter.GenericFilterBean;
 import com.ppublica.shopify.security.service.TokenService;
 import com.ppublica.shopify.security.authentication.ShopifyOriginToken;
 import com.ppublica.shopify.security.configuration.SecurityBeansConfig;
+import com.ppublica.shopify.security.serialization.CompactSecurityContext;
 import com.ppublica.shopify.security.service.ShopifyStore;
+import com.ppublica.shopify.security.web.ServerTiming;
 
 
 /**
@@ -90,7 +92,9 @@ public class ShopifyExistingTokenFilter extends GenericFilterBean {
 		
 		if(auth != null && auth instanceof ShopifyOriginToken) {
 			// this request is to the installation path from an embedded app
+			long start = ServerTiming.start();
 			oauth2Token = this.getToken(req);
+			ServerTiming.stop(ServerTiming.TOKEN, start);
 			if(oauth2Token != null) {
 				logger.info("Store found! Setting OAuth2AuthenticationToken");
 				this.setToken(oauth2Token);
@@ -116,9 +120,10 @@ public class ShopifyExistingTokenFilter extends GenericFilterBean {
 		}
 	}
 	
+	// the SecurityContext will be saved in the session: use one with a compact serialized form
 	private void setToken(OAuth2AuthenticationToken oauth2Token) {
 
-		SecurityContextHolder.getContext().setAuthentication(oauth2Token);
+		CompactSecurityContext.install(oauth2Token);
 	}
 	
 	private OAuth2AuthenticationToken getToken(HttpServletRequest request) {
@@ -28,6 +28,7 @@ import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
 
 import com.ppublica.shopify.security.authentication.ShopifyOriginToken;
 import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
+import com.ppublica.shopify.security.web.ServerTiming;
 
 
 /**
@@ -179,12 +180,20 @@ public class ShopifyOriginFilter implements Filter {
 	 * 
 	 */
 	private boolean isShopifyRequest(ServletRequest request) {
-		return shopifyVerificationStrategy.isShopifyRequest((HttpServletRequest)request);
+		long start = ServerTiming.start();
+		boolean isShopifyRequest = shopifyVerificationStrategy.isShopifyRequest((HttpServletRequest)request);
+		ServerTiming.stop(ServerTiming.ORIGIN, start);
+		
+		return isShopifyRequest;
 
 	}
 	
 	private boolean hasValidNonce(ServletRequest request) {
-		return shopifyVerificationStrategy.hasValidNonce((HttpServletRequest)request);
+		long start = ServerTiming.start();
+		boolean hasValidNonce = shopifyVerificationStrategy.hasValidNonce((HttpServletRequest)request);
+		ServerTiming.stop(ServerTiming.ORIGIN, start);
+		
+		return hasValidNonce;
 
 	}
 	
@@ -0,0 +1,538 @@
+package com.ppublica.shopify.security.filters;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
+import com.ppublica.shopify.security.configuration.SecurityBeansConfig;
+import com.ppublica.shopify.security.webhook.ShopifyWebhook;
+import com.ppublica.shopify.security.webhook.WebhookBodyReader;
+import com.ppublica.shopify.security.webhook.WebhookDeduplicationStore;
+import com.ppublica.shopify.security.webhook.WebhookExecutor;
+import com.ppublica.shopify.security.webhook.WebhookHandler;
+import com.ppublica.shopify.security.webhook.WebhookJournal;
+
+
+/**
+ * This filter receives every Shopify webhook sent to webhookEndpoint/shopify and routes it, by its X-Shopify-Topic
+ * header, to the WebhookHandlers registered for the topic. By default, it matches the path
+ * "/store/webhooks/shopify" (see ShopifyPaths).
+ *
+ * <p>The body is read once, and its HMAC is verified on the raw bytes. A body larger than the maximum of the 
+ * WebhookBodyReader gets a 413 without being verified. A webhook that fails verification gets a 403. A verified webhook is queued on the WebhookExecutor, behind the other webhooks of its shop (the 
+ * X-Shopify-Shop-Domain header), and acknowledged with a 200 right away, or gets a 503 if the queue is full so 
+ * Shopify retries it later. Webhooks of a topic with no handler are acknowledged and
+ * dropped.</p>
+ * 
+ * <p>If a WebhookDeduplicationStore is provided, a webhook whose X-Shopify-Webhook-Id has already been accepted 
+ * is acknowledged right after verification, without being parsed or dispatched.</p>
+ * 
+ * <p>If a WebhookJournal is provided, a queued webhook is appended to the journal before it's acknowledged, and 
+ * removed from it once its handlers have succeeded. If a handler fails, the webhook is moved to the journal's 
+ * retry log for the next startup, up to the journal's maximum number of attempts. When the filter is started, once the application 
+ * context has been refreshed, the webhooks left in the journal by the previous run are queued again. This includes the "app/uninstalled" webhooks journaled by 
+ * UninstallFilter. A journaled webhook whose topic no longer has a handler is kept in the journal's retry log, and the 
+ * webhooks that don't fit in the queue are queued by a background thread as room frees up.</p>
+ *
+ * @author N F
+ * @see com.ppublica.shopify.security.webhook.WebhookHandler
+ * @see com.ppublica.shopify.security.webhook.WebhookExecutor
+ * @see com.ppublica.shopify.security.webhook.WebhookDeduplicationStore
+ * @see com.ppublica.shopify.security.webhook.WebhookJournal
+ * @see com.ppublica.shopify.security.configuration.ShopifyPaths
+ *
+ */
+public class ShopifyWebhookFilter implements Filter, SmartLifecycle {
+	private final Log logger = LogFactory.getLog(ShopifyWebhookFilter.class);
+
+	private static final String REGISTRATION_ID = SecurityBeansConfig.SHOPIFY_REGISTRATION_ID;
+
+	private final AntPathRequestMatcher matcher;
+	private final ShopifyVerificationStrategy verificationStrategy;
+	private final Map<String, List<WebhookHandler>> handlersByTopic;
+	private final WebhookExecutor webhookExecutor;
+	private final ObjectMapper objectMapper;
+	private WebhookDeduplicationStore deduplicationStore;
+	private WebhookJournal journal;
+	private WebhookBodyReader bodyReader;
+
+	private final AtomicLong receivedCount = new AtomicLong();
+	private final AtomicLong verificationFailureCount = new AtomicLong();
+	private final AtomicLong unhandledCount = new AtomicLong();
+	private final AtomicLong duplicateCount = new AtomicLong();
+	private final AtomicLong replayedCount = new AtomicLong();
+	private final AtomicLong tooLargeCount = new AtomicLong();
+	private final AtomicLong handlerFailureCount = new AtomicLong();
+	
+	// guarded by this
+	private volatile boolean running;
+	private boolean replayed;
+	private Thread replayer;
+
+	/**
+	 * Build the ShopifyWebhookFilter. The webhookEndpoint must end with the registration id as defined in
+	 * SecurityBeansConfig.
+	 *
+	 * @param webhookEndpoint To match webhook requests
+	 * @param verificationStrategy To verify the requests
+	 * @param handlers The handlers to route webhooks to
+	 * @param webhookExecutor To process webhooks after acknowledging them, or null to process them before
+	 * @param objectMapper To parse the bodies
+	 */
+	public ShopifyWebhookFilter(String webhookEndpoint, ShopifyVerificationStrategy verificationStrategy, Collection<WebhookHandler> handlers,
+								WebhookExecutor webhookExecutor, ObjectMapper objectMapper) {
+		this.matcher = webhookEndpoint.endsWith(REGISTRATION_ID) ? new AntPathRequestMatcher(webhookEndpoint, "POST") : new AntPathRequestMatcher(webhookEndpoint + "/" + REGISTRATION_ID, "POST");
+		this.verificationStrategy = verificationStrategy;
+		this.webhookExecutor = webhookExecutor;
+		this.objectMapper = objectMapper;
+		this.bodyReader = new WebhookBodyReader();
+
+		Map<String, List<WebhookHandler>> byTopic = new HashMap<>();
+		for(WebhookHandler handler : handlers) {
+			for(String topic : handler.getTopics()) {
+				byTopic.computeIfAbsent(topic, t -> new ArrayList<>()).add(handler);
+			}
+		}
+		this.handlersByTopic = byTopic;
+
+		if(logger.isDebugEnabled()) {
+			logger.debug("Webhook topics handled: " + byTopic.keySet());
+		}
+	}
+
+	/**
+	 * Acknowledge duplicate deliveries without dispatching them again.
+	 *
+	 * @param deduplicationStore The WebhookDeduplicationStore, or null
+	 */
+	public void setDeduplicationStore(WebhookDeduplicationStore deduplicationStore) {
+		this.deduplicationStore = deduplicationStore;
+	}
+
+	/**
+	 * Journal the webhooks queued on the WebhookExecutor until their handlers have succeeded. The webhooks left in 
+	 * the journal are queued by start(). The journal isn't used without a WebhookExecutor.
+	 *
+	 * @param journal The WebhookJournal, or null
+	 */
+	public void setJournal(WebhookJournal journal) {
+		this.journal = webhookExecutor != null ? journal : null;
+	}
+
+	/**
+	 * Read bodies up to the maximum of the given WebhookBodyReader.
+	 *
+	 * @param bodyReader The WebhookBodyReader, or null for the default maximum
+	 */
+	public void setBodyReader(WebhookBodyReader bodyReader) {
+		this.bodyReader = bodyReader != null ? bodyReader : new WebhookBodyReader();
+	}
+
+	/**
+	 * Queue the webhooks left in the WebhookJournal by the previous run. It's called once the application context 
+	 * has been refreshed (see ShopifyBeansUtils.startWithContext(...)), so the handlers are ready to run them. The 
+	 * journal is only replayed on the first start.
+	 */
+	@Override
+	public synchronized void start() {
+		if(running) {
+			return;
+		}
+		running = true;
+		
+		if(journal != null && !replayed) {
+			replayed = true;
+			replay();
+		}
+	}
+
+	/**
+	 * Stop the background replay, if any. The webhooks it hasn't queued yet stay in the journal.
+	 */
+	@Override
+	public synchronized void stop() {
+		running = false;
+		
+		if(replayer != null) {
+			replayer.interrupt();
+			replayer = null;
+		}
+	}
+
+	@Override
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Determine if the request path matches the filter, and if so, verify and dispatch the webhook.
+	 *
+	 * @param request The request
+	 * @param response The response
+	 * @param chain The security filter chain
+	 * @throws IOException When reading the body or invoking the chain
+	 * @throws ServletException When invoking the chain
+	 */
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+			throws IOException, ServletException {
+		HttpServletRequest req = (HttpServletRequest)request;
+		HttpServletResponse resp = (HttpServletResponse)response;
+
+		if(!matches(req)) {
+			chain.doFilter(req, response);
+			return;
+		}
+
+		receivedCount.incrementAndGet();
+
+		byte[] body;
+		try {
+			body = bodyReader.read(req);
+		} catch (WebhookBodyReader.BodyTooLargeException e) {
+			logger.debug(e.getMessage());
+			tooLargeCount.incrementAndGet();
+			webhookTooLarge(req, resp);
+			return;
+		}
+
+		if(!isVerified(req, body)) {
+			verificationFailureCount.incrementAndGet();
+			webhookFailure(req, resp);
+			return;
+		}
+
+		String topic = req.getHeader(ShopifyWebhook.TOPIC_HEADER);
+		List<WebhookHandler> handlers = topic == null ? null : handlersByTopic.get(topic);
+
+		if(handlers == null) {
+			logger.debug("No handler for webhook topic " + topic);
+			unhandledCount.incrementAndGet();
+			webhookSuccess(req, resp);
+			return;
+		}
+
+		String webhookId = req.getHeader(ShopifyWebhook.WEBHOOK_ID_HEADER);
+
+		if(isDuplicate(webhookId)) {
+			logger.debug("Webhook " + webhookId + " has already been accepted");
+			duplicateCount.incrementAndGet();
+			webhookSuccess(req, resp);
+			return;
+		}
+
+		ShopifyWebhook webhook = new ShopifyWebhook(topic, req.getHeader(ShopifyWebhook.SHOP_DOMAIN_HEADER), webhookId,
+														req.getHeader(ShopifyWebhook.API_VERSION_HEADER), body, objectMapper);
+
+		dispatch(webhook, handlers, req, resp);
+
+	}
+
+	/**
+	 * Check the request path for a match.
+	 * @param request The current request
+	 * @return True if there's a match, false otherwise
+	 */
+	public boolean matches(HttpServletRequest request) {
+		return this.matcher.matches(request);
+	}
+
+	/**
+	 * Run the handlers on the WebhookExecutor and send the response. If there's a WebhookJournal, the webhook 
+	 * is journaled before it's queued.
+	 *
+	 * @param webhook The verified webhook
+	 * @param handlers The handlers for its topic
+	 * @param req The request
+	 * @param resp The response
+	 * @throws IOException If unable to generate a response
+	 */
+	protected void dispatch(ShopifyWebhook webhook, List<WebhookHandler> handlers, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		if(webhookExecutor == null) {
+			RuntimeException failure = null;
+			
+			// every handler runs, even if one before it failed
+			for(WebhookHandler handler : handlers) {
+				try {
+					handler.handle(webhook);
+				} catch (RuntimeException e) {
+					handlerFailed(webhook, handler, e);
+					if(failure == null) {
+						failure = e;
+					} else {
+						failure.addSuppressed(e);
+					}
+				}
+			}
+			
+			if(failure != null) {
+				// let Shopify's retry through
+				forget(webhook.getWebhookId());
+				throw failure;
+			}
+			webhookSuccess(req, resp);
+			return;
+		}
+		
+		long offset;
+		try {
+			offset = journal != null ? journal.append(webhook) : -1;
+		} catch (UncheckedIOException | IllegalStateException e) {
+			logger.warn("Unable to journal webhook " + webhook.getWebhookId(), e);
+			forget(webhook.getWebhookId());
+			webhookRejected(req, resp);
+			return;
+		}
+
+		if(webhookExecutor.submit(webhook.getTopic(), webhook.getShopDomain(), task(webhook, handlers, offset))) {
+			webhookSuccess(req, resp);
+		} else {
+			acknowledge(offset);
+			forget(webhook.getWebhookId());
+			webhookRejected(req, resp);
+		}
+	}
+	
+	/*
+	 * Queue the webhooks that were journaled but not processed before the last shutdown. Once a lane is full, the 
+	 * rest are queued by a background thread, in order, as room frees up: the thread starting the filter doesn't 
+	 * run them. Called holding the lock.
+	 */
+	private void replay() {
+		List<WebhookJournal.Entry> entries = journal.recover();
+		int next = 0;
+		
+		while(next < entries.size() && replay(entries.get(next), false)) {
+			next++;
+		}
+		
+		if(next < entries.size()) {
+			List<WebhookJournal.Entry> rest = new ArrayList<>(entries.subList(next, entries.size()));
+			logger.info(rest.size() + " journaled webhooks are waiting for room in the queue");
+			
+			replayer = new Thread(() -> {
+				for(WebhookJournal.Entry entry : rest) {
+					if(!replay(entry, true)) {
+						logger.warn("Journaled webhooks not replayed: they stay in the journal");
+						return;
+					}
+				}
+			}, "shopify-webhook-replay");
+			replayer.setDaemon(true);
+			replayer.start();
+		}
+		
+		if(!entries.isEmpty()) {
+			logger.info(entries.size() + " journaled webhooks found");
+		}
+	}
+	
+	/*
+	 * Returns false if the webhook couldn't be queued. A webhook with no handler is deferred in the journal, so it 
+	 * doesn't hold back its checkpoint.
+	 */
+	private boolean replay(WebhookJournal.Entry entry, boolean wait) {
+		List<WebhookHandler> handlers = handlersByTopic.get(entry.getTopic());
+		ShopifyWebhook webhook = entry.toWebhook(objectMapper);
+		
+		if(handlers == null) {
+			logger.warn("No handler for journaled webhook topic " + entry.getTopic() + ". It stays in the journal");
+			journal.defer(entry.getOffset(), webhook);
+			return true;
+		}
+		
+		Runnable task = task(webhook, handlers, entry.getOffset());
+		
+		boolean queued = wait ? webhookExecutor.submitWhenReady(entry.getTopic(), webhook.getShopDomain(), task)
+								: webhookExecutor.submit(entry.getTopic(), webhook.getShopDomain(), task);
+		
+		if(queued) {
+			replayedCount.incrementAndGet();
+		}
+		return queued;
+	}
+	
+	/*
+	 * The webhook is acknowledged in the journal when every handler has succeeded, which can be after the task 
+	 * returns (see WebhookHandler.handleAsync(...)). If one fails, it's failed in the journal instead.
+	 */
+	private Runnable task(ShopifyWebhook webhook, List<WebhookHandler> handlers, long offset) {
+		return () -> {
+			List<CompletableFuture<Void>> results = new ArrayList<>(handlers.size());
+			
+			// every handler runs, even if one before it failed
+			for(WebhookHandler handler : handlers) {
+				CompletableFuture<Void> result;
+				try {
+					result = handler.handleAsync(webhook);
+				} catch (RuntimeException e) {
+					result = new CompletableFuture<>();
+					result.completeExceptionally(e);
+				}
+				results.add(result.whenComplete((r, e) -> {
+					if(e != null) {
+						handlerFailed(webhook, handler, e);
+					}
+				}));
+			}
+			
+			CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).whenComplete((r, e) -> {
+				if(e == null) {
+					acknowledge(offset);
+				} else {
+					fail(offset, webhook);
+				}
+			});
+		};
+	}
+	
+	private void handlerFailed(ShopifyWebhook webhook, WebhookHandler handler, Throwable e) {
+		handlerFailureCount.incrementAndGet();
+		logger.warn("Unable to process webhook " + webhook.getTopic() + " with " + handler.getClass().getSimpleName(), e);
+	}
+	
+	private void acknowledge(long offset) {
+		if(journal != null && offset >= 0) {
+			journal.acknowledge(offset);
+		}
+	}
+	
+	private void fail(long offset, ShopifyWebhook webhook) {
+		if(journal != null && offset >= 0) {
+			journal.fail(offset, webhook);
+		}
+	}
+
+	/**
+	 * Send a 200 status code to acknowledge the webhook.
+	 *
+	 * @param req The request
+	 * @param resp The response
+	 */
+	protected void webhookSuccess(HttpServletRequest req, HttpServletResponse resp) {
+		resp.setStatus(200);
+	}
+
+	/**
+	 * Send a 403 status code if the webhook can't be verified.
+	 *
+	 * @param req The request
+	 * @param resp The response
+	 * @throws IOException Unable to send an error
+	 */
+	protected void webhookFailure(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		logger.debug("Webhook verification failed");
+
+		resp.sendError(403, "This request must come from Shopify");
+	}
+
+	/**
+	 * Send a 413 status code if the body is larger than the maximum.
+	 *
+	 * @param req The request
+	 * @param resp The response
+	 * @throws IOException Unable to send an error
+	 */
+	protected void webhookTooLarge(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		resp.sendError(413, "The request body is too large");
+	}
+
+	/**
+	 * Send a 503 status code if the webhook can't be queued. Shopify will retry the request.
+	 *
+	 * @param req The request
+	 * @param resp The response
+	 * @throws IOException Unable to send an error
+	 */
+	protected void webhookRejected(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		resp.sendError(503, "Too many webhooks are waiting to be processed");
+	}
+
+	/**
+	 * The topics that have at least one handler.
+	 *
+	 * @return The topics
+	 */
+	public Collection<String> getTopics() {
+		return Collections.unmodifiableSet(handlersByTopic.keySet());
+	}
+
+	public long getReceivedCount() {
+		return receivedCount.get();
+	}
+
+	public long getVerificationFailureCount() {
+		return verificationFailureCount.get();
+	}
+
+	public long getUnhandledCount() {
+		return unhandledCount.get();
+	}
+
+	public long getDuplicateCount() {
+		return duplicateCount.get();
+	}
+
+	public long getReplayedCount() {
+		return replayedCount.get();
+	}
+
+	public long getTooLargeCount() {
+		return tooLargeCount.get();
+	}
+
+	public long getHandlerFailureCount() {
+		return handlerFailureCount.get();
+	}
+
+	private boolean isDuplicate(String webhookId) {
+		return deduplicationStore != null && webhookId != null && !deduplicationStore.markIfFirstDelivery(webhookId);
+	}
+
+	private void forget(String webhookId) {
+		if(deduplicationStore != null && webhookId != null) {
+			deduplicationStore.forget(webhookId);
+		}
+	}
+
+	private boolean isVerified(HttpServletRequest req, byte[] body) {
+		String hmac = req.getHeader(ShopifyVerificationStrategy.HMAC_HEADER);
+
+		if(hmac == null || hmac.isEmpty()) {
+			logger.debug("No HMAC header found");
+			return false;
+		}
+
+		return verificationStrategy.isHeaderShopifyRequest(body, hmac, REGISTRATION_ID);
+	}
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException { }
+
+	@Override
+	public void destroy() { }
+
+}
@@ -1,6 +1,8 @@
 package com.ppublica.shopify.security.filters;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -14,22 +16,59 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.http.converter.HttpMessageConverter;
-import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.http.converter.json.AbstractJackson2HttpMessageConverter;
 import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
 import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
 
+import com.fasterxml.jackson.core.JsonFactory;
 import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
 import com.ppublica.shopify.security.configuration.SecurityBeansConfig;
+import com.ppublica.shopify.security.events.ShopifyEvent;
+import com.ppublica.shopify.security.events.ShopifyEvents;
+import com.ppublica.shopify.security.webhook.CachedBodyRequest;
+import com.ppublica.shopify.security.webhook.JsonFieldExtractor;
+import com.ppublica.shopify.security.webhook.ShopifyWebhook;
+import com.ppublica.shopify.security.webhook.UninstallWebhookHandler;
+import com.ppublica.shopify.security.webhook.WebhookBodyReader;
+import com.ppublica.shopify.security.webhook.WebhookDeduplicationStore;
+import com.ppublica.shopify.security.webhook.WebhookExecutor;
+import com.ppublica.shopify.security.webhook.WebhookJournal;
 
 
 /**
  * This filter uninstalls the requested Shopify store for requests matching uninstallEndpoint/shopify.
  * By default, it matches the path "/store/uninstall/shopify" (see ShopifyPaths).
  * 
+ * <p>The body is read once and kept in memory (see CachedBodyRequest), so it can be verified and then read 
+ * again. A body larger than the maximum of the WebhookBodyReader gets a 413 without being verified. If a WebhookExecutor is provided, the store is removed in the background and the request is 
+ * acknowledged as soon as the body has been verified and queued; if the queue is full, a 503 is sent so Shopify 
+ * retries the webhook later. Without a WebhookExecutor, the store is removed before responding.</p>
+ * 
+ * <p>The store is removed by UninstallWebhookHandler, which also handles the "app/uninstalled" topic when it's 
+ * sent to the general webhook path (see ShopifyWebhookFilter).</p>
+ * 
+ * <p>If a WebhookDeduplicationStore is provided, a request whose X-Shopify-Webhook-Id has already been accepted 
+ * gets a 200 right after verification, without the body being read again.</p>
+ * 
+ * <p>If a WebhookJournal is provided, a queued uninstallation is journaled before the 200 is sent and removed 
+ * from the journal once the store has been removed. If the removal fails, it stays in the journal. If the node 
+ * stops first, the uninstallation is replayed by ShopifyWebhookFilter when it's started again.</p>
+ * 
+ * <p>If an UninstallBatcher is provided, the store is removed together with the other stores uninstalled at 
+ * about the same time. The worker waits for the batch, so the shop's later webhooks are never processed before 
+ * its store has been removed.</p>
+ * 
+ * <p>Every request is recorded as a ShopifyWebhookHandled event, whose outcome is "uninstalled", "queued", 
+ * "duplicate", "rejected" (503), "invalid" (no shop in the body), "too-large" (413) or "unverified" 
+ * (see ShopifyEvents).</p>
+ * 
  * @author N F
  * @see com.ppublica.shopify.security.configuration.ShopifyPaths
  * @see com.ppublica.shopify.security.configurer.ShopifySecurityConfigurer
  * @see com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy
+ * @see com.ppublica.shopify.security.webhook.WebhookExecutor
+ * @see com.ppublica.shopify.security.webhook.WebhookJournal
+ * @see ShopifyWebhookFilter
  *
  */
 public class UninstallFilter implements Filter {
@@ -37,10 +76,17 @@ public class UninstallFilter implements Filter {
 
 	private AntPathRequestMatcher matcher;
 	private ShopifyVerificationStrategy verificationStrategy;
-	private OAuth2AuthorizedClientService clientService;
-	private HttpMessageConverter<Object> messageConverter;
+	private UninstallWebhookHandler uninstallHandler;
+	private JsonFieldExtractor fieldExtractor;
+	private WebhookExecutor webhookExecutor;
+	private WebhookDeduplicationStore deduplicationStore;
+	private WebhookJournal journal;
+	private WebhookBodyReader bodyReader;
 	private static final String REGISTRATION_ID = SecurityBeansConfig.SHOPIFY_REGISTRATION_ID;
 	
+	public static final String UNINSTALL_TOPIC = UninstallWebhookHandler.TOPIC;
+	private static final String SHOP_ID_FIELD = "shop_id";
+	
 	/**
 	 * Build the UninstallFilter. The uninstallEndpoint must end with the registration id as defined in
 	 * SecurityBeansConfig.
@@ -53,8 +99,56 @@ public class UninstallFilter implements Filter {
 	public UninstallFilter(String uninstallEndpoint, ShopifyVerificationStrategy verificationStrategy, OAuth2AuthorizedClientService clientService, HttpMessageConverter<Object> converter) {
 		this.matcher = uninstallEndpoint.endsWith(REGISTRATION_ID) ? new AntPathRequestMatcher(uninstallEndpoint) : new AntPathRequestMatcher(uninstallEndpoint + "/" + REGISTRATION_ID);
 		this.verificationStrategy = verificationStrategy;
-		this.clientService = clientService;
-		this.messageConverter = converter;
+		this.uninstallHandler = new UninstallWebhookHandler(clientService);
+		this.fieldExtractor = new JsonFieldExtractor(jsonFactory(converter), UninstallWebhookHandler.SHOP_DOMAIN_FIELD, SHOP_ID_FIELD);
+		this.bodyReader = new WebhookBodyReader();
+	}
+	
+	/**
+	 * Remove the store with the given UninstallWebhookHandler (e.g. one with an UninstallBatcher) instead of 
+	 * one that calls the OAuth2AuthorizedClientService directly.
+	 * 
+	 * @param uninstallHandler To remove the store
+	 */
+	public void setUninstallHandler(UninstallWebhookHandler uninstallHandler) {
+		this.uninstallHandler = uninstallHandler;
+	}
+	
+	/**
+	 * Remove the store in the background, after acknowledging the request.
+	 * 
+	 * @param webhookExecutor The WebhookExecutor, or null to remove the store before responding
+	 */
+	public void setWebhookExecutor(WebhookExecutor webhookExecutor) {
+		this.webhookExecutor = webhookExecutor;
+	}
+	
+	/**
+	 * Acknowledge duplicate deliveries without removing the store again.
+	 * 
+	 * @param deduplicationStore The WebhookDeduplicationStore, or null
+	 */
+	public void setDeduplicationStore(WebhookDeduplicationStore deduplicationStore) {
+		this.deduplicationStore = deduplicationStore;
+	}
+	
+	/**
+	 * Journal the uninstallations queued on the WebhookExecutor until they're done. The journal isn't used 
+	 * without a WebhookExecutor.
+	 * 
+	 * @param journal The WebhookJournal, or null
+	 */
+	public void setJournal(WebhookJournal journal) {
+		this.journal = journal;
+	}
+	
+	/**
+	 * Read bodies up to the maximum of the given WebhookBodyReader.
+	 * 
+	 * @param bodyReader The WebhookBodyReader, or null for the default maximum
+	 */
+	public void setBodyReader(WebhookBodyReader bodyReader) {
+		this.bodyReader = bodyReader != null ? bodyReader : new WebhookBodyReader();
 	}
 
 	/**
@@ -78,20 +172,93 @@ public class UninstallFilter implements Filter {
 			chain.doFilter(req, response);
 			return;
 		}
-				
-		if(this.verificationStrategy.isHeaderShopifyRequest(req, REGISTRATION_ID)) {
+		
+		ShopifyEvent event = ShopifyEvents.webhookHandled();
+		
+		String outcome;
+		
+		try {
+			// the body is needed both to verify the hmac and to find the store
+			req = new CachedBodyRequest(req, this.bodyReader);
+			outcome = handle(req, resp);
+			
+		} catch (WebhookBodyReader.BodyTooLargeException e) {
+			logger.debug(e.getMessage());
+			uninstallTooLarge(req, resp);
+			outcome = "too-large";
+		}
+		
+		event.record(req.getHeader(ShopifyWebhook.SHOP_DOMAIN_HEADER), req.getRequestURI(), outcome);
+		
+	}
+	
+	/*
+	 * Returns the outcome, for the ShopifyWebhookHandled event.
+	 */
+	private String handle(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		if(isVerified(req, readBody(req))) {
 			logger.info("Store uninstallation request received");
-
-			doUninstall(req, resp);
 			
-			return;
+			String webhookId = req.getHeader(ShopifyWebhook.WEBHOOK_ID_HEADER);
+			
+			if(isDuplicate(webhookId)) {
+				logger.debug("Uninstallation request " + webhookId + " has already been accepted");
+				uninstallSuccess(req, resp);
+				return "duplicate";
+			}
+			
+			try {
+				doUninstall(req, resp);
+			} catch (RuntimeException e) {
+				forget(webhookId);
+				throw e;
+			}
+			
+			if(resp.getStatus() != 200) {
+				// let Shopify's retry through
+				forget(webhookId);
+				return resp.getStatus() == 503 ? "rejected" : "invalid";
+			}
+			
+			return this.webhookExecutor == null ? "uninstalled" : "queued";
 		}
 				
 		uninstallFailure(req, resp);
 		
-		return;
+		return "unverified";
+		
+		
+	}
+	
+	private static JsonFactory jsonFactory(HttpMessageConverter<Object> converter) {
+		if(converter instanceof AbstractJackson2HttpMessageConverter) {
+			return ((AbstractJackson2HttpMessageConverter)converter).getObjectMapper().getFactory();
+		}
+		return new JsonFactory();
+	}
+	
+	/*
+	 * The hmac is verified on the raw bytes, which the body can't be turned back into once it's decoded.
+	 */
+	private boolean isVerified(HttpServletRequest req, byte[] body) {
+		String hmac = req.getHeader(ShopifyVerificationStrategy.HMAC_HEADER);
 		
+		if(hmac == null || hmac.isEmpty()) {
+			logger.debug("No HMAC header found");
+			return false;
+		}
 		
+		return body != null && this.verificationStrategy.isHeaderShopifyRequest(body, hmac, REGISTRATION_ID);
+	}
+	
+	private boolean isDuplicate(String webhookId) {
+		return this.deduplicationStore != null && webhookId != null && !this.deduplicationStore.markIfFirstDelivery(webhookId);
+	}
+	
+	private void forget(String webhookId) {
+		if(this.deduplicationStore != null && webhookId != null) {
+			this.deduplicationStore.forget(webhookId);
+		}
 	}
 	
 	/**
@@ -106,15 +273,18 @@ public class UninstallFilter implements Filter {
 	}
 	
 	/**
-	 * Attempt to uninstall the store specified in the body. This method gets the request body as an 
-	 * UninstallMessage object and then passes the shop domain from the body to tokenService to uninstall.
+	 * Attempt to uninstall the store specified in the body. This method reads the shop_id and shop_domain 
+	 * fields of the request body as an UninstallMessage object and then passes the shop domain from the body to tokenService to uninstall.
+	 * If there's a WebhookExecutor, the removal is queued and uninstallSuccess(...,..) is called right away, 
+	 * or uninstallRejected(...,..) if the queue is full.
 	 * 
 	 * @param request The request
 	 * @param response The response
 	 * @throws IOException If unable to generate a response
 	 */
 	protected void doUninstall(HttpServletRequest request, HttpServletResponse response) throws IOException{
-		UninstallMessage body = this.extractBody(request);
+		byte[] bytes = readBody(request);
+		UninstallMessage body = bytes == null ? null : this.extractBody(bytes);
 
 		if(body == null) {
 			uninstallFailure(request, response);
@@ -128,8 +298,53 @@ public class UninstallFilter implements Filter {
 			return;
 		}
 
-		this.clientService.removeAuthorizedClient(REGISTRATION_ID, storeName);
-		uninstallSuccess(request, response);
+		if(this.webhookExecutor == null) {
+			this.uninstallHandler.uninstall(storeName);
+			uninstallSuccess(request, response);
+			return;
+		}
+		
+		ShopifyWebhook webhook = new ShopifyWebhook(UNINSTALL_TOPIC, storeName, request.getHeader(ShopifyWebhook.WEBHOOK_ID_HEADER),
+											request.getHeader(ShopifyWebhook.API_VERSION_HEADER), bytes, null);
+		long offset;
+		try {
+			offset = this.journal != null ? this.journal.append(webhook) : -1;
+		} catch (UncheckedIOException | IllegalStateException e) {
+			logger.warn("Unable to journal the uninstallation of " + storeName, e);
+			uninstallRejected(request, response);
+			return;
+		}
+		
+		// only a removed store is acknowledged in the journal: a failed one is replayed. The lane waits for the
+		// removal (and its batch), so the shop's next webhook can't run before it
+		Runnable task = () -> {
+			try {
+				this.uninstallHandler.uninstall(storeName);
+			} catch (RuntimeException e) {
+				fail(offset, webhook);
+				throw e;
+			}
+			acknowledge(offset);
+		};
+		
+		if(this.webhookExecutor.submit(UNINSTALL_TOPIC, storeName, task)) {
+			uninstallSuccess(request, response);
+		} else {
+			acknowledge(offset);
+			uninstallRejected(request, response);
+		}
+	}
+	
+	private void acknowledge(long offset) {
+		if(this.journal != null && offset >= 0) {
+			this.journal.acknowledge(offset);
+		}
+	}
+	
+	private void fail(long offset, ShopifyWebhook webhook) {
+		if(this.journal != null && offset >= 0) {
+			this.journal.fail(offset, webhook);
+		}
 	}
 	
 	/**
@@ -155,15 +370,62 @@ public class UninstallFilter implements Filter {
 		resp.sendError(403, "This request must come from Shopify");
 	}
 	
-	private UninstallMessage extractBody(HttpServletRequest request) {
-		ServletServerHttpRequest message = new ServletServerHttpRequest(request);
-		UninstallMessage msg;
+	/**
+	 * Send a 503 status code if the uninstallation can't be queued. Shopify will retry the request.
+	 * 
+	 * @param req The request
+	 * @param resp The response
+	 * @throws IOException Unable to send an error 
+	 */
+	protected void uninstallRejected(HttpServletRequest req, HttpServletResponse resp) throws IOException{
+		logger.debug("Store uninstallation request rejected");
+
+		resp.sendError(503, "Too many webhooks are waiting to be processed");
+	}
+	
+	/**
+	 * Send a 413 status code if the body is larger than the maximum.
+	 * 
+	 * @param req The request
+	 * @param resp The response
+	 * @throws IOException Unable to send an error 
+	 */
+	protected void uninstallTooLarge(HttpServletRequest req, HttpServletResponse resp) throws IOException{
+		logger.debug("Store uninstallation request too large");
+
+		resp.sendError(413, "The request body is too large");
+	}
+	
+	private byte[] readBody(HttpServletRequest request) throws WebhookBodyReader.BodyTooLargeException {
+		if(request instanceof CachedBodyRequest) {
+			return ((CachedBodyRequest)request).getBody();
+		}
 		
 		try {
-			msg = (UninstallMessage)this.messageConverter.read(UninstallMessage.class, message);
+			return this.bodyReader.read(request);
+		} catch (WebhookBodyReader.BodyTooLargeException ex) {
+			throw ex;
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+	
+	/*
+	 * The body is the entire shop object, but only 2 fields are needed: the rest of it is skipped without 
+	 * being bound.
+	 */
+	private UninstallMessage extractBody(byte[] body) {
+		Map<String, String> fields;
+		
+		try {
+			fields = this.fieldExtractor.extract(body);
 		} catch (Exception ex){
 			return null;
 		}
+		
+		UninstallMessage msg = new UninstallMessage();
+		msg.setShop_id(fields.get(SHOP_ID_FIELD));
+		msg.setShop_domain(fields.get(UninstallWebhookHandler.SHOP_DOMAIN_FIELD));
 
 		return msg;
 	}
@@ -1,19 +1,32 @@
 package com.ppublica.shopify.security.repository;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.jdbc.core.RowMapper;
 
 import com.ppublica.shopify.security.service.EncryptedTokenAndSalt;
 
 /**
  * An implementation of TokenRepository that persists to a SQL database.
+ * 
+ * <p>Only updateLastActive(...) and findRecentlyActiveStores(...) use the lastActiveAt column (BIGINT, epoch 
+ * milliseconds, nullable), so a table without it works as long as they aren't called.</p>
+ * 
  * @author N F
  *
  */
@@ -23,6 +36,16 @@ public class ShopifyTokenRepositoryImpl implements TokenRepository {
 	private static final String SAVE_ACCESS_TOKEN = "INSERT INTO StoreAccessTokens(storeDomain,tokenType,tokenValue,salt,issuedAt,expiresAt,scopes) VALUES(?,?,?,?,?,?,?)";
 	private static final String UPDATE_TOKEN_FOR_STORE = "UPDATE StoreAccessTokens SET tokenType=?, tokenValue=?, salt=?, issuedAt=?, expiresAt=?, scopes=? WHERE storeDomain=?";
 	private static final String REMOVE_STORE = "DELETE FROM StoreAccessTokens WHERE storeDomain=?";
+	private static final String REMOVE_STORES = "DELETE FROM StoreAccessTokens WHERE storeDomain IN (";
+	private static final String UPDATE_LAST_ACTIVE = "UPDATE StoreAccessTokens SET lastActiveAt=? WHERE storeDomain=? AND (lastActiveAt IS NULL OR lastActiveAt<?)";
+	private static final String SELECT_RECENTLY_ACTIVE = "SELECT id, storeDomain, tokenType, tokenValue, salt, issuedAt, expiresAt, scopes FROM StoreAccessTokens WHERE lastActiveAt IS NOT NULL ORDER BY lastActiveAt DESC";
+	
+	// the most rows fetched from the database at a time when streaming stores
+	static final int MAX_FETCH_SIZE = 500;
+	
+	// the most stores removed by one DELETE
+	static final int MAX_STORES_PER_DELETE = 100;
+	
 	private JdbcTemplate jdbc;
 	
 	public void setJdbc(JdbcTemplate jdbc) {
@@ -116,6 +139,94 @@ public class ShopifyTokenRepositoryImpl implements TokenRepository {
 		}
 	}
 	
+	/**
+	 * Remove the stores with one DELETE for every MAX_STORES_PER_DELETE stores.
+	 * 
+	 * @param storeNames The full store domains
+	 */
+	@Override
+	public void uninstallStores(Collection<String> storeNames) {
+		List<String> stores = new ArrayList<>(storeNames);
+		
+		for(int from = 0; from < stores.size(); from += MAX_STORES_PER_DELETE) {
+			List<String> chunk = stores.subList(from, Math.min(from + MAX_STORES_PER_DELETE, stores.size()));
+			String sql = REMOVE_STORES + String.join(",", Collections.nCopies(chunk.size(), "?")) + ")";
+			
+			jdbc.update(sql, chunk.toArray());
+		}
+	}
+	
+	/**
+	 * Update the stores with one batch of UPDATEs. The time is only written if it's newer than the recorded one, so 
+	 * that nodes flushing in any order keep the latest.
+	 * 
+	 * @param lastActiveByStore The time each full store domain was last active
+	 */
+	@Override
+	public void updateLastActive(Map<String, Long> lastActiveByStore) {
+		List<Object[]> args = new ArrayList<>(lastActiveByStore.size());
+		
+		for(Map.Entry<String, Long> e : lastActiveByStore.entrySet()) {
+			args.add(new Object[] { e.getValue(), e.getKey(), e.getValue() });
+		}
+		
+		if(!args.isEmpty()) {
+			jdbc.batchUpdate(UPDATE_LAST_ACTIVE, args);
+		}
+	}
+	
+	/**
+	 * Stream the stores ordered by lastActiveAt. The database stops after maxStores rows, and the rows are fetched 
+	 * a few hundred at a time, so the stores are never all in memory at once.
+	 * 
+	 * @param maxStores The most stores to read
+	 * @param consumer Receives each store
+	 */
+	@Override
+	public void findRecentlyActiveStores(int maxStores, Consumer<PersistedStoreAccessToken> consumer) {
+		findRecentlyActiveStores(maxStores, 0, consumer);
+	}
+	
+	/**
+	 * Stream the stores ordered by lastActiveAt, as findRecentlyActiveStores(int, Consumer) does. The query is given 
+	 * the timeout (rounded up to a second, the JDBC granularity, plus a second), and no more rows are read once the 
+	 * timeout has passed.
+	 * 
+	 * @param maxStores The most stores to read
+	 * @param timeoutMillis How long the query and the reading may take, or 0 for no limit
+	 * @param consumer Receives each store
+	 */
+	@Override
+	public void findRecentlyActiveStores(int maxStores, long timeoutMillis, Consumer<PersistedStoreAccessToken> consumer) {
+		if(maxStores <= 0) {
+			return;
+		}
+		
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		PersistedStoreAccessTokenMapper mapper = new PersistedStoreAccessTokenMapper();
+		
+		ResultSetExtractor<Void> reader = rs -> {
+			while(rs.next()) {
+				if(timeoutMillis > 0 && System.nanoTime() - deadline >= 0) {
+					break;
+				}
+				consumer.accept(mapper.mapRow(rs, rs.getRow()));
+			}
+			return null;
+		};
+		
+		jdbc.query(con -> {
+			PreparedStatement ps = con.prepareStatement(SELECT_RECENTLY_ACTIVE);
+			ps.setMaxRows(maxStores);
+			ps.setFetchSize(Math.min(maxStores, MAX_FETCH_SIZE));
+			if(timeoutMillis > 0) {
+				// a second of slack: drivers check the timeout on a coarse timer, and may fire up to a second early
+				ps.setQueryTimeout((int)Math.min(Integer.MAX_VALUE, (timeoutMillis + 999) / 1000 + 1));
+			}
+			return ps;
+		}, reader);
+	}
+	
 	private String getScopeString(Set<String> scopes) {
 		return scopes.stream()
 				.collect(Collectors.joining(","));
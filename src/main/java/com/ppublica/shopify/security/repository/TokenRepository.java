@@ -1,5 +1,9 @@
 package com.ppublica.shopify.security.repository;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Consumer;
+
 /**
  * Provides methods for directly interacting with the repository that contains the OAuth tokens.
  * @author N F
@@ -36,5 +40,50 @@ public interface TokenRepository {
 	 */
 	void uninstallStore(String storeName);
 	
+	/**
+	 * Uninstall completely the stores that match the given full shop domains. By default, each store is 
+	 * uninstalled in turn; implementations should override this to remove them together.
+	 * 
+	 * @param storeNames The full store domains
+	 */
+	default void uninstallStores(Collection<String> storeNames) {
+		for(String storeName : storeNames) {
+			uninstallStore(storeName);
+		}
+	}
+	
+	/**
+	 * Record when each store was last active. A time older than the one already recorded for the store is 
+	 * ignored. By default, activity isn't recorded.
+	 * 
+	 * @param lastActiveByStore The time (epoch milliseconds) each full store domain was last active
+	 */
+	default void updateLastActive(Map<String, Long> lastActiveByStore) {
+		
+	}
+	
+	/**
+	 * Pass the most recently active stores to the consumer, the most recent first, as they're read. By default, 
+	 * there are none.
+	 * 
+	 * @param maxStores The most stores to read
+	 * @param consumer Receives each store
+	 */
+	default void findRecentlyActiveStores(int maxStores, Consumer<PersistedStoreAccessToken> consumer) {
+		
+	}
+	
+	/**
+	 * Pass the most recently active stores to the consumer, the most recent first, as they're read, and stop once 
+	 * the timeout has passed. By default, the timeout is ignored.
+	 * 
+	 * @param maxStores The most stores to read
+	 * @param timeoutMillis How long the query and the reading may take, or 0 for no limit
+	 * @param consumer Receives each store
+	 */
+	default void findRecentlyActiveStores(int maxStores, long timeoutMillis, Consumer<PersistedStoreAccessToken> consumer) {
+		findRecentlyActiveStores(maxStores, consumer);
+	}
+	
 	
 }
@@ -0,0 +1,102 @@
+package com.ppublica.shopify.security.resilience;
+
+import java.time.Clock;
+
+/**
+ * The circuit breaker of a single shop host.
+ *
+ * <p>After a number of consecutive failures, the breaker opens and calls fail fast. Once the open duration
+ * has elapsed, a single trial call is allowed (HALF_OPEN): if it succeeds the breaker closes, otherwise it opens
+ * again.</p>
+ *
+ * @author N F
+ * @see CircuitBreakerRegistry
+ */
+public class CircuitBreaker {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final int failureThreshold;
+	private final long openDurationMillis;
+	private final Clock clock;
+
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private long openedAt;
+	private boolean trialInFlight;
+
+	public CircuitBreaker(int failureThreshold, long openDurationMillis, Clock clock) {
+		this.failureThreshold = failureThreshold;
+		this.openDurationMillis = openDurationMillis;
+		this.clock = clock;
+	}
+
+	/**
+	 * Whether a call is allowed now.
+	 *
+	 * @return true if the call can proceed
+	 */
+	public synchronized boolean tryAcquire() {
+		switch(state) {
+			case CLOSED:
+				return true;
+			case OPEN:
+				if(clock.millis() - openedAt >= openDurationMillis) {
+					state = State.HALF_OPEN;
+					trialInFlight = true;
+					return true;
+				}
+				return false;
+			default:
+				if(!trialInFlight) {
+					trialInFlight = true;
+					return true;
+				}
+				return false;
+		}
+	}
+
+	/**
+	 * Record a call that reached a healthy host.
+	 */
+	public synchronized void onSuccess() {
+		state = State.CLOSED;
+		consecutiveFailures = 0;
+		trialInFlight = false;
+	}
+
+	/**
+	 * Record a call that failed because of the host.
+	 *
+	 * @return true if this failure opened the breaker
+	 */
+	public synchronized boolean onFailure() {
+		trialInFlight = false;
+		consecutiveFailures++;
+
+		if(state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+			state = State.OPEN;
+			openedAt = clock.millis();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Record a call that failed without reaching the host: it says nothing about the host's health.
+	 */
+	public synchronized void onIgnored() {
+		trialInFlight = false;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+}
@@ -0,0 +1,137 @@
+package com.ppublica.shopify.security.resilience;
+
+import java.time.Clock;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps a CircuitBreaker for every shop host that is currently failing. A host that hasn't failed has no entry,
+ * and an entry is removed as soon as its host succeeds, so the registry only grows with the number of unhealthy
+ * hosts.
+ *
+ * <p>The registry records how many times a breaker opened and how many calls were rejected by an open
+ * breaker.</p>
+ *
+ * @author N F
+ * @see ResilientCallExecutor
+ */
+public class CircuitBreakerRegistry {
+	private final Log logger = LogFactory.getLog(CircuitBreakerRegistry.class);
+
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	public static final long DEFAULT_OPEN_DURATION = 30000;
+
+	private final int failureThreshold;
+	private final long openDurationMillis;
+	private final Clock clock;
+
+	private final ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+	private final AtomicLong openedCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	/**
+	 * Create a CircuitBreakerRegistry with the default settings.
+	 */
+	public CircuitBreakerRegistry() {
+		this(null, null, Clock.systemUTC());
+	}
+
+	/**
+	 * Create a CircuitBreakerRegistry. A null value selects the default.
+	 *
+	 * @param failureThreshold The number of consecutive failures that opens a breaker
+	 * @param openDurationMillis How long a breaker stays open before a trial call is allowed
+	 * @param clock The Clock
+	 */
+	public CircuitBreakerRegistry(Integer failureThreshold, Long openDurationMillis, Clock clock) {
+		this.failureThreshold = failureThreshold != null ? failureThreshold : DEFAULT_FAILURE_THRESHOLD;
+		this.openDurationMillis = openDurationMillis != null ? openDurationMillis : DEFAULT_OPEN_DURATION;
+		this.clock = clock;
+
+		if(this.failureThreshold < 1 || this.openDurationMillis < 0) {
+			throw new RuntimeException("Invalid circuit breaker settings: threshold " + this.failureThreshold
+											+ ", open duration " + this.openDurationMillis + "ms");
+		}
+	}
+
+	/**
+	 * Whether a call to the host is allowed now.
+	 *
+	 * @param host The shop host
+	 * @return true if the call can proceed
+	 */
+	public boolean tryAcquire(String host) {
+		CircuitBreaker breaker = breakers.get(host);
+		if(breaker == null || breaker.tryAcquire()) {
+			return true;
+		}
+		rejectedCount.incrementAndGet();
+		return false;
+	}
+
+	public void onSuccess(String host) {
+		breakers.computeIfPresent(host, (h, breaker) -> {
+			breaker.onSuccess();
+			logger.debug("Circuit breaker for " + h + " closed");
+			return null;
+		});
+	}
+
+	public void onFailure(String host) {
+		breakers.compute(host, (h, breaker) -> {
+			if(breaker == null) {
+				breaker = new CircuitBreaker(failureThreshold, openDurationMillis, clock);
+			}
+			if(breaker.onFailure()) {
+				openedCount.incrementAndGet();
+				logger.warn("Circuit breaker for " + h + " opened");
+			}
+			return breaker;
+		});
+	}
+
+	public void onIgnored(String host) {
+		CircuitBreaker breaker = breakers.get(host);
+		if(breaker != null) {
+			breaker.onIgnored();
+		}
+	}
+
+	/**
+	 * The state of the breaker for the host.
+	 *
+	 * @param host The shop host
+	 * @return The state; CLOSED if the host has no breaker
+	 */
+	public CircuitBreaker.State getState(String host) {
+		CircuitBreaker breaker = breakers.get(host);
+		return breaker == null ? CircuitBreaker.State.CLOSED : breaker.getState();
+	}
+
+	/**
+	 * The state of every host that has a breaker.
+	 *
+	 * @return A sorted, unmodifiable snapshot
+	 */
+	public Map<String, CircuitBreaker.State> getStates() {
+		Map<String, CircuitBreaker.State> states = new TreeMap<>();
+		breakers.forEach((host, breaker) -> states.put(host, breaker.getState()));
+
+		return Collections.unmodifiableMap(states);
+	}
+
+	public long getOpenedCount() {
+		return openedCount.get();
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+}
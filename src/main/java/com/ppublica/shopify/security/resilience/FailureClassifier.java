@@ -0,0 +1,92 @@
+package com.ppublica.shopify.security.resilience;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+import org.springframework.web.client.HttpStatusCodeException;
+
+/**
+ * Decides what a failed call to Shopify means for retries and for the circuit breaker of the shop.
+ *
+ * <p>The token exchange is a POST with a single-use authorization code, so only failures that guarantee Shopify
+ * didn't process the request can be retried: the connection could not be established, or Shopify answered
+ * 429, 502, 503, or 504.</p>
+ *
+ * @author N F
+ * @see ResilientCallExecutor
+ */
+public final class FailureClassifier {
+
+	private static final String APACHE_CONNECT_TIMEOUT = "org.apache.http.conn.ConnectTimeoutException";
+
+	/**
+	 * The kinds of failures.
+	 */
+	public enum Failure {
+		/** The host is unhealthy and the call can be safely repeated */
+		RETRYABLE,
+
+		/** The host is unhealthy, but the call might have been processed */
+		HOST_FAILURE,
+
+		/** The host answered normally (for example, with an OAuth2 error) */
+		HOST_RESPONSE,
+
+		/** The call failed before reaching the host */
+		LOCAL
+	}
+
+	private FailureClassifier() { }
+
+	/**
+	 * Classify the exception thrown by a call to Shopify.
+	 *
+	 * @param e The exception
+	 * @return The kind of failure
+	 */
+	public static Failure classify(Throwable e) {
+		Integer status = findStatus(e);
+
+		if(status != null) {
+			if(status == 429 || status == 502 || status == 503 || status == 504) {
+				return Failure.RETRYABLE;
+			}
+			return status >= 500 ? Failure.HOST_FAILURE : Failure.HOST_RESPONSE;
+		}
+
+		for(Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if(cause instanceof ConnectException || cause instanceof NoRouteToHostException
+					|| APACHE_CONNECT_TIMEOUT.equals(cause.getClass().getName())) {
+				return Failure.RETRYABLE;
+			}
+			if(cause instanceof SocketTimeoutException) {
+				return Failure.HOST_FAILURE;
+			}
+			if(cause.getCause() == cause) {
+				break;
+			}
+		}
+
+		// OAuth2ErrorResponseErrorHandler turns an OAuth2 error response into an exception without a cause
+		if(e instanceof OAuth2AuthorizationException && e.getCause() == null) {
+			return Failure.HOST_RESPONSE;
+		}
+
+		return Failure.LOCAL;
+	}
+
+	private static Integer findStatus(Throwable e) {
+		for(Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if(cause instanceof HttpStatusCodeException) {
+				return ((HttpStatusCodeException)cause).getRawStatusCode();
+			}
+			if(cause.getCause() == cause) {
+				break;
+			}
+		}
+		return null;
+	}
+
+}
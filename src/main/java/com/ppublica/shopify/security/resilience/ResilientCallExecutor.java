@@ -0,0 +1,134 @@
+package com.ppublica.shopify.security.resilience;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+import org.springframework.security.oauth2.core.OAuth2Error;
+import org.springframework.security.oauth2.core.OAuth2ErrorCodes;
+
+/**
+ * Executes calls to a shop host with retries and a per-host circuit breaker.
+ *
+ * <p>If the breaker of the host is open, the call fails immediately with an OAuth2AuthorizationException
+ * (temporarily_unavailable). Otherwise, the call is attempted, and retried according to the RetryPolicy if it
+ * failed in a way FailureClassifier considers retryable.</p>
+ *
+ * @author N F
+ * @see RetryPolicy
+ * @see CircuitBreakerRegistry
+ * @see com.ppublica.shopify.security.web.ShopifyAuthorizationCodeTokenResponseClient
+ */
+public class ResilientCallExecutor {
+	private final Log logger = LogFactory.getLog(ResilientCallExecutor.class);
+
+	private final RetryPolicy retryPolicy;
+	private final CircuitBreakerRegistry circuitBreakers;
+
+	private final AtomicLong retryCount = new AtomicLong();
+
+	public ResilientCallExecutor(RetryPolicy retryPolicy, CircuitBreakerRegistry circuitBreakers) {
+		this.retryPolicy = retryPolicy;
+		this.circuitBreakers = circuitBreakers;
+	}
+
+	/**
+	 * An executor that makes a single attempt and has no circuit breaker.
+	 *
+	 * @return The ResilientCallExecutor
+	 */
+	public static ResilientCallExecutor singleAttempt() {
+		return new ResilientCallExecutor(RetryPolicy.noRetries(), null);
+	}
+
+	/**
+	 * Call the host.
+	 *
+	 * @param <T> The result type
+	 * @param host The shop host
+	 * @param call The call
+	 * @return The result of the call
+	 * @throws OAuth2AuthorizationException If the circuit breaker of the host is open
+	 */
+	public <T> T execute(String host, Supplier<T> call) {
+		int attempt = 1;
+
+		while(true) {
+			if(circuitBreakers != null && !circuitBreakers.tryAcquire(host)) {
+				throw new OAuth2AuthorizationException(new OAuth2Error(OAuth2ErrorCodes.TEMPORARILY_UNAVAILABLE,
+						"Calls to " + host + " are suspended after repeated failures", null));
+			}
+
+			try {
+				T result = call.get();
+				if(circuitBreakers != null) {
+					circuitBreakers.onSuccess(host);
+				}
+				return result;
+
+			} catch (RuntimeException e) {
+				FailureClassifier.Failure failure = FailureClassifier.classify(e);
+				record(host, failure);
+
+				if(failure != FailureClassifier.Failure.RETRYABLE || attempt >= retryPolicy.getMaxAttempts()) {
+					throw e;
+				}
+
+				long backoff = retryPolicy.getBackoffMillis(attempt);
+				logger.debug("Call to " + host + " failed (attempt " + attempt + "). Retrying in " + backoff + "ms");
+
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+
+				retryCount.incrementAndGet();
+				attempt++;
+			}
+		}
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return this.retryPolicy;
+	}
+
+	/**
+	 * The CircuitBreakerRegistry, or null if there are no circuit breakers.
+	 *
+	 * @return The CircuitBreakerRegistry
+	 */
+	public CircuitBreakerRegistry getCircuitBreakers() {
+		return this.circuitBreakers;
+	}
+
+	/**
+	 * The number of retries performed so far.
+	 *
+	 * @return The number of retries
+	 */
+	public long getRetryCount() {
+		return this.retryCount.get();
+	}
+
+	private void record(String host, FailureClassifier.Failure failure) {
+		if(circuitBreakers == null) {
+			return;
+		}
+		switch(failure) {
+			case RETRYABLE:
+			case HOST_FAILURE:
+				circuitBreakers.onFailure(host);
+				break;
+			case HOST_RESPONSE:
+				circuitBreakers.onSuccess(host);
+				break;
+			default:
+				circuitBreakers.onIgnored(host);
+		}
+	}
+
+}
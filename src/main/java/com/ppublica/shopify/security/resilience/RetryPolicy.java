@@ -0,0 +1,87 @@
+package com.ppublica.shopify.security.resilience;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How many times a call is attempted, and how long to wait between attempts. The wait grows exponentially
+ * from the initial backoff up to the max backoff, and is randomized ("equal jitter") so that retries from
+ * concurrent installs don't hit Shopify at the same time.
+ *
+ * @author N F
+ * @see ResilientCallExecutor
+ */
+public class RetryPolicy {
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+	public static final long DEFAULT_INITIAL_BACKOFF = 200;
+	public static final long DEFAULT_MAX_BACKOFF = 2000;
+
+	private final int maxAttempts;
+	private final long initialBackoffMillis;
+	private final long maxBackoffMillis;
+
+	/**
+	 * Create a RetryPolicy with the default settings.
+	 */
+	public RetryPolicy() {
+		this(null, null, null);
+	}
+
+	/**
+	 * Create a RetryPolicy. A null value selects the default.
+	 *
+	 * @param maxAttempts The maximum number of attempts, including the first one
+	 * @param initialBackoffMillis The wait before the first retry
+	 * @param maxBackoffMillis The maximum wait between attempts
+	 */
+	public RetryPolicy(Integer maxAttempts, Long initialBackoffMillis, Long maxBackoffMillis) {
+		this.maxAttempts = maxAttempts != null ? maxAttempts : DEFAULT_MAX_ATTEMPTS;
+		this.initialBackoffMillis = initialBackoffMillis != null ? initialBackoffMillis : DEFAULT_INITIAL_BACKOFF;
+		this.maxBackoffMillis = maxBackoffMillis != null ? maxBackoffMillis : DEFAULT_MAX_BACKOFF;
+
+		if(this.maxAttempts < 1) {
+			throw new RuntimeException("The maximum number of attempts must be at least 1");
+		}
+		if(this.initialBackoffMillis < 0 || this.maxBackoffMillis < this.initialBackoffMillis) {
+			throw new RuntimeException("Invalid backoff: initial " + this.initialBackoffMillis + "ms, max " + this.maxBackoffMillis + "ms");
+		}
+	}
+
+	/**
+	 * A policy that never retries.
+	 *
+	 * @return The RetryPolicy
+	 */
+	public static RetryPolicy noRetries() {
+		return new RetryPolicy(1, 0L, 0L);
+	}
+
+	public int getMaxAttempts() {
+		return this.maxAttempts;
+	}
+
+	public long getInitialBackoffMillis() {
+		return this.initialBackoffMillis;
+	}
+
+	public long getMaxBackoffMillis() {
+		return this.maxBackoffMillis;
+	}
+
+	/**
+	 * The time to wait before the given retry: a random value between half and all of the exponential backoff.
+	 *
+	 * @param retry The retry number, starting at 1
+	 * @return The wait in milliseconds
+	 */
+	public long getBackoffMillis(int retry) {
+		long backoff = initialBackoffMillis;
+		for(int i = 1; i < retry && backoff < maxBackoffMillis; i++) {
+			backoff *= 2;
+		}
+		backoff = Math.min(backoff, maxBackoffMillis);
+
+		long half = backoff / 2;
+		return half + ThreadLocalRandom.current().nextLong(backoff - half + 1);
+	}
+
+}
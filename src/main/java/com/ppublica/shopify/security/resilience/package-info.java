@@ -0,0 +1,5 @@
+/**
+ * Retries and circuit breakers for calls to Shopify
+ * 
+ */
+package com.ppublica.shopify.security.resilience;
@@ -0,0 +1,90 @@
+package com.ppublica.shopify.security.serialization;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+
+
+/**
+ * The Map of pending OAuth2AuthorizationRequests (keyed by state) that
+ * ShopifyHttpSessionOAuth2AuthorizationRequestRepository keeps in the HttpSession.
+ *
+ * <p>It behaves like a HashMap, but it's written to a stream using a compact serialization proxy instead of
+ * default serialization of every OAuth2AuthorizationRequest. Since the repository only relies on the Map
+ * interface, a plain HashMap written by an older version of this library can still be read.</p>
+ *
+ * @author N F
+ * @see com.ppublica.shopify.security.web.ShopifyHttpSessionOAuth2AuthorizationRequestRepository
+ */
+public class CompactAuthorizationRequestMap extends HashMap<String, OAuth2AuthorizationRequest> {
+
+	private static final long serialVersionUID = 2519432285342071460L;
+
+	public CompactAuthorizationRequestMap() {
+		super();
+	}
+
+	public CompactAuthorizationRequestMap(Map<String, OAuth2AuthorizationRequest> authorizationRequests) {
+		super(authorizationRequests);
+	}
+
+	private Object writeReplace() {
+		return new CompactForm(this);
+	}
+
+
+	/**
+	 * The versioned, compact serialized form of a CompactAuthorizationRequestMap.
+	 */
+	static final class CompactForm implements Externalizable {
+		private static final long serialVersionUID = 1L;
+
+		private CompactAuthorizationRequestMap authorizationRequests;
+
+		public CompactForm() { }
+
+		CompactForm(CompactAuthorizationRequestMap authorizationRequests) {
+			this.authorizationRequests = authorizationRequests;
+		}
+
+		@Override
+		public void writeExternal(ObjectOutput out) throws IOException {
+			out.writeByte(CompactSerialization.VERSION_1);
+			CompactSerialization.writeVarInt(out, authorizationRequests.size());
+
+			for(Map.Entry<String, OAuth2AuthorizationRequest> entry : authorizationRequests.entrySet()) {
+				CompactSerialization.writeString(out, entry.getKey());
+
+				OAuth2AuthorizationRequest authorizationRequest = entry.getValue();
+				out.writeBoolean(authorizationRequest != null);
+				if(authorizationRequest != null) {
+					CompactSerialization.writeAuthorizationRequest(out, authorizationRequest);
+				}
+			}
+		}
+
+		@Override
+		public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+			CompactSerialization.checkVersion(in.readByte(), CompactAuthorizationRequestMap.class);
+			int size = CompactSerialization.readVarInt(in);
+
+			this.authorizationRequests = new CompactAuthorizationRequestMap();
+			for(int i = 0; i < size; i++) {
+				String state = CompactSerialization.readString(in);
+				OAuth2AuthorizationRequest authorizationRequest = in.readBoolean() ?
+						CompactSerialization.readAuthorizationRequest(in) : null;
+				this.authorizationRequests.put(state, authorizationRequest);
+			}
+		}
+
+		private Object readResolve() {
+			return this.authorizationRequests;
+		}
+	}
+
+}
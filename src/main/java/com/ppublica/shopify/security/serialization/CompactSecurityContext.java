@@ -0,0 +1,101 @@
+package com.ppublica.shopify.security.serialization;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Collection;
+
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.core.user.OAuth2User;
+
+
+/**
+ * A SecurityContext that HttpSessionSecurityContextRepository stores in the HttpSession once a store has been
+ * authenticated.
+ *
+ * <p>OAuth2AuthenticationToken is a Spring Security class, so its serialized form can't be changed directly.
+ * Instead, when the Authentication is an OAuth2AuthenticationToken, this context is written to a stream using a
+ * compact serialization proxy that only contains the registration id, the principal, the authorities, and the
+ * details. A plain SecurityContextImpl written by an older version of this library can still be read.</p>
+ *
+ * @author N F
+ * @see com.ppublica.shopify.security.filters.ShopifyExistingTokenFilter
+ * @see com.ppublica.shopify.security.web.NoRedirectSuccessHandler
+ */
+public class CompactSecurityContext extends SecurityContextImpl {
+
+	private static final long serialVersionUID = -3206402387410815727L;
+
+	public CompactSecurityContext() {
+		super();
+	}
+
+	public CompactSecurityContext(Authentication authentication) {
+		super(authentication);
+	}
+
+	/**
+	 * Replace the SecurityContext of the current thread with a CompactSecurityContext that holds the given
+	 * Authentication.
+	 *
+	 * @param authentication The Authentication
+	 */
+	public static void install(Authentication authentication) {
+		SecurityContextHolder.setContext(new CompactSecurityContext(authentication));
+	}
+
+	private Object writeReplace() {
+		if(getAuthentication() instanceof OAuth2AuthenticationToken) {
+			return new CompactForm((OAuth2AuthenticationToken)getAuthentication());
+		}
+
+		return this;
+	}
+
+
+	/**
+	 * The versioned, compact serialized form of a CompactSecurityContext that holds an OAuth2AuthenticationToken.
+	 */
+	static final class CompactForm implements Externalizable {
+		private static final long serialVersionUID = 1L;
+
+		private OAuth2AuthenticationToken authentication;
+
+		public CompactForm() { }
+
+		CompactForm(OAuth2AuthenticationToken authentication) {
+			this.authentication = authentication;
+		}
+
+		@Override
+		public void writeExternal(ObjectOutput out) throws IOException {
+			out.writeByte(CompactSerialization.VERSION_1);
+			CompactSerialization.writeString(out, authentication.getAuthorizedClientRegistrationId());
+			out.writeObject(authentication.getPrincipal());
+			CompactSerialization.writeAuthorities(out, authentication.getAuthorities());
+			out.writeObject(authentication.getDetails());
+		}
+
+		@Override
+		public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+			CompactSerialization.checkVersion(in.readByte(), CompactSecurityContext.class);
+			String registrationId = CompactSerialization.readString(in);
+			OAuth2User principal = (OAuth2User)in.readObject();
+			Collection<? extends GrantedAuthority> authorities = CompactSerialization.readAuthorities(in);
+			Object details = in.readObject();
+
+			this.authentication = new OAuth2AuthenticationToken(principal, authorities, registrationId);
+			this.authentication.setDetails(details);
+		}
+
+		private Object readResolve() {
+			return new CompactSecurityContext(this.authentication);
+		}
+	}
+
+}
@@ -0,0 +1,332 @@
+package com.ppublica.shopify.security.serialization;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+
+
+/**
+ * Helpers for writing and reading the versioned, compact binary layout used by the serialization proxies of the
+ * objects this library stores in the HttpSession.
+ *
+ * <p>Every compact form starts with a version byte. Strings are written as a variable-length length prefix followed
+ * by their UTF-8 bytes, so no class descriptors are written for the common values (store names, tokens, scopes,
+ * authorities). Values of an unknown type fall back to default Java serialization.</p>
+ *
+ * @author N F
+ * @see CompactSecurityContext
+ * @see CompactAuthorizationRequestMap
+ */
+public final class CompactSerialization {
+
+	/**
+	 * The current version of the compact layout.
+	 */
+	public static final byte VERSION_1 = 1;
+
+	private static final byte NULL_VALUE = 0;
+	private static final byte STRING_VALUE = 1;
+	private static final byte OBJECT_VALUE = 2;
+
+	private CompactSerialization() { }
+
+	/**
+	 * Make sure the version read from the stream can be handled.
+	 *
+	 * @param version The version read from the stream
+	 * @param type The type being deserialized
+	 * @throws InvalidObjectException If the version is unknown
+	 */
+	public static void checkVersion(byte version, Class<?> type) throws InvalidObjectException {
+		if(version != VERSION_1) {
+			throw new InvalidObjectException("Unsupported serialized form version " + version + " for " + type.getName());
+		}
+	}
+
+	/**
+	 * Write an int using 1 to 5 bytes.
+	 *
+	 * @param out The ObjectOutput
+	 * @param value A non-negative int
+	 * @throws IOException If writing fails
+	 */
+	public static void writeVarInt(ObjectOutput out, int value) throws IOException {
+		while((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	/**
+	 * Read an int written by writeVarInt(...).
+	 *
+	 * @param in The ObjectInput
+	 * @return The int
+	 * @throws IOException If reading fails
+	 */
+	public static int readVarInt(ObjectInput in) throws IOException {
+		int value = 0;
+		int shift = 0;
+		int b;
+		do {
+			if(shift > 28) {
+				throw new InvalidObjectException("Malformed variable-length int");
+			}
+			b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while((b & 0x80) != 0);
+
+		return value;
+	}
+
+	/**
+	 * Write a String that might be null.
+	 *
+	 * @param out The ObjectOutput
+	 * @param value The String, or null
+	 * @throws IOException If writing fails
+	 */
+	public static void writeString(ObjectOutput out, String value) throws IOException {
+		if(value == null) {
+			writeVarInt(out, 0);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(out, bytes.length + 1);
+		out.write(bytes);
+	}
+
+	/**
+	 * Read a String written by writeString(...).
+	 *
+	 * @param in The ObjectInput
+	 * @return The String, or null
+	 * @throws IOException If reading fails
+	 */
+	public static String readString(ObjectInput in) throws IOException {
+		int length = readVarInt(in);
+		if(length == 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length - 1];
+		in.readFully(bytes);
+
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Write a collection of Strings, such as scopes.
+	 *
+	 * @param out The ObjectOutput
+	 * @param values The Strings, or null
+	 * @throws IOException If writing fails
+	 */
+	public static void writeStrings(ObjectOutput out, Collection<String> values) throws IOException {
+		if(values == null) {
+			writeVarInt(out, 0);
+			return;
+		}
+		writeVarInt(out, values.size() + 1);
+		for(String value : values) {
+			writeString(out, value);
+		}
+	}
+
+	/**
+	 * Read a Set of Strings written by writeStrings(...).
+	 *
+	 * @param in The ObjectInput
+	 * @return The Set (iteration order preserved), or null
+	 * @throws IOException If reading fails
+	 */
+	public static Set<String> readStringSet(ObjectInput in) throws IOException {
+		int size = readVarInt(in);
+		if(size == 0) {
+			return null;
+		}
+		Set<String> values = new LinkedHashSet<>();
+		for(int i = 1; i < size; i++) {
+			values.add(readString(in));
+		}
+
+		return values;
+	}
+
+	/**
+	 * Write an attribute map. String values are written inline; other values are written with writeObject(...).
+	 *
+	 * @param out The ObjectOutput
+	 * @param attributes The attributes, or null
+	 * @throws IOException If writing fails
+	 */
+	public static void writeAttributes(ObjectOutput out, Map<String, Object> attributes) throws IOException {
+		if(attributes == null) {
+			writeVarInt(out, 0);
+			return;
+		}
+		writeVarInt(out, attributes.size() + 1);
+		for(Map.Entry<String, Object> entry : attributes.entrySet()) {
+			writeString(out, entry.getKey());
+			writeValue(out, entry.getValue());
+		}
+	}
+
+	/**
+	 * Read an attribute map written by writeAttributes(...).
+	 *
+	 * @param in The ObjectInput
+	 * @return The attributes (iteration order preserved), or null
+	 * @throws IOException If reading fails
+	 * @throws ClassNotFoundException If a value of an unknown type cannot be read
+	 */
+	public static Map<String, Object> readAttributes(ObjectInput in) throws IOException, ClassNotFoundException {
+		int size = readVarInt(in);
+		if(size == 0) {
+			return null;
+		}
+		Map<String, Object> attributes = new LinkedHashMap<>();
+		for(int i = 1; i < size; i++) {
+			String key = readString(in);
+			attributes.put(key, readValue(in));
+		}
+
+		return attributes;
+	}
+
+	/**
+	 * Write the authorities. A SimpleGrantedAuthority is written as its String; other authorities are written
+	 * with writeObject(...).
+	 *
+	 * @param out The ObjectOutput
+	 * @param authorities The authorities, or null
+	 * @throws IOException If writing fails
+	 */
+	public static void writeAuthorities(ObjectOutput out, Collection<? extends GrantedAuthority> authorities) throws IOException {
+		if(authorities == null) {
+			writeVarInt(out, 0);
+			return;
+		}
+		writeVarInt(out, authorities.size() + 1);
+		for(GrantedAuthority authority : authorities) {
+			if(authority instanceof SimpleGrantedAuthority) {
+				out.writeByte(STRING_VALUE);
+				writeString(out, authority.getAuthority());
+			} else {
+				out.writeByte(OBJECT_VALUE);
+				out.writeObject(authority);
+			}
+		}
+	}
+
+	/**
+	 * Read the authorities written by writeAuthorities(...).
+	 *
+	 * @param in The ObjectInput
+	 * @return The authorities, or null
+	 * @throws IOException If reading fails
+	 * @throws ClassNotFoundException If an authority of an unknown type cannot be read
+	 */
+	public static List<GrantedAuthority> readAuthorities(ObjectInput in) throws IOException, ClassNotFoundException {
+		int size = readVarInt(in);
+		if(size == 0) {
+			return null;
+		}
+		List<GrantedAuthority> authorities = new ArrayList<>(size - 1);
+		for(int i = 1; i < size; i++) {
+			byte type = in.readByte();
+			if(type == STRING_VALUE) {
+				authorities.add(new SimpleGrantedAuthority(readString(in)));
+			} else {
+				authorities.add((GrantedAuthority)in.readObject());
+			}
+		}
+
+		return authorities;
+	}
+
+	/**
+	 * Write every field of an OAuth2AuthorizationRequest.
+	 *
+	 * @param out The ObjectOutput
+	 * @param authorizationRequest The OAuth2AuthorizationRequest
+	 * @throws IOException If writing fails
+	 */
+	public static void writeAuthorizationRequest(ObjectOutput out, OAuth2AuthorizationRequest authorizationRequest) throws IOException {
+		writeString(out, authorizationRequest.getGrantType().getValue());
+		writeString(out, authorizationRequest.getAuthorizationUri());
+		writeString(out, authorizationRequest.getClientId());
+		writeString(out, authorizationRequest.getRedirectUri());
+		writeString(out, authorizationRequest.getState());
+		writeString(out, authorizationRequest.getAuthorizationRequestUri());
+		writeStrings(out, authorizationRequest.getScopes());
+		writeAttributes(out, authorizationRequest.getAdditionalParameters());
+		writeAttributes(out, authorizationRequest.getAttributes());
+	}
+
+	/**
+	 * Read an OAuth2AuthorizationRequest written by writeAuthorizationRequest(...).
+	 *
+	 * @param in The ObjectInput
+	 * @return The OAuth2AuthorizationRequest
+	 * @throws IOException If reading fails
+	 * @throws ClassNotFoundException If a parameter of an unknown type cannot be read
+	 */
+	public static OAuth2AuthorizationRequest readAuthorizationRequest(ObjectInput in) throws IOException, ClassNotFoundException {
+		String grantType = readString(in);
+		OAuth2AuthorizationRequest.Builder builder = AuthorizationGrantType.IMPLICIT.getValue().equals(grantType) ?
+				OAuth2AuthorizationRequest.implicit() : OAuth2AuthorizationRequest.authorizationCode();
+
+		return builder.authorizationUri(readString(in))
+				.clientId(readString(in))
+				.redirectUri(readString(in))
+				.state(readString(in))
+				.authorizationRequestUri(readString(in))
+				.scopes(readStringSet(in))
+				.additionalParameters(readAttributes(in))
+				.attributes(readAttributes(in))
+				.build();
+	}
+
+	private static void writeValue(ObjectOutput out, Object value) throws IOException {
+		if(value == null) {
+			out.writeByte(NULL_VALUE);
+		} else if(value instanceof String) {
+			out.writeByte(STRING_VALUE);
+			writeString(out, (String)value);
+		} else {
+			out.writeByte(OBJECT_VALUE);
+			out.writeObject(value);
+		}
+	}
+
+	private static Object readValue(ObjectInput in) throws IOException, ClassNotFoundException {
+		byte type = in.readByte();
+		switch(type) {
+			case NULL_VALUE:
+				return null;
+			case STRING_VALUE:
+				return readString(in);
+			case OBJECT_VALUE:
+				return in.readObject();
+			default:
+				throw new InvalidObjectException("Unknown value type " + type);
+		}
+	}
+
+}
@@ -0,0 +1,5 @@
+/**
+ * Compact serialized forms for objects stored in the HttpSession
+ *
+ */
+package com.ppublica.shopify.security.serialization;
@@ -4,6 +4,12 @@ import java.util.Map;
 
 import org.springframework.beans.factory.BeanFactoryUtils;
 import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.Lifecycle;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.context.event.ContextRefreshedEvent;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
 import org.springframework.security.config.annotation.web.HttpSecurityBuilder;
 import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
@@ -15,12 +21,21 @@ import org.springframework.security.oauth2.client.web.OAuth2AuthorizationRequest
 import org.springframework.security.oauth2.core.user.OAuth2User;
 import org.springframework.security.web.authentication.AuthenticationSuccessHandler;
 
+import com.ppublica.shopify.security.authentication.AppProxySignatureVerifier;
 import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
 import com.ppublica.shopify.security.configuration.ShopifyPaths;
 import com.ppublica.shopify.security.configurer.delegates.HttpSecurityBuilderConfigurerDelegate;
 import com.ppublica.shopify.security.web.NoRedirectSuccessHandler;
+import com.ppublica.shopify.security.web.ServerTimingSampler;
 import com.ppublica.shopify.security.web.ShopifyAuthorizationCodeTokenResponseClient;
 import com.ppublica.shopify.security.web.ShopifyOAuth2AuthorizationRequestResolver;
+import com.ppublica.shopify.security.webhook.UninstallBatcher;
+import com.ppublica.shopify.security.webhook.UninstallWebhookHandler;
+import com.ppublica.shopify.security.webhook.WebhookBodyReader;
+import com.ppublica.shopify.security.webhook.WebhookDeduplicationStore;
+import com.ppublica.shopify.security.webhook.WebhookExecutor;
+import com.ppublica.shopify.security.webhook.WebhookHandler;
+import com.ppublica.shopify.security.webhook.WebhookJournal;
 
 /**
  * A facade for extracting beans from the HttpSecurityBuilder's ApplicationContext. The following beans are 
@@ -121,6 +136,137 @@ public class ShopifyBeansUtils {
 		return shopifyPaths;
 	}
 	
+	public static WebhookExecutor getWebhookExecutor(HttpSecurityBuilder<?> http) {
+		WebhookExecutor webhookExecutor = http.getSharedObject(ApplicationContext.class).getBean(WebhookExecutor.class);
+		
+		if(webhookExecutor == null) {
+			throw new RuntimeException("No WebhookExecutor bean found");
+		}
+		
+		return webhookExecutor;
+	}
+	
+	public static WebhookDeduplicationStore getWebhookDeduplicationStore(HttpSecurityBuilder<?> http) {
+		WebhookDeduplicationStore deduplicationStore = http.getSharedObject(ApplicationContext.class).getBean(WebhookDeduplicationStore.class);
+		
+		if(deduplicationStore == null) {
+			throw new RuntimeException("No WebhookDeduplicationStore bean found");
+		}
+		
+		return deduplicationStore;
+	}
+	
+	public static WebhookBodyReader getWebhookBodyReader(HttpSecurityBuilder<?> http) {
+		WebhookBodyReader bodyReader = http.getSharedObject(ApplicationContext.class).getBean(WebhookBodyReader.class);
+		
+		if(bodyReader == null) {
+			throw new RuntimeException("No WebhookBodyReader bean found");
+		}
+		
+		return bodyReader;
+	}
+	
+	public static UninstallBatcher getUninstallBatcher(HttpSecurityBuilder<?> http) {
+		UninstallBatcher batcher = http.getSharedObject(ApplicationContext.class).getBean(UninstallBatcher.class);
+		
+		if(batcher == null) {
+			throw new RuntimeException("No UninstallBatcher bean found");
+		}
+		
+		return batcher;
+	}
+	
+	public static UninstallWebhookHandler getUninstallWebhookHandler(HttpSecurityBuilder<?> http) {
+		UninstallWebhookHandler handler = http.getSharedObject(ApplicationContext.class).getBean(UninstallWebhookHandler.class);
+		
+		if(handler == null) {
+			throw new RuntimeException("No UninstallWebhookHandler bean found");
+		}
+		
+		return handler;
+	}
+	
+	public static AppProxySignatureVerifier getAppProxySignatureVerifier(HttpSecurityBuilder<?> http) {
+		AppProxySignatureVerifier verifier = http.getSharedObject(ApplicationContext.class).getBean(AppProxySignatureVerifier.class);
+		
+		if(verifier == null) {
+			throw new RuntimeException("No AppProxySignatureVerifier bean found");
+		}
+		
+		return verifier;
+	}
+	
+	/**
+	 * The journal is optional.
+	 * 
+	 * @param http The HttpSecurityBuilder
+	 * @return The WebhookJournal, or null if there's none
+	 */
+	public static WebhookJournal getWebhookJournal(HttpSecurityBuilder<?> http) {
+		Map<String, WebhookJournal> journals = BeanFactoryUtils.beansOfTypeIncludingAncestors(
+				http.getSharedObject(ApplicationContext.class), WebhookJournal.class);
+		
+		return journals.isEmpty() ? null : journals.values().iterator().next();
+	}
+	
+	/**
+	 * The Server-Timing header is optional.
+	 * 
+	 * @param http The HttpSecurityBuilder
+	 * @return The ServerTimingSampler, or null if there's none
+	 */
+	public static ServerTimingSampler getServerTimingSampler(HttpSecurityBuilder<?> http) {
+		Map<String, ServerTimingSampler> samplers = BeanFactoryUtils.beansOfTypeIncludingAncestors(
+				http.getSharedObject(ApplicationContext.class), ServerTimingSampler.class);
+		
+		return samplers.isEmpty() ? null : samplers.values().iterator().next();
+	}
+	
+	/**
+	 * The diagnostics endpoint is optional.
+	 * 
+	 * @param http The HttpSecurityBuilder
+	 * @return The ShopifyDiagnostics, or null if there's none
+	 */
+	public static ShopifyDiagnostics getShopifyDiagnostics(HttpSecurityBuilder<?> http) {
+		Map<String, ShopifyDiagnostics> diagnostics = BeanFactoryUtils.beansOfTypeIncludingAncestors(
+				http.getSharedObject(ApplicationContext.class), ShopifyDiagnostics.class);
+		
+		return diagnostics.isEmpty() ? null : diagnostics.values().iterator().next();
+	}
+	
+	/**
+	 * Start the given Lifecycle once the HttpSecurityBuilder's ApplicationContext has been refreshed, and stop it 
+	 * when the context is closed. Filters aren't beans, so the context doesn't start them itself. If the context 
+	 * can't take listeners, the Lifecycle is started right away.
+	 * 
+	 * @param http The HttpSecurityBuilder
+	 * @param lifecycle The Lifecycle, usually a filter
+	 */
+	public static void startWithContext(HttpSecurityBuilder<?> http, Lifecycle lifecycle) {
+		ApplicationContext context = http.getSharedObject(ApplicationContext.class);
+		
+		if(!(context instanceof ConfigurableApplicationContext)) {
+			lifecycle.start();
+			return;
+		}
+		
+		((ConfigurableApplicationContext)context).addApplicationListener((ApplicationEvent event) -> {
+			if(event instanceof ContextRefreshedEvent && ((ContextRefreshedEvent)event).getApplicationContext() == context) {
+				lifecycle.start();
+			} else if(event instanceof ContextClosedEvent && ((ContextClosedEvent)event).getApplicationContext() == context) {
+				lifecycle.stop();
+			}
+		});
+	}
+	
+	public static Map<String, WebhookHandler> getWebhookHandlers(HttpSecurityBuilder<?> http) {
+		Map<String, WebhookHandler> handlers = BeanFactoryUtils.beansOfTypeIncludingAncestors(
+				http.getSharedObject(ApplicationContext.class), WebhookHandler.class);
+		
+		return handlers;
+	}
+	
 	public static Map<String, HttpSecurityBuilderConfigurerDelegate> getBuilderDelegates(HttpSecurityBuilder<?> http) {
 		Map<String, HttpSecurityBuilderConfigurerDelegate> delegates = BeanFactoryUtils.beansOfTypeIncludingAncestors(
 				http.getSharedObject(ApplicationContext.class), HttpSecurityBuilderConfigurerDelegate.class);
@@ -0,0 +1,226 @@
+package com.ppublica.shopify.security.service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
+
+import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
+import com.ppublica.shopify.security.cache.ExpiringCache;
+import com.ppublica.shopify.security.cache.ReplayCache;
+import com.ppublica.shopify.security.resilience.CircuitBreakerRegistry;
+import com.ppublica.shopify.security.resilience.ResilientCallExecutor;
+import com.ppublica.shopify.security.web.ShopifyHttpTransport;
+import com.ppublica.shopify.security.webhook.InMemoryWebhookDeduplicationStore;
+import com.ppublica.shopify.security.webhook.WebhookDeduplicationStore;
+import com.ppublica.shopify.security.webhook.WebhookExecutor;
+
+/**
+ * The live state of the caches, queues and HTTP clients of this library, for DiagnosticsFilter. A snapshot has
+ * these sections:
+ * <ul>
+ * 	<li>tokenCache: the stores ShopifyOAuth2AuthorizedClientService loaded and saved recently</li>
+ * 	<li>nonceStores: the HMACs seen by ShopifyVerificationStrategy, and the webhook ids seen</li>
+ * 	<li>webhookQueue: the WebhookExecutor</li>
+ * 	<li>httpPool: the connections of ShopifyHttpTransport</li>
+ * 	<li>circuitBreakers: the state of the breaker of every shop, and the retries of the ResilientCallExecutor</li>
+ * </ul>
+ *
+ * <p>A section, or an entry of a section, is left out if the bean it describes is missing, disabled, or replaced by
+ * an implementation that isn't this library's. Reading a snapshot doesn't lock anything: the values are read one
+ * by one while the app keeps running.</p>
+ *
+ * <p>The admin token is a secret: the endpoint only answers requests that send it.</p>
+ *
+ * @author N F
+ * @see com.ppublica.shopify.security.filters.DiagnosticsFilter
+ */
+public class ShopifyDiagnostics {
+
+	private final byte[] adminToken;
+	private final OAuth2AuthorizedClientService clientService;
+	private final ShopifyVerificationStrategy verificationStrategy;
+	private final WebhookExecutor webhookExecutor;
+	private final WebhookDeduplicationStore webhookDeduplicationStore;
+	private final ShopifyHttpTransport httpTransport;
+	private final ResilientCallExecutor callExecutor;
+
+	/**
+	 * Create a ShopifyDiagnostics. Any of the beans may be null.
+	 *
+	 * @param adminToken The token a request must send to see the diagnostics
+	 * @param clientService The OAuth2AuthorizedClientService
+	 * @param verificationStrategy The ShopifyVerificationStrategy
+	 * @param webhookExecutor The WebhookExecutor
+	 * @param webhookDeduplicationStore The WebhookDeduplicationStore
+	 * @param httpTransport The ShopifyHttpTransport
+	 * @param callExecutor The ResilientCallExecutor of the token exchange
+	 */
+	public ShopifyDiagnostics(String adminToken, OAuth2AuthorizedClientService clientService, ShopifyVerificationStrategy verificationStrategy,
+						WebhookExecutor webhookExecutor,
+						WebhookDeduplicationStore webhookDeduplicationStore, ShopifyHttpTransport httpTransport, ResilientCallExecutor callExecutor) {
+		if(adminToken == null || adminToken.trim().isEmpty()) {
+			throw new RuntimeException("The diagnostics endpoint requires an admin token");
+		}
+		this.adminToken = adminToken.trim().getBytes(StandardCharsets.UTF_8);
+		this.clientService = clientService;
+		this.verificationStrategy = verificationStrategy;
+		this.webhookExecutor = webhookExecutor;
+		this.webhookDeduplicationStore = webhookDeduplicationStore;
+		this.httpTransport = httpTransport;
+		this.callExecutor = callExecutor;
+	}
+
+	/**
+	 * Whether the token is the admin token. The comparison takes the same time wherever the tokens differ.
+	 *
+	 * @param token The token sent with the request
+	 * @return true if it's the admin token
+	 */
+	public boolean isAdminToken(String token) {
+		return token != null && MessageDigest.isEqual(adminToken, token.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * The current state of every section.
+	 *
+	 * @return The sections, by name
+	 */
+	public Map<String, Object> snapshot() {
+		Map<String, Object> snapshot = new LinkedHashMap<>();
+
+		putIfNotEmpty(snapshot, "tokenCache", tokenCache());
+		putIfNotEmpty(snapshot, "nonceStores", nonceStores());
+		putIfNotEmpty(snapshot, "webhookQueue", webhookQueue());
+		putIfNotEmpty(snapshot, "httpPool", httpPool());
+		putIfNotEmpty(snapshot, "circuitBreakers", circuitBreakers());
+
+		return snapshot;
+	}
+
+	/**
+	 * Drop the store from the caches of the OAuth2AuthorizedClientService, so that its next request reads it from
+	 * the database again (e.g. after its token was changed there directly).
+	 *
+	 * @param shop The full shop domain
+	 * @return false if the OAuth2AuthorizedClientService isn't a ShopifyOAuth2AuthorizedClientService
+	 */
+	public boolean evict(String shop) {
+		if(!(clientService instanceof ShopifyOAuth2AuthorizedClientService)) {
+			return false;
+		}
+		((ShopifyOAuth2AuthorizedClientService)clientService).evictAuthorizedClient(shop);
+
+		return true;
+	}
+
+	Map<String, Object> tokenCache() {
+		Map<String, Object> section = new LinkedHashMap<>();
+
+		if(clientService instanceof ShopifyOAuth2AuthorizedClientService) {
+			ShopifyOAuth2AuthorizedClientService service = (ShopifyOAuth2AuthorizedClientService)clientService;
+
+			putIfNotEmpty(section, "loaded", cache(service.getRecentlyLoadedCache()));
+			putIfNotEmpty(section, "saved", cache(service.getRecentlySavedCache()));
+		}
+
+		return section;
+	}
+
+	Map<String, Object> nonceStores() {
+		Map<String, Object> section = new LinkedHashMap<>();
+
+		ReplayCache replayCache = verificationStrategy == null ? null : verificationStrategy.getReplayCache();
+		if(replayCache != null) {
+			Map<String, Object> hmacs = new LinkedHashMap<>();
+			hmacs.put("size", replayCache.size());
+			hmacs.put("maxSize", replayCache.getMaxSize());
+			hmacs.put("replays", replayCache.getReplayCount());
+			hmacs.put("droppedBuckets", replayCache.getDroppedBucketCount());
+			section.put("hmacs", hmacs);
+		}
+
+		if(webhookDeduplicationStore instanceof InMemoryWebhookDeduplicationStore) {
+			InMemoryWebhookDeduplicationStore store = (InMemoryWebhookDeduplicationStore)webhookDeduplicationStore;
+
+			Map<String, Object> webhookIds = new LinkedHashMap<>();
+			webhookIds.put("size", store.size());
+			webhookIds.put("duplicates", store.getDuplicateCount());
+			webhookIds.put("shared", store.getBackingStore() != null);
+			section.put("webhookIds", webhookIds);
+		}
+
+		return section;
+	}
+
+	Map<String, Object> webhookQueue() {
+		Map<String, Object> section = new LinkedHashMap<>();
+
+		if(webhookExecutor != null) {
+			section.put("threads", webhookExecutor.getThreads());
+			section.put("active", webhookExecutor.getActiveCount());
+			section.put("queueCapacity", webhookExecutor.getQueueCapacity());
+			section.put("queueDepth", webhookExecutor.getQueueDepth());
+			section.put("maxLaneDepth", webhookExecutor.getMaxLaneDepth());
+			section.put("completed", webhookExecutor.getCompletedCount());
+			section.put("failed", webhookExecutor.getFailedCount());
+			section.put("rejected", webhookExecutor.getRejectedCount());
+			section.put("lastLagMillis", webhookExecutor.getLastLagMillis());
+			section.put("averageLagMillis", webhookExecutor.getAverageLagMillis());
+			section.put("maxLagMillis", webhookExecutor.getMaxLagMillis());
+		}
+
+		return section;
+	}
+
+	Map<String, Object> httpPool() {
+		Map<String, Object> section = new LinkedHashMap<>();
+
+		if(httpTransport != null) {
+			section.put("implementation", httpTransport.getImplementation());
+			section.put("activeRequests", httpTransport.getActiveRequests());
+			section.put("maxConnections", httpTransport.getMaxConnections());
+			section.put("maxConnectionsPerHost", httpTransport.getMaxConnectionsPerHost());
+			section.put("rejectedRequests", httpTransport.getRejectedRequests());
+		}
+
+		return section;
+	}
+
+	Map<String, Object> circuitBreakers() {
+		Map<String, Object> section = new LinkedHashMap<>();
+
+		CircuitBreakerRegistry breakers = callExecutor == null ? null : callExecutor.getCircuitBreakers();
+		if(breakers != null) {
+			section.put("states", breakers.getStates());
+			section.put("opened", breakers.getOpenedCount());
+			section.put("rejected", breakers.getRejectedCount());
+			section.put("retries", callExecutor.getRetryCount());
+		}
+
+		return section;
+	}
+
+	private static Map<String, Object> cache(ExpiringCache<?, ?> cache) {
+		Map<String, Object> stats = new LinkedHashMap<>();
+
+		if(cache != null) {
+			stats.put("size", cache.size());
+			stats.put("maxSize", cache.getMaxSize());
+			stats.put("ttlMillis", cache.getTtlMillis());
+			stats.put("hits", cache.getHitCount());
+			stats.put("misses", cache.getMissCount());
+		}
+
+		return stats;
+	}
+
+	private static void putIfNotEmpty(Map<String, Object> map, String name, Map<String, Object> section) {
+		if(!section.isEmpty()) {
+			map.put(name, section);
+		}
+	}
+
+}
@@ -1,5 +1,12 @@
 package com.ppublica.shopify.security.service;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.security.core.Authentication;
@@ -7,6 +14,8 @@ import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
 import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
 import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
 
+import com.ppublica.shopify.security.cache.ExpiringCache;
+
 
 /**
  * 
@@ -34,10 +43,47 @@ import org.springframework.security.oauth2.client.authentication.OAuth2Authentic
 public class ShopifyOAuth2AuthorizedClientService implements OAuth2AuthorizedClientService {
 	private final Log logger = LogFactory.getLog(ShopifyOAuth2AuthorizedClientService.class);
 
+	// the number of generation counters the stores are spread over
+	private static final int GENERATION_STRIPES = 256;
+
 	private TokenService tokenService;
+	private ExpiringCache<String, String> recentlySaved;
+	private ExpiringCache<String, OAuth2AuthorizedClient> recentlyLoaded;
+	private StoreActivityRecorder activityRecorder;
+	
+	// bumped after a store is saved or removed, so that a load that read the store before can't cache it after
+	private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
 	
 	public ShopifyOAuth2AuthorizedClientService(TokenService tokenService) {
+		this(tokenService, null);
+	}
+	
+	/**
+	 * Create a ShopifyOAuth2AuthorizedClientService that skips saving a token that was just saved for the same store,
+	 * as happens when an installed store logs in again and Shopify returns the token it already has. Only a SHA-256 
+	 * hash of each token is kept.
+	 * 
+	 * @param tokenService The TokenService
+	 * @param recentlySaved A short-lived cache of the hash of the last token saved for each store, or null to always save
+	 */
+	public ShopifyOAuth2AuthorizedClientService(TokenService tokenService, ExpiringCache<String, String> recentlySaved) {
+		this(tokenService, recentlySaved, null);
+	}
+	
+	/**
+	 * Create a ShopifyOAuth2AuthorizedClientService that also keeps the stores it loads for a short time, so that
+	 * frequent requests for the same store (app proxy requests) don't each read and decrypt the token. A store is
+	 * evicted when it's saved or removed through this service.
+	 * 
+	 * @param tokenService The TokenService
+	 * @param recentlySaved A short-lived cache of the hash of the last token saved for each store, or null to always save
+	 * @param recentlyLoaded A short-lived cache of the stores loaded, or null to always load from the TokenService
+	 */
+	public ShopifyOAuth2AuthorizedClientService(TokenService tokenService, ExpiringCache<String, String> recentlySaved,
+						ExpiringCache<String, OAuth2AuthorizedClient> recentlyLoaded) {
 		this.tokenService = tokenService;
+		this.recentlySaved = recentlySaved;
+		this.recentlyLoaded = recentlyLoaded;
 	}
 	
 
@@ -54,9 +100,26 @@ public class ShopifyOAuth2AuthorizedClientService implements OAuth2AuthorizedCli
 	public <T extends OAuth2AuthorizedClient> T loadAuthorizedClient(String clientRegistrationId,
 			String principalName) {
 		
-		OAuth2AuthorizedClient client = tokenService.getStore(principalName);
+		OAuth2AuthorizedClient client = recentlyLoaded == null ? null : recentlyLoaded.get(principalName);
 		
 		if(client != null) {
+			recordActive(principalName);
+			return (T) client;
+		}
+		
+		long generation = generations.get(stripe(principalName));
+		client = tokenService.getStore(principalName);
+		
+		if(client != null) {
+			if(recentlyLoaded != null) {
+				recentlyLoaded.put(principalName, client);
+				
+				// saved or removed while it was read: what was read may be stale
+				if(generations.get(stripe(principalName)) != generation) {
+					recentlyLoaded.remove(principalName, client);
+				}
+			}
+			recordActive(principalName);
 			return (T) client;
 
 		}
@@ -81,6 +144,16 @@ public class ShopifyOAuth2AuthorizedClientService implements OAuth2AuthorizedCli
 		OAuth2AuthenticationToken pr = (OAuth2AuthenticationToken)principal;
 		
 		String shop = pr.getPrincipal().getName();
+		String tokenHash = recentlySaved == null ? null : hash(authorizedClient.getAccessToken().getTokenValue());
+		
+		if(tokenHash != null && tokenHash.equals(recentlySaved.get(shop))) {
+			logger.debug("The token for store " + shop + " was just saved. Skipping.");
+			return;
+		}
+		
+		if(recentlyLoaded != null) {
+			recentlyLoaded.remove(shop);
+		}
 		
 		boolean doesStoreExist = tokenService.doesStoreExist(shop);
 
@@ -93,6 +166,16 @@ public class ShopifyOAuth2AuthorizedClientService implements OAuth2AuthorizedCli
 			logger.info("Successfully saved store " + shop);
 
 		}
+		
+		// a request may have loaded the previous token while it was being saved
+		generations.incrementAndGet(stripe(shop));
+		if(recentlyLoaded != null) {
+			recentlyLoaded.remove(shop);
+		}
+		
+		if(tokenHash != null) {
+			recentlySaved.put(shop, tokenHash);
+		}
 	
 	}
 
@@ -105,9 +188,130 @@ public class ShopifyOAuth2AuthorizedClientService implements OAuth2AuthorizedCli
 	 */
 	@Override
 	public void removeAuthorizedClient(String clientRegistrationId, String principalName) {
+		evict(principalName);
 		tokenService.uninstallStore(principalName);
+		
+		// a request may have loaded or saved the store while it was being deleted
+		invalidate(principalName);
 		logger.info("Successfully uninstalled store " + principalName);
 
 	}
-
+	
+	
+	/**
+	 * Permanently delete/uninstall all the stores that match the shop domains/principalNames at once.
+	 * 
+	 * @param clientRegistrationId The registration id (e.g. "shopify")
+	 * @param principalNames The full shop domains
+	 */
+	public void removeAuthorizedClients(String clientRegistrationId, Collection<String> principalNames) {
+		principalNames.forEach(this::evict);
+		tokenService.uninstallStores(principalNames);
+		
+		// a request may have loaded or saved a store while it was being deleted
+		principalNames.forEach(this::invalidate);
+		logger.info("Successfully uninstalled " + principalNames.size() + " stores");
+		
+	}
+	
+	
+	/**
+	 * Drop the store that matches the shop domain/principalName from the caches of this service, without 
+	 * uninstalling it: the next load reads it from the TokenService again.
+	 * 
+	 * @param principalName The full shop domain
+	 */
+	public void evictAuthorizedClient(String principalName) {
+		evict(principalName);
+		logger.info("Evicted store " + principalName + " from the cache");
+		
+	}
+	
+	
+	/**
+	 * Add a store to the cache of loaded stores, unless it's already there, as if it had just been loaded. 
+	 * TokenCacheWarmer calls this method at startup.
+	 * 
+	 * @param principalName The full shop domain
+	 * @param authorizedClient The store
+	 * @return true if it was added, false if there's no cache or the store was already in it
+	 */
+	public boolean cacheAuthorizedClient(String principalName, OAuth2AuthorizedClient authorizedClient) {
+		return recentlyLoaded != null && recentlyLoaded.putIfAbsent(principalName, authorizedClient) == null;
+		
+	}
+	
+	
+	/**
+	 * Record when each store is loaded, as the time it was last active.
+	 * 
+	 * @param activityRecorder The StoreActivityRecorder, or null not to record activity
+	 */
+	public void setActivityRecorder(StoreActivityRecorder activityRecorder) {
+		this.activityRecorder = activityRecorder;
+	}
+	
+	
+	/**
+	 * The cache of the stores loaded recently.
+	 * 
+	 * @return The cache, or null if stores are always loaded from the TokenService
+	 */
+	public ExpiringCache<String, OAuth2AuthorizedClient> getRecentlyLoadedCache() {
+		return this.recentlyLoaded;
+	}
+	
+	
+	/**
+	 * The cache of the hash of the last token saved for each store.
+	 * 
+	 * @return The cache, or null if tokens are always saved
+	 */
+	public ExpiringCache<String, String> getRecentlySavedCache() {
+		return this.recentlySaved;
+	}
+	
+	
+	private void evict(String principalName) {
+		if(recentlySaved != null) {
+			recentlySaved.remove(principalName);
+		}
+		if(recentlyLoaded != null) {
+			recentlyLoaded.remove(principalName);
+		}
+	}
+	
+	/*
+	 * Evicts the store after bumping its generation: a load that read the store before then either puts it in the 
+	 * cache before this eviction, or sees the new generation and takes it out again.
+	 */
+	private void invalidate(String principalName) {
+		generations.incrementAndGet(stripe(principalName));
+		evict(principalName);
+	}
+	
+	private static int stripe(String principalName) {
+		return (principalName.hashCode() & Integer.MAX_VALUE) % GENERATION_STRIPES;
+	}
+	
+	private void recordActive(String principalName) {
+		if(activityRecorder != null) {
+			activityRecorder.recordActive(principalName);
+		}
+	}
+	
+	private static String hash(String tokenValue) {
+		if(tokenValue == null) {
+			return null;
+		}
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(tokenValue.getBytes(StandardCharsets.UTF_8));
+			
+			return Base64.getEncoder().encodeToString(digest);
+			
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-256 is not available", e);
+		}
+	}
+	
 }
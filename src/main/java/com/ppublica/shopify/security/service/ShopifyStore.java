@@ -1,5 +1,9 @@
 package com.ppublica.shopify.security.service;
 
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -9,10 +13,15 @@ import java.util.Map;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.oauth2.core.user.OAuth2User;
 
+import com.ppublica.shopify.security.serialization.CompactSerialization;
+
 /**
  * A representation of a Shopify store - a "user". This object is the Principal in the OAuth2AuthenticationToken,
  * the Authentication. The api key and raw access token are saved as attributes.
  * 
+ * <p>A ShopifyStore is written to a stream using a compact serialization proxy. Streams written by default 
+ * serialization (older versions of this class) can still be read.</p>
+ * 
  * @author N F
  *
  */
@@ -73,5 +82,50 @@ public class ShopifyStore  implements OAuth2User, Serializable {
 		return this.attributes;
 	}
 	
+	private Object writeReplace() {
+		return new CompactForm(this);
+	}
+	
+	
+	/**
+	 * The versioned, compact serialized form of a ShopifyStore.
+	 * 
+	 * @author N F
+	 * @see CompactSerialization
+	 */
+	static final class CompactForm implements Externalizable {
+		private static final long serialVersionUID = 1L;
+		
+		private ShopifyStore store;
+		
+		public CompactForm() { }
+		
+		CompactForm(ShopifyStore store) {
+			this.store = store;
+		}
+
+		@Override
+		public void writeExternal(ObjectOutput out) throws IOException {
+			out.writeByte(CompactSerialization.VERSION_1);
+			CompactSerialization.writeString(out, store.name);
+			CompactSerialization.writeAuthorities(out, store.authorities);
+			CompactSerialization.writeAttributes(out, store.attributes);
+		}
+
+		@Override
+		public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+			CompactSerialization.checkVersion(in.readByte(), ShopifyStore.class);
+			String name = CompactSerialization.readString(in);
+			Collection<? extends GrantedAuthority> authorities = CompactSerialization.readAuthorities(in);
+			Map<String, Object> attributes = CompactSerialization.readAttributes(in);
+			
+			this.store = new ShopifyStore(name, authorities, attributes == null ? null : new HashMap<>(attributes));
+		}
+		
+		private Object readResolve() {
+			return this.store;
+		}
+	}
+	
 
 }
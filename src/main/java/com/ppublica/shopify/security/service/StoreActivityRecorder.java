@@ -0,0 +1,195 @@
+package com.ppublica.shopify.security.service;
+
+import java.time.Clock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.ppublica.shopify.security.cache.ExpiringCache;
+
+/**
+ * Records when each store was last active, in the lastActiveAt column of its row, so that TokenCacheWarmer can load
+ * the stores most likely to be used first after a restart.
+ *
+ * <p>The time is coarse: a store is recorded at most once per granularity (an hour by default) on each node, and
+ * the request that uses it never waits for the database. It's only put in a map, that the recorder's own thread
+ * writes with one batch of UPDATEs every flush interval. If the map already holds maxPending stores, the store is
+ * skipped until the next granularity.</p>
+ *
+ * <p>ShopifyOAuth2AuthorizedClientService records a store every time it loads it, from its cache or from the
+ * database.</p>
+ *
+ * @author N F
+ * @see TokenCacheWarmer
+ * @see com.ppublica.shopify.security.repository.TokenRepository#updateLastActive(Map)
+ */
+public class StoreActivityRecorder implements DisposableBean {
+	private final Log logger = LogFactory.getLog(StoreActivityRecorder.class);
+
+	public static final long DEFAULT_GRANULARITY = 60 * 60 * 1000L;
+	public static final long DEFAULT_FLUSH_INTERVAL = 60 * 1000L;
+	public static final int DEFAULT_MAX_PENDING = 100000;
+
+	private final TokenService tokenService;
+	private final long granularityMillis;
+	private final long flushIntervalMillis;
+	private final int maxPending;
+	private final Clock clock;
+
+	// the stores recorded in the last granularity, so they aren't recorded again
+	private final ExpiringCache<String, Long> recorded;
+	private final ConcurrentHashMap<String, Long> pending = new ConcurrentHashMap<>();
+
+	private final ScheduledExecutorService scheduler;
+
+	private final AtomicLong flushedCount = new AtomicLong();
+	private final AtomicLong skippedCount = new AtomicLong();
+	private final AtomicLong failedFlushCount = new AtomicLong();
+
+	/**
+	 * Create a StoreActivityRecorder that uses the system clock. A null value selects the default.
+	 *
+	 * @param tokenService To write the times
+	 * @param granularityMillis How long a store isn't recorded again after it's recorded
+	 * @param flushIntervalMillis How often the recorded stores are written
+	 * @param maxPending The most stores waiting to be written
+	 */
+	public StoreActivityRecorder(TokenService tokenService, Long granularityMillis, Long flushIntervalMillis, Integer maxPending) {
+		this(tokenService, granularityMillis, flushIntervalMillis, maxPending, Clock.systemUTC());
+	}
+
+	public StoreActivityRecorder(TokenService tokenService, Long granularityMillis, Long flushIntervalMillis, Integer maxPending, Clock clock) {
+		this.tokenService = tokenService;
+		this.granularityMillis = granularityMillis != null ? granularityMillis : DEFAULT_GRANULARITY;
+		this.flushIntervalMillis = flushIntervalMillis != null ? flushIntervalMillis : DEFAULT_FLUSH_INTERVAL;
+		this.maxPending = maxPending != null ? maxPending : DEFAULT_MAX_PENDING;
+		this.clock = clock;
+
+		if(this.granularityMillis <= 0 || this.flushIntervalMillis <= 0 || this.maxPending < 1) {
+			throw new RuntimeException("Invalid last-active settings: granularity " + this.granularityMillis + "ms, flush interval "
+						+ this.flushIntervalMillis + "ms, max pending " + this.maxPending);
+		}
+
+		this.recorded = new ExpiringCache<>(this.granularityMillis, this.maxPending, clock);
+
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "shopify-activity-recorder");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.scheduler.scheduleWithFixedDelay(this::flush, this.flushIntervalMillis, this.flushIntervalMillis, TimeUnit.MILLISECONDS);
+
+		if(logger.isDebugEnabled()) {
+			logger.debug("***StoreActivityRecorder using: ***");
+			logger.debug("Granularity:      " + this.granularityMillis + "ms");
+			logger.debug("Flush interval:   " + this.flushIntervalMillis + "ms");
+			logger.debug("Max pending:      " + this.maxPending);
+		}
+	}
+
+	/**
+	 * The store is active now. Returns right away.
+	 *
+	 * @param storeName The full shop domain
+	 */
+	public void recordActive(String storeName) {
+		if(recorded.get(storeName) != null) {
+			return;
+		}
+
+		long now = clock.millis();
+
+		if(recorded.putIfAbsent(storeName, now) != null) {
+			// another request recorded it first
+			return;
+		}
+
+		if(pending.size() >= maxPending) {
+			skippedCount.incrementAndGet();
+			return;
+		}
+
+		pending.put(storeName, now);
+	}
+
+	/**
+	 * Write the stores recorded since the last flush now. If the write fails, they're dropped: they'll be recorded
+	 * again after the granularity.
+	 */
+	public void flush() {
+		if(pending.isEmpty()) {
+			return;
+		}
+
+		Map<String, Long> batch = new HashMap<>();
+
+		for(String storeName : pending.keySet()) {
+			Long lastActive = pending.remove(storeName);
+
+			if(lastActive != null) {
+				batch.put(storeName, lastActive);
+			}
+		}
+
+		try {
+			tokenService.updateLastActive(batch);
+			flushedCount.addAndGet(batch.size());
+
+		} catch (RuntimeException e) {
+			failedFlushCount.incrementAndGet();
+			logger.warn("Unable to record the last activity of " + batch.size() + " stores", e);
+		}
+	}
+
+	public long getGranularityMillis() {
+		return this.granularityMillis;
+	}
+
+	public long getFlushIntervalMillis() {
+		return this.flushIntervalMillis;
+	}
+
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * The number of stores written.
+	 *
+	 * @return The number of stores
+	 */
+	public long getFlushedCount() {
+		return flushedCount.get();
+	}
+
+	/**
+	 * The number of stores not recorded because too many were waiting to be written.
+	 *
+	 * @return The number of stores
+	 */
+	public long getSkippedCount() {
+		return skippedCount.get();
+	}
+
+	public long getFailedFlushCount() {
+		return failedFlushCount.get();
+	}
+
+	/**
+	 * Stop the recorder's thread and write the stores still waiting.
+	 */
+	@Override
+	public void destroy() {
+		scheduler.shutdownNow();
+		flush();
+	}
+
+}
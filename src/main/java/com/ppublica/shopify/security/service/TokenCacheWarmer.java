@@ -0,0 +1,212 @@
+package com.ppublica.shopify.security.service;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+
+import com.ppublica.shopify.security.repository.PersistedStoreAccessToken;
+
+/**
+ * Loads the most recently active stores into the cache of ShopifyOAuth2AuthorizedClientService at startup, so that
+ * a new node doesn't read and decrypt the token of every merchant that opens the app in its first minutes, all at
+ * once.
+ *
+ * <p>It runs when every singleton of the ApplicationContext has been created, before the context is refreshed: an
+ * embedded server isn't started (and the node isn't reported ready) until it's done. The stores are read one by
+ * one, the most recently active first (see StoreActivityRecorder), and decrypted by a few threads while the next
+ * ones are read. When the threads fall behind, the thread that reads the stores decrypts the next one itself.</p>
+ *
+ * <p>Startup never fails because of the warm-up: after the timeout, or if the stores can't be read, it logs a
+ * warning and lets the app start with whatever it has cached.</p>
+ *
+ * <p>The cache keeps the stores for its ttl (ppublica.shopify.security.client-cache.ttl), and holds at most its
+ * maximum size, so no more stores than that are loaded.</p>
+ *
+ * @author N F
+ * @see StoreActivityRecorder
+ */
+public class TokenCacheWarmer implements SmartInitializingSingleton {
+	private final Log logger = LogFactory.getLog(TokenCacheWarmer.class);
+
+	public static final int DEFAULT_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+	public static final long DEFAULT_TIMEOUT = 30000;
+
+	// stores read ahead of the decrypting threads, per thread
+	private static final int QUEUED_PER_THREAD = 4;
+
+	private final TokenService tokenService;
+	private final ShopifyOAuth2AuthorizedClientService clientService;
+	private final int maxStores;
+	private final int threads;
+	private final long timeoutMillis;
+
+	private final AtomicLong warmedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+
+	/**
+	 * Create a TokenCacheWarmer. A null value selects the default.
+	 *
+	 * @param tokenService To read and decrypt the stores
+	 * @param clientService The service whose cache is warmed
+	 * @param maxStores The most stores to load
+	 * @param threads The number of threads that decrypt the stores
+	 * @param timeoutMillis How long startup waits for the warm-up
+	 */
+	public TokenCacheWarmer(TokenService tokenService, ShopifyOAuth2AuthorizedClientService clientService, int maxStores,
+						Integer threads, Long timeoutMillis) {
+		this.tokenService = tokenService;
+		this.clientService = clientService;
+		this.maxStores = maxStores;
+		this.threads = threads != null ? threads : DEFAULT_THREADS;
+		this.timeoutMillis = timeoutMillis != null ? timeoutMillis : DEFAULT_TIMEOUT;
+
+		if(this.maxStores < 0 || this.threads < 1 || this.timeoutMillis <= 0) {
+			throw new RuntimeException("Invalid warm-up settings: max stores " + this.maxStores + ", threads " + this.threads
+						+ ", timeout " + this.timeoutMillis + "ms");
+		}
+	}
+
+	@Override
+	public void afterSingletonsInstantiated() {
+		warm();
+	}
+
+	/**
+	 * Load the most recently active stores into the cache, and wait until they're loaded or the timeout passes.
+	 *
+	 * @return The number of stores added to the cache
+	 */
+	public long warm() {
+		if(clientService.getRecentlyLoadedCache() == null) {
+			logger.info("The client cache is disabled: skipping the warm-up");
+			return 0;
+		}
+
+		int limit = Math.min(maxStores, clientService.getRecentlyLoadedCache().getMaxSize());
+		if(limit == 0) {
+			return 0;
+		}
+
+		long started = System.nanoTime();
+		long deadline = started + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		long warmedBefore = warmedCount.get();
+
+		ThreadPoolExecutor decryptors = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+						new ArrayBlockingQueue<>(threads * QUEUED_PER_THREAD), new WarmerThreadFactory(), new ThreadPoolExecutor.CallerRunsPolicy());
+
+		try {
+			// the read is bounded too: a slow query mustn't hold up startup past the timeout
+			tokenService.findRecentlyActiveStores(limit, timeoutMillis, store -> {
+				if(System.nanoTime() - deadline < 0) {
+					decryptors.execute(() -> load(store, deadline));
+				}
+			});
+
+		} catch (RuntimeException e) {
+			logger.warn("Unable to read the recently active stores: is there a lastActiveAt column in StoreAccessTokens?", e);
+
+		} finally {
+			decryptors.shutdown();
+			awaitTermination(decryptors, deadline);
+		}
+
+		long warmed = warmedCount.get() - warmedBefore;
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+		if(elapsedMillis >= timeoutMillis) {
+			logger.warn("Warm-up timed out after " + elapsedMillis + "ms with " + warmed + " stores cached");
+		} else {
+			logger.info("Warm-up cached " + warmed + " stores in " + elapsedMillis + "ms");
+		}
+
+		return warmed;
+	}
+
+	public int getMaxStores() {
+		return this.maxStores;
+	}
+
+	public int getThreads() {
+		return this.threads;
+	}
+
+	public long getTimeoutMillis() {
+		return this.timeoutMillis;
+	}
+
+	/**
+	 * The number of stores added to the cache.
+	 *
+	 * @return The number of stores
+	 */
+	public long getWarmedCount() {
+		return warmedCount.get();
+	}
+
+	/**
+	 * The number of stores that couldn't be decrypted.
+	 *
+	 * @return The number of stores
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	private void load(PersistedStoreAccessToken store, long deadline) {
+		if(System.nanoTime() - deadline >= 0) {
+			return;
+		}
+
+		try {
+			OAuth2AuthorizedClient client = tokenService.decryptStore(store);
+
+			if(client == null) {
+				failedCount.incrementAndGet();
+				return;
+			}
+
+			if(clientService.cacheAuthorizedClient(store.getStoreDomain(), client)) {
+				warmedCount.incrementAndGet();
+			}
+
+		} catch (RuntimeException e) {
+			failedCount.incrementAndGet();
+			logger.debug("Unable to warm the cache with " + store.getStoreDomain(), e);
+		}
+	}
+
+	private void awaitTermination(ThreadPoolExecutor decryptors, long deadline) {
+		try {
+			long remaining = deadline - System.nanoTime();
+
+			if(remaining <= 0 || !decryptors.awaitTermination(remaining, TimeUnit.NANOSECONDS)) {
+				decryptors.shutdownNow();
+			}
+
+		} catch (InterruptedException e) {
+			decryptors.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	private static class WarmerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "shopify-cache-warmer-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
@@ -1,5 +1,11 @@
 package com.ppublica.shopify.security.service;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.security.crypto.encrypt.Encryptors;
@@ -12,6 +18,8 @@ import org.springframework.security.oauth2.client.registration.ClientRegistratio
 
 import com.ppublica.shopify.security.authentication.CipherPassword;
 import com.ppublica.shopify.security.configuration.SecurityBeansConfig;
+import com.ppublica.shopify.security.events.ShopifyEvents;
+import com.ppublica.shopify.security.events.TokenLookupEvent;
 import com.ppublica.shopify.security.repository.PersistedStoreAccessToken;
 import com.ppublica.shopify.security.repository.PersistedStoreAccessTokenUtility;
 import com.ppublica.shopify.security.repository.TokenRepository;
@@ -19,6 +27,9 @@ import com.ppublica.shopify.security.repository.TokenRepository;
 /**
  * Provides methods to interact with the TokenRepository to get, save, update, or delete a store.
  * 
+ * <p>Loading a store is recorded as a ShopifyTokenLookup event, with the time spent querying the database and 
+ * decrypting the token (see ShopifyEvents).</p>
+ * 
  * @see ShopifyOAuth2AuthorizedClientService
  */
 public class TokenService {
@@ -29,6 +40,9 @@ public class TokenService {
 	 */
 	public static final String SHOP_ATTRIBUTE_NAME = "shop";
 	
+	// the route of the ShopifyTokenLookup event: stores aren't loaded for a particular request
+	private static final String GET_STORE_ROUTE = "getStore";
+	
 	private TokenRepository tokenRepository;
 	private CipherPassword cipherPassword;
 	private ClientRegistrationRepository clientRepository;
@@ -91,28 +105,29 @@ public class TokenService {
 	 * @return The OAuth2AuthorizedClient representing the store, or null
 	 */
 	public OAuth2AuthorizedClient getStore(String shopDomain) {
+		TokenLookupEvent event = ShopifyEvents.tokenLookup();
 		
 		PersistedStoreAccessToken ets = this.tokenRepository.findTokenForStore(shopDomain);
+		event.databaseDone();
 		
 		if(ets == null) {
+			event.record(shopDomain, GET_STORE_ROUTE, "not_found");
 			return null;
 		}
 		
 		// obtain a representation of the raw token
 		DecryptedTokenAndSalt decryptedTokenAndSalt = getRawToken(ets);
+		event.decryptDone();
 		
 		if(decryptedTokenAndSalt == null) {
 			logger.info("The salt and encrypted passwords are out of date/corrupted");
+			event.record(shopDomain, GET_STORE_ROUTE, "undecryptable");
 			return null;
 		}
 		
-		ClientRegistration cr = clientRepository.findByRegistrationId(SecurityBeansConfig.SHOPIFY_REGISTRATION_ID);
-		
-		if(cr == null) {
-			throw new RuntimeException("An error occurred retrieving the ClientRegistration for " + SecurityBeansConfig.SHOPIFY_REGISTRATION_ID);
-		}
+		OAuth2AuthorizedClient client = toAuthorizedClient(ets, decryptedTokenAndSalt);
 		
-		OAuth2AuthorizedClient client = persistedAccessTokenUtility.fromPersistedStoreAccessTokenToOAuth2AuthorizedClient(ets, decryptedTokenAndSalt, cr);
+		event.record(shopDomain, GET_STORE_ROUTE, "found");
 
 		return client;
 	
@@ -149,11 +164,94 @@ public class TokenService {
 	}
 	
 	
+	/**
+	 * Calls TokenRepository to uninstall all the stores that match the shopDomains at once.
+	 * 
+	 * @param shopDomains The full domains of the stores to be uninstalled
+	 */
+	public void uninstallStores(Collection<String> shopDomains) {
+		List<String> stores = shopDomains.stream()
+										.filter(s -> s != null && !s.isEmpty())
+										.distinct()
+										.collect(Collectors.toList());
+		
+		if(!stores.isEmpty()) {
+			this.tokenRepository.uninstallStores(stores);
+		}
+	}
+	
+	
+	/**
+	 * Decrypt the token of a store already read from the TokenRepository.
+	 * 
+	 * @param storeAccessToken The store, as persisted
+	 * @return The OAuth2AuthorizedClient, or null if there's a problem decrypting the token
+	 */
+	public OAuth2AuthorizedClient decryptStore(PersistedStoreAccessToken storeAccessToken) {
+		DecryptedTokenAndSalt decryptedTokenAndSalt = getRawToken(storeAccessToken);
+		
+		if(decryptedTokenAndSalt == null) {
+			logger.info("The salt and encrypted passwords are out of date/corrupted for " + storeAccessToken.getStoreDomain());
+			return null;
+		}
+		
+		return toAuthorizedClient(storeAccessToken, decryptedTokenAndSalt);
+	}
+	
+	
+	/**
+	 * Calls TokenRepository to record when each store was last active.
+	 * 
+	 * @param lastActiveByStore The time (epoch milliseconds) each full shop domain was last active
+	 */
+	public void updateLastActive(Map<String, Long> lastActiveByStore) {
+		if(!lastActiveByStore.isEmpty()) {
+			this.tokenRepository.updateLastActive(lastActiveByStore);
+		}
+	}
+	
+	
+	/**
+	 * Calls TokenRepository to pass the most recently active stores to the consumer as they're read, still 
+	 * encrypted (see decryptStore(...)).
+	 * 
+	 * @param maxStores The most stores to read
+	 * @param consumer Receives each store
+	 */
+	public void findRecentlyActiveStores(int maxStores, Consumer<PersistedStoreAccessToken> consumer) {
+		this.tokenRepository.findRecentlyActiveStores(maxStores, consumer);
+	}
+	
+	
+	/**
+	 * Calls TokenRepository to pass the most recently active stores to the consumer as they're read, still 
+	 * encrypted, until the timeout passes.
+	 * 
+	 * @param maxStores The most stores to read
+	 * @param timeoutMillis How long the query and the reading may take, or 0 for no limit
+	 * @param consumer Receives each store
+	 */
+	public void findRecentlyActiveStores(int maxStores, long timeoutMillis, Consumer<PersistedStoreAccessToken> consumer) {
+		this.tokenRepository.findRecentlyActiveStores(maxStores, timeoutMillis, consumer);
+	}
+	
+	
 	public void setPersistedStoreAccessTokenUtility(PersistedStoreAccessTokenUtility customPersistedAccessTokenUtility) {
 		this.persistedAccessTokenUtility = customPersistedAccessTokenUtility;
 	}
 	
 	
+	private OAuth2AuthorizedClient toAuthorizedClient(PersistedStoreAccessToken storeAccessToken, DecryptedTokenAndSalt decryptedTokenAndSalt) {
+		ClientRegistration cr = clientRepository.findByRegistrationId(SecurityBeansConfig.SHOPIFY_REGISTRATION_ID);
+		
+		if(cr == null) {
+			throw new RuntimeException("An error occurred retrieving the ClientRegistration for " + SecurityBeansConfig.SHOPIFY_REGISTRATION_ID);
+		}
+		
+		return persistedAccessTokenUtility.fromPersistedStoreAccessTokenToOAuth2AuthorizedClient(storeAccessToken, decryptedTokenAndSalt, cr);
+	}
+	
+	
 	/*
 	 * Returns null if there is an inconsistency in the salts or passwords
 	 */
@@ -0,0 +1,163 @@
+package com.ppublica.shopify.security.web;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+
+/**
+ * A ClientHttpRequestFactory that limits how many requests created by its delegate can be in flight at the same
+ * time. A permit is acquired when a request is executed and released when its response is closed (or if execution
+ * fails). If no permit becomes available within the timeout, execution fails with an IOException.
+ *
+ * @author N F
+ * @see ShopifyHttpTransport
+ */
+class ConcurrencyLimitingClientHttpRequestFactory implements ClientHttpRequestFactory {
+
+	private final ClientHttpRequestFactory delegate;
+	private final Semaphore permits;
+	private final int maxConcurrentRequests;
+	private final long acquireTimeoutMillis;
+	private final AtomicLong rejectedRequests = new AtomicLong();
+
+	ConcurrencyLimitingClientHttpRequestFactory(ClientHttpRequestFactory delegate, int maxConcurrentRequests, long acquireTimeoutMillis) {
+		this.delegate = delegate;
+		this.maxConcurrentRequests = maxConcurrentRequests;
+		this.permits = new Semaphore(maxConcurrentRequests, true);
+		this.acquireTimeoutMillis = acquireTimeoutMillis;
+	}
+
+	@Override
+	public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod) throws IOException {
+		return new LimitedRequest(delegate.createRequest(uri, httpMethod));
+	}
+
+	int getActiveRequests() {
+		return maxConcurrentRequests - permits.availablePermits();
+	}
+
+	long getRejectedRequests() {
+		return rejectedRequests.get();
+	}
+
+	private void acquire(URI uri) throws IOException {
+		boolean acquired;
+		try {
+			acquired = permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting to call " + uri.getHost(), e);
+		}
+
+		if(!acquired) {
+			rejectedRequests.incrementAndGet();
+			throw new IOException("Too many concurrent requests to Shopify: could not call " + uri.getHost() + " within "
+									+ acquireTimeoutMillis + "ms");
+		}
+	}
+
+
+	private class LimitedRequest implements ClientHttpRequest {
+		private final ClientHttpRequest request;
+
+		LimitedRequest(ClientHttpRequest request) {
+			this.request = request;
+		}
+
+		@Override
+		public ClientHttpResponse execute() throws IOException {
+			acquire(request.getURI());
+
+			try {
+				return new LimitedResponse(request.execute());
+			} catch (IOException | RuntimeException e) {
+				permits.release();
+				throw e;
+			}
+		}
+
+		@Override
+		public OutputStream getBody() throws IOException {
+			return request.getBody();
+		}
+
+		@Override
+		public HttpMethod getMethod() {
+			return request.getMethod();
+		}
+
+		@Override
+		public String getMethodValue() {
+			return request.getMethodValue();
+		}
+
+		@Override
+		public URI getURI() {
+			return request.getURI();
+		}
+
+		@Override
+		public HttpHeaders getHeaders() {
+			return request.getHeaders();
+		}
+	}
+
+
+	private class LimitedResponse implements ClientHttpResponse {
+		private final ClientHttpResponse response;
+		private final AtomicBoolean released = new AtomicBoolean(false);
+
+		LimitedResponse(ClientHttpResponse response) {
+			this.response = response;
+		}
+
+		@Override
+		public InputStream getBody() throws IOException {
+			return response.getBody();
+		}
+
+		@Override
+		public HttpHeaders getHeaders() {
+			return response.getHeaders();
+		}
+
+		@Override
+		public HttpStatus getStatusCode() throws IOException {
+			return response.getStatusCode();
+		}
+
+		@Override
+		public int getRawStatusCode() throws IOException {
+			return response.getRawStatusCode();
+		}
+
+		@Override
+		public String getStatusText() throws IOException {
+			return response.getStatusText();
+		}
+
+		@Override
+		public void close() {
+			try {
+				response.close();
+			} finally {
+				if(released.compareAndSet(false, true)) {
+					permits.release();
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,24 @@
+package com.ppublica.shopify.security.web;
+
+import org.springframework.http.client.ClientHttpRequestFactory;
+
+/**
+ * Builds the "http2" implementation of ShopifyHttpTransport, on the JDK HttpClient. This is the version of the class
+ * used on Java 8, where there is no such client; on Java 11 and later, the version in META-INF/versions/11 is used.
+ *
+ * @author N F
+ * @see ShopifyHttpTransport
+ */
+final class Http2RequestFactoryBuilder {
+
+	private Http2RequestFactoryBuilder() { }
+
+	static boolean isAvailable() {
+		return false;
+	}
+
+	static ClientHttpRequestFactory build(int connectTimeout, int readTimeout) {
+		throw new RuntimeException("The http2 HTTP transport requires Java 11 or later");
+	}
+
+}
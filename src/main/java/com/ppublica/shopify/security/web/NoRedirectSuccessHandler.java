@@ -12,11 +12,16 @@ import org.springframework.security.core.Authentication;
 import org.springframework.security.web.authentication.AuthenticationSuccessHandler;
 import org.springframework.security.web.authentication.SavedRequestAwareAuthenticationSuccessHandler;
 
+import com.ppublica.shopify.security.serialization.CompactSecurityContext;
+
 
 /**
  * This handler prevents redirection after successful authentication, and instead calls the default
  * AuthorizationSuccessPageStrategy.
  * 
+ * <p>Before the page is written (and the SecurityContext is saved in the session), the SecurityContext is replaced 
+ * with a CompactSecurityContext that has a compact serialized form.</p>
+ * 
  * @author N F
  * 
  */
@@ -40,6 +45,8 @@ public class NoRedirectSuccessHandler implements AuthenticationSuccessHandler {
 		
 		defaultHandler.onAuthenticationSuccess(request, response, authentication);
 		
+		CompactSecurityContext.install(authentication);
+		
 		logger.debug("Calling AuthorizationSuccessPageStrategy");
 		authPageStrategy.handleAuthorizationPage(request, response, authentication);
 	}
@@ -0,0 +1,154 @@
+package com.ppublica.shopify.security.web;
+
+import java.util.Locale;
+
+/**
+ * The durations of the stages of a request, to be sent in its Server-Timing header. ServerTimingFilter binds a
+ * ServerTiming to the thread of a request it times; the stages then add their duration to it:
+ *
+ * <pre>
+ * long start = ServerTiming.start();
+ * ...
+ * ServerTiming.stop(ServerTiming.ORIGIN, start);
+ * </pre>
+ *
+ * <p>When the request isn't timed (the filter isn't used, or the request isn't sampled), start() returns 0 without
+ * reading the clock, and stop(...) does nothing.</p>
+ *
+ * <p>A stage that runs more than once in a request adds up its durations. The header lists the stages in the order
+ * they first ran, then the total: the time from the filter to the response being committed.</p>
+ *
+ * @author N F
+ * @see com.ppublica.shopify.security.filters.ServerTimingFilter
+ */
+public final class ServerTiming {
+
+	public static final String HEADER = "Server-Timing";
+
+	/**
+	 * ShopifyOriginFilter: the hmac and nonce checks.
+	 */
+	public static final String ORIGIN = "origin";
+
+	/**
+	 * ShopifyExistingTokenFilter: the store is loaded for a request from Shopify.
+	 */
+	public static final String TOKEN = "token";
+
+	/**
+	 * ShopifyOAuth2AuthorizationRequestResolver: the authorization request is built and saved.
+	 */
+	public static final String RESOLVE = "resolve";
+
+	/**
+	 * ShopifyAuthorizationCodeTokenResponseClient: the authorization code is exchanged for a token.
+	 */
+	public static final String EXCHANGE = "exchange";
+
+	public static final String TOTAL = "total";
+
+	private static final int MAX_STAGES = 8;
+
+	private static final ThreadLocal<ServerTiming> CURRENT = new ThreadLocal<>();
+
+	private final long began;
+	private final String[] names = new String[MAX_STAGES];
+	private final long[] nanos = new long[MAX_STAGES];
+	private int size;
+
+	private ServerTiming(long began) {
+		this.began = began;
+	}
+
+	/**
+	 * Start timing the requests of the current thread.
+	 *
+	 * @return The ServerTiming bound to the thread
+	 */
+	public static ServerTiming bind() {
+		ServerTiming timing = new ServerTiming(System.nanoTime());
+		CURRENT.set(timing);
+
+		return timing;
+	}
+
+	/**
+	 * Stop timing the requests of the current thread.
+	 */
+	public static void unbind() {
+		CURRENT.remove();
+	}
+
+	/**
+	 * Whether the request of the current thread is timed.
+	 *
+	 * @return true if a ServerTiming is bound to the thread
+	 */
+	public static boolean isActive() {
+		return CURRENT.get() != null;
+	}
+
+	/**
+	 * The start of a stage.
+	 *
+	 * @return The current time in nanoseconds, or 0 if the request isn't timed
+	 */
+	public static long start() {
+		return CURRENT.get() == null ? 0 : System.nanoTime();
+	}
+
+	/**
+	 * The end of a stage: its duration is added to the request's, if it's timed.
+	 *
+	 * @param stage The name of the stage
+	 * @param start The value start() returned
+	 */
+	public static void stop(String stage, long start) {
+		if(start == 0) {
+			return;
+		}
+
+		ServerTiming timing = CURRENT.get();
+
+		if(timing != null) {
+			timing.add(stage, System.nanoTime() - start);
+		}
+	}
+
+	void add(String stage, long duration) {
+		for(int i = 0; i < size; i++) {
+			if(names[i].equals(stage)) {
+				nanos[i] += duration;
+				return;
+			}
+		}
+
+		if(size < MAX_STAGES) {
+			names[size] = stage;
+			nanos[size] = duration;
+			size++;
+		}
+	}
+
+	/**
+	 * The value of the Server-Timing header, with the durations in milliseconds.
+	 *
+	 * @return The stages so far, and the total
+	 */
+	public String toHeaderValue() {
+		StringBuilder value = new StringBuilder(24 * (size + 1));
+
+		for(int i = 0; i < size; i++) {
+			appendMetric(value, names[i], nanos[i]);
+			value.append(", ");
+		}
+		appendMetric(value, TOTAL, System.nanoTime() - began);
+
+		return value.toString();
+	}
+
+	private static void appendMetric(StringBuilder value, String name, long nanos) {
+		value.append(name).append(";dur=").append(String.format(Locale.ROOT, "%.2f", nanos / 1e6));
+	}
+
+}
@@ -0,0 +1,82 @@
+package com.ppublica.shopify.security.web;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Decides which requests ServerTimingFilter times: a fraction of all requests, and every request that has the 
+ * admin cookie set to the admin token. The admin token is a secret, so that only the people who know it can see 
+ * the timings of their requests when the sampling rate is 0.
+ * 
+ * @author N F
+ * @see ServerTiming
+ * @see com.ppublica.shopify.security.filters.ServerTimingFilter
+ */
+public class ServerTimingSampler {
+	
+	/**
+	 * The cookie that holds the admin token.
+	 */
+	public static final String ADMIN_COOKIE = "shopify_server_timing";
+	
+	private final double sampleRate;
+	private final byte[] adminToken;
+	
+	/**
+	 * Create a ServerTimingSampler.
+	 * 
+	 * @param sampleRate The fraction of requests to time, from 0 to 1
+	 * @param adminToken The value of the admin cookie to time a request, or null
+	 */
+	public ServerTimingSampler(double sampleRate, String adminToken) {
+		if(sampleRate < 0 || sampleRate > 1) {
+			throw new RuntimeException("The sampling rate of the Server-Timing header must be between 0 and 1");
+		}
+		this.sampleRate = sampleRate;
+		this.adminToken = adminToken == null || adminToken.isEmpty() ? null : adminToken.getBytes(StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Whether to time the request.
+	 * 
+	 * @param request The request
+	 * @return true if the request has the admin token, or is sampled
+	 */
+	public boolean isTimed(HttpServletRequest request) {
+		if(hasAdminToken(request)) {
+			return true;
+		}
+		
+		return sampleRate > 0 && (sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate);
+	}
+	
+	public double getSampleRate() {
+		return sampleRate;
+	}
+	
+	private boolean hasAdminToken(HttpServletRequest request) {
+		if(adminToken == null) {
+			return false;
+		}
+		
+		Cookie[] cookies = request.getCookies();
+		
+		if(cookies == null) {
+			return false;
+		}
+		
+		for(Cookie cookie : cookies) {
+			if(ADMIN_COOKIE.equals(cookie.getName()) && cookie.getValue() != null
+					&& MessageDigest.isEqual(adminToken, cookie.getValue().getBytes(StandardCharsets.UTF_8))) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+
+}
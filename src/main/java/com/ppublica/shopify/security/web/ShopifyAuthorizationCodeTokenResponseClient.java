@@ -1,73 +1,125 @@
 package com.ppublica.shopify.security.web;
 
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.http.MediaType;
+import org.springframework.http.RequestEntity;
+import org.springframework.http.client.ClientHttpRequestFactory;
 import org.springframework.http.converter.FormHttpMessageConverter;
-import org.springframework.security.oauth2.client.endpoint.DefaultAuthorizationCodeTokenResponseClient;
 import org.springframework.security.oauth2.client.endpoint.OAuth2AccessTokenResponseClient;
 import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequestEntityConverter;
 import org.springframework.security.oauth2.client.http.OAuth2ErrorResponseErrorHandler;
 import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+import org.springframework.security.oauth2.core.OAuth2Error;
 import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenResponse;
 import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationExchange;
-import org.springframework.security.oauth2.core.http.converter.OAuth2AccessTokenResponseHttpMessageConverter;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseExtractor;
+import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestOperations;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
 
-import com.ppublica.shopify.security.converter.ShopifyOAuth2AccessTokenResponseConverter;
+import com.ppublica.shopify.security.authentication.ClientSecretKeyRing;
+import com.ppublica.shopify.security.converter.ShopifyAccessTokenResponseParser;
+import com.ppublica.shopify.security.events.ShopifyEvent;
+import com.ppublica.shopify.security.events.ShopifyEvents;
+import com.ppublica.shopify.security.resilience.ResilientCallExecutor;
 
 /**
- * An implementation of OAuth2AccessTokenResponseClient that decorates DefaultAuthorizationCodeTokenResponseClient.
- * It's invoked by OAuth2LoginAuthenticationProvider to obtain a OAuth2AccessTokenResponse.
+ * An implementation of OAuth2AccessTokenResponseClient that exchanges the authorization code for a token with the 
+ * store-specific token endpoint. It's invoked by OAuth2LoginAuthenticationProvider to obtain a OAuth2AccessTokenResponse.
  * 
- * <p>When OAuth2LoginAuthenticationProvider asks ShopifyAuthorizationCodeTokenResponseClient for a token response,
- * this class (DefaultAuthorizationCodeTokenResponseClient does the work) delegates to its converters: 
- * OAuth2AccessTokenResponseHttpMessageConverter and FormHttpMessageConverter.</p>
+ * <p>The request is built by OAuth2AuthorizationCodeGrantRequestEntityConverter, just like 
+ * DefaultAuthorizationCodeTokenResponseClient does, and errors are handled by OAuth2ErrorResponseErrorHandler.</p>
  * 
  * 
  * <p>This class has 3 main functions:</p>
  * <ul>
- * <li>It customizes the composite DefaultAuthorizationCodeTokenResponseClient by setting a custom 
- * Converter&lt;Map&lt;String, String&gt;, OAuth2AccessTokenResponse&gt; on the OAuth2AccessTokenResponseHttpMessageConverter. 
- * The custom converter is ShopifyOAuth2AccessTokenResponseConverter.</li>
- * 
- * 
  * <li>It expects to find an additional parameter in the OAuth2AuthorizationRequest: the shop name.
  * Since in Shopify every store has a unique tokenUri, this class uses the shop name to generate the store-specific
  * tokenUri, which it uses to create a new "store-specific ClientRegistration."</li>
  * 
  * 
- * <li> AFTER OBTAINING THE RESPONSE, it intercepts the default response client's OAuth2AccessTokenResponse, instead returning 
- * a new OAuth2AccessTokenResponse that contains the shop name as an additional parameter, since it'll be needed later 
+ * <li>It reads the response body with ShopifyAccessTokenResponseParser, which streams the JSON directly into an 
+ * OAuth2AccessTokenResponse (applying the same defaults as ShopifyOAuth2AccessTokenResponseConverter).</li>
+ * 
+ * 
+ * <li>The OAuth2AccessTokenResponse contains the shop name as an additional parameter, since it'll be needed later 
  * (OAuth2UserService needs it).</li>
  * </ul>
  * 
- * @see DefaultAuthorizationCodeTokenResponseClient
+ * <p>The calls to Shopify are made with the ClientHttpRequestFactory provided in the constructor. 
+ * ShopifyHttpTransport provides one that pools connections and bounds every call with timeouts. If a 
+ * ResilientCallExecutor is provided, failed calls are retried when it's safe to do so, and calls to a shop whose 
+ * circuit breaker is open fail immediately.</p>
+ * 
+ * <p>If a ClientSecretKeyRing is set, its current secret is sent instead of the ClientRegistration's, so that a 
+ * rotated secret is used without a restart.</p>
+ * 
+ * <p>Every exchange is recorded as a ShopifyTokenExchange event whose outcome is "success" or the error code (see 
+ * ShopifyEvents).</p>
+ * 
+ * @see ShopifyAccessTokenResponseParser
+ * @see ShopifyHttpTransport
  * @see org.springframework.security.oauth2.client.authentication.OAuth2LoginAuthenticationProvider
  * 
  */
 public class ShopifyAuthorizationCodeTokenResponseClient implements OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> {
 	private final Log logger = LogFactory.getLog(ShopifyAuthorizationCodeTokenResponseClient.class);
 
-	private DefaultAuthorizationCodeTokenResponseClient oAuth2AccessTokenResponseClient;
+	private static final String INVALID_TOKEN_RESPONSE_ERROR_CODE = "invalid_token_response";
+	
+	private final Converter<OAuth2AuthorizationCodeGrantRequest, RequestEntity<?>> requestEntityConverter = new OAuth2AuthorizationCodeGrantRequestEntityConverter();
+	private final FormHttpMessageConverter formConverter = new FormHttpMessageConverter();
+	private final ShopifyAccessTokenResponseParser responseParser = new ShopifyAccessTokenResponseParser();
+	
+	private RestOperations restOperations;
+	private final ResilientCallExecutor resilientCallExecutor;
+	private ClientSecretKeyRing clientSecretKeyRing;
 	
 	
 	
+	/**
+	 * Create a ShopifyAuthorizationCodeTokenResponseClient that calls Shopify using HttpURLConnection with the 
+	 * default timeouts.
+	 */
 	public ShopifyAuthorizationCodeTokenResponseClient() {
-		OAuth2AccessTokenResponseHttpMessageConverter accessTokenResponseConverter = new OAuth2AccessTokenResponseHttpMessageConverter();
-		accessTokenResponseConverter.setTokenResponseConverter(new ShopifyOAuth2AccessTokenResponseConverter());
-		RestTemplate restTemplate = new RestTemplate(Arrays.asList(
-			new FormHttpMessageConverter(), accessTokenResponseConverter));
+		this(ShopifyHttpTransport.defaultJdkRequestFactory());
+	}
+	
 	
+	/**
+	 * Create a ShopifyAuthorizationCodeTokenResponseClient that calls Shopify using the given ClientHttpRequestFactory.
+	 * 
+	 * @param requestFactory The ClientHttpRequestFactory, usually obtained from ShopifyHttpTransport
+	 */
+	public ShopifyAuthorizationCodeTokenResponseClient(ClientHttpRequestFactory requestFactory) {
+		this(requestFactory, ResilientCallExecutor.singleAttempt());
+	}
+	
+	
+	/**
+	 * Create a ShopifyAuthorizationCodeTokenResponseClient that calls Shopify using the given ClientHttpRequestFactory,
+	 * retrying and failing fast according to the ResilientCallExecutor.
+	 * 
+	 * @param requestFactory The ClientHttpRequestFactory, usually obtained from ShopifyHttpTransport
+	 * @param resilientCallExecutor Retries and per-shop circuit breakers
+	 */
+	public ShopifyAuthorizationCodeTokenResponseClient(ClientHttpRequestFactory requestFactory, ResilientCallExecutor resilientCallExecutor) {
+		this.resilientCallExecutor = resilientCallExecutor;
+		
+		RestTemplate restTemplate = new RestTemplate(requestFactory);
 		restTemplate.setErrorHandler(new OAuth2ErrorResponseErrorHandler());
 		
-		oAuth2AccessTokenResponseClient = new DefaultAuthorizationCodeTokenResponseClient();
-		oAuth2AccessTokenResponseClient.setRestOperations(restTemplate);
+		this.restOperations = restTemplate;
 		
 	}
 	
@@ -80,8 +132,6 @@ public class ShopifyAuthorizationCodeTokenResponseClient implements OAuth2Access
 		ClientRegistration currentRegistration = authorizationGrantRequest.getClientRegistration();
 		OAuth2AuthorizationExchange currentExchange = authorizationGrantRequest.getAuthorizationExchange();
 		
-		String tokenUriTemplate = currentRegistration.getProviderDetails().getTokenUri();
-		
 		Map<String,Object> additionalParams = currentExchange.getAuthorizationRequest().getAdditionalParameters();
 		
 		String shopName = (additionalParams.containsKey(ShopifyOAuth2AuthorizationRequestResolver.SHOPIFY_SHOP_PARAMETER_KEY_FOR_TOKEN)) ? (String)additionalParams.get(ShopifyOAuth2AuthorizationRequestResolver.SHOPIFY_SHOP_PARAMETER_KEY_FOR_TOKEN) : null;
@@ -90,6 +140,27 @@ public class ShopifyAuthorizationCodeTokenResponseClient implements OAuth2Access
 			throw new RuntimeException("Shop name not found in the OAuth2AuthorizationRequest");
 		}
 		
+		return exchange(shopName, currentRegistration, currentExchange);
+		
+	}
+	
+	// for testing purposes
+	public void setRestOperations(RestOperations restOperations) {
+		this.restOperations = restOperations;
+	}
+	
+	/**
+	 * Send the current secret of the key ring, instead of the ClientRegistration's.
+	 * 
+	 * @param clientSecretKeyRing The key ring, or null to use the ClientRegistration's secret
+	 */
+	public void setClientSecretKeyRing(ClientSecretKeyRing clientSecretKeyRing) {
+		this.clientSecretKeyRing = clientSecretKeyRing;
+	}
+	
+	private OAuth2AccessTokenResponse exchange(String shopName, ClientRegistration currentRegistration, OAuth2AuthorizationExchange currentExchange) {
+		String tokenUriTemplate = currentRegistration.getProviderDetails().getTokenUri();
+		
 		Map<String, String> uriVariables = new HashMap<>();
 		uriVariables.put(ShopifyOAuth2AuthorizationRequestResolver.SHOPIFY_SHOP_PARAMETER_KEY_FOR_TOKEN, shopName);
 		String tokenUri = UriComponentsBuilder
@@ -99,7 +170,7 @@ public class ShopifyAuthorizationCodeTokenResponseClient implements OAuth2Access
 
 		ClientRegistration newClientRegistration = ClientRegistration.withRegistrationId(currentRegistration.getRegistrationId())
 	            .clientId(currentRegistration.getClientId())
-	            .clientSecret(currentRegistration.getClientSecret())
+	            .clientSecret(clientSecretKeyRing != null ? clientSecretKeyRing.getCurrentSecret() : currentRegistration.getClientSecret())
 	            .clientAuthenticationMethod(currentRegistration.getClientAuthenticationMethod())
 	            .authorizationGrantType(currentRegistration.getAuthorizationGrantType())
 	            .redirectUriTemplate(currentRegistration.getRedirectUriTemplate())
@@ -113,43 +184,46 @@ public class ShopifyAuthorizationCodeTokenResponseClient implements OAuth2Access
 
 		logger.debug("Exchanging code for token with Shopify");
 
-		OAuth2AccessTokenResponse resp = oAuth2AccessTokenResponseClient.getTokenResponse(newGrantReq);
+		ShopifyEvent event = ShopifyEvents.tokenExchange();
+		long start = ServerTiming.start();
+		OAuth2AccessTokenResponse resp;
+		try {
+			resp = resilientCallExecutor.execute(shopName, () -> requestToken(newGrantReq, shopName));
+		} catch (OAuth2AuthorizationException e) {
+			event.record(shopName, tokenUriTemplate, e.getError().getErrorCode());
+			throw e;
+		} catch (RuntimeException e) {
+			event.record(shopName, tokenUriTemplate, e.getClass().getSimpleName());
+			throw e;
+		} finally {
+			ServerTiming.stop(ServerTiming.EXCHANGE, start);
+		}
+		event.record(shopName, tokenUriTemplate, "success");
 		
 		logger.debug("Obtained Shopify response for token");
-
-		Map<String, Object> newAdditionalParameters = new HashMap<>();
 		
-		Map<String, Object> oldAdditionalParameters = resp.getAdditionalParameters();
-		
-		if(oldAdditionalParameters != null && oldAdditionalParameters.size() > 0) {
-			newAdditionalParameters.putAll(oldAdditionalParameters);
-		}
-		
-		if(newAdditionalParameters.containsKey(ShopifyOAuth2AuthorizationRequestResolver.SHOPIFY_SHOP_PARAMETER_KEY_FOR_TOKEN)) {
-			newAdditionalParameters.replace(ShopifyOAuth2AuthorizationRequestResolver.SHOPIFY_SHOP_PARAMETER_KEY_FOR_TOKEN, shopName);
-
-		} else {
-			newAdditionalParameters.put(ShopifyOAuth2AuthorizationRequestResolver.SHOPIFY_SHOP_PARAMETER_KEY_FOR_TOKEN, shopName);
-		}
-				
-		return responseWithModAddParams(resp, newAdditionalParameters);
+		return resp;
 	}
 	
-	// for testing purposes
-	public void setRestOperations(RestOperations restOperations) {
-		oAuth2AccessTokenResponseClient.setRestOperations(restOperations);
-	}
-	
-	private OAuth2AccessTokenResponse responseWithModAddParams(OAuth2AccessTokenResponse response, Map<String, Object> params) {
-		
-		OAuth2AccessTokenResponse.Builder builder = OAuth2AccessTokenResponse.withResponse(response);
-		
-		builder.additionalParameters(params);
-		
-		return builder.build();
-		
+	@SuppressWarnings("unchecked")
+	private OAuth2AccessTokenResponse requestToken(OAuth2AuthorizationCodeGrantRequest grantRequest, String shopName) {
+		RequestEntity<?> request = requestEntityConverter.convert(grantRequest);
+		
+		RequestCallback writeForm = httpRequest -> {
+			httpRequest.getHeaders().putAll(request.getHeaders());
+			formConverter.write((MultiValueMap<String, ?>)request.getBody(), MediaType.APPLICATION_FORM_URLENCODED, httpRequest);
+		};
+		ResponseExtractor<OAuth2AccessTokenResponse> parseToken = httpResponse -> responseParser.parse(httpResponse.getBody(), shopName);
+		
+		try {
+			return restOperations.execute(request.getUrl(), request.getMethod(), writeForm, parseToken);
+			
+		} catch (RestClientException ex) {
+			OAuth2Error oauth2Error = new OAuth2Error(INVALID_TOKEN_RESPONSE_ERROR_CODE,
+					"An error occurred while attempting to retrieve the OAuth 2.0 Access Token Response: " + ex.getMessage(), null);
+			throw new OAuth2AuthorizationException(oauth2Error, ex);
+		}
 	}
 	
-	
-	
+
 }
@@ -12,6 +12,8 @@ import org.springframework.security.oauth2.client.web.HttpSessionOAuth2Authoriza
 import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
 import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
 
+import com.ppublica.shopify.security.serialization.CompactAuthorizationRequestMap;
+
 /**
  * 
  * A "pseudo-implementation" of AuthorizationRequestRepository that stores OAuth2AuthorizationRequest in the
@@ -27,7 +29,9 @@ import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
  * 
  * <p>In ShopifyOAuth2AuthorizationRequestResolver, when we call the saveAuthorizationRequest() method, we don't
  * have an HttpServletResponse. This class is functionally identical to the default, but with a different method
- * signature. The OAuth2AuthorizationRequest is saved in the session as a Map&lt;String, OAuth2AuthorizationRequest&gt;.</p>
+ * signature. The OAuth2AuthorizationRequest is saved in the session as a Map&lt;String, OAuth2AuthorizationRequest&gt;.
+ * The Map is a CompactAuthorizationRequestMap so that it has a compact serialized form when sessions are replicated
+ * or persisted.</p>
  * 
  * <p>In ShopifyVerificationStrategy, obtaining the client secret requires obtaining the saved OAuth2AuthorizationRequest,
  * or sometimes might require extracting the registration id from the request path to search for the ClientRegistration
@@ -65,8 +69,11 @@ public class ShopifyHttpSessionOAuth2AuthorizationRequestRepository {
 				(Map<String, OAuth2AuthorizationRequest>) session.getAttribute(DEFAULT_AUTHORIZATION_REQUEST_ATTR_NAME);
 		
 		if (authorizationRequests == null) {
-			authorizationRequests =  new HashMap<>();
-		}		
+			authorizationRequests =  new CompactAuthorizationRequestMap();
+		} else if (!(authorizationRequests instanceof CompactAuthorizationRequestMap)) {
+			// a Map saved by an older version, or by HttpSessionOAuth2AuthorizationRequestRepository
+			authorizationRequests = new CompactAuthorizationRequestMap(authorizationRequests);
+		}
 		
 		authorizationRequests.put(state, authorizationRequest);
 		
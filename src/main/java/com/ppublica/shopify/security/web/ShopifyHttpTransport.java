@@ -0,0 +1,281 @@
+package com.ppublica.shopify.security.web;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.util.ClassUtils;
+
+/**
+ * The HTTP transport used to call Shopify during the OAuth token exchange.
+ *
+ * <p>Every request is bounded by a connect timeout and a read timeout, and the number of requests that can be
+ * in flight at the same time is limited: a request that can't obtain a permit within the connection request
+ * timeout fails instead of waiting. This way a slow Shopify response can't pin servlet threads indefinitely
+ * during an install storm.</p>
+ *
+ * <p>Three implementations are available:</p>
+ * <ul>
+ * <li>"apache": if Apache HttpClient 4.5 is on the classpath, a pool of keep-alive connections is kept for each
+ * *.myshopify.com host (route), so the TLS handshake is not repeated for every install.</li>
+ * <li>"http2": on Java 11 and later, the JDK HttpClient, which keeps its connections open and multiplexes the
+ * requests to a store over one HTTP/2 connection when the store offers it. The max connections per host setting
+ * doesn't apply.</li>
+ * <li>"jdk": HttpURLConnection, which relies on the JDK keep-alive cache (see the http.maxConnections system
+ * property) for connection reuse.</li>
+ * </ul>
+ *
+ * <p>By default ("auto"), the Apache implementation is used if it's available, then the http2 implementation if
+ * the JVM is Java 11 or later.</p>
+ *
+ * @author N F
+ * @see ShopifyAuthorizationCodeTokenResponseClient
+ */
+public class ShopifyHttpTransport implements DisposableBean {
+	private final Log logger = LogFactory.getLog(ShopifyHttpTransport.class);
+
+	public static final String AUTO = "auto";
+	public static final String APACHE = "apache";
+	public static final String JDK = "jdk";
+	public static final String HTTP2 = "http2";
+
+	public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+	public static final int DEFAULT_READ_TIMEOUT = 10000;
+	public static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT = 5000;
+	public static final int DEFAULT_MAX_CONNECTIONS = 50;
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 5;
+
+	private static final boolean APACHE_PRESENT = ClassUtils.isPresent("org.apache.http.impl.conn.PoolingHttpClientConnectionManager",
+																		ShopifyHttpTransport.class.getClassLoader());
+
+	private final String implementation;
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final int connectionRequestTimeout;
+	private final int maxConnections;
+	private final int maxConnectionsPerHost;
+
+	private final ClientHttpRequestFactory requestFactory;
+	private final ConcurrencyLimitingClientHttpRequestFactory limitingRequestFactory;
+
+
+	/**
+	 * Create a ShopifyHttpTransport with the default settings.
+	 */
+	public ShopifyHttpTransport() {
+		this(null, null, null, null, null, null);
+	}
+
+	/**
+	 * Create a ShopifyHttpTransport. A null value selects the default.
+	 *
+	 * @param implementation "auto", "apache", "http2", or "jdk"
+	 * @param connectTimeout Milliseconds to wait for a connection to be established
+	 * @param readTimeout Milliseconds to wait for data once connected
+	 * @param connectionRequestTimeout Milliseconds to wait for a free connection or permit
+	 * @param maxConnections The maximum number of requests in flight
+	 * @param maxConnectionsPerHost The maximum number of pooled connections per Shopify store
+	 */
+	public ShopifyHttpTransport(String implementation, Integer connectTimeout, Integer readTimeout, Integer connectionRequestTimeout,
+								Integer maxConnections, Integer maxConnectionsPerHost) {
+
+		this.connectTimeout = valueOrDefault(connectTimeout, DEFAULT_CONNECT_TIMEOUT);
+		this.readTimeout = valueOrDefault(readTimeout, DEFAULT_READ_TIMEOUT);
+		this.connectionRequestTimeout = valueOrDefault(connectionRequestTimeout, DEFAULT_CONNECTION_REQUEST_TIMEOUT);
+		this.maxConnections = valueOrDefault(maxConnections, DEFAULT_MAX_CONNECTIONS);
+		this.maxConnectionsPerHost = Math.min(valueOrDefault(maxConnectionsPerHost, DEFAULT_MAX_CONNECTIONS_PER_HOST), this.maxConnections);
+		this.implementation = resolveImplementation(implementation);
+
+		ClientHttpRequestFactory delegate;
+		if(APACHE.equals(this.implementation)) {
+			delegate = ApacheRequestFactoryBuilder.build(this.connectTimeout, this.readTimeout, this.connectionRequestTimeout,
+														  this.maxConnections, this.maxConnectionsPerHost);
+		} else if(HTTP2.equals(this.implementation)) {
+			delegate = Http2RequestFactoryBuilder.build(this.connectTimeout, this.readTimeout);
+		} else {
+			delegate = jdkRequestFactory(this.connectTimeout, this.readTimeout);
+		}
+
+		this.limitingRequestFactory = new ConcurrencyLimitingClientHttpRequestFactory(delegate, this.maxConnections, this.connectionRequestTimeout);
+		this.requestFactory = delegate;
+
+		if(logger.isDebugEnabled()) {
+			logger.debug("***ShopifyHttpTransport using: ***");
+			logger.debug("Implementation:             " + this.implementation);
+			logger.debug("Connect timeout:            " + this.connectTimeout);
+			logger.debug("Read timeout:               " + this.readTimeout);
+			logger.debug("Connection request timeout: " + this.connectionRequestTimeout);
+			logger.debug("Max connections:            " + this.maxConnections);
+			logger.debug("Max connections per host:   " + this.maxConnectionsPerHost);
+		}
+
+	}
+
+	/**
+	 * The ClientHttpRequestFactory to use for calls to Shopify.
+	 *
+	 * @return The concurrency-limited ClientHttpRequestFactory
+	 */
+	public ClientHttpRequestFactory getRequestFactory() {
+		return this.limitingRequestFactory;
+	}
+
+	public String getImplementation() {
+		return this.implementation;
+	}
+
+	public int getConnectTimeout() {
+		return this.connectTimeout;
+	}
+
+	public int getReadTimeout() {
+		return this.readTimeout;
+	}
+
+	public int getConnectionRequestTimeout() {
+		return this.connectionRequestTimeout;
+	}
+
+	public int getMaxConnections() {
+		return this.maxConnections;
+	}
+
+	public int getMaxConnectionsPerHost() {
+		return this.maxConnectionsPerHost;
+	}
+
+	/**
+	 * The number of requests currently in flight.
+	 *
+	 * @return The number of requests in flight
+	 */
+	public int getActiveRequests() {
+		return this.limitingRequestFactory.getActiveRequests();
+	}
+
+	/**
+	 * The number of requests rejected because no permit was available within the connection request timeout.
+	 *
+	 * @return The number of rejected requests
+	 */
+	public long getRejectedRequests() {
+		return this.limitingRequestFactory.getRejectedRequests();
+	}
+
+
+	/**
+	 * Close the connection pool, if there is one.
+	 */
+	@Override
+	public void destroy() {
+		if(this.requestFactory instanceof DisposableBean) {
+			try {
+				((DisposableBean)this.requestFactory).destroy();
+			} catch (Exception e) {
+				logger.warn("Exception while closing the Shopify connection pool", e);
+			}
+		}
+
+	}
+
+
+	/**
+	 * A HttpURLConnection-based factory with the default timeouts. It doesn't hold resources that need to be released.
+	 *
+	 * @return A ClientHttpRequestFactory
+	 */
+	public static ClientHttpRequestFactory defaultJdkRequestFactory() {
+		return jdkRequestFactory(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+	}
+
+	private static ClientHttpRequestFactory jdkRequestFactory(int connectTimeout, int readTimeout) {
+		SimpleClientHttpRequestFactory factory = new SimpleClientHttpRequestFactory();
+		factory.setConnectTimeout(connectTimeout);
+		factory.setReadTimeout(readTimeout);
+
+		return factory;
+	}
+
+	private static String resolveImplementation(String implementation) {
+		if(implementation == null || implementation.trim().isEmpty() || AUTO.equalsIgnoreCase(implementation.trim())) {
+			if(APACHE_PRESENT) {
+				return APACHE;
+			}
+			return Http2RequestFactoryBuilder.isAvailable() ? HTTP2 : JDK;
+		}
+
+		String impl = implementation.trim().toLowerCase();
+
+		if(APACHE.equals(impl)) {
+			if(!APACHE_PRESENT) {
+				throw new RuntimeException("The apache HTTP transport requires org.apache.httpcomponents:httpclient on the classpath");
+			}
+			return APACHE;
+		}
+
+		if(HTTP2.equals(impl)) {
+			if(!Http2RequestFactoryBuilder.isAvailable()) {
+				throw new RuntimeException("The http2 HTTP transport requires Java 11 or later");
+			}
+			return HTTP2;
+		}
+
+		if(JDK.equals(impl)) {
+			return JDK;
+		}
+
+		throw new RuntimeException("Unknown HTTP transport: " + implementation + ". Use one of: auto, apache, http2, jdk");
+
+	}
+
+	private static int valueOrDefault(Integer value, int defaultValue) {
+		if(value == null) {
+			return defaultValue;
+		}
+		if(value <= 0) {
+			throw new RuntimeException("HTTP transport settings must be positive: " + value);
+		}
+		return value;
+	}
+
+
+	/*
+	 * Isolates the references to Apache HttpClient so that this class can be loaded without it.
+	 */
+	private static class ApacheRequestFactoryBuilder {
+
+		static ClientHttpRequestFactory build(int connectTimeout, int readTimeout, int connectionRequestTimeout,
+											  int maxConnections, int maxConnectionsPerHost) {
+			PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(5, TimeUnit.MINUTES);
+			connectionManager.setMaxTotal(maxConnections);
+			connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+			connectionManager.setValidateAfterInactivity(2000);
+
+			RequestConfig requestConfig = RequestConfig.custom()
+					.setConnectTimeout(connectTimeout)
+					.setSocketTimeout(readTimeout)
+					.setConnectionRequestTimeout(connectionRequestTimeout)
+					.build();
+
+			CloseableHttpClient httpClient = HttpClients.custom()
+					.setConnectionManager(connectionManager)
+					.setDefaultRequestConfig(requestConfig)
+					.evictIdleConnections(60, TimeUnit.SECONDS)
+					.evictExpiredConnections()
+					.disableCookieManagement()
+					.build();
+
+			// closing the factory closes the client and its connection pool
+			return new HttpComponentsClientHttpRequestFactory(httpClient);
+		}
+	}
+
+}
@@ -147,6 +147,8 @@ public class ShopifyOAuth2AuthorizationRequestResolver implements OAuth2Authoriz
 			return redirectToLogin();
 		}
 		
+		long start = ServerTiming.start();
+		
 		// obtain a ClientRegistration for extracted registrationId
 		ClientRegistration clientRegistration = this.clientRegistrationRepository.findByRegistrationId(registrationId);
 		if (clientRegistration == null) {
@@ -192,6 +194,8 @@ public class ShopifyOAuth2AuthorizationRequestResolver implements OAuth2Authoriz
 		// DO NOT redirect, build redirecturi: DefaultRedirectStrategy		
 		authorizationRedirectStrategy.saveRedirectAuthenticationUris(request, authorizationRequest);
 		
+		ServerTiming.stop(ServerTiming.RESOLVE, start);
+		
 		return null;
 	}
 
@@ -0,0 +1,121 @@
+package com.ppublica.shopify.security.webhook;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * A request whose body is read once, when it's wrapped, so that it can be verified and then read again (or handed
+ * to a worker thread) after the original input stream has been consumed. The body is read with a 
+ * WebhookBodyReader, so it can't be larger than its maximum.
+ *
+ * @author N F
+ * @see WebhookExecutor
+ * @see WebhookBodyReader
+ */
+public class CachedBodyRequest extends HttpServletRequestWrapper {
+
+	private final byte[] body;
+
+	/**
+	 * Wrap the request and read its body, up to the default maximum size.
+	 *
+	 * @param request The request
+	 * @throws IOException If the body can't be read
+	 */
+	public CachedBodyRequest(HttpServletRequest request) throws IOException {
+		this(request, new WebhookBodyReader());
+	}
+
+	/**
+	 * Wrap the request and read its body.
+	 *
+	 * @param request The request
+	 * @param bodyReader To read the body
+	 * @throws WebhookBodyReader.BodyTooLargeException If the body is larger than the maximum of the reader
+	 * @throws IOException If the body can't be read
+	 */
+	public CachedBodyRequest(HttpServletRequest request, WebhookBodyReader bodyReader) throws IOException {
+		super(request);
+		this.body = bodyReader.read(request);
+	}
+
+	/**
+	 * The raw body.
+	 *
+	 * @return The body bytes; not a copy, so it must not be modified
+	 */
+	public byte[] getBody() {
+		return this.body;
+	}
+
+	@Override
+	public ServletInputStream getInputStream() {
+		return new ByteArrayServletInputStream(body);
+	}
+
+	@Override
+	public BufferedReader getReader() {
+		String encoding = getCharacterEncoding();
+		Charset charset = encoding != null ? Charset.forName(encoding) : StandardCharsets.UTF_8;
+
+		return new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body), charset));
+	}
+
+
+	private static class ByteArrayServletInputStream extends ServletInputStream {
+		private final ByteArrayInputStream in;
+
+		ByteArrayServletInputStream(byte[] body) {
+			this.in = new ByteArrayInputStream(body);
+		}
+
+		@Override
+		public int read() {
+			return in.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			return in.read(b, off, len);
+		}
+
+		@Override
+		public boolean isFinished() {
+			return in.available() == 0;
+		}
+
+		@Override
+		public boolean isReady() {
+			return true;
+		}
+
+		/*
+		 * The body is already in memory: it's all available right away.
+		 */
+		@Override
+		public void setReadListener(ReadListener readListener) {
+			if(readListener == null) {
+				throw new NullPointerException("The ReadListener can't be null");
+			}
+
+			try {
+				if(!isFinished()) {
+					readListener.onDataAvailable();
+				}
+				readListener.onAllDataRead();
+			} catch (IOException | RuntimeException e) {
+				readListener.onError(e);
+			}
+		}
+	}
+
+}
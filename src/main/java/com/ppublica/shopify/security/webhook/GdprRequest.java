@@ -0,0 +1,82 @@
+package com.ppublica.shopify.security.webhook;
+
+/**
+ * The fields of a GDPR webhook ("customers/data_request", "customers/redact", or "shop/redact") that an app needs
+ * to act on it. Fields the payload doesn't have are null.
+ *
+ * @author N F
+ * @see GdprWebhookHandler
+ * @see GdprWebhookCallback
+ */
+public class GdprRequest {
+
+	private final String topic;
+	private final String webhookId;
+	private final Long shopId;
+	private final String shopDomain;
+	private final Long customerId;
+	private final String customerEmail;
+	private final String customerPhone;
+	private final long[] orderIds;
+	private final Long dataRequestId;
+
+	GdprRequest(String topic, String webhookId, Long shopId, String shopDomain, Long customerId, String customerEmail,
+					String customerPhone, long[] orderIds, Long dataRequestId) {
+		this.topic = topic;
+		this.webhookId = webhookId;
+		this.shopId = shopId;
+		this.shopDomain = shopDomain;
+		this.customerId = customerId;
+		this.customerEmail = customerEmail;
+		this.customerPhone = customerPhone;
+		this.orderIds = orderIds;
+		this.dataRequestId = dataRequestId;
+	}
+
+	public String getTopic() {
+		return topic;
+	}
+
+	public String getWebhookId() {
+		return webhookId;
+	}
+
+	public Long getShopId() {
+		return shopId;
+	}
+
+	public String getShopDomain() {
+		return shopDomain;
+	}
+
+	public Long getCustomerId() {
+		return customerId;
+	}
+
+	public String getCustomerEmail() {
+		return customerEmail;
+	}
+
+	public String getCustomerPhone() {
+		return customerPhone;
+	}
+
+	/**
+	 * The "orders_requested" of a data request, or the "orders_to_redact" of a customer redaction.
+	 *
+	 * @return The order ids; empty if there are none
+	 */
+	public long[] getOrderIds() {
+		return orderIds;
+	}
+
+	/**
+	 * The id of the "data_request" of a data request.
+	 *
+	 * @return The id, or null
+	 */
+	public Long getDataRequestId() {
+		return dataRequestId;
+	}
+
+}
@@ -0,0 +1,45 @@
+package com.ppublica.shopify.security.webhook;
+
+/**
+ * Implemented by the application to act on Shopify's mandatory GDPR webhooks. Beans of this type are found by
+ * SecurityBeansConfig and called by GdprWebhookHandler.
+ *
+ * <p>The methods are called after Shopify has received its 200, on one of the GdprWebhookHandler's few callback 
+ * threads, which all the GDPR webhooks share. They should record the request and return: Shopify gives an app 30 
+ * days to complete a request, so the work itself (an export, a deletion) belongs in the application's own jobs. 
+ * The methods must be thread-safe.</p>
+ *
+ * <p>A method that throws is logged, and the other callbacks are still called. The webhook then counts as failed: 
+ * if there's a WebhookJournal, it's replayed on the next startup and every callback is called again, so the 
+ * methods must be idempotent. Without a journal, the webhook is lost, since Shopify won't send it again.</p>
+ *
+ * @author N F
+ * @see GdprWebhookHandler
+ */
+public interface GdprWebhookCallback {
+
+	/**
+	 * A customer asked for their data: the app should send the store owner the data it holds about the customer
+	 * and the given orders.
+	 *
+	 * @param request The "customers/data_request" webhook
+	 */
+	default void customerDataRequested(GdprRequest request) { }
+
+	/**
+	 * The store owner asked to delete a customer's data: the app should delete what it holds about the customer
+	 * and the given orders.
+	 *
+	 * @param request The "customers/redact" webhook
+	 */
+	default void customerRedacted(GdprRequest request) { }
+
+	/**
+	 * The app was uninstalled 48 hours ago: the app should delete what it holds about the shop. The shop's token
+	 * has already been removed when this is called.
+	 *
+	 * @param request The "shop/redact" webhook
+	 */
+	default void shopRedacted(GdprRequest request) { }
+
+}
@@ -0,0 +1,355 @@
+package com.ppublica.shopify.security.webhook;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Handles Shopify's mandatory GDPR webhooks: "customers/data_request", "customers/redact", and "shop/redact".
+ *
+ * <p>The payload is read with a streaming parser: only the shop, the customer, the order ids, and the data request
+ * id are read, without building a JSON tree, and anything else (however large) is skipped. The order ids are
+ * collected into a long[].</p>
+ *
+ * <p>For "shop/redact", the shop's token is removed with UninstallWebhookHandler (which also evicts it from the
+ * OAuth2AuthorizedClientService's cache) on the shop's WebhookExecutor lane, before the application is told.</p>
+ *
+ * <p>The GdprWebhookCallbacks are then called in turn on a dedicated executor, so that a slow callback doesn't hold 
+ * up the other webhooks of the shop's lane. Each callback is called even if one before it threw. The future 
+ * returned by handleAsync(...) completes when they have all returned, and fails if one of them threw: with a 
+ * WebhookJournal, the webhook is then replayed on the next startup, and every callback is called again.</p>
+ *
+ * @author N F
+ * @see GdprWebhookCallback
+ * @see com.ppublica.shopify.security.filters.ShopifyWebhookFilter
+ */
+public class GdprWebhookHandler implements WebhookHandler, DisposableBean {
+	private final Log logger = LogFactory.getLog(GdprWebhookHandler.class);
+
+	public static final String CUSTOMERS_DATA_REQUEST_TOPIC = "customers/data_request";
+	public static final String CUSTOMERS_REDACT_TOPIC = "customers/redact";
+	public static final String SHOP_REDACT_TOPIC = "shop/redact";
+
+	private static final List<String> TOPICS = Collections.unmodifiableList(Arrays.asList(CUSTOMERS_DATA_REQUEST_TOPIC,
+																				CUSTOMERS_REDACT_TOPIC, SHOP_REDACT_TOPIC));
+
+	// GDPR webhooks are rare: a couple of threads are enough, and a slow callback only delays other GDPR callbacks
+	private static final int CALLBACK_THREADS = 2;
+
+	private final UninstallWebhookHandler uninstallHandler;
+	private final List<GdprWebhookCallback> callbacks;
+	private final JsonFactory jsonFactory;
+	private final ExecutorService ownExecutor;
+	private volatile Executor callbackExecutor;
+
+	private final AtomicLong dataRequestCount = new AtomicLong();
+	private final AtomicLong customerRedactCount = new AtomicLong();
+	private final AtomicLong shopRedactCount = new AtomicLong();
+
+	/**
+	 * Create a GdprWebhookHandler.
+	 *
+	 * @param uninstallHandler To remove the shop's token on "shop/redact"
+	 * @param callbacks The application callbacks; may be empty
+	 */
+	public GdprWebhookHandler(UninstallWebhookHandler uninstallHandler, List<GdprWebhookCallback> callbacks) {
+		this(uninstallHandler, callbacks, new JsonFactory());
+	}
+
+	/**
+	 * Create a GdprWebhookHandler.
+	 *
+	 * @param uninstallHandler To remove the shop's token on "shop/redact"
+	 * @param callbacks The application callbacks; may be empty
+	 * @param jsonFactory To parse the payloads
+	 */
+	public GdprWebhookHandler(UninstallWebhookHandler uninstallHandler, List<GdprWebhookCallback> callbacks, JsonFactory jsonFactory) {
+		this.uninstallHandler = uninstallHandler;
+		this.callbacks = callbacks;
+		this.jsonFactory = jsonFactory;
+
+		AtomicInteger count = new AtomicInteger();
+		this.ownExecutor = Executors.newFixedThreadPool(CALLBACK_THREADS, r -> {
+			Thread thread = new Thread(r, "shopify-gdpr-callback-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.callbackExecutor = ownExecutor;
+	}
+
+	/**
+	 * Call the GdprWebhookCallbacks on the given executor instead of the handler's own threads.
+	 *
+	 * @param callbackExecutor The executor
+	 */
+	public void setCallbackExecutor(Executor callbackExecutor) {
+		this.callbackExecutor = callbackExecutor;
+		ownExecutor.shutdown();
+	}
+
+	@Override
+	public Collection<String> getTopics() {
+		return TOPICS;
+	}
+
+	@Override
+	public void handle(ShopifyWebhook webhook) {
+		handleAsync(webhook).join();
+	}
+
+	/**
+	 * Parse the webhook and start calling the callbacks on the callback executor. For "shop/redact", the token is 
+	 * removed before returning, and the callbacks are called after.
+	 *
+	 * @param webhook The verified webhook
+	 * @return A future that completes when the callbacks have returned, or fails if one of them threw
+	 */
+	@Override
+	public CompletableFuture<Void> handleAsync(ShopifyWebhook webhook) {
+		GdprRequest request = parse(webhook);
+
+		switch(request.getTopic()) {
+			case CUSTOMERS_DATA_REQUEST_TOPIC:
+				dataRequestCount.incrementAndGet();
+				return callBack(request, GdprWebhookCallback::customerDataRequested);
+
+			case CUSTOMERS_REDACT_TOPIC:
+				customerRedactCount.incrementAndGet();
+				return callBack(request, GdprWebhookCallback::customerRedacted);
+
+			case SHOP_REDACT_TOPIC:
+				shopRedactCount.incrementAndGet();
+				if(request.getShopDomain() == null) {
+					logger.warn("No shop_domain found in the " + SHOP_REDACT_TOPIC + " webhook");
+					return CompletableFuture.completedFuture(null);
+				}
+				// wait for the removal, so the shop's lane doesn't move on before it's done
+				uninstallHandler.uninstall(request.getShopDomain());
+				return callBack(request, GdprWebhookCallback::shopRedacted);
+
+			default:
+				throw new IllegalArgumentException("Not a GDPR webhook: " + request.getTopic());
+		}
+	}
+
+	/**
+	 * Stop the handler's own callback threads. The callbacks not called yet leave their webhooks in the 
+	 * WebhookJournal, if there's one.
+	 */
+	@Override
+	public void destroy() {
+		ownExecutor.shutdownNow();
+	}
+
+	public long getDataRequestCount() {
+		return dataRequestCount.get();
+	}
+
+	public long getCustomerRedactCount() {
+		return customerRedactCount.get();
+	}
+
+	public long getShopRedactCount() {
+		return shopRedactCount.get();
+	}
+
+	private CompletableFuture<Void> callBack(GdprRequest request, BiConsumer<GdprWebhookCallback, GdprRequest> method) {
+		if(callbacks.isEmpty()) {
+			return CompletableFuture.completedFuture(null);
+		}
+
+		try {
+			return CompletableFuture.runAsync(() -> callEach(request, method), callbackExecutor);
+		} catch (RejectedExecutionException e) {
+			CompletableFuture<Void> result = new CompletableFuture<>();
+			result.completeExceptionally(e);
+			return result;
+		}
+	}
+
+	/*
+	 * Every callback is called, even if one before it threw. The first exception is rethrown at the end, with the
+	 * others suppressed.
+	 */
+	private void callEach(GdprRequest request, BiConsumer<GdprWebhookCallback, GdprRequest> method) {
+		RuntimeException failure = null;
+
+		for(GdprWebhookCallback callback : callbacks) {
+			try {
+				method.accept(callback, request);
+			} catch (RuntimeException e) {
+				logger.warn("GdprWebhookCallback " + callback.getClass().getSimpleName() + " failed on webhook " + request.getTopic(), e);
+				if(failure == null) {
+					failure = e;
+				} else {
+					failure.addSuppressed(e);
+				}
+			}
+		}
+
+		if(failure != null) {
+			throw failure;
+		}
+	}
+
+	/*
+	 * Read the top-level fields that matter, and skip the others without materializing them.
+	 */
+	GdprRequest parse(ShopifyWebhook webhook) {
+		Long shopId = null;
+		String shopDomain = null;
+		Long[] customer = new Long[1];
+		String[] contact = new String[2];
+		long[] orderIds = new long[0];
+		Long dataRequestId = null;
+
+		try (InputStream body = webhook.getBodyAsStream();
+				JsonParser parser = jsonFactory.createParser(body)) {
+
+			if(parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new JsonParseException(parser, "Expected a JSON object");
+			}
+
+			while(parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+
+				switch(name) {
+					case "shop_id":
+						shopId = longValue(parser, value);
+						break;
+					case "shop_domain":
+						shopDomain = value == JsonToken.VALUE_STRING ? parser.getText() : null;
+						break;
+					case "customer":
+						readCustomer(parser, value, customer, contact);
+						break;
+					case "orders_requested":
+					case "orders_to_redact":
+						orderIds = readIds(parser, value);
+						break;
+					case "data_request":
+						dataRequestId = readId(parser, value);
+						break;
+					default:
+						parser.skipChildren();
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("The body of webhook " + webhook.getTopic() + " is not a JSON object", e);
+		}
+
+		if(shopDomain == null || shopDomain.isEmpty()) {
+			shopDomain = webhook.getShopDomain();
+		}
+
+		return new GdprRequest(webhook.getTopic(), webhook.getWebhookId(), shopId, shopDomain, customer[0], contact[0],
+								contact[1], orderIds, dataRequestId);
+	}
+
+	private static void readCustomer(JsonParser parser, JsonToken value, Long[] customer, String[] contact) throws IOException {
+		if(value != JsonToken.START_OBJECT) {
+			parser.skipChildren();
+			return;
+		}
+
+		while(parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			JsonToken fieldValue = parser.nextToken();
+
+			if("id".equals(name)) {
+				customer[0] = longValue(parser, fieldValue);
+			} else if("email".equals(name) && fieldValue == JsonToken.VALUE_STRING) {
+				contact[0] = parser.getText();
+			} else if("phone".equals(name) && fieldValue == JsonToken.VALUE_STRING) {
+				contact[1] = parser.getText();
+			} else {
+				parser.skipChildren();
+			}
+		}
+	}
+
+	private static Long readId(JsonParser parser, JsonToken value) throws IOException {
+		if(value != JsonToken.START_OBJECT) {
+			parser.skipChildren();
+			return null;
+		}
+
+		Long id = null;
+		while(parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			JsonToken fieldValue = parser.nextToken();
+
+			if("id".equals(name)) {
+				id = longValue(parser, fieldValue);
+			} else {
+				parser.skipChildren();
+			}
+		}
+		return id;
+	}
+
+	private static long[] readIds(JsonParser parser, JsonToken value) throws IOException {
+		if(value != JsonToken.START_ARRAY) {
+			parser.skipChildren();
+			return new long[0];
+		}
+
+		long[] ids = new long[16];
+		int count = 0;
+
+		JsonToken element;
+		while((element = parser.nextToken()) != JsonToken.END_ARRAY) {
+			Long id = longValue(parser, element);
+			if(id == null) {
+				continue;
+			}
+			if(count == ids.length) {
+				ids = Arrays.copyOf(ids, count * 2);
+			}
+			ids[count++] = id;
+		}
+
+		return Arrays.copyOf(ids, count);
+	}
+
+	/*
+	 * Shopify sends ids as numbers, but accept them as strings too.
+	 */
+	private static Long longValue(JsonParser parser, JsonToken value) throws IOException {
+		if(value == JsonToken.VALUE_NUMBER_INT) {
+			return parser.getLongValue();
+		}
+		if(value == JsonToken.VALUE_STRING) {
+			try {
+				return Long.valueOf(parser.getText().trim());
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		parser.skipChildren();
+		return null;
+	}
+
+}
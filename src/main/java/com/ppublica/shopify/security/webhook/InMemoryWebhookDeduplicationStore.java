@@ -0,0 +1,103 @@
+package com.ppublica.shopify.security.webhook;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ppublica.shopify.security.cache.ExpiringCache;
+
+/**
+ * A WebhookDeduplicationStore that keeps the webhook ids in a bounded, expiring in-memory map.
+ *
+ * <p>When the app runs on several nodes, a retry can reach a different node than the original delivery. In that
+ * case, a shared backing store (like JdbcWebhookDeduplicationStore) can be provided: it's only consulted for ids
+ * this node hasn't seen, so duplicates that reach the same node never cause a database call.</p>
+ *
+ * @author N F
+ * @see JdbcWebhookDeduplicationStore
+ */
+public class InMemoryWebhookDeduplicationStore implements WebhookDeduplicationStore {
+
+	private final ExpiringCache<String, Boolean> seen;
+	private final WebhookDeduplicationStore backingStore;
+
+	private final AtomicLong duplicateCount = new AtomicLong();
+
+	/**
+	 * Create an InMemoryWebhookDeduplicationStore with no backing store.
+	 *
+	 * @param seen The cache of ids. Its ttl is how long an id is remembered.
+	 */
+	public InMemoryWebhookDeduplicationStore(ExpiringCache<String, Boolean> seen) {
+		this(seen, null);
+	}
+
+	/**
+	 * Create an InMemoryWebhookDeduplicationStore.
+	 *
+	 * @param seen The cache of ids. Its ttl is how long an id is remembered.
+	 * @param backingStore A store shared by all nodes, or null
+	 */
+	public InMemoryWebhookDeduplicationStore(ExpiringCache<String, Boolean> seen, WebhookDeduplicationStore backingStore) {
+		this.seen = seen;
+		this.backingStore = backingStore;
+	}
+
+	@Override
+	public boolean markIfFirstDelivery(String webhookId) {
+		if(seen.putIfAbsent(webhookId, Boolean.TRUE) != null) {
+			duplicateCount.incrementAndGet();
+			return false;
+		}
+
+		if(backingStore != null && !markInBackingStore(webhookId)) {
+			duplicateCount.incrementAndGet();
+			return false;
+		}
+
+		return true;
+	}
+
+	/*
+	 * If the backing store fails, the delivery isn't accepted: the id is unmarked here too, or Shopify's retry 
+	 * would be dropped as a duplicate.
+	 */
+	private boolean markInBackingStore(String webhookId) {
+		try {
+			return backingStore.markIfFirstDelivery(webhookId);
+		} catch (RuntimeException e) {
+			seen.remove(webhookId);
+			throw e;
+		}
+	}
+
+	@Override
+	public void forget(String webhookId) {
+		seen.remove(webhookId);
+
+		if(backingStore != null) {
+			backingStore.forget(webhookId);
+		}
+	}
+
+	/**
+	 * The number of duplicate deliveries detected.
+	 *
+	 * @return The number of duplicates
+	 */
+	public long getDuplicateCount() {
+		return duplicateCount.get();
+	}
+
+	/**
+	 * The number of ids held in memory.
+	 *
+	 * @return The number of ids
+	 */
+	public int size() {
+		return seen.size();
+	}
+
+	public WebhookDeduplicationStore getBackingStore() {
+		return this.backingStore;
+	}
+
+}
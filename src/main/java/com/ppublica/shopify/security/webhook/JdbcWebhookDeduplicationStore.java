@@ -0,0 +1,87 @@
+package com.ppublica.shopify.security.webhook;
+
+import java.time.Clock;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * A WebhookDeduplicationStore that records webhook ids in a SQL table, so that all the nodes of the app share
+ * them. The table is expected to have the following schema:
+ *
+ * <pre>
+ * CREATE TABLE ShopifyWebhooks(webhookId VARCHAR(100) NOT NULL PRIMARY KEY, receivedAt BIGINT NOT NULL)
+ * </pre>
+ *
+ * <p>The primary key makes the first insert win. An id older than the ttl is treated as new, and expired rows are
+ * deleted periodically.</p>
+ *
+ * @author N F
+ * @see InMemoryWebhookDeduplicationStore
+ */
+public class JdbcWebhookDeduplicationStore implements WebhookDeduplicationStore {
+	private final Log logger = LogFactory.getLog(JdbcWebhookDeduplicationStore.class);
+
+	private static final String INSERT_WEBHOOK = "INSERT INTO ShopifyWebhooks(webhookId,receivedAt) VALUES(?,?)";
+	private static final String RENEW_EXPIRED_WEBHOOK = "UPDATE ShopifyWebhooks SET receivedAt=? WHERE webhookId=? AND receivedAt<?";
+	private static final String REMOVE_WEBHOOK = "DELETE FROM ShopifyWebhooks WHERE webhookId=?";
+	private static final String REMOVE_EXPIRED_WEBHOOKS = "DELETE FROM ShopifyWebhooks WHERE receivedAt<?";
+
+	public static final int PURGE_INTERVAL = 1000;
+
+	private final JdbcTemplate jdbc;
+	private final long ttlMillis;
+	private final Clock clock;
+
+	private final AtomicLong inserts = new AtomicLong();
+
+	public JdbcWebhookDeduplicationStore(JdbcTemplate jdbc, long ttlMillis) {
+		this(jdbc, ttlMillis, Clock.systemUTC());
+	}
+
+	public JdbcWebhookDeduplicationStore(JdbcTemplate jdbc, long ttlMillis, Clock clock) {
+		this.jdbc = jdbc;
+		this.ttlMillis = ttlMillis;
+		this.clock = clock;
+	}
+
+	@Override
+	public boolean markIfFirstDelivery(String webhookId) {
+		long now = clock.millis();
+
+		if(inserts.incrementAndGet() % PURGE_INTERVAL == 0) {
+			purgeExpired();
+		}
+
+		try {
+			jdbc.update(INSERT_WEBHOOK, webhookId, now);
+			return true;
+
+		} catch (DuplicateKeyException e) {
+			// seen before... but maybe so long ago that it's a new delivery
+			return jdbc.update(RENEW_EXPIRED_WEBHOOK, now, webhookId, now - ttlMillis) == 1;
+		}
+	}
+
+	@Override
+	public void forget(String webhookId) {
+		jdbc.update(REMOVE_WEBHOOK, webhookId);
+	}
+
+	/**
+	 * Delete the ids older than the ttl.
+	 *
+	 * @return The number of ids deleted
+	 */
+	public int purgeExpired() {
+		int removed = jdbc.update(REMOVE_EXPIRED_WEBHOOKS, clock.millis() - ttlMillis);
+
+		logger.debug("Removed " + removed + " expired webhook ids");
+
+		return removed;
+	}
+
+}
@@ -0,0 +1,104 @@
+package com.ppublica.shopify.security.webhook;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Reads a few top-level fields of a JSON object without binding the rest of it.
+ *
+ * <p>Webhook payloads are often large (the "app/uninstalled" payload is the entire shop object) while a handler
+ * only needs one or two fields. The extractor streams through the object: the values of other fields, including
+ * nested objects and arrays, are skipped without being materialized, and parsing stops as soon as every requested
+ * field has been found.</p>
+ *
+ * <p>Values are returned as Strings (numbers and booleans as their text). A requested field whose value is an
+ * object or an array is returned as null.</p>
+ *
+ * @author N F
+ * @see ShopifyWebhook#extractFields(String...)
+ */
+public class JsonFieldExtractor {
+
+	private final JsonFactory jsonFactory;
+	private final Set<String> fields;
+
+	/**
+	 * Create a JsonFieldExtractor.
+	 *
+	 * @param jsonFactory To create the parser
+	 * @param fields The names of the top-level fields to read
+	 */
+	public JsonFieldExtractor(JsonFactory jsonFactory, String... fields) {
+		this.jsonFactory = jsonFactory;
+		this.fields = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(fields)));
+	}
+
+	public Set<String> getFields() {
+		return this.fields;
+	}
+
+	/**
+	 * Read the fields from the JSON body.
+	 *
+	 * @param body The body
+	 * @return The fields that were found, by name
+	 * @throws IOException If the body isn't a JSON object
+	 */
+	public Map<String, String> extract(byte[] body) throws IOException {
+		try (JsonParser parser = jsonFactory.createParser(body)) {
+			return extract(parser);
+		}
+	}
+
+	/**
+	 * Read the fields from the JSON body. The stream is not read past the last field that's needed.
+	 *
+	 * @param body The body
+	 * @return The fields that were found, by name
+	 * @throws IOException If the body can't be read or isn't a JSON object
+	 */
+	public Map<String, String> extract(InputStream body) throws IOException {
+		try (JsonParser parser = jsonFactory.createParser(body)) {
+			return extract(parser);
+		}
+	}
+
+	private Map<String, String> extract(JsonParser parser) throws IOException {
+		if(parser.nextToken() != JsonToken.START_OBJECT) {
+			throw new JsonParseException(parser, "Expected a JSON object");
+		}
+
+		Map<String, String> found = new HashMap<>(fields.size() * 2);
+
+		while(found.size() < fields.size() && parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+
+			if(!fields.contains(name)) {
+				parser.skipChildren();
+				continue;
+			}
+
+			if(value.isStructStart()) {
+				parser.skipChildren();
+				found.put(name, null);
+			} else {
+				found.put(name, value == JsonToken.VALUE_NULL ? null : parser.getValueAsString());
+			}
+		}
+
+		return found;
+	}
+
+}
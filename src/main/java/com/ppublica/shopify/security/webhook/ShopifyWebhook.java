@@ -0,0 +1,141 @@
+package com.ppublica.shopify.security.webhook;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A webhook whose HMAC has been verified. It holds the raw body exactly as Shopify sent it; the body is only
+ * parsed as JSON the first time a handler asks for it, and handlers that need a few fields can read just those
+ * (see extractFields(...)).
+ *
+ * @author N F
+ * @see WebhookHandler
+ * @see com.ppublica.shopify.security.filters.ShopifyWebhookFilter
+ */
+public class ShopifyWebhook {
+	public static final String TOPIC_HEADER = "X-Shopify-Topic";
+	public static final String SHOP_DOMAIN_HEADER = "X-Shopify-Shop-Domain";
+	public static final String WEBHOOK_ID_HEADER = "X-Shopify-Webhook-Id";
+	public static final String API_VERSION_HEADER = "X-Shopify-API-Version";
+
+	private final String topic;
+	private final String shopDomain;
+	private final String webhookId;
+	private final String apiVersion;
+	private final byte[] body;
+	private final ObjectMapper objectMapper;
+
+	private volatile JsonNode json;
+
+	/**
+	 * Create a ShopifyWebhook.
+	 *
+	 * @param topic The value of the X-Shopify-Topic header
+	 * @param shopDomain The value of the X-Shopify-Shop-Domain header
+	 * @param webhookId The value of the X-Shopify-Webhook-Id header
+	 * @param apiVersion The value of the X-Shopify-API-Version header
+	 * @param body The verified body. It's not copied.
+	 * @param objectMapper To parse the body
+	 */
+	public ShopifyWebhook(String topic, String shopDomain, String webhookId, String apiVersion, byte[] body, ObjectMapper objectMapper) {
+		this.topic = topic;
+		this.shopDomain = shopDomain;
+		this.webhookId = webhookId;
+		this.apiVersion = apiVersion;
+		this.body = body;
+		this.objectMapper = objectMapper;
+	}
+
+	public String getTopic() {
+		return this.topic;
+	}
+
+	public String getShopDomain() {
+		return this.shopDomain;
+	}
+
+	public String getWebhookId() {
+		return this.webhookId;
+	}
+
+	public String getApiVersion() {
+		return this.apiVersion;
+	}
+
+	/**
+	 * The raw body.
+	 *
+	 * @return The body bytes; not a copy, so it must not be modified
+	 */
+	public byte[] getBody() {
+		return this.body;
+	}
+
+	public InputStream getBodyAsStream() {
+		return new ByteArrayInputStream(this.body);
+	}
+
+	public String getBodyAsString() {
+		return new String(this.body, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The body as a JSON tree. It's parsed on the first call and then reused.
+	 *
+	 * @return The JSON tree
+	 * @throws UncheckedIOException If the body isn't valid JSON
+	 */
+	public JsonNode getJson() {
+		JsonNode result = this.json;
+		if(result == null) {
+			try {
+				result = objectMapper.readTree(this.body);
+			} catch (IOException e) {
+				throw new UncheckedIOException("The body of webhook " + topic + " is not valid JSON", e);
+			}
+			this.json = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Read only the given top-level fields of the body, without parsing the rest of it. Prefer this to getJson() 
+	 * when a handler needs a few fields of a large payload.
+	 *
+	 * @param fields The names of the fields
+	 * @return The fields that were found, by name
+	 * @throws UncheckedIOException If the body isn't a JSON object
+	 * @see JsonFieldExtractor
+	 */
+	public Map<String, String> extractFields(String... fields) {
+		try {
+			return new JsonFieldExtractor(objectMapper.getFactory(), fields).extract(this.body);
+		} catch (IOException e) {
+			throw new UncheckedIOException("The body of webhook " + topic + " is not a JSON object", e);
+		}
+	}
+
+	/**
+	 * Bind the body to the given type.
+	 *
+	 * @param <T> The type
+	 * @param type The class of the type
+	 * @return The body as an instance of the type
+	 * @throws UncheckedIOException If the body can't be bound to the type
+	 */
+	public <T> T readBody(Class<T> type) {
+		try {
+			return objectMapper.readValue(this.body, type);
+		} catch (IOException e) {
+			throw new UncheckedIOException("The body of webhook " + topic + " can't be read as " + type.getSimpleName(), e);
+		}
+	}
+
+}
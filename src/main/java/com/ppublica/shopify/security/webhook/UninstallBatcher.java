@@ -0,0 +1,223 @@
+package com.ppublica.shopify.security.webhook;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
+
+import com.ppublica.shopify.security.configuration.SecurityBeansConfig;
+import com.ppublica.shopify.security.service.ShopifyOAuth2AuthorizedClientService;
+
+/**
+ * Collects the stores to uninstall and removes them together. When Shopify uninstalls many stores in a burst
+ * (a bulk uninstall, a partner migration), this turns one DELETE per store into one DELETE per batch.
+ *
+ * <p>A batch is removed once the window has passed since its first store was added, or as soon as it has
+ * maxBatchSize stores, whichever comes first. A full batch is removed by the thread that fills it; otherwise, by
+ * the batcher's own thread. The future returned by add(...) completes when the store's batch has been removed.</p>
+ *
+ * <p>If the OAuth2AuthorizedClientService is a ShopifyOAuth2AuthorizedClientService, a batch is removed with
+ * removeAuthorizedClients(...), which also evicts the stores from its cache. Otherwise, the stores are removed
+ * one at a time.</p>
+ *
+ * @author N F
+ * @see UninstallWebhookHandler
+ * @see com.ppublica.shopify.security.repository.TokenRepository#uninstallStores(Collection)
+ */
+public class UninstallBatcher implements DisposableBean {
+	private final Log logger = LogFactory.getLog(UninstallBatcher.class);
+
+	public static final long DEFAULT_WINDOW = 50;
+	public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+
+	private static final String REGISTRATION_ID = SecurityBeansConfig.SHOPIFY_REGISTRATION_ID;
+
+	private final Consumer<Collection<String>> remover;
+	private final long windowMillis;
+	private final int maxBatchSize;
+
+	private final ScheduledExecutorService scheduler;
+
+	// guarded by this
+	private Map<String, CompletableFuture<Void>> batch = new LinkedHashMap<>();
+	private ScheduledFuture<?> scheduledFlush;
+	private boolean closed;
+
+	private final AtomicLong batchCount = new AtomicLong();
+	private final AtomicLong storeCount = new AtomicLong();
+	private final AtomicLong failedBatchCount = new AtomicLong();
+	private final AtomicLong largestBatch = new AtomicLong();
+
+	/**
+	 * Create an UninstallBatcher. A null value selects the default.
+	 *
+	 * @param clientService To remove the stores
+	 * @param windowMillis How long a store waits for others to join its batch
+	 * @param maxBatchSize The most stores in a batch
+	 */
+	public UninstallBatcher(OAuth2AuthorizedClientService clientService, Long windowMillis, Integer maxBatchSize) {
+		this(remover(clientService), windowMillis, maxBatchSize);
+	}
+
+	/**
+	 * Create an UninstallBatcher that hands each batch to the given remover. A null value selects the default.
+	 *
+	 * @param remover To remove a batch of stores
+	 * @param windowMillis How long a store waits for others to join its batch
+	 * @param maxBatchSize The most stores in a batch
+	 */
+	public UninstallBatcher(Consumer<Collection<String>> remover, Long windowMillis, Integer maxBatchSize) {
+		this.remover = remover;
+		this.windowMillis = windowMillis != null ? windowMillis : DEFAULT_WINDOW;
+		this.maxBatchSize = maxBatchSize != null ? maxBatchSize : DEFAULT_MAX_BATCH_SIZE;
+
+		if(this.windowMillis < 0 || this.maxBatchSize < 1) {
+			throw new RuntimeException("Invalid uninstall batch settings: window " + this.windowMillis + "ms, max size " + this.maxBatchSize);
+		}
+
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "shopify-uninstall-batcher");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		if(logger.isDebugEnabled()) {
+			logger.debug("***UninstallBatcher using: ***");
+			logger.debug("Window:           " + this.windowMillis + "ms");
+			logger.debug("Max batch size:   " + this.maxBatchSize);
+		}
+	}
+
+	/**
+	 * Add a store to the current batch. Adding a store that's already in the batch returns the same future.
+	 *
+	 * @param storeName The full shop domain
+	 * @return A future that completes when the store has been removed, or completes exceptionally if its
+	 * 			batch couldn't be removed
+	 */
+	public CompletableFuture<Void> add(String storeName) {
+		Map<String, CompletableFuture<Void>> full = null;
+		CompletableFuture<Void> result;
+
+		synchronized(this) {
+			if(closed) {
+				throw new IllegalStateException("The uninstall batcher is closed");
+			}
+
+			result = batch.computeIfAbsent(storeName, s -> new CompletableFuture<>());
+
+			if(batch.size() >= maxBatchSize || windowMillis == 0) {
+				full = takeBatch();
+			} else if(scheduledFlush == null) {
+				scheduledFlush = scheduler.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		if(full != null) {
+			remove(full);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Remove the current batch now.
+	 */
+	public void flush() {
+		Map<String, CompletableFuture<Void>> current;
+
+		synchronized(this) {
+			current = takeBatch();
+		}
+
+		if(!current.isEmpty()) {
+			remove(current);
+		}
+	}
+
+	public long getBatchCount() {
+		return batchCount.get();
+	}
+
+	public long getStoreCount() {
+		return storeCount.get();
+	}
+
+	public long getFailedBatchCount() {
+		return failedBatchCount.get();
+	}
+
+	public long getLargestBatch() {
+		return largestBatch.get();
+	}
+
+	public synchronized int getPendingCount() {
+		return batch.size();
+	}
+
+	/**
+	 * Stop accepting stores and remove the current batch.
+	 */
+	@Override
+	public void destroy() {
+		synchronized(this) {
+			closed = true;
+		}
+
+		flush();
+		scheduler.shutdownNow();
+	}
+
+	/*
+	 * Must hold the lock.
+	 */
+	private Map<String, CompletableFuture<Void>> takeBatch() {
+		Map<String, CompletableFuture<Void>> current = batch;
+		batch = new LinkedHashMap<>();
+
+		if(scheduledFlush != null) {
+			scheduledFlush.cancel(false);
+			scheduledFlush = null;
+		}
+
+		return current;
+	}
+
+	private void remove(Map<String, CompletableFuture<Void>> stores) {
+		try {
+			remover.accept(new ArrayList<>(stores.keySet()));
+		} catch (RuntimeException e) {
+			logger.warn("Unable to uninstall " + stores.size() + " stores", e);
+			failedBatchCount.incrementAndGet();
+			stores.values().forEach(f -> f.completeExceptionally(e));
+			return;
+		}
+
+		batchCount.incrementAndGet();
+		storeCount.addAndGet(stores.size());
+		largestBatch.accumulateAndGet(stores.size(), Math::max);
+
+		stores.values().forEach(f -> f.complete(null));
+	}
+
+	private static Consumer<Collection<String>> remover(OAuth2AuthorizedClientService clientService) {
+		if(clientService instanceof ShopifyOAuth2AuthorizedClientService) {
+			return stores -> ((ShopifyOAuth2AuthorizedClientService)clientService).removeAuthorizedClients(REGISTRATION_ID, stores);
+		}
+
+		return stores -> stores.forEach(store -> clientService.removeAuthorizedClient(REGISTRATION_ID, store));
+	}
+
+}
@@ -0,0 +1,97 @@
+package com.ppublica.shopify.security.webhook;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
+
+import com.ppublica.shopify.security.configuration.SecurityBeansConfig;
+
+/**
+ * Handles the "app/uninstalled" webhook by removing the store with OAuth2AuthorizedClientService.
+ *
+ * <p>The store is the "shop_domain" field of the body, or the X-Shopify-Shop-Domain header if the body doesn't
+ * have it.</p>
+ *
+ * <p>If an UninstallBatcher is provided, the store is removed in a batch with other stores. The handler still waits
+ * for the batch before returning, so the WebhookExecutor lane doesn't move on to the shop's next webhook (e.g. a
+ * reinstall) before the store has been removed; stores are batched with those of the other lanes.</p>
+ *
+ * @author N F
+ * @see com.ppublica.shopify.security.filters.UninstallFilter
+ */
+public class UninstallWebhookHandler implements WebhookHandler {
+	private final Log logger = LogFactory.getLog(UninstallWebhookHandler.class);
+
+	public static final String TOPIC = "app/uninstalled";
+	public static final String SHOP_DOMAIN_FIELD = "shop_domain";
+
+	private static final String REGISTRATION_ID = SecurityBeansConfig.SHOPIFY_REGISTRATION_ID;
+
+	private final OAuth2AuthorizedClientService clientService;
+	private final UninstallBatcher batcher;
+
+	public UninstallWebhookHandler(OAuth2AuthorizedClientService clientService) {
+		this(clientService, null);
+	}
+
+	/**
+	 * Create an UninstallWebhookHandler that removes stores in batches.
+	 *
+	 * @param clientService To remove the store without a batcher
+	 * @param batcher To remove the store with other stores, or null
+	 */
+	public UninstallWebhookHandler(OAuth2AuthorizedClientService clientService, UninstallBatcher batcher) {
+		this.clientService = clientService;
+		this.batcher = batcher;
+	}
+
+	@Override
+	public Collection<String> getTopics() {
+		return Collections.singleton(TOPIC);
+	}
+
+	@Override
+	public void handle(ShopifyWebhook webhook) {
+		String storeName = getStoreName(webhook);
+
+		if(storeName != null) {
+			uninstall(storeName);
+		}
+	}
+
+	/**
+	 * Remove the store, and wait for its batch if there's an UninstallBatcher. The wait is deliberate: the calling 
+	 * WebhookExecutor lane is held for up to the batcher's window plus the batch's DELETE, so that the shop's next 
+	 * webhook (e.g. a reinstall) isn't processed before the store has been removed. The other lanes keep running, 
+	 * and their stores join the same batch.
+	 *
+	 * @param storeName The full shop domain
+	 */
+	public void uninstall(String storeName) {
+		if(batcher != null) {
+			batcher.add(storeName).join();
+		} else {
+			clientService.removeAuthorizedClient(REGISTRATION_ID, storeName);
+		}
+	}
+
+	private String getStoreName(ShopifyWebhook webhook) {
+		// the payload is the whole shop object, but only one field is needed
+		String storeName = webhook.extractFields(SHOP_DOMAIN_FIELD).get(SHOP_DOMAIN_FIELD);
+
+		if(storeName == null || storeName.isEmpty()) {
+			storeName = webhook.getShopDomain();
+		}
+
+		if(storeName == null || storeName.isEmpty()) {
+			logger.warn("No shop_domain found in the " + TOPIC + " webhook");
+			return null;
+		}
+
+		return storeName;
+	}
+
+}
@@ -0,0 +1,97 @@
+package com.ppublica.shopify.security.webhook;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Reads the body of a webhook request, up to a maximum size. The body is read before its HMAC is verified, so
+ * without a limit anyone could make the server buffer any amount of data.
+ *
+ * <p>A body whose Content-Length is over the maximum is rejected without being read; a body without a
+ * Content-Length is read until it goes over the maximum.</p>
+ *
+ * @author N F
+ * @see CachedBodyRequest
+ * @see com.ppublica.shopify.security.filters.ShopifyWebhookFilter
+ * @see com.ppublica.shopify.security.filters.UninstallFilter
+ */
+public class WebhookBodyReader {
+
+	public static final long DEFAULT_MAX_BODY_SIZE = 2 * 1024 * 1024;
+
+	private static final int DEFAULT_BUFFER_SIZE = 4096;
+
+	private final long maxBodySize;
+
+	public WebhookBodyReader() {
+		this(null);
+	}
+
+	/**
+	 * Create a WebhookBodyReader. A null value selects the default.
+	 *
+	 * @param maxBodySize The largest body accepted, in bytes
+	 */
+	public WebhookBodyReader(Long maxBodySize) {
+		this.maxBodySize = maxBodySize != null ? maxBodySize : DEFAULT_MAX_BODY_SIZE;
+
+		if(this.maxBodySize < 0 || this.maxBodySize >= Integer.MAX_VALUE) {
+			throw new RuntimeException("Invalid maximum webhook body size: " + this.maxBodySize);
+		}
+	}
+
+	/**
+	 * Read the body of the request.
+	 *
+	 * @param request The request
+	 * @return The body bytes
+	 * @throws BodyTooLargeException If the body is larger than the maximum
+	 * @throws IOException If the body can't be read
+	 */
+	public byte[] read(HttpServletRequest request) throws IOException {
+		long contentLength = request.getContentLengthLong();
+
+		if(contentLength > maxBodySize) {
+			throw new BodyTooLargeException(contentLength, maxBodySize);
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(contentLength >= 0 ? (int)contentLength : DEFAULT_BUFFER_SIZE);
+
+		// one byte more than allowed, to tell a body of exactly the maximum from a larger one
+		long read = IOUtils.copyLarge(request.getInputStream(), out, 0, maxBodySize + 1);
+
+		if(read > maxBodySize) {
+			throw new BodyTooLargeException(-1, maxBodySize);
+		}
+
+		return out.toByteArray();
+	}
+
+	public long getMaxBodySize() {
+		return maxBodySize;
+	}
+
+
+	/**
+	 * Thrown when a body is larger than the maximum. Filters answer it with a 413.
+	 *
+	 * @author N F
+	 */
+	public static class BodyTooLargeException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * @param contentLength The Content-Length of the request, or -1 if it didn't have one
+		 * @param maxBodySize The maximum
+		 */
+		public BodyTooLargeException(long contentLength, long maxBodySize) {
+			super(contentLength >= 0 ? "The body is " + contentLength + " bytes, more than the maximum of " + maxBodySize
+					: "The body is more than the maximum of " + maxBodySize + " bytes");
+		}
+	}
+
+}
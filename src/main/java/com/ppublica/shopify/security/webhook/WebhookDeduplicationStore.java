@@ -0,0 +1,29 @@
+package com.ppublica.shopify.security.webhook;
+
+/**
+ * Remembers the X-Shopify-Webhook-Id of the webhooks that have been accepted, so that a webhook Shopify delivers
+ * more than once is only processed once. Ids are only remembered for a limited time.
+ *
+ * @author N F
+ * @see InMemoryWebhookDeduplicationStore
+ * @see JdbcWebhookDeduplicationStore
+ */
+public interface WebhookDeduplicationStore {
+
+	/**
+	 * Record the webhook id, unless it's already been recorded.
+	 *
+	 * @param webhookId The value of the X-Shopify-Webhook-Id header
+	 * @return true if this is the first delivery of the webhook, false if it's a duplicate
+	 */
+	boolean markIfFirstDelivery(String webhookId);
+
+	/**
+	 * Forget the webhook id, so that the next delivery is processed. This is used when a webhook was recorded but
+	 * couldn't be accepted (for example, when it was rejected with a 503).
+	 *
+	 * @param webhookId The value of the X-Shopify-Webhook-Id header
+	 */
+	void forget(String webhookId);
+
+}
@@ -0,0 +1,338 @@
+package com.ppublica.shopify.security.webhook;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Processes verified webhooks in the background, so the webhook can be acknowledged as soon as it's been
+ * verified. Shopify expects a response within a few seconds and retries webhooks that time out, so slow work
+ * (like a JDBC delete) should not run on the request thread.
+ *
+ * <p>The executor is striped: each worker thread is a serial lane with its own queue, and a webhook is queued on
+ * the lane its shop domain hashes to. The webhooks of one shop are therefore processed one at a time, in the 
+ * order they were submitted (e.g. an "app/uninstalled" and whatever follows it), while the webhooks of different 
+ * shops are processed in parallel, and two workers never contend for the same store's row. Webhooks submitted 
+ * without a shop are spread over the lanes in turn.</p>
+ *
+ * <p>The queues are bounded, and the queue capacity is shared evenly between the lanes: when a lane's queue is 
+ * full, submit(...) returns false and the caller should respond with a 503 so that Shopify retries the webhook 
+ * later. On shutdown, the executor stops accepting webhooks and waits for the queued ones to be processed, up 
+ * to the shutdown timeout.</p>
+ *
+ * <p>The queue depth, the number of processed, failed, and rejected webhooks, and the lag (the time a webhook
+ * waited in the queue before a worker picked it up) are available as metrics.</p>
+ *
+ * @author N F
+ * @see com.ppublica.shopify.security.filters.UninstallFilter
+ */
+public class WebhookExecutor implements DisposableBean {
+	private final Log logger = LogFactory.getLog(WebhookExecutor.class);
+
+	public static final int DEFAULT_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+	public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+	public static final long DEFAULT_SHUTDOWN_TIMEOUT = 30000;
+
+	private static final long RETRY_INTERVAL = 50;
+
+	private final int threads;
+	private final int queueCapacity;
+	private final long shutdownTimeoutMillis;
+
+	private final ThreadPoolExecutor[] lanes;
+	private final AtomicInteger nextLane = new AtomicInteger();
+
+	private final AtomicLong completedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong totalLagMillis = new AtomicLong();
+	private final AtomicLong maxLagMillis = new AtomicLong();
+	private volatile long lastLagMillis;
+
+	/**
+	 * Create a WebhookExecutor with the default settings.
+	 */
+	public WebhookExecutor() {
+		this(null, null, null);
+	}
+
+	/**
+	 * Create a WebhookExecutor. A null value selects the default.
+	 *
+	 * @param threads The number of worker threads, one per lane
+	 * @param queueCapacity The maximum number of webhooks waiting to be processed, across all lanes
+	 * @param shutdownTimeoutMillis How long to wait for queued webhooks on shutdown
+	 */
+	public WebhookExecutor(Integer threads, Integer queueCapacity, Long shutdownTimeoutMillis) {
+		this.threads = threads != null ? threads : DEFAULT_THREADS;
+		this.queueCapacity = queueCapacity != null ? queueCapacity : DEFAULT_QUEUE_CAPACITY;
+		this.shutdownTimeoutMillis = shutdownTimeoutMillis != null ? shutdownTimeoutMillis : DEFAULT_SHUTDOWN_TIMEOUT;
+
+		if(this.threads < 1 || this.queueCapacity < 1 || this.shutdownTimeoutMillis < 0) {
+			throw new RuntimeException("Invalid webhook executor settings: threads " + this.threads + ", queue capacity "
+											+ this.queueCapacity + ", shutdown timeout " + this.shutdownTimeoutMillis + "ms");
+		}
+
+		int laneCapacity = Math.max(1, (this.queueCapacity + this.threads - 1) / this.threads);
+		ThreadFactory threadFactory = new WorkerThreadFactory();
+
+		this.lanes = new ThreadPoolExecutor[this.threads];
+		for(int i = 0; i < this.threads; i++) {
+			this.lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+							new ArrayBlockingQueue<>(laneCapacity), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+		}
+
+		if(logger.isDebugEnabled()) {
+			logger.debug("***WebhookExecutor using: ***");
+			logger.debug("Threads:          " + this.threads);
+			logger.debug("Queue capacity:   " + this.queueCapacity);
+			logger.debug("Shutdown timeout: " + this.shutdownTimeoutMillis);
+		}
+	}
+
+	/**
+	 * Queue the processing of a verified webhook that isn't ordered with any other.
+	 *
+	 * @param topic The webhook topic, for logging
+	 * @param task The processing
+	 * @return true if the webhook was queued, false if the queue is full or the executor is shutting down
+	 */
+	public boolean submit(String topic, Runnable task) {
+		return submit(topic, null, task);
+	}
+
+	/**
+	 * Queue the processing of a verified webhook after the webhooks already queued for the same shop.
+	 *
+	 * @param topic The webhook topic, for logging
+	 * @param shopDomain The shop the webhook is about, or null
+	 * @param task The processing
+	 * @return true if the webhook was queued, false if the queue is full or the executor is shutting down
+	 */
+	public boolean submit(String topic, String shopDomain, Runnable task) {
+		long enqueuedAt = System.currentTimeMillis();
+		ThreadPoolExecutor lane = lanes[laneFor(shopDomain)];
+
+		try {
+			lane.execute(() -> run(topic, task, enqueuedAt));
+			return true;
+
+		} catch (RejectedExecutionException e) {
+			rejectedCount.incrementAndGet();
+			logger.warn("Webhook " + topic + " rejected: " + (lane.isShutdown() ? "shutting down" : "the queue is full"));
+			return false;
+		}
+	}
+
+	/**
+	 * Queue the processing of a verified webhook after the webhooks already queued for the same shop, and wait for
+	 * room if the shop's lane is full. This is for webhooks that have already been acknowledged (e.g. replayed from
+	 * the WebhookJournal), which can't be answered with a 503. It must not be called on a worker thread.
+	 *
+	 * @param topic The webhook topic, for logging
+	 * @param shopDomain The shop the webhook is about, or null
+	 * @param task The processing
+	 * @return true if the webhook was queued, false if the executor is shutting down or the thread was interrupted
+	 */
+	public boolean submitWhenReady(String topic, String shopDomain, Runnable task) {
+		ThreadPoolExecutor lane = lanes[laneFor(shopDomain)];
+
+		while(true) {
+			long enqueuedAt = System.currentTimeMillis();
+
+			try {
+				lane.execute(() -> run(topic, task, enqueuedAt));
+				return true;
+
+			} catch (RejectedExecutionException e) {
+				if(lane.isShutdown()) {
+					rejectedCount.incrementAndGet();
+					logger.warn("Webhook " + topic + " rejected: shutting down");
+					return false;
+				}
+			}
+
+			try {
+				Thread.sleep(RETRY_INTERVAL);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * The lane that processes the webhooks of the shop.
+	 *
+	 * @param shopDomain The shop domain, or null
+	 * @return The index of the lane
+	 */
+	int laneFor(String shopDomain) {
+		if(shopDomain == null) {
+			return Math.floorMod(nextLane.getAndIncrement(), lanes.length);
+		}
+
+		int hash = shopDomain.hashCode();
+		return Math.floorMod(hash ^ (hash >>> 16), lanes.length);
+	}
+
+	private void run(String topic, Runnable task, long enqueuedAt) {
+		long lag = System.currentTimeMillis() - enqueuedAt;
+		lastLagMillis = lag;
+		totalLagMillis.addAndGet(lag);
+		maxLagMillis.accumulateAndGet(lag, Math::max);
+
+		try {
+			task.run();
+			completedCount.incrementAndGet();
+
+		} catch (RuntimeException e) {
+			failedCount.incrementAndGet();
+			logger.error("Processing of webhook " + topic + " failed", e);
+		}
+	}
+
+	/**
+	 * Stop accepting webhooks and wait for the queued ones to be processed.
+	 */
+	@Override
+	public void destroy() {
+		for(ThreadPoolExecutor lane : lanes) {
+			lane.shutdown();
+		}
+
+		long deadline = System.currentTimeMillis() + shutdownTimeoutMillis;
+		int dropped = 0;
+
+		try {
+			for(ThreadPoolExecutor lane : lanes) {
+				long remaining = Math.max(0, deadline - System.currentTimeMillis());
+				if(!lane.awaitTermination(remaining, TimeUnit.MILLISECONDS)) {
+					dropped += lane.shutdownNow().size();
+				}
+			}
+		} catch (InterruptedException e) {
+			for(ThreadPoolExecutor lane : lanes) {
+				lane.shutdownNow();
+			}
+			Thread.currentThread().interrupt();
+			return;
+		}
+
+		if(dropped > 0) {
+			logger.warn("WebhookExecutor did not drain within " + shutdownTimeoutMillis + "ms. " + dropped + " queued webhooks were dropped");
+		}
+	}
+
+	public int getThreads() {
+		return this.threads;
+	}
+
+	public int getQueueCapacity() {
+		return this.queueCapacity;
+	}
+
+	public long getShutdownTimeoutMillis() {
+		return this.shutdownTimeoutMillis;
+	}
+
+	/**
+	 * The number of webhooks waiting for a worker.
+	 *
+	 * @return The queue depth
+	 */
+	public int getQueueDepth() {
+		int depth = 0;
+		for(ThreadPoolExecutor lane : lanes) {
+			depth += lane.getQueue().size();
+		}
+		return depth;
+	}
+
+	/**
+	 * The number of webhooks waiting in the busiest lane. A lane much deeper than the others means one shop 
+	 * (or a few) is sending most of the webhooks.
+	 *
+	 * @return The depth of the deepest lane
+	 */
+	public int getMaxLaneDepth() {
+		int max = 0;
+		for(ThreadPoolExecutor lane : lanes) {
+			max = Math.max(max, lane.getQueue().size());
+		}
+		return max;
+	}
+
+	/**
+	 * The number of webhooks being processed right now.
+	 *
+	 * @return The number of busy workers
+	 */
+	public int getActiveCount() {
+		int active = 0;
+		for(ThreadPoolExecutor lane : lanes) {
+			active += lane.getActiveCount();
+		}
+		return active;
+	}
+
+	public long getCompletedCount() {
+		return completedCount.get();
+	}
+
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * The time the most recently started webhook waited in the queue.
+	 *
+	 * @return The lag in milliseconds
+	 */
+	public long getLastLagMillis() {
+		return lastLagMillis;
+	}
+
+	public long getMaxLagMillis() {
+		return maxLagMillis.get();
+	}
+
+	/**
+	 * The average time webhooks waited in the queue.
+	 *
+	 * @return The lag in milliseconds, 0 if no webhook has started
+	 */
+	public long getAverageLagMillis() {
+		long started = completedCount.get() + failedCount.get();
+		return started == 0 ? 0 : totalLagMillis.get() / started;
+	}
+
+	public boolean isShutdown() {
+		return lanes[0].isShutdown();
+	}
+
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "shopify-webhook-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
@@ -0,0 +1,47 @@
+package com.ppublica.shopify.security.webhook;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Processes verified webhooks of one or more topics. Beans of this type are found by ShopifySecurityConfigurer and
+ * registered with ShopifyWebhookFilter.
+ *
+ * <p>Handlers are called by the WebhookExecutor worker threads, after the webhook has been acknowledged, so they
+ * must be thread-safe. An exception thrown by a handler is logged and counted. The webhook isn't retried right 
+ * away, but if there's a WebhookJournal, it stays in the journal and is replayed on the next startup.</p>
+ *
+ * <p>A handler that finishes its work later (e.g. in a batch) can override handleAsync(...). The webhook stays
+ * in the WebhookJournal until the returned future completes successfully.</p>
+ *
+ * @author N F
+ * @see com.ppublica.shopify.security.filters.ShopifyWebhookFilter
+ */
+public interface WebhookHandler {
+
+	/**
+	 * The topics this handler processes, as they appear in the X-Shopify-Topic header (e.g. "app/uninstalled").
+	 *
+	 * @return The topics
+	 */
+	Collection<String> getTopics();
+
+	/**
+	 * Process the webhook.
+	 *
+	 * @param webhook The verified webhook
+	 */
+	void handle(ShopifyWebhook webhook);
+
+	/**
+	 * Start processing the webhook. By default, the webhook is processed with handle(...) before returning.
+	 *
+	 * @param webhook The verified webhook
+	 * @return A future that completes when the webhook has been processed
+	 */
+	default CompletableFuture<Void> handleAsync(ShopifyWebhook webhook) {
+		handle(webhook);
+		return CompletableFuture.completedFuture(null);
+	}
+
+}
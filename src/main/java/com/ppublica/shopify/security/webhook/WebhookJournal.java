@@ -0,0 +1,752 @@
+package com.ppublica.shopify.security.webhook;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A local, append-only journal of the webhooks that have been acknowledged but not yet processed. A webhook is
+ * appended before the 200 is sent, and acknowledged once a worker is done with it, so the webhooks that were
+ * queued when the node died can be replayed when it restarts.
+ *
+ * <p>The journal is a directory of segment files. Each segment is memory-mapped and records are appended to it
+ * until it's full, then a new segment is started. Every record is prefixed with its length, a CRC32 of its
+ * content, and a state byte: a record that was only partly written when the process died fails the check and
+ * marks the end of the journal. A record is identified by its offset: the base offset of its segment (the
+ * segment's file name) plus its position in the segment.</p>
+ *
+ * <p>Records can be acknowledged in any order. Acknowledging a record sets its state byte, so it's skipped on
+ * startup even if older records weren't acknowledged. The checkpoint, kept in a small memory-mapped file, is the
+ * offset of the oldest record that hasn't been acknowledged; everything before it is done, and segments that end
+ * before it are deleted. On startup, the records from the checkpoint on that haven't been acknowledged are read 
+ * back and returned by recover().</p>
+ *
+ * <p>A record whose processing failed is moved to the retry log, a second set of segments in the "retry"
+ * subdirectory, with one more attempt, and acknowledged where it was. A record that can't be processed yet (no
+ * handler for its topic) is moved there with defer(...). Either way, a record waiting for the next startup
+ * never holds back the checkpoint of the journal. The retry log is read back by recover() first, and its records
+ * are acknowledged or failed like the others. After maxAttempts, a record is logged and dropped.</p>
+ *
+ * <p>Writes to a memory-mapped file survive the process dying. To also survive the machine losing power, set
+ * fsync to true: every append and acknowledgement is then forced to disk before it returns, at the cost of one 
+ * disk flush per webhook.</p>
+ *
+ * @author N F
+ * @see com.ppublica.shopify.security.filters.ShopifyWebhookFilter
+ * @see com.ppublica.shopify.security.filters.UninstallFilter
+ */
+public class WebhookJournal implements DisposableBean {
+	private final Log logger = LogFactory.getLog(WebhookJournal.class);
+
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+	public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+	private static final String SEGMENT_SUFFIX = ".journal";
+	private static final String CHECKPOINT_FILE = "checkpoint";
+	private static final String RETRY_DIRECTORY = "retry";
+	private static final int RECORD_HEADER_SIZE = 9;
+	private static final int STATE_POSITION = 8;
+	private static final byte PENDING = 0;
+	private static final byte DONE = 1;
+	private static final int CHECKPOINT_SIZE = 16;
+
+	// set in the offsets of the retry log's records
+	private static final long RETRY_BIT = 1L << 62;
+
+	private final Path directory;
+	private final int segmentSize;
+	private final boolean fsync;
+	private final int maxAttempts;
+
+	private final SegmentLog journal;
+	private final SegmentLog retryLog;
+	private List<Entry> recovered;
+
+	private final AtomicLong deadCount = new AtomicLong();
+
+	/**
+	 * Open the journal in the given directory, creating it if needed, and read back the records that haven't been
+	 * acknowledged.
+	 *
+	 * @param directory The journal directory. It must not be shared with another node.
+	 * @param segmentSize The size of a segment file in bytes, or null for the default
+	 * @param fsync Whether every append is forced to disk
+	 * @throws UncheckedIOException If the journal can't be opened
+	 */
+	public WebhookJournal(Path directory, Integer segmentSize, boolean fsync) {
+		this(directory, segmentSize, fsync, null);
+	}
+
+	/**
+	 * Open the journal in the given directory, creating it if needed, and read back the records that haven't been
+	 * acknowledged.
+	 *
+	 * @param directory The journal directory. It must not be shared with another node.
+	 * @param segmentSize The size of a segment file in bytes, or null for the default
+	 * @param fsync Whether every append is forced to disk
+	 * @param maxAttempts How many times a record is processed before it's dropped, or null for the default
+	 * @throws UncheckedIOException If the journal can't be opened
+	 */
+	public WebhookJournal(Path directory, Integer segmentSize, boolean fsync, Integer maxAttempts) {
+		this.directory = directory;
+		this.segmentSize = segmentSize != null ? segmentSize : DEFAULT_SEGMENT_SIZE;
+		this.fsync = fsync;
+		this.maxAttempts = maxAttempts != null ? maxAttempts : DEFAULT_MAX_ATTEMPTS;
+
+		if(this.segmentSize < 1024 || this.maxAttempts < 1) {
+			throw new RuntimeException("Invalid webhook journal settings: segment size " + this.segmentSize + ", max attempts " + this.maxAttempts);
+		}
+
+		List<Entry> entries = new ArrayList<>();
+		try {
+			this.retryLog = new SegmentLog(directory.resolve(RETRY_DIRECTORY), RETRY_BIT, entries);
+			this.journal = new SegmentLog(directory, 0, entries);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Unable to open the webhook journal in " + directory, e);
+		}
+		this.recovered = entries;
+
+		if(logger.isDebugEnabled()) {
+			logger.debug("***WebhookJournal using: ***");
+			logger.debug("Directory:        " + this.directory);
+			logger.debug("Segment size:     " + this.segmentSize);
+			logger.debug("Fsync:            " + this.fsync);
+			logger.debug("Max attempts:     " + this.maxAttempts);
+		}
+
+		if(!recovered.isEmpty()) {
+			logger.info(recovered.size() + " unprocessed webhooks found in the journal");
+		}
+	}
+
+	/**
+	 * Append a webhook.
+	 *
+	 * @param webhook The verified webhook
+	 * @return The offset of the record, to acknowledge it with
+	 * @throws UncheckedIOException If the record can't be written
+	 * @throws IllegalStateException If the journal is closed
+	 */
+	public long append(ShopifyWebhook webhook) {
+		return journal.append(encode(webhook, 0), 0);
+	}
+
+	/**
+	 * Mark a record as processed. Once every record of a segment has been acknowledged, the segment is deleted.
+	 *
+	 * @param offset The offset returned by append(...), or of a recovered Entry
+	 */
+	public void acknowledge(long offset) {
+		logFor(offset).acknowledge(offset);
+	}
+
+	/**
+	 * Mark a record as failed. It's moved to the retry log, to be replayed on the next startup, unless it has 
+	 * reached the maximum number of attempts: it's then dropped. If it can't be moved (e.g. the journal is 
+	 * closed), it's left as it is, so it's still replayed.
+	 *
+	 * @param offset The offset returned by append(...), or of a recovered Entry
+	 * @param webhook The webhook of the record
+	 * @return true if the record will be replayed, false if it was dropped or isn't pending
+	 */
+	public boolean fail(long offset, ShopifyWebhook webhook) {
+		SegmentLog log = logFor(offset);
+		Integer attempts = log.pending.get(offset);
+
+		if(attempts == null) {
+			return false;
+		}
+
+		if(attempts + 1 >= maxAttempts) {
+			deadCount.incrementAndGet();
+			logger.error("Webhook " + webhook.getTopic() + " " + webhook.getWebhookId() + " for " + webhook.getShopDomain() + " failed "
+							+ (attempts + 1) + " times. It's dropped from the journal");
+			log.acknowledge(offset);
+			return false;
+		}
+
+		return moveToRetryLog(log, offset, webhook, attempts + 1);
+	}
+
+	/**
+	 * Keep a record for the next startup without counting an attempt, e.g. because there's no handler for its 
+	 * topic yet. It's moved to the retry log, so it doesn't hold back the checkpoint.
+	 *
+	 * @param offset The offset returned by append(...), or of a recovered Entry
+	 * @param webhook The webhook of the record
+	 * @return true if the record will be replayed, false if it isn't pending
+	 */
+	public boolean defer(long offset, ShopifyWebhook webhook) {
+		SegmentLog log = logFor(offset);
+		Integer attempts = log.pending.get(offset);
+
+		return attempts != null && moveToRetryLog(log, offset, webhook, attempts);
+	}
+
+	private boolean moveToRetryLog(SegmentLog log, long offset, ShopifyWebhook webhook, int attempts) {
+		try {
+			retryLog.append(encode(webhook, attempts), attempts);
+		} catch (UncheckedIOException | IllegalStateException e) {
+			logger.warn("Unable to journal webhook " + webhook.getWebhookId() + " again. The record is kept", e);
+			return true;
+		}
+
+		log.acknowledge(offset);
+		return true;
+	}
+
+	/**
+	 * The records that were not acknowledged before the journal was last closed: those of the retry log, then 
+	 * the others, oldest first. They're only returned once, and each one must be acknowledged when it has been 
+	 * processed again.
+	 *
+	 * @return The records
+	 */
+	public synchronized List<Entry> recover() {
+		List<Entry> result = this.recovered;
+		this.recovered = Collections.emptyList();
+
+		return result;
+	}
+
+	/**
+	 * Delete the segments whose records have all been acknowledged.
+	 *
+	 * @return The number of segments deleted
+	 */
+	public int compact() {
+		return journal.compact() + retryLog.compact();
+	}
+
+	/**
+	 * The number of records not yet acknowledged, including those of the retry log.
+	 *
+	 * @return The number of records
+	 */
+	public int getPendingCount() {
+		return journal.pending.size() + retryLog.pending.size();
+	}
+
+	/**
+	 * The number of records waiting in the retry log.
+	 *
+	 * @return The number of records
+	 */
+	public int getRetryCount() {
+		return retryLog.pending.size();
+	}
+
+	/**
+	 * The number of records dropped after maxAttempts.
+	 *
+	 * @return The number of records
+	 */
+	public long getDeadCount() {
+		return deadCount.get();
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * The number of segments of the journal, not counting the retry log.
+	 *
+	 * @return The number of segments
+	 */
+	public int getSegmentCount() {
+		return journal.getSegmentCount();
+	}
+
+	public long getCheckpoint() {
+		return journal.getCheckpoint();
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Flush the journal to disk and close it. Records can still be acknowledged.
+	 */
+	@Override
+	public void destroy() {
+		journal.close();
+		retryLog.close();
+	}
+
+	private SegmentLog logFor(long offset) {
+		return (offset & RETRY_BIT) != 0 ? retryLog : journal;
+	}
+
+	/*
+	 * A directory of segments with its own checkpoint: the journal itself, or the retry log. The offsets it hands 
+	 * out have offsetBit set.
+	 */
+	private class SegmentLog {
+		private final Path directory;
+		private final long offsetBit;
+
+		// by base offset; guarded by this
+		private final TreeMap<Long, Segment> segments = new TreeMap<>();
+		private Segment active;
+		private final MappedByteBuffer checkpointBuffer;
+		private final FileChannel checkpointChannel;
+		private long checkpoint;
+		private boolean closed;
+
+		// the attempts made so far, by offset (with offsetBit)
+		private final ConcurrentSkipListMap<Long, Integer> pending = new ConcurrentSkipListMap<>();
+
+		/*
+		 * Open the log, add its records that haven't been acknowledged to entries, and move the checkpoint past 
+		 * the records acknowledged before the last shutdown.
+		 */
+		SegmentLog(Path directory, long offsetBit, List<Entry> entries) throws IOException {
+			this.directory = directory;
+			this.offsetBit = offsetBit;
+
+			Files.createDirectories(directory);
+
+			this.checkpointChannel = FileChannel.open(directory.resolve(CHECKPOINT_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.checkpointBuffer = checkpointChannel.map(FileChannel.MapMode.READ_WRITE, 0, CHECKPOINT_SIZE);
+			this.checkpoint = readCheckpoint();
+
+			open(entries);
+			compact();
+		}
+
+		synchronized long append(byte[] record, int attempts) {
+			int size = RECORD_HEADER_SIZE + record.length;
+
+			CRC32 crc = new CRC32();
+			crc.update(record, 0, record.length);
+
+			if(closed) {
+				throw new IllegalStateException("The webhook journal is closed");
+			}
+
+			if(active.buffer.remaining() < size) {
+				roll(size);
+			}
+
+			MappedByteBuffer buffer = active.buffer;
+			long offset = offsetBit | (active.baseOffset + buffer.position());
+
+			buffer.putInt(record.length);
+			buffer.putInt((int)crc.getValue());
+			buffer.put(PENDING);
+			buffer.put(record);
+
+			if(fsync) {
+				buffer.force();
+			}
+
+			pending.put(offset, attempts);
+			return offset;
+		}
+
+		void acknowledge(long offset) {
+			if(pending.remove(offset) == null) {
+				return;
+			}
+
+			long position = offset & ~offsetBit;
+
+			synchronized(this) {
+				// the record itself is marked, so it's skipped on startup even if the checkpoint is behind it
+				Map.Entry<Long, Segment> segment = segments.floorEntry(position);
+				if(segment != null) {
+					MappedByteBuffer buffer = segment.getValue().buffer;
+					buffer.put((int)(position - segment.getKey()) + STATE_POSITION, DONE);
+					if(fsync) {
+						buffer.force();
+					}
+				}
+
+				long oldest = pending.isEmpty() ? endOffset() : pending.firstKey() & ~offsetBit;
+
+				if(oldest > checkpoint) {
+					writeCheckpoint(oldest);
+					compact();
+				}
+			}
+		}
+
+		synchronized int compact() {
+			int deleted = 0;
+			Iterator<Map.Entry<Long, Segment>> it = segments.entrySet().iterator();
+
+			while(it.hasNext()) {
+				Segment segment = it.next().getValue();
+				Long next = segments.higherKey(segment.baseOffset);
+
+				if(segment == active || next == null || next > checkpoint) {
+					break;
+				}
+
+				it.remove();
+				segment.close();
+
+				try {
+					Files.deleteIfExists(segment.path);
+					deleted++;
+				} catch (IOException e) {
+					logger.warn("Unable to delete the webhook journal segment " + segment.path, e);
+				}
+			}
+
+			return deleted;
+		}
+
+		synchronized int getSegmentCount() {
+			return segments.size();
+		}
+
+		synchronized long getCheckpoint() {
+			return checkpoint;
+		}
+
+		synchronized void close() {
+			if(closed) {
+				return;
+			}
+			closed = true;
+
+			for(Segment segment : segments.values()) {
+				segment.buffer.force();
+				segment.close();
+			}
+			checkpointBuffer.force();
+
+			try {
+				checkpointChannel.close();
+			} catch (IOException e) {
+				logger.warn("Unable to close the webhook journal checkpoint", e);
+			}
+		}
+
+		/*
+		 * Map the existing segments, read back the records from the checkpoint on, and find where the next record 
+		 * goes.
+		 */
+		private void open(List<Entry> entries) throws IOException {
+			List<Long> baseOffsets = new ArrayList<>();
+
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+				for(Path file : files) {
+					String name = file.getFileName().toString();
+					try {
+						baseOffsets.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+					} catch (NumberFormatException e) {
+						logger.warn("Ignoring " + file + " in the webhook journal");
+					}
+				}
+			}
+			Collections.sort(baseOffsets);
+
+			int recoveredBefore = entries.size();
+
+			for(int i = 0; i < baseOffsets.size(); i++) {
+				long baseOffset = baseOffsets.get(i);
+				boolean last = i == baseOffsets.size() - 1;
+				Segment segment = new Segment(directory, baseOffset, last ? segmentSize : 0);
+
+				int end = scan(segment, entries);
+
+				if(!last && baseOffset + end != baseOffsets.get(i + 1)) {
+					logger.warn("The webhook journal segment " + segment.path + " is truncated at " + end);
+				}
+
+				segment.buffer.position(end);
+				segments.put(baseOffset, segment);
+			}
+
+			if(segments.isEmpty()) {
+				Segment first = new Segment(directory, checkpoint, segmentSize);
+				segments.put(checkpoint, first);
+			} else if(checkpoint < segments.firstKey()) {
+				writeCheckpoint(segments.firstKey());
+			}
+
+			active = segments.lastEntry().getValue();
+
+			for(Entry entry : entries.subList(recoveredBefore, entries.size())) {
+				pending.put(entry.getOffset(), entry.attempts);
+			}
+
+			// skip the records acknowledged after the oldest pending one
+			long oldest = pending.isEmpty() ? endOffset() : pending.firstKey() & ~offsetBit;
+			if(oldest > checkpoint) {
+				writeCheckpoint(oldest);
+			}
+		}
+
+		/*
+		 * Read the valid records of the segment that haven't been acknowledged, and return the position after the 
+		 * last one.
+		 */
+		private int scan(Segment segment, List<Entry> entries) {
+			ByteBuffer buffer = segment.buffer.duplicate();
+			CRC32 crc = new CRC32();
+
+			while(buffer.remaining() >= RECORD_HEADER_SIZE) {
+				int start = buffer.position();
+				int length = buffer.getInt();
+				int expectedCrc = buffer.getInt();
+				byte state = buffer.get();
+
+				if(length <= 0 || length > buffer.remaining()) {
+					return start;
+				}
+
+				byte[] record = new byte[length];
+				buffer.get(record);
+
+				crc.reset();
+				crc.update(record, 0, length);
+
+				if((int)crc.getValue() != expectedCrc) {
+					return start;
+				}
+
+				long position = segment.baseOffset + start;
+				if(position >= checkpoint && state != DONE) {
+					try {
+						entries.add(decode(offsetBit | position, record));
+					} catch (BufferUnderflowException | IllegalArgumentException e) {
+						logger.warn("Skipping unreadable webhook journal record at " + position + " in " + directory);
+					}
+				}
+			}
+
+			return buffer.position();
+		}
+
+		private void roll(int recordSize) {
+			long baseOffset = endOffset();
+
+			try {
+				if(active.buffer.position() == 0) {
+					// nothing in the active segment yet: map its file again, large enough for the record
+					active.close();
+					active = new Segment(directory, active.baseOffset, recordSize);
+				} else {
+					active.buffer.force();
+					active = new Segment(directory, baseOffset, Math.max(segmentSize, recordSize));
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException("Unable to create a webhook journal segment", e);
+			}
+
+			segments.put(active.baseOffset, active);
+		}
+
+		private long endOffset() {
+			return active.baseOffset + active.buffer.position();
+		}
+
+		private long readCheckpoint() {
+			long value = checkpointBuffer.getLong(0);
+			long storedCrc = checkpointBuffer.getLong(8);
+
+			if(value == 0 && storedCrc == 0) {
+				return 0;
+			}
+
+			if(storedCrc != crc(value) || value < 0) {
+				logger.warn("The webhook journal checkpoint in " + directory + " is corrupt: every record will be replayed");
+				return 0;
+			}
+
+			return value;
+		}
+
+		private void writeCheckpoint(long value) {
+			checkpointBuffer.putLong(0, value);
+			checkpointBuffer.putLong(8, crc(value));
+
+			if(fsync) {
+				checkpointBuffer.force();
+			}
+
+			this.checkpoint = value;
+		}
+	}
+
+	private static long crc(long value) {
+		CRC32 crc = new CRC32();
+		byte[] bytes = ByteBuffer.allocate(8).putLong(value).array();
+		crc.update(bytes, 0, bytes.length);
+
+		return crc.getValue();
+	}
+
+	/*
+	 * attempts, then topic, shop domain, webhook id, API version (each a length-prefixed String, -1 for null), 
+	 * then the body
+	 */
+	private static byte[] encode(ShopifyWebhook webhook, int attempts) {
+		byte[] topic = bytes(webhook.getTopic());
+		byte[] shopDomain = bytes(webhook.getShopDomain());
+		byte[] webhookId = bytes(webhook.getWebhookId());
+		byte[] apiVersion = bytes(webhook.getApiVersion());
+		byte[] body = webhook.getBody();
+
+		ByteBuffer buffer = ByteBuffer.allocate(20 + length(topic) + length(shopDomain) + length(webhookId) + length(apiVersion) + body.length);
+		buffer.putInt(attempts);
+		putString(buffer, topic);
+		putString(buffer, shopDomain);
+		putString(buffer, webhookId);
+		putString(buffer, apiVersion);
+		buffer.put(body);
+
+		return buffer.array();
+	}
+
+	private static Entry decode(long offset, byte[] record) {
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		int attempts = buffer.getInt();
+		String topic = getString(buffer);
+		String shopDomain = getString(buffer);
+		String webhookId = getString(buffer);
+		String apiVersion = getString(buffer);
+		byte[] body = new byte[buffer.remaining()];
+		buffer.get(body);
+
+		return new Entry(offset, attempts, topic, shopDomain, webhookId, apiVersion, body);
+	}
+
+	private static byte[] bytes(String value) {
+		return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static int length(byte[] value) {
+		return value == null ? 0 : value.length;
+	}
+
+	private static void putString(ByteBuffer buffer, byte[] value) {
+		if(value == null) {
+			buffer.putInt(-1);
+		} else {
+			buffer.putInt(value.length);
+			buffer.put(value);
+		}
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if(length == -1) {
+			return null;
+		}
+		if(length < 0 || length > buffer.remaining()) {
+			throw new IllegalArgumentException("Invalid length " + length);
+		}
+
+		byte[] value = new byte[length];
+		buffer.get(value);
+
+		return new String(value, StandardCharsets.UTF_8);
+	}
+
+	private class Segment {
+		private final long baseOffset;
+		private final Path path;
+		private final FileChannel channel;
+		private final MappedByteBuffer buffer;
+
+		/*
+		 * Map the segment file, at least minSize bytes of it.
+		 */
+		Segment(Path directory, long baseOffset, int minSize) throws IOException {
+			this.baseOffset = baseOffset;
+			this.path = directory.resolve(String.format("%020d", baseOffset) + SEGMENT_SUFFIX);
+			this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), minSize));
+		}
+
+		void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.warn("Unable to close the webhook journal segment " + path, e);
+			}
+		}
+	}
+
+	/**
+	 * A webhook read back from the journal.
+	 *
+	 * @author N F
+	 */
+	public static class Entry {
+		private final long offset;
+		private final int attempts;
+		private final String topic;
+		private final String shopDomain;
+		private final String webhookId;
+		private final String apiVersion;
+		private final byte[] body;
+
+		Entry(long offset, int attempts, String topic, String shopDomain, String webhookId, String apiVersion, byte[] body) {
+			this.offset = offset;
+			this.attempts = attempts;
+			this.topic = topic;
+			this.shopDomain = shopDomain;
+			this.webhookId = webhookId;
+			this.apiVersion = apiVersion;
+			this.body = body;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		/**
+		 * The number of times the webhook failed before.
+		 *
+		 * @return The attempts
+		 */
+		public int getAttempts() {
+			return attempts;
+		}
+
+		public String getTopic() {
+			return topic;
+		}
+
+		/**
+		 * Rebuild the webhook.
+		 *
+		 * @param objectMapper To parse the body
+		 * @return The webhook as it was appended
+		 */
+		public ShopifyWebhook toWebhook(ObjectMapper objectMapper) {
+			return new ShopifyWebhook(topic, shopDomain, webhookId, apiVersion, body, objectMapper);
+		}
+	}
+
+}
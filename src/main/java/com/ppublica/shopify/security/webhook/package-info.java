@@ -0,0 +1,5 @@
+/**
+ * Verified, asynchronous processing of Shopify webhooks
+ *
+ */
+package com.ppublica.shopify.security.webhook;
\ No newline at end of file
@@ -0,0 +1,62 @@
+package com.ppublica.shopify.security.events;
+
+/**
+ * Starts the Java Flight Recorder events of the security checks. This is the version of the class used on Java 11 
+ * and later; see the Java 8 version for the events.
+ * 
+ * <p>An event that isn't enabled isn't kept: the shared DisabledEvent is returned instead, and the event that was 
+ * created to check doesn't escape, so it isn't allocated once the method is compiled.</p>
+ * 
+ * @author N F
+ */
+public final class ShopifyEvents {
+	
+	private ShopifyEvents() { }
+	
+	public static ShopifyEvent hmacVerify() {
+		ShopifyHmacVerify event = new ShopifyHmacVerify();
+		if(!event.isEnabled()) {
+			return DisabledEvent.INSTANCE;
+		}
+		event.begin();
+		return event;
+	}
+	
+	public static ShopifyEvent nonceCheck() {
+		ShopifyNonceCheck event = new ShopifyNonceCheck();
+		if(!event.isEnabled()) {
+			return DisabledEvent.INSTANCE;
+		}
+		event.begin();
+		return event;
+	}
+	
+	public static TokenLookupEvent tokenLookup() {
+		ShopifyTokenLookup event = new ShopifyTokenLookup();
+		if(!event.isEnabled()) {
+			return DisabledEvent.INSTANCE;
+		}
+		event.begin();
+		event.began = System.nanoTime();
+		return event;
+	}
+	
+	public static ShopifyEvent tokenExchange() {
+		ShopifyTokenExchange event = new ShopifyTokenExchange();
+		if(!event.isEnabled()) {
+			return DisabledEvent.INSTANCE;
+		}
+		event.begin();
+		return event;
+	}
+	
+	public static ShopifyEvent webhookHandled() {
+		ShopifyWebhookHandled event = new ShopifyWebhookHandled();
+		if(!event.isEnabled()) {
+			return DisabledEvent.INSTANCE;
+		}
+		event.begin();
+		return event;
+	}
+
+}
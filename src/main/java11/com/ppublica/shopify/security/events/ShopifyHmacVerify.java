@@ -0,0 +1,16 @@
+package com.ppublica.shopify.security.events;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+
+/**
+ * The hmac of a request from Shopify is checked, in the query string or in the X-Shopify-Hmac-SHA256 header. 
+ * Outcome: valid, missing, expired, invalid or replayed.
+ * 
+ * @author N F
+ */
+@Label("Shopify HMAC Verify")
+@Description("The hmac of a request from Shopify is checked, in the query string or in the X-Shopify-Hmac-SHA256 header. Outcome: valid, missing, expired, invalid or replayed.")
+final class ShopifyHmacVerify extends StageEvent {
+
+}
@@ -0,0 +1,16 @@
+package com.ppublica.shopify.security.events;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+
+/**
+ * The state of an OAuth callback is matched with a saved authorization request. Outcome: valid, missing or 
+ * unknown.
+ * 
+ * @author N F
+ */
+@Label("Shopify Nonce Check")
+@Description("The state of an OAuth callback is matched with a saved authorization request. Outcome: valid, missing or unknown.")
+final class ShopifyNonceCheck extends StageEvent {
+
+}
@@ -0,0 +1,15 @@
+package com.ppublica.shopify.security.events;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+
+/**
+ * An authorization code is exchanged for a token with Shopify. Outcome: success or the error code.
+ * 
+ * @author N F
+ */
+@Label("Shopify Token Exchange")
+@Description("An authorization code is exchanged for a token with Shopify. Outcome: success or the error code.")
+final class ShopifyTokenExchange extends StageEvent {
+
+}
@@ -0,0 +1,40 @@
+package com.ppublica.shopify.security.events;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Timespan;
+
+/**
+ * A store is loaded: its token is queried from the database and decrypted. Outcome: found, not_found or 
+ * undecryptable.
+ * 
+ * @author N F
+ */
+@Label("Shopify Token Lookup")
+@Description("A store is loaded: its token is queried from the database and decrypted. Outcome: found, not_found or undecryptable.")
+final class ShopifyTokenLookup extends StageEvent implements TokenLookupEvent {
+	
+	@Label("Database Duration")
+	@Timespan(Timespan.NANOSECONDS)
+	long databaseDuration;
+	
+	@Label("Decrypt Duration")
+	@Timespan(Timespan.NANOSECONDS)
+	long decryptDuration;
+	
+	// set when the event begins
+	transient long began;
+
+	@Override
+	public void databaseDone() {
+		long now = System.nanoTime();
+		databaseDuration = now - began;
+		began = now;
+	}
+
+	@Override
+	public void decryptDone() {
+		decryptDuration = System.nanoTime() - began;
+	}
+
+}
@@ -0,0 +1,16 @@
+package com.ppublica.shopify.security.events;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+
+/**
+ * An app/uninstalled webhook is handled. Outcome: uninstalled, queued, duplicate, rejected (queue full), invalid 
+ * (body) or unverified.
+ * 
+ * @author N F
+ */
+@Label("Shopify Webhook Handled")
+@Description("An app/uninstalled webhook is handled. Outcome: uninstalled, queued, duplicate, rejected (queue full), invalid (body) or unverified.")
+final class ShopifyWebhookHandled extends StageEvent {
+
+}
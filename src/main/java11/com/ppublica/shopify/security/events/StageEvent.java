@@ -0,0 +1,39 @@
+package com.ppublica.shopify.security.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/**
+ * The fields every event of the security checks has. Stack traces aren't recorded: the route and the thread say 
+ * where the stage ran, and they'd cost more than the stage itself.
+ * 
+ * @author N F
+ */
+@Category("Shopify")
+@StackTrace(false)
+abstract class StageEvent extends Event implements ShopifyEvent {
+	
+	@Label("Shop")
+	String shop;
+	
+	@Label("Route")
+	String route;
+	
+	@Label("Outcome")
+	String outcome;
+
+	@Override
+	public void record(String shop, String route, String outcome) {
+		end();
+		
+		if(shouldCommit()) {
+			this.shop = shop;
+			this.route = route;
+			this.outcome = outcome;
+			commit();
+		}
+	}
+
+}
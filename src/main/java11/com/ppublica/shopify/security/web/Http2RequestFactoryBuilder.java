@@ -0,0 +1,36 @@
+package com.ppublica.shopify.security.web;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+
+import org.springframework.http.client.ClientHttpRequestFactory;
+
+/**
+ * Builds the "http2" implementation of ShopifyHttpTransport. This is the version of the class used on Java 11 and
+ * later; see the Java 8 version.
+ *
+ * <p>A single JDK HttpClient is shared by every request: it keeps its connections to each store open, and uses
+ * HTTP/2 when the server offers it over TLS, so concurrent token exchanges for a store share one connection.</p>
+ *
+ * @author N F
+ * @see ShopifyHttpTransport
+ */
+final class Http2RequestFactoryBuilder {
+
+	private Http2RequestFactoryBuilder() { }
+
+	static boolean isAvailable() {
+		return true;
+	}
+
+	static ClientHttpRequestFactory build(int connectTimeout, int readTimeout) {
+		HttpClient httpClient = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.connectTimeout(Duration.ofMillis(connectTimeout))
+				.followRedirects(HttpClient.Redirect.NEVER)
+				.build();
+
+		return new JdkHttpClientRequestFactory(httpClient, Duration.ofMillis(readTimeout));
+	}
+
+}
@@ -0,0 +1,182 @@
+package com.ppublica.shopify.security.web;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+
+/**
+ * A ClientHttpRequestFactory on the JDK HttpClient, for the "http2" implementation of ShopifyHttpTransport. Only
+ * available on Java 11 and later.
+ *
+ * <p>The body of a request is buffered, and sent when the request is executed. The read timeout bounds the time
+ * until the response headers are received.</p>
+ *
+ * @author N F
+ * @see Http2RequestFactoryBuilder
+ */
+class JdkHttpClientRequestFactory implements ClientHttpRequestFactory {
+
+	// set by the HttpClient itself, which rejects them
+	private static final Set<String> RESTRICTED_HEADERS = new HashSet<>(Arrays.asList("connection", "content-length", "expect", "host", "upgrade"));
+
+	private final HttpClient httpClient;
+	private final Duration readTimeout;
+
+	JdkHttpClientRequestFactory(HttpClient httpClient, Duration readTimeout) {
+		this.httpClient = httpClient;
+		this.readTimeout = readTimeout;
+	}
+
+	@Override
+	public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod) {
+		return new JdkHttpClientRequest(uri, httpMethod);
+	}
+
+
+	private class JdkHttpClientRequest implements ClientHttpRequest {
+		private final URI uri;
+		private final HttpMethod method;
+		private final HttpHeaders headers = new HttpHeaders();
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+		private boolean executed;
+
+		JdkHttpClientRequest(URI uri, HttpMethod method) {
+			this.uri = uri;
+			this.method = method;
+		}
+
+		@Override
+		public HttpMethod getMethod() {
+			return this.method;
+		}
+
+		@Override
+		public String getMethodValue() {
+			return this.method.name();
+		}
+
+		@Override
+		public URI getURI() {
+			return this.uri;
+		}
+
+		@Override
+		public HttpHeaders getHeaders() {
+			return this.executed ? HttpHeaders.readOnlyHttpHeaders(this.headers) : this.headers;
+		}
+
+		@Override
+		public OutputStream getBody() {
+			if(this.executed) {
+				throw new IllegalStateException("The request has already been executed");
+			}
+			return this.body;
+		}
+
+		@Override
+		public ClientHttpResponse execute() throws IOException {
+			if(this.executed) {
+				throw new IllegalStateException("The request has already been executed");
+			}
+			this.executed = true;
+
+			byte[] bytes = this.body.toByteArray();
+			HttpRequest.BodyPublisher publisher = bytes.length == 0 ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofByteArray(bytes);
+
+			HttpRequest.Builder builder = HttpRequest.newBuilder(this.uri)
+					.timeout(readTimeout)
+					.method(this.method.name(), publisher);
+
+			for(Map.Entry<String, List<String>> header : this.headers.entrySet()) {
+				if(RESTRICTED_HEADERS.contains(header.getKey().toLowerCase(Locale.ROOT))) {
+					continue;
+				}
+				for(String value : header.getValue()) {
+					builder.header(header.getKey(), value);
+				}
+			}
+
+			try {
+				return new JdkHttpClientResponse(httpClient.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream()));
+
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for " + this.uri);
+			}
+		}
+	}
+
+
+	private static class JdkHttpClientResponse implements ClientHttpResponse {
+		private final HttpResponse<InputStream> response;
+		private final HttpHeaders headers = new HttpHeaders();
+
+		JdkHttpClientResponse(HttpResponse<InputStream> response) {
+			this.response = response;
+
+			for(Map.Entry<String, List<String>> header : response.headers().map().entrySet()) {
+				// the HTTP/2 pseudo-headers aren't headers
+				if(!header.getKey().startsWith(":")) {
+					this.headers.addAll(header.getKey(), header.getValue());
+				}
+			}
+		}
+
+		@Override
+		public HttpStatus getStatusCode() {
+			return HttpStatus.valueOf(this.response.statusCode());
+		}
+
+		@Override
+		public int getRawStatusCode() {
+			return this.response.statusCode();
+		}
+
+		@Override
+		public String getStatusText() {
+			HttpStatus status = HttpStatus.resolve(this.response.statusCode());
+			return status != null ? status.getReasonPhrase() : "";
+		}
+
+		@Override
+		public HttpHeaders getHeaders() {
+			return this.headers;
+		}
+
+		@Override
+		public InputStream getBody() {
+			return this.response.body();
+		}
+
+		@Override
+		public void close() {
+			try {
+				// releases the connection back to the client
+				this.response.body().close();
+			} catch (IOException e) {
+				// nothing left to release
+			}
+		}
+	}
+
+}
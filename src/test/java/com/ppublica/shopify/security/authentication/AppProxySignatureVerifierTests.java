@@ -0,0 +1,148 @@
+package com.ppublica.shopify.security.authentication;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.ppublica.shopify.security.cache.ReplayCache;
+
+public class AppProxySignatureVerifierTests {
+
+	// the example in Shopify's app proxy documentation
+	static final String SECRET = "hush";
+	static final String QUERY = "extra=1&extra=2&shop=shop-name.myshopify.com&path_prefix=%2Fapps%2Fawesome_reviews&timestamp=1317327555";
+	static final String SIGNATURE = "a9718877bea71c2484f91608a7eaea1532bdf71f5c56825065fa4ccabe549ef3";
+
+	AppProxySignatureVerifier verifier = new AppProxySignatureVerifier(SECRET);
+
+	@Test
+	public void isValidWhenShopifyExampleThenTrue() {
+		Assert.assertTrue(verifier.isValid(QUERY + "&signature=" + SIGNATURE));
+	}
+
+	@Test
+	public void isValidWhenSignatureFirstThenTrue() {
+		Assert.assertTrue(verifier.isValid("signature=" + SIGNATURE + "&" + QUERY));
+	}
+
+	@Test
+	public void isValidWhenEmptyValueAndPlusThenSignedDecoded() {
+		String canonical = "a=x ylogged_in_customer_id=shop=shop-name.myshopify.com";
+		String query = "shop=shop-name.myshopify.com&logged_in_customer_id=&a=x+y";
+
+		Assert.assertTrue(verifier.isValid(query + "&signature=" + ShopifyVerificationStrategy.hash(SECRET, canonical)));
+	}
+
+	@Test
+	public void isValidWhenNonAsciiThenSignedAsUtf8() {
+		String canonical = "name=caféshop=shop-name.myshopify.com";
+
+		Assert.assertTrue(verifier.isValid("shop=shop-name.myshopify.com&name=caf%C3%A9&signature=" + ShopifyVerificationStrategy.hash(SECRET, canonical)));
+		Assert.assertTrue(verifier.isValid("shop=shop-name.myshopify.com&name=café&signature=" + ShopifyVerificationStrategy.hash(SECRET, canonical)));
+	}
+
+	@Test
+	public void isValidWhenTamperedThenFalse() {
+		Assert.assertFalse(verifier.isValid(QUERY.replace("shop-name", "other-name") + "&signature=" + SIGNATURE));
+		Assert.assertFalse(verifier.isValid(QUERY + "&extra=3&signature=" + SIGNATURE));
+		// the previous failure must not leave state behind
+		Assert.assertTrue(verifier.isValid(QUERY + "&signature=" + SIGNATURE));
+	}
+
+	@Test
+	public void isValidWhenSignedWithPreviousSecretThenTrue() {
+		ClientSecretKeyRing keyRing = new ClientSecretKeyRing("new-secret", SECRET);
+		AppProxySignatureVerifier rotating = new AppProxySignatureVerifier(keyRing);
+
+		Assert.assertTrue(rotating.isValid(QUERY + "&signature=" + SIGNATURE));
+		Assert.assertEquals(1, keyRing.getPreviousKeyMatchCount());
+
+		keyRing.setSecrets("new-secret", null);
+		Assert.assertFalse(rotating.isValid(QUERY + "&signature=" + SIGNATURE));
+	}
+
+	@Test
+	public void isValidWhenMalformedThenFalse() {
+		Assert.assertFalse(verifier.isValid(QUERY));
+		Assert.assertFalse(verifier.isValid(null));
+		Assert.assertFalse(verifier.isValid(""));
+		Assert.assertFalse(verifier.isValid(QUERY + "&signature=abc"));
+		Assert.assertFalse(verifier.isValid(QUERY + "&signature=" + SIGNATURE + "&signature=" + SIGNATURE));
+		Assert.assertFalse(verifier.isValid(QUERY + "%2&signature=" + SIGNATURE));
+		Assert.assertFalse(new AppProxySignatureVerifier((String)null).isValid(QUERY + "&signature=" + SIGNATURE));
+	}
+
+	@Test
+	public void isValidWhenManyParametersThenTrue() {
+		StringBuilder query = new StringBuilder("shop=shop-name.myshopify.com");
+		StringBuilder canonical = new StringBuilder();
+		for(int i = 0; i < 50; i++) {
+			query.append("&p").append(100 + i).append('=').append(i);
+			canonical.append("p").append(100 + i).append('=').append(i);
+		}
+		canonical.append("shop=shop-name.myshopify.com");
+
+		Assert.assertTrue(verifier.isValid(query + "&signature=" + ShopifyVerificationStrategy.hash(SECRET, canonical.toString())));
+	}
+
+	@Test
+	public void isValidWhenTooManyParametersOrTooLongThenFalse() {
+		StringBuilder query = new StringBuilder("shop=shop-name.myshopify.com");
+		StringBuilder canonical = new StringBuilder();
+		for(int i = 0; i < AppProxySignatureVerifier.MAX_PARAMETERS; i++) {
+			query.append("&p").append(1000 + i).append('=').append(i);
+			canonical.append("p").append(1000 + i).append('=').append(i);
+		}
+		canonical.append("shop=shop-name.myshopify.com");
+		Assert.assertFalse(verifier.isValid(query + "&signature=" + ShopifyVerificationStrategy.hash(SECRET, canonical.toString())));
+
+		StringBuilder longValue = new StringBuilder();
+		for(int i = 0; i < AppProxySignatureVerifier.MAX_QUERY_LENGTH; i++) {
+			longValue.append('x');
+		}
+		String longCanonical = "a=" + longValue + "shop=shop-name.myshopify.com";
+		Assert.assertFalse(verifier.isValid("shop=shop-name.myshopify.com&a=" + longValue + "&signature=" + ShopifyVerificationStrategy.hash(SECRET, longCanonical)));
+	}
+
+	@Test
+	public void isValidWhenTimestampOutsideSkewOrReplayedThenFalse() {
+		ClientSecretKeyRing keyRing = new ClientSecretKeyRing(SECRET, null);
+		Clock withinSkew = Clock.fixed(Instant.ofEpochSecond(1317327555 + 299), ZoneOffset.UTC);
+		Clock pastSkew = Clock.fixed(Instant.ofEpochSecond(1317327555 + 301), ZoneOffset.UTC);
+
+		Assert.assertTrue(new AppProxySignatureVerifier(keyRing, 300000, null, withinSkew).isValid(QUERY + "&signature=" + SIGNATURE));
+		Assert.assertFalse(new AppProxySignatureVerifier(keyRing, 300000, null, pastSkew).isValid(QUERY + "&signature=" + SIGNATURE));
+
+		String noTimestamp = "shop=shop-name.myshopify.com";
+		Assert.assertFalse(new AppProxySignatureVerifier(keyRing, 300000, null, withinSkew)
+				.isValid(noTimestamp + "&signature=" + ShopifyVerificationStrategy.hash(SECRET, noTimestamp)));
+
+		AppProxySignatureVerifier replayChecking = new AppProxySignatureVerifier(keyRing, 300000, new ReplayCache(600000, 100, withinSkew), withinSkew);
+		Assert.assertTrue(replayChecking.isValid(QUERY + "&signature=" + SIGNATURE));
+		Assert.assertFalse(replayChecking.isValid(QUERY + "&signature=" + SIGNATURE.toUpperCase()));
+	}
+
+	@Test
+	public void isValidWhenConcurrentThenEachThreadVerifies() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Future<Boolean>> results = new ArrayList<>();
+
+		for(int i = 0; i < 200; i++) {
+			boolean valid = i % 2 == 0;
+			results.add(executor.submit(() -> verifier.isValid(QUERY + "&signature=" + (valid ? SIGNATURE : SIGNATURE.replace('a', 'b'))) == valid));
+		}
+
+		for(Future<Boolean> result : results) {
+			Assert.assertTrue(result.get());
+		}
+		executor.shutdown();
+	}
+}
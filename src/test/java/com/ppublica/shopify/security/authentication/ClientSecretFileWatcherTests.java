@@ -0,0 +1,105 @@
+package com.ppublica.shopify.security.authentication;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ClientSecretFileWatcherTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void checkWhenOneLineChangedThenRotates() throws Exception {
+		File file = write(folder.newFile(), "first\n", 1000);
+		ClientSecretKeyRing keyRing = new ClientSecretKeyRing("first", null);
+		ClientSecretFileWatcher watcher = new ClientSecretFileWatcher(file.toPath(), keyRing, 0L);
+
+		Assert.assertTrue(watcher.check());
+		Assert.assertNull(keyRing.getPreviousSecret());
+
+		write(file, "second\n", 2000);
+
+		Assert.assertTrue(watcher.check());
+		Assert.assertEquals("second", keyRing.getCurrentSecret());
+		Assert.assertEquals("first", keyRing.getPreviousSecret());
+		Assert.assertEquals(2, watcher.getReloadCount());
+	}
+
+	@Test
+	public void checkWhenTwoLinesThenSetsBoth() throws Exception {
+		File file = write(folder.newFile(), "  second \n\nfirst\n", 1000);
+		ClientSecretKeyRing keyRing = new ClientSecretKeyRing("first", null);
+		ClientSecretFileWatcher watcher = new ClientSecretFileWatcher(file.toPath(), keyRing, 0L);
+
+		Assert.assertTrue(watcher.check());
+		Assert.assertEquals("second", keyRing.getCurrentSecret());
+		Assert.assertEquals("first", keyRing.getPreviousSecret());
+
+		// the previous secret is removed from the file once it's no longer used
+		write(file, "second\n", 2000);
+
+		Assert.assertTrue(watcher.check());
+		Assert.assertNull(keyRing.getPreviousSecret());
+	}
+
+	@Test
+	public void checkWhenNotModifiedThenNotRead() throws Exception {
+		File file = write(folder.newFile(), "first\n", 1000);
+		ClientSecretKeyRing keyRing = new ClientSecretKeyRing("first", null);
+		ClientSecretFileWatcher watcher = new ClientSecretFileWatcher(file.toPath(), keyRing, 0L);
+
+		watcher.check();
+		write(file, "second\n", 1000);
+
+		Assert.assertFalse(watcher.check());
+		Assert.assertEquals("first", keyRing.getCurrentSecret());
+	}
+
+	@Test
+	public void checkWhenEmptyOrMissingThenKeysKept() throws Exception {
+		File file = write(folder.newFile(), "\n", 1000);
+		ClientSecretKeyRing keyRing = new ClientSecretKeyRing("first", null);
+		ClientSecretFileWatcher watcher = new ClientSecretFileWatcher(file.toPath(), keyRing, 0L);
+
+		Assert.assertFalse(watcher.check());
+		Assert.assertTrue(file.delete());
+		Assert.assertFalse(watcher.check());
+
+		Assert.assertEquals("first", keyRing.getCurrentSecret());
+		Assert.assertEquals(2, watcher.getFailedReloadCount());
+	}
+
+	@Test
+	public void pollWhenFileChangesThenKeysUpdated() throws Exception {
+		File file = write(folder.newFile(), "first\n", 1000);
+		ClientSecretKeyRing keyRing = new ClientSecretKeyRing("first", null);
+		ClientSecretFileWatcher watcher = new ClientSecretFileWatcher(file.toPath(), keyRing, 10L);
+
+		try {
+			write(file, "second\n", 2000);
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while(!"second".equals(keyRing.getCurrentSecret()) && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+
+			Assert.assertEquals("second", keyRing.getCurrentSecret());
+		} finally {
+			watcher.destroy();
+		}
+	}
+
+	private static File write(File file, String content, long lastModified) throws Exception {
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(lastModified));
+		return file;
+	}
+
+}
@@ -0,0 +1,137 @@
+package com.ppublica.shopify.security.authentication;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.Mac;
+
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ClientSecretKeyRingTests {
+
+	static final byte[] MESSAGE = "shop=shop-name.myshopify.com".getBytes(StandardCharsets.UTF_8);
+
+	@Test
+	public void verifyWhenCurrentSecretThenCountsCurrent() throws Exception {
+		ClientSecretKeyRing keyRing = new ClientSecretKeyRing("current", "previous");
+
+		Assert.assertTrue(keyRing.verify(signedWith("current")));
+		Assert.assertEquals(1, keyRing.getCurrentKeyMatchCount());
+		Assert.assertEquals(0, keyRing.getPreviousKeyMatchCount());
+		Assert.assertEquals(0, keyRing.getLastPreviousKeyMatch());
+	}
+
+	@Test
+	public void verifyWhenPreviousSecretThenCountsPreviousAndTime() throws Exception {
+		Clock clock = Clock.fixed(Instant.ofEpochMilli(123456), ZoneOffset.UTC);
+		ClientSecretKeyRing keyRing = new ClientSecretKeyRing("current", "previous", clock);
+
+		Assert.assertTrue(keyRing.verify(signedWith("previous")));
+		Assert.assertEquals(0, keyRing.getCurrentKeyMatchCount());
+		Assert.assertEquals(1, keyRing.getPreviousKeyMatchCount());
+		Assert.assertEquals(123456, keyRing.getLastPreviousKeyMatch());
+	}
+
+	@Test
+	public void verifyWhenNeitherSecretThenFalse() throws Exception {
+		ClientSecretKeyRing keyRing = new ClientSecretKeyRing("current", "previous");
+
+		Assert.assertFalse(keyRing.verify(signedWith("other")));
+		Assert.assertEquals(1, keyRing.getNoKeyMatchCount());
+	}
+
+	@Test
+	public void verifyWhenNoPreviousSecretThenOnlyCurrentTried() throws Exception {
+		ClientSecretKeyRing keyRing = new ClientSecretKeyRing("current", "current");
+		List<Mac> tried = new ArrayList<>();
+
+		Assert.assertFalse(keyRing.verify(mac -> tried.add(mac) && false));
+		Assert.assertEquals(1, tried.size());
+		Assert.assertNull(keyRing.getPreviousSecret());
+	}
+
+	@Test
+	public void rotateThenNewSecretCurrentAndOldPrevious() throws Exception {
+		ClientSecretKeyRing keyRing = new ClientSecretKeyRing("first", null);
+
+		keyRing.rotate("second");
+
+		Assert.assertEquals("second", keyRing.getCurrentSecret());
+		Assert.assertEquals("first", keyRing.getPreviousSecret());
+		Assert.assertTrue(keyRing.verify(signedWith("second")));
+		Assert.assertTrue(keyRing.verify(signedWith("first")));
+		Assert.assertEquals(1, keyRing.getRotationCount());
+
+		// rotating to the same secret keeps the previous one
+		keyRing.rotate("second");
+		Assert.assertEquals("first", keyRing.getPreviousSecret());
+		Assert.assertEquals(1, keyRing.getRotationCount());
+	}
+
+	@Test
+	public void setSecretsWhenUnchangedThenNotCounted() {
+		ClientSecretKeyRing keyRing = new ClientSecretKeyRing("current", "previous");
+
+		keyRing.setSecrets("current", "previous");
+		Assert.assertEquals(0, keyRing.getRotationCount());
+
+		keyRing.setSecrets("current", null);
+		Assert.assertEquals(1, keyRing.getRotationCount());
+		Assert.assertFalse(keyRing.verify(signedWith("previous")));
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void constructorWhenNoSecretThenException() {
+		new ClientSecretKeyRing(null, "previous");
+	}
+
+	@Test
+	public void verifyWhenRotatedConcurrentlyThenEachThreadUsesNewKeys() throws Exception {
+		ClientSecretKeyRing keyRing = new ClientSecretKeyRing("first", null);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+
+		try {
+			List<Future<Boolean>> results = new ArrayList<>();
+			for(int i = 0; i < 8; i++) {
+				results.add(executor.submit(() -> keyRing.verify(signedWith("first"))));
+			}
+			for(Future<Boolean> result : results) {
+				Assert.assertTrue(result.get());
+			}
+
+			keyRing.setSecrets("second", null);
+
+			results.clear();
+			for(int i = 0; i < 8; i++) {
+				results.add(executor.submit(() -> keyRing.verify(signedWith("first"))));
+			}
+			for(Future<Boolean> result : results) {
+				Assert.assertFalse(result.get());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	static java.util.function.Predicate<Mac> signedWith(String secret) {
+		byte[] expected;
+		try {
+			expected = Hex.decodeHex(ShopifyVerificationStrategy.hash(secret, MESSAGE));
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+
+		return mac -> MessageDigest.isEqual(mac.doFinal(MESSAGE), expected);
+	}
+
+}
@@ -12,6 +12,7 @@ import org.springframework.security.oauth2.core.ClientAuthenticationMethod;
 import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
 import org.springframework.web.util.UriUtils;
 
+import com.ppublica.shopify.security.cache.ReplayCache;
 import com.ppublica.shopify.security.web.ShopifyHttpSessionOAuth2AuthorizationRequestRepository;
 
 import org.junit.Assert;
@@ -22,8 +23,12 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
 
 import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
@@ -631,4 +636,151 @@ public class ShopifyVerificationStrategyTests {
 	
 	
 	
+	/*
+	 * Given: a strategy that checks the timestamp
+	 * 
+	 * Expect: isShopifyRequest(req) returns true only while the timestamp is within the skew
+	 */
+	@Test
+	public void givenTimestampSkew_thenIsShopifyRequest_checksTimestamp() {
+		Clock withinSkew = Clock.fixed(Instant.ofEpochSecond(1337178173 + 299), ZoneOffset.UTC);
+		Clock pastSkew = Clock.fixed(Instant.ofEpochSecond(1337178173 + 301), ZoneOffset.UTC);
+		
+		Assert.assertTrue(timestampedStrategy(withinSkew, null).isShopifyRequest(timestampedRequest("1337178173")));
+		Assert.assertFalse(timestampedStrategy(pastSkew, null).isShopifyRequest(timestampedRequest("1337178173")));
+		Assert.assertFalse(timestampedStrategy(withinSkew, null).isShopifyRequest(timestampedRequest("abc")));
+		Assert.assertFalse(timestampedStrategy(withinSkew, null).isShopifyRequest(timestampedRequest(null)));
+		
+	}
+	
+	/*
+	 * Given: a strategy with a ReplayCache
+	 * 
+	 * Expect: isShopifyRequest(req) returns true for the first request, and false for the same query after
+	 * 
+	 */
+	@Test
+	public void givenReplayCache_thenIsShopifyRequest_rejectsReplay() {
+		Clock clock = Clock.fixed(Instant.ofEpochSecond(1337178173), ZoneOffset.UTC);
+		ReplayCache replayCache = new ReplayCache(600000, 100, clock);
+		ShopifyVerificationStrategy strategy = timestampedStrategy(clock, replayCache);
+		
+		Assert.assertTrue(strategy.isShopifyRequest(timestampedRequest("1337178173")));
+		Assert.assertFalse(strategy.isShopifyRequest(timestampedRequest("1337178173")));
+		Assert.assertEquals(1, replayCache.getReplayCount());
+		
+	}
+	
+	/*
+	 * Given: a strategy with a ReplayCache
+	 * 
+	 * Expect: an invalid HMAC isn't recorded
+	 * 
+	 */
+	@Test
+	public void givenReplayCacheAndInvalidHMAC_thenIsShopifyRequest_doesntRecord() {
+		Clock clock = Clock.fixed(Instant.ofEpochSecond(1337178173), ZoneOffset.UTC);
+		ReplayCache replayCache = new ReplayCache(600000, 100, clock);
+		ShopifyVerificationStrategy strategy = timestampedStrategy(clock, replayCache);
+		doReturn("wrong-secret").when(strategy).getClientSecret(any());
+		
+		Assert.assertFalse(strategy.isShopifyRequest(timestampedRequest("1337178173")));
+		Assert.assertEquals(0, replayCache.size());
+		
+	}
+	
+	/*
+	 * Given: a strategy with a ClientSecretKeyRing whose current secret is new, and previous secret is the old one
+	 * 
+	 * Expect: isShopifyRequest(req) accepts a query signed with either secret, without looking up the 
+	 * 		ClientRegistration's secret, and rejects one signed with neither
+	 * 
+	 */
+	@Test
+	public void givenKeyRing_thenIsShopifyRequest_acceptsCurrentAndPreviousSecrets() {
+		ClientSecretKeyRing keyRing = new ClientSecretKeyRing("new-secret", secret);
+		ShopifyVerificationStrategy strategy = spy(new ShopifyVerificationStrategy(null, null, 0, null, keyRing, Clock.systemUTC()));
+		
+		Assert.assertTrue(strategy.isShopifyRequest(timestampedRequest("1337178173")));
+		Assert.assertEquals(1, keyRing.getPreviousKeyMatchCount());
+		
+		keyRing.setSecrets("new-secret", null);
+		Assert.assertFalse(strategy.isShopifyRequest(timestampedRequest("1337178173")));
+		
+		keyRing.setSecrets(secret, null);
+		Assert.assertTrue(strategy.isShopifyRequest(timestampedRequest("1337178173")));
+		Assert.assertEquals(1, keyRing.getCurrentKeyMatchCount());
+		
+		verify(strategy, never()).getClientSecret(any());
+		
+	}
+	
+	/*
+	 * Given: a strategy with a ClientSecretKeyRing, and a query string that was url-encoded again
+	 * 
+	 * Expect: isShopifyRequest(req) returns true, and only counts one match
+	 * 
+	 */
+	@Test
+	public void givenKeyRingAndEncodedQuery_thenIsShopifyRequest_returnsTrue() {
+		ClientSecretKeyRing keyRing = new ClientSecretKeyRing(secret, null);
+		ShopifyVerificationStrategy strategy = new ShopifyVerificationStrategy(null, null, 0, null, keyRing, Clock.systemUTC());
+		
+		Map<String, String[]> paramMap = new HashMap<>();
+		paramMap.put(ShopifyVerificationStrategy.HMAC_PARAMETER, new String[] {hmacValue});
+		HttpServletRequest req = mock(HttpServletRequest.class);
+		when(req.getQueryString()).thenReturn(piece1 + "&" + hmacPiece + "&" + UriUtils.encode(piece2, StandardCharsets.UTF_8));
+		when(req.getParameterMap()).thenReturn(paramMap);
+		
+		Assert.assertTrue(strategy.isShopifyRequest(req));
+		Assert.assertEquals(1, keyRing.getCurrentKeyMatchCount());
+		Assert.assertEquals(0, keyRing.getNoKeyMatchCount());
+		
+	}
+	
+	/*
+	 * Given: a strategy with a ClientSecretKeyRing
+	 * 
+	 * Expect: isHeaderShopifyRequest(body, hmac, registrationId) accepts a body signed with either secret
+	 * 
+	 */
+	@Test
+	public void givenKeyRing_thenIsHeaderShopifyRequest_acceptsCurrentAndPreviousSecrets() {
+		ClientSecretKeyRing keyRing = new ClientSecretKeyRing("new-secret", "old-secret");
+		ShopifyVerificationStrategy strategy = new ShopifyVerificationStrategy(null, null, 0, null, keyRing, Clock.systemUTC());
+		byte[] body = "{\"id\":689034}".getBytes(StandardCharsets.UTF_8);
+		
+		String oldHmac = Base64.getEncoder().encodeToString(ShopifyVerificationStrategy.hash("old-secret", body).getBytes());
+		String newHmac = Base64.getEncoder().encodeToString(ShopifyVerificationStrategy.hash("new-secret", body).getBytes());
+		String otherHmac = Base64.getEncoder().encodeToString(ShopifyVerificationStrategy.hash("other-secret", body).getBytes());
+		
+		Assert.assertTrue(strategy.isHeaderShopifyRequest(body, newHmac, "shopify"));
+		Assert.assertTrue(strategy.isHeaderShopifyRequest(body, oldHmac, "shopify"));
+		Assert.assertFalse(strategy.isHeaderShopifyRequest(body, otherHmac, "shopify"));
+		Assert.assertFalse(strategy.isHeaderShopifyRequest(body, "not base64!", "shopify"));
+		
+		Assert.assertEquals(1, keyRing.getCurrentKeyMatchCount());
+		Assert.assertEquals(1, keyRing.getPreviousKeyMatchCount());
+		
+	}
+	
+	private ShopifyVerificationStrategy timestampedStrategy(Clock clock, ReplayCache replayCache) {
+		ShopifyVerificationStrategy strategy = spy(new ShopifyVerificationStrategy(null, null, 300000, replayCache, clock));
+		doReturn(secret).when(strategy).getClientSecret(any());
+		return strategy;
+	}
+	
+	private HttpServletRequest timestampedRequest(String timestamp) {
+		Map<String, String[]> paramMap = new HashMap<>();
+		paramMap.put(ShopifyVerificationStrategy.HMAC_PARAMETER, new String[] {hmacValue});
+		if(timestamp != null) {
+			paramMap.put(ShopifyVerificationStrategy.TIMESTAMP_PARAMETER, new String[] {timestamp});
+		}
+		
+		HttpServletRequest req = mock(HttpServletRequest.class);
+		when(req.getQueryString()).thenReturn(piece1 + "&" + hmacPiece + "&" + piece2);
+		when(req.getParameterMap()).thenReturn(paramMap);
+		return req;
+	}
+	
 }
@@ -0,0 +1,144 @@
+package com.ppublica.shopify.security.cache;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExpiringCacheTests {
+	
+	MutableClock clock;
+	ExpiringCache<String, String> cache;
+	
+	@Before
+	public void setup() {
+		clock = new MutableClock();
+		cache = new ExpiringCache<>(1000, 3, clock);
+	}
+	
+	@Test
+	public void getReturnsValueUntilExpired() {
+		cache.put("a", "1");
+		clock.advance(999);
+		Assert.assertEquals("1", cache.get("a"));
+		
+		clock.advance(1);
+		Assert.assertNull(cache.get("a"));
+		Assert.assertEquals(0, cache.size());
+	}
+	
+	@Test
+	public void putIfAbsentKeepsExistingValue() {
+		Assert.assertNull(cache.putIfAbsent("a", "1"));
+		Assert.assertEquals("1", cache.putIfAbsent("a", "2"));
+		Assert.assertEquals("1", cache.get("a"));
+		
+		clock.advance(1000);
+		Assert.assertNull(cache.putIfAbsent("a", "3"));
+		Assert.assertEquals("3", cache.get("a"));
+	}
+	
+	@Test
+	public void neverExceedsMaxSize() {
+		cache.put("a", "1");
+		clock.advance(10);
+		cache.put("b", "2");
+		clock.advance(10);
+		cache.put("c", "3");
+		clock.advance(10);
+		cache.put("d", "4");
+		
+		Assert.assertEquals(3, cache.size());
+		Assert.assertNull(cache.get("a"));
+		Assert.assertEquals("4", cache.get("d"));
+	}
+	
+	// a value written again expires later, so it's evicted after the others
+	@Test
+	public void putAgainMovesEntryLastForEviction() {
+		cache.put("a", "1");
+		clock.advance(10);
+		cache.put("b", "2");
+		clock.advance(10);
+		cache.put("c", "3");
+		clock.advance(10);
+		cache.put("a", "5");
+		cache.put("d", "4");
+		
+		Assert.assertEquals(3, cache.size());
+		Assert.assertNull(cache.get("b"));
+		Assert.assertEquals("5", cache.get("a"));
+		
+		clock.advance(990);
+		Assert.assertNull(cache.get("c"));
+		Assert.assertEquals("5", cache.get("a"));
+	}
+	
+	@Test
+	public void fullCacheSweepsExpiredEntriesFirst() {
+		cache.put("a", "1");
+		cache.put("b", "2");
+		clock.advance(500);
+		cache.put("c", "3");
+		clock.advance(600);
+		cache.put("d", "4");
+		
+		Assert.assertEquals(2, cache.size());
+		Assert.assertEquals("3", cache.get("c"));
+	}
+	
+	@Test
+	public void removeOnlyMatchingValue() {
+		cache.put("a", "1");
+		cache.remove("a", "2");
+		Assert.assertEquals("1", cache.get("a"));
+		
+		cache.remove("a", "1");
+		Assert.assertNull(cache.get("a"));
+	}
+	
+	@Test
+	public void getCountsHitsAndMisses() {
+		cache.put("a", "1");
+		cache.get("a");
+		cache.get("b");
+		clock.advance(1000);
+		cache.get("a");
+		
+		Assert.assertEquals(1, cache.getHitCount());
+		Assert.assertEquals(2, cache.getMissCount());
+	}
+	
+	static class MutableClock extends Clock {
+		private long millis = 1_000_000;
+		
+		void advance(long delta) {
+			millis += delta;
+		}
+
+		@Override
+		public ZoneOffset getZone() {
+			return ZoneOffset.UTC;
+		}
+
+		@Override
+		public Clock withZone(ZoneId zone) {
+			return this;
+		}
+
+		@Override
+		public Instant instant() {
+			return Instant.ofEpochMilli(millis);
+		}
+		
+		@Override
+		public long millis() {
+			return millis;
+		}
+	}
+
+}
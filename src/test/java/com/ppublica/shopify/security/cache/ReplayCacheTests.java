@@ -0,0 +1,62 @@
+package com.ppublica.shopify.security.cache;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ppublica.shopify.security.cache.ExpiringCacheTests.MutableClock;
+
+public class ReplayCacheTests {
+	
+	MutableClock clock;
+	ReplayCache cache;
+	
+	@Before
+	public void setup() {
+		clock = new MutableClock();
+		cache = new ReplayCache(3000, 100, clock);
+	}
+	
+	@Test
+	public void markSeenWhenSeenWithinWindowThenFalse() {
+		Assert.assertTrue(cache.markSeen("a"));
+		Assert.assertFalse(cache.markSeen("a"));
+		
+		clock.advance(2999);
+		Assert.assertFalse(cache.markSeen("a"));
+		Assert.assertTrue(cache.markSeen("b"));
+		Assert.assertEquals(2, cache.getReplayCount());
+	}
+	
+	@Test
+	public void markSeenWhenWindowAndSlicePassedThenTrue() {
+		cache.markSeen("a");
+		
+		clock.advance(4000);
+		
+		Assert.assertTrue(cache.markSeen("a"));
+		Assert.assertEquals(1, cache.size());
+	}
+	
+	@Test
+	public void markSeenWhenFullThenDropOldestBucket() {
+		cache = new ReplayCache(3000, 2, clock);
+		
+		cache.markSeen("a");
+		clock.advance(1000);
+		cache.markSeen("b");
+		clock.advance(1000);
+		cache.markSeen("c");
+		
+		Assert.assertEquals(1, cache.getDroppedBucketCount());
+		Assert.assertEquals(2, cache.size());
+		Assert.assertTrue(cache.markSeen("a"));
+		Assert.assertFalse(cache.markSeen("c"));
+	}
+	
+	@Test(expected=RuntimeException.class)
+	public void constructorWhenWindowNotPositiveThenException() {
+		new ReplayCache(0, 10);
+	}
+
+}
@@ -53,6 +53,12 @@ public class ShopifyPathsTests {
 		Assert.assertEquals(0, sP.getMenuLinks().size());
 		Assert.assertEquals(this.defaultUninstallUri, sP.getUninstallUri());
 		Assert.assertEquals(this.defaultUserInfoPagePath, sP.getUserInfoPagePath());
+		Assert.assertFalse(sP.isCustomWebhookUri());
+		Assert.assertEquals("/store/webhooks", sP.getWebhookUri());
+		Assert.assertFalse(sP.isCustomAppProxyUri());
+		Assert.assertEquals("/apps", sP.getAppProxyUri());
+		Assert.assertFalse(sP.isDiagnosticsEnabled());
+		Assert.assertEquals("/diagnostics", sP.getDiagnosticsPath());
 	}
 	
 	@Test
@@ -103,6 +109,34 @@ public class ShopifyPathsTests {
 		Assert.assertEquals(0, sP.getMenuLinks().size());
 		Assert.assertEquals("/otherUninstallUri", sP.getUninstallUri());
 		Assert.assertEquals("/info", sP.getUserInfoPagePath());
+		Assert.assertFalse(sP.isCustomWebhookUri());
+	}
+	
+	@Test
+	public void customWebhookUriInConstructorThenConstructCustomWebhookUri() {
+		ShopifyPaths sP = new ShopifyPaths("", "", "", "", "", "", false, "", "/otherWebhookUri");
+		
+		Assert.assertTrue(sP.isCustomWebhookUri());
+		Assert.assertFalse(sP.isCustomUninstallUri());
+		Assert.assertEquals("/otherWebhookUri", sP.getWebhookUri());
+	}
+	
+	@Test
+	public void customAppProxyUriInConstructorThenConstructCustomAppProxyUri() {
+		ShopifyPaths sP = new ShopifyPaths("", "", "", "", "", "", false, "", "", "/proxy");
+		
+		Assert.assertTrue(sP.isCustomAppProxyUri());
+		Assert.assertFalse(sP.isCustomWebhookUri());
+		Assert.assertEquals("/proxy", sP.getAppProxyUri());
+	}
+	
+	@Test
+	public void enableDiagnosticsInConstructorThenDiagnosticsEnabled() {
+		ShopifyPaths sP = new ShopifyPaths("", "", "", "", "", "", false, "", "", "", true);
+		
+		Assert.assertTrue(sP.isDiagnosticsEnabled());
+		Assert.assertFalse(sP.isUserInfoPageEnabled());
+		Assert.assertEquals("/diagnostics", sP.getDiagnosticsPath());
 	}
 	
 	@Test
@@ -0,0 +1,403 @@
+package com.ppublica.shopify.security.configurer;
+
+import static org.springframework.security.test.web.servlet.setup.SecurityMockMvcConfigurers.springSecurity;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.Filter;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.security.config.annotation.web.builders.HttpSecurity;
+import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
+import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+import org.springframework.security.crypto.keygen.KeyGenerators;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AccessTokenResponseClient;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseExtractor;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.servlet.config.annotation.EnableWebMvc;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import com.ppublica.shopify.HttpsRequestPostProcessor;
+import com.ppublica.shopify.TestDataSource;
+import com.ppublica.shopify.security.authentication.CipherPassword;
+import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
+import com.ppublica.shopify.security.configuration.SecurityBeansConfig;
+import com.ppublica.shopify.security.configuration.ShopifyPaths;
+import com.ppublica.shopify.security.web.ShopifyAuthorizationCodeTokenResponseClient;
+import com.ppublica.shopify.simulator.ShopifySimulator;
+
+/*
+ * Measures the bytes allocated on the request thread by each Shopify route, through the full filter chain, and
+ * fails if a route allocates more than its budget in allocation-budgets.properties. The budgets are per Java
+ * version: on a version without budgets, the allocations are only logged, unless -Dallocation.enforce=true is set.
+ *
+ * Each route is warmed up first, then the median of several requests is compared with the budget. The budgets
+ * include MockMvc's own allocations, and the token exchange is answered without a network call. Work done on
+ * other threads (e.g. removing an uninstalled store) isn't counted. Logging is set to WARNING while measuring, since
+ * other tests in the same JVM change the log level and add handlers.
+ *
+ * When a change makes a route allocate less, lower its budget; if it must allocate more, raise it in the same
+ * change, so the review shows it.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration
+@TestPropertySource("classpath:test-application.properties")
+@WebAppConfiguration
+public class FilterChainAllocationTests {
+
+	private static final String BUDGETS = "allocation-budgets.properties";
+	private static final String ENFORCE_PROPERTY = "allocation.enforce";
+	private static final int WARMUP = 300;
+	private static final int MEASURED = 101;
+
+	private static final Pattern STATE = Pattern.compile("var redirectFromParentPath = '[^']*&state=([^']+)'");
+
+	private static final com.sun.management.ThreadMXBean THREADS = threadMXBean();
+
+	@Autowired
+	WebApplicationContext wac;
+
+	@Autowired
+	Filter springSecurityFilterChain;
+
+	@Autowired
+	ShopifyPaths shopifyPaths;
+
+	@Autowired
+	Environment env;
+
+	@Autowired
+	OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> accessTokenResponseClient;
+
+	private MockMvc mockMvc;
+	private ShopifySimulator shopify;
+	private String clientSecret;
+	private String installPath;
+	private Properties budgets;
+	private final AtomicInteger shops = new AtomicInteger();
+	private final HttpsRequestPostProcessor https = new HttpsRequestPostProcessor();
+
+	private static final Logger ROOT_LOGGER = Logger.getLogger("");
+	private static final Logger LOGGER = Logger.getLogger(FilterChainAllocationTests.class.getName());
+	private static Level rootLevel;
+
+	@BeforeClass
+	public static void saveLogLevel() {
+		rootLevel = ROOT_LOGGER.getLevel();
+	}
+
+	@AfterClass
+	public static void restoreLogLevel() {
+		ROOT_LOGGER.setLevel(rootLevel);
+	}
+
+	@Before
+	public void setup() throws Exception {
+		Assume.assumeTrue("Thread allocation measurement is not supported", THREADS != null);
+
+		// set once the context is up: HSQLDB resets the logging configuration when it starts
+		ROOT_LOGGER.setLevel(Level.WARNING);
+
+		mockMvc = MockMvcBuilders
+				.webAppContextSetup(wac)
+				.apply(springSecurity(springSecurityFilterChain))
+				.build();
+
+		clientSecret = env.getProperty("ppublica.shopify.security.client.client_secret");
+		// only used to sign the requests
+		shopify = new ShopifySimulator(env.getProperty("ppublica.shopify.security.client.client_id"), clientSecret);
+		installPath = shopifyPaths.getInstallPath() + "/shopify";
+
+		((ShopifyAuthorizationCodeTokenResponseClient)accessTokenResponseClient).setRestOperations(new TokenEndpoint());
+
+		budgets = new Properties();
+		try(InputStream in = getClass().getClassLoader().getResourceAsStream(BUDGETS)) {
+			budgets.load(in);
+		}
+	}
+
+	/*
+	 * A store that hasn't been installed opens the app from the admin: the page redirects to Shopify.
+	 */
+	@Test
+	public void installWithinBudget() throws Exception {
+		assertWithinBudget("install", () -> get(installPath + "?" + shopify.signedShopQuery(nextShop())));
+	}
+
+	/*
+	 * Shopify sends the authorization code back: the code is exchanged and the store is saved.
+	 */
+	@Test
+	public void callbackWithinBudget() throws Exception {
+		assertWithinBudget("callback", this::callback);
+	}
+
+	/*
+	 * Shopify sends the "app/uninstalled" webhook.
+	 */
+	@Test
+	public void uninstallWithinBudget() throws Exception {
+		String uninstallPath = shopifyPaths.getUninstallUri() + "/shopify";
+
+		assertWithinBudget("uninstall", () -> shopify.uninstallWebhook(uninstallPath, nextShop()));
+	}
+
+	/*
+	 * An authenticated merchant calls the app.
+	 */
+	@Test
+	public void ordinaryRequestWithinBudget() throws Exception {
+		MvcResult open = mockMvc.perform(get(installPath + "?" + shopify.signedShopQuery("lmdev.myshopify.com")).with(https)).andReturn();
+		Assert.assertTrue(open.getResponse().getContentAsString().contains("WELCOME"));
+		MockHttpSession session = (MockHttpSession)open.getRequest().getSession();
+
+		assertWithinBudget("ordinary", () -> get("/products").session(session));
+	}
+
+	private void assertWithinBudget(String route, Supplier<MockHttpServletRequestBuilder> requests) throws Exception {
+		for(int i = 0; i < WARMUP; i++) {
+			perform(requests.get());
+		}
+
+		long[] allocated = new long[MEASURED];
+		long threadId = Thread.currentThread().getId();
+
+		for(int i = 0; i < MEASURED; i++) {
+			MockHttpServletRequestBuilder request = requests.get();
+
+			long before = THREADS.getThreadAllocatedBytes(threadId);
+			perform(request);
+			allocated[i] = THREADS.getThreadAllocatedBytes(threadId) - before;
+		}
+
+		Arrays.sort(allocated);
+		long median = allocated[MEASURED / 2];
+
+		String javaVersion = System.getProperty("java.specification.version");
+		String budgetVersion = closestBudgetVersion(route, majorVersion(javaVersion));
+		Assert.assertNotNull("No allocation budget for " + route + " in " + BUDGETS, budgetVersion);
+
+		long budget = Long.parseLong(budgets.getProperty(route + "." + budgetVersion).trim());
+		boolean enforced = budgetVersion.equals(javaVersion) || Boolean.getBoolean(ENFORCE_PROPERTY);
+		String report = "Allocated per request, " + route + ": " + median + " bytes (budget: " + budget + " on Java " + budgetVersion + ")";
+
+		if(!enforced) {
+			// the logging level is WARNING while measuring
+			LOGGER.warning(report + ". Not enforced on Java " + javaVersion + "; set -D" + ENFORCE_PROPERTY + "=true to enforce it");
+			return;
+		}
+
+		LOGGER.info(report);
+
+		Assert.assertTrue(route + " allocated " + median + " bytes per request, over its budget of " + budget + " on Java "
+				+ budgetVersion + " (see " + BUDGETS + ")", median <= budget);
+	}
+
+	/*
+	 * The version of the route's budget closest to the running one, or null if the route has no budget.
+	 */
+	private String closestBudgetVersion(String route, int javaVersion) {
+		String closest = null;
+		int closestDistance = Integer.MAX_VALUE;
+
+		for(String key : budgets.stringPropertyNames()) {
+			if(!key.startsWith(route + ".")) {
+				continue;
+			}
+			String version = key.substring(route.length() + 1);
+			int distance = Math.abs(majorVersion(version) - javaVersion);
+			if(distance < closestDistance) {
+				closest = version;
+				closestDistance = distance;
+			}
+		}
+
+		return closest;
+	}
+
+	/*
+	 * "1.8" is Java 8; later versions are "9", "10", and so on.
+	 */
+	private static int majorVersion(String version) {
+		String major = version.startsWith("1.") ? version.substring(2) : version;
+		int dot = major.indexOf('.');
+
+		return Integer.parseInt(dot < 0 ? major : major.substring(0, dot));
+	}
+
+	private void perform(MockHttpServletRequestBuilder request) {
+		try {
+			int status = mockMvc.perform(request.with(https)).andReturn().getResponse().getStatus();
+			Assert.assertEquals(200, status);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * Start an installation, unmeasured, and return Shopify's callback for it.
+	 */
+	private MockHttpServletRequestBuilder callback() {
+		String shop = nextShop();
+
+		try {
+			MvcResult install = mockMvc.perform(get(installPath + "?" + shopify.signedShopQuery(shop)).with(https)).andReturn();
+			Matcher state = STATE.matcher(install.getResponse().getContentAsString());
+			Assert.assertTrue(state.find());
+
+			String query = "code=" + UUID.randomUUID().toString().replace("-", "") + "&shop=" + shop
+					+ "&state=" + URLEncoder.encode(state.group(1), "UTF-8") + "&timestamp=" + Instant.now().getEpochSecond();
+			query += "&" + ShopifyVerificationStrategy.HMAC_PARAMETER + "=" + ShopifyVerificationStrategy.hash(clientSecret, query);
+
+			return get(URI.create("/login/app/oauth2/code/shopify?" + query)).session((MockHttpSession)install.getRequest().getSession());
+
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private String nextShop() {
+		return "alloc-" + shops.incrementAndGet() + ".myshopify.com";
+	}
+
+	private static com.sun.management.ThreadMXBean threadMXBean() {
+		try {
+			com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+			if(bean.isThreadAllocatedMemorySupported()) {
+				bean.setThreadAllocatedMemoryEnabled(true);
+				return bean;
+			}
+		} catch (ClassCastException | UnsupportedOperationException e) {
+			// not a HotSpot-compatible JVM
+		}
+		return null;
+	}
+
+	/*
+	 * Shopify's token endpoint, answered in memory: the form is written and the response parsed as usual.
+	 */
+	static class TokenEndpoint extends RestTemplate {
+		private static final byte[] BODY = "{\"access_token\":\"access-token-1234\",\"scope\":\"read_products,write_products\"}".getBytes(StandardCharsets.UTF_8);
+
+		@Override
+		public <T> T execute(URI url, HttpMethod method, RequestCallback requestCallback, ResponseExtractor<T> responseExtractor) {
+			try {
+				requestCallback.doWithRequest(new MockClientHttpRequest(method, url));
+
+				MockClientHttpResponse response = new MockClientHttpResponse(BODY, HttpStatus.OK);
+				response.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+
+				return responseExtractor.extractData(response);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+
+	@EnableWebSecurity
+	static class WebSecurityConfig extends WebSecurityConfigurerAdapter {
+		@Override
+		protected void configure(HttpSecurity http) throws Exception {
+			http.authorizeRequests()
+					.anyRequest().authenticated().and()
+				.requiresChannel().and()
+				.oauth2Login();
+		}
+	}
+
+	@RestController
+	static class ProductsController {
+		@GetMapping("/products")
+		public String products() {
+			return "products";
+		}
+	}
+
+	@EnableWebMvc
+	@Configuration
+	@Import(SecurityBeansConfig.class)
+	static class WebMvcConfig implements WebMvcConfigurer {
+
+		@Bean
+		TestDataSource testDataSource() {
+			return new TestDataSource("filterchainallocationtest");
+		}
+
+		@Bean
+		public JdbcTemplate getJdbcTemplate(CipherPassword cP, TestDataSource tds) {
+			JdbcTemplate template = new JdbcTemplate(tds);
+
+			String sampleSalt = KeyGenerators.string().generateKey();
+			TextEncryptor encryptor = Encryptors.queryableText(cP.getPassword(), sampleSalt);
+			String sampleToken = encryptor.encrypt("token-value");
+
+			template.execute("CREATE TABLE STOREACCESSTOKENS(id BIGINT NOT NULL IDENTITY, storeDomain VARCHAR(50) NOT NULL, tokenType VARCHAR(50) NOT NULL, tokenValue VARCHAR(100) NOT NULL, salt VARCHAR(100) NOT NULL, issuedAt BIGINT NOT NULL, expiresAt BIGINT NOT NULL, scopes VARCHAR(200) NOT NULL);");
+			template.execute("INSERT INTO STOREACCESSTOKENS(storeDomain,tokenType,tokenValue,salt,issuedAt,expiresAt,scopes) VALUES('lmdev.myshopify.com','BEARER','" + sampleToken + "','" + sampleSalt + "',2000,3000,'read_products,write_products');");
+
+			return template;
+		}
+
+		@Bean
+		public ProductsController productsController() {
+			return new ProductsController();
+		}
+
+		@Bean
+		public MappingJackson2HttpMessageConverter getMappingJackson2HttpMessageConverter() {
+			return new MappingJackson2HttpMessageConverter();
+		}
+
+	}
+
+}
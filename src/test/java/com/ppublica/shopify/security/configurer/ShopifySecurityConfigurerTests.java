@@ -14,6 +14,10 @@ import static org.springframework.security.test.web.servlet.setup.SecurityMockMv
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
@@ -22,7 +26,7 @@ import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
 
@@ -37,9 +41,11 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 import org.springframework.core.env.Environment;
-import org.springframework.http.ResponseEntity;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.mock.http.client.MockClientHttpResponse;
 import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
@@ -70,6 +76,7 @@ import org.springframework.test.context.web.WebAppConfiguration;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestOperations;
 import org.springframework.web.context.WebApplicationContext;
 import org.springframework.web.servlet.config.annotation.EnableWebMvc;
@@ -81,7 +88,6 @@ import com.ppublica.shopify.security.authentication.CipherPassword;
 import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
 import com.ppublica.shopify.security.configuration.SecurityBeansConfig;
 import com.ppublica.shopify.security.configuration.ShopifyPaths;
-import com.ppublica.shopify.security.converter.ShopifyOAuth2AccessTokenResponseConverter;
 import com.ppublica.shopify.security.service.ShopifyStore;
 import com.ppublica.shopify.security.web.ShopifyAuthorizationCodeTokenResponseClient;
 import com.ppublica.shopify.security.web.ShopifyHttpSessionOAuth2AuthorizationRequestRepository;
@@ -259,7 +265,7 @@ public class ShopifySecurityConfigurerTests {
 	@Test
 	public void whenStoreExistsAndRequestFromShopify_thenAuthenticateAndShowFirstPage() throws Exception {
 		// prepare request "from Shopify"
-		String queryNoHmac = "code=code123&shop=lmdev.myshopify.com&state=0.6784241404160823&timestamp=1337178173";
+		String queryNoHmac = "code=code123&shop=lmdev.myshopify.com&state=0.6784241404160823&timestamp=" + Instant.now().getEpochSecond();
 		
 		String hmacValue = ShopifyVerificationStrategy.hash(clientSecret, queryNoHmac);
 		String fullQuery = queryNoHmac + "&" + ShopifyVerificationStrategy.HMAC_PARAMETER + "=" + hmacValue;
@@ -326,7 +332,7 @@ public class ShopifySecurityConfigurerTests {
 	@Test
 	public void whenStoreDoesNotExistAndRequestFromShopify_thenRedirectToShopify() throws Exception {
 		// prepare request "from Shopify"
-		String queryNoHmac = "code=code123&shop=newstoretest.myshopify.com&state=0.6784241404160823&timestamp=1337178173";
+		String queryNoHmac = "code=code123&shop=newstoretest.myshopify.com&state=0.6784241404160823&timestamp=" + Instant.now().getEpochSecond();
 				
 		String hmacValue = ShopifyVerificationStrategy.hash(clientSecret, queryNoHmac);
 		String fullQuery = queryNoHmac + "&" + ShopifyVerificationStrategy.HMAC_PARAMETER + "=" + hmacValue;
@@ -458,12 +464,11 @@ public class ShopifySecurityConfigurerTests {
 		 * }
 		 * 
 		 */
-		HashMap<String,String> responseParams = new HashMap<>();
-		responseParams.put("access_token", "access-token-1234");
-		responseParams.put("scope", "read,write");
+		String responseBody = "{\"access_token\":\"access-token-1234\",\"scope\":\"read,write\"}";
 
 		RestOperations mockRestOperations = mock(RestOperations.class);
-		doReturn(getResponseEntity(responseParams)).when(mockRestOperations).exchange(any(), any(Class.class));
+		doAnswer(invocation -> getTokenResponse(invocation.getArgument(3), responseBody))
+				.when(mockRestOperations).execute(any(URI.class), any(), any(), any());
 		
 		// Modify the ShopifyAuthorizationCodeTokenResponseClient bean to use the mock
 		ShopifyAuthorizationCodeTokenResponseClient shopifyAccessTokenResponseClient = (ShopifyAuthorizationCodeTokenResponseClient)accessTokenResponseClient;
@@ -472,7 +477,7 @@ public class ShopifySecurityConfigurerTests {
 		// Prepare the request values that Shopify would send with the authorization code
 		MockHttpServletRequest request = new MockHttpServletRequest("GET", "");
 		request.setServletPath("/login/app/oauth2/code/shopify");
-		String queryNoHmac = "code=code123&shop=testStore&state=state123&timestamp=1337178173";
+		String queryNoHmac = "code=code123&shop=testStore&state=state123&timestamp=" + Instant.now().getEpochSecond();
 		String hmacValue = ShopifyVerificationStrategy.hash(clientSecret, queryNoHmac);
 		String fullQuery = "?" + queryNoHmac + "&" + ShopifyVerificationStrategy.HMAC_PARAMETER + "=" + hmacValue;
 
@@ -521,9 +526,10 @@ public class ShopifySecurityConfigurerTests {
 		
 	}
 	
-	private ResponseEntity<OAuth2AccessTokenResponse> getResponseEntity(Map<String,String> params) {
-		ShopifyOAuth2AccessTokenResponseConverter conv = new ShopifyOAuth2AccessTokenResponseConverter();
-		return ResponseEntity.ok(conv.convert(params));
+	private OAuth2AccessTokenResponse getTokenResponse(ResponseExtractor<OAuth2AccessTokenResponse> extractor, String body) throws IOException {
+		MockClientHttpResponse response = new MockClientHttpResponse(body.getBytes(StandardCharsets.UTF_8), HttpStatus.OK);
+		response.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+		return extractor.extractData(response);
 		
 	}
 	
@@ -0,0 +1,84 @@
+package com.ppublica.shopify.security.converter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.temporal.ChronoUnit;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenResponse;
+
+public class ShopifyAccessTokenResponseParserTests {
+
+	ShopifyAccessTokenResponseParser parser;
+
+	@Before
+	public void setup() {
+		this.parser = new ShopifyAccessTokenResponseParser();
+	}
+
+	@Test
+	public void parseGivenOfflineTokenResponseConstructsOAuth2AccessTokenResponse() throws Exception {
+		String body = "{\"access_token\":\"raw-token\",\"scope\":\"write_orders,read_customers\",\"other\":\"other-param-value\"}";
+
+		OAuth2AccessTokenResponse resp = parser.parse(stream(body), "testStore");
+
+		OAuth2AccessToken token = resp.getAccessToken();
+		Map<String,Object> additionalParams = resp.getAdditionalParameters();
+
+		Assert.assertEquals(token.getIssuedAt().truncatedTo(ChronoUnit.SECONDS), token.getExpiresAt().truncatedTo(ChronoUnit.SECONDS).minusSeconds(31536000L));
+		Assert.assertEquals(2, token.getScopes().size());
+		Assert.assertTrue(token.getScopes().contains("write_orders"));
+		Assert.assertTrue(token.getScopes().contains("read_customers"));
+		Assert.assertEquals(OAuth2AccessToken.TokenType.BEARER, token.getTokenType());
+		Assert.assertEquals("raw-token", token.getTokenValue());
+
+		Assert.assertEquals("other-param-value", additionalParams.get("other"));
+		Assert.assertEquals("testStore", additionalParams.get("shop"));
+
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void parseGivenOnlineTokenResponseKeepsExpiryAndAssociatedUser() throws Exception {
+		String body = "{\"access_token\":\"raw-token\",\"scope\":\"read_orders\",\"expires_in\":86399,"
+				+ "\"associated_user_scope\":\"read_orders\",\"associated_user\":{\"id\":902541635,"
+				+ "\"email\":\"john@example.com\",\"account_owner\":true,\"locale\":null},\"shop\":\"ignored\"}";
+
+		OAuth2AccessTokenResponse resp = parser.parse(stream(body), "testStore");
+
+		OAuth2AccessToken token = resp.getAccessToken();
+		Map<String,Object> additionalParams = resp.getAdditionalParameters();
+
+		Assert.assertEquals(token.getIssuedAt().truncatedTo(ChronoUnit.SECONDS), token.getExpiresAt().truncatedTo(ChronoUnit.SECONDS).minusSeconds(86399L));
+		Assert.assertEquals("read_orders", additionalParams.get("associated_user_scope"));
+		Assert.assertEquals("testStore", additionalParams.get("shop"));
+
+		Map<String,Object> user = (Map<String,Object>)additionalParams.get("associated_user");
+		Assert.assertEquals("902541635", user.get("id"));
+		Assert.assertEquals("john@example.com", user.get("email"));
+		Assert.assertEquals("true", user.get("account_owner"));
+		Assert.assertTrue(user.containsKey("locale"));
+		Assert.assertNull(user.get("locale"));
+
+	}
+
+	@Test(expected=IOException.class)
+	public void parseGivenNoAccessTokenThenThrowIOException() throws Exception {
+		parser.parse(stream("{\"scope\":\"read_orders\"}"), "testStore");
+	}
+
+	@Test(expected=IOException.class)
+	public void parseGivenNotAnObjectThenThrowIOException() throws Exception {
+		parser.parse(stream("[\"raw-token\"]"), "testStore");
+	}
+
+	private InputStream stream(String body) {
+		return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+	}
+}
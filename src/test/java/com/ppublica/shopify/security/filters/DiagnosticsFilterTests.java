@@ -0,0 +1,151 @@
+package com.ppublica.shopify.security.filters;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Clock;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ppublica.shopify.security.cache.ExpiringCache;
+import com.ppublica.shopify.security.resilience.CircuitBreakerRegistry;
+import com.ppublica.shopify.security.resilience.ResilientCallExecutor;
+import com.ppublica.shopify.security.resilience.RetryPolicy;
+import com.ppublica.shopify.security.service.ShopifyDiagnostics;
+import com.ppublica.shopify.security.service.ShopifyOAuth2AuthorizedClientService;
+import com.ppublica.shopify.security.service.TokenService;
+
+public class DiagnosticsFilterTests {
+
+	ObjectMapper mapper = new ObjectMapper();
+	TokenService tokenService;
+	OAuth2AuthorizedClient client;
+	ShopifyOAuth2AuthorizedClientService clientService;
+	CircuitBreakerRegistry breakers;
+	DiagnosticsFilter filter;
+	FilterChain chain;
+
+	@Before
+	public void setup() {
+		tokenService = mock(TokenService.class);
+		client = mock(OAuth2AuthorizedClient.class);
+		when(tokenService.getStore("test-store")).thenReturn(client);
+		clientService = new ShopifyOAuth2AuthorizedClientService(tokenService, null, new ExpiringCache<>(60000, 10));
+
+		breakers = new CircuitBreakerRegistry(1, 60000L, Clock.systemUTC());
+		ResilientCallExecutor callExecutor = new ResilientCallExecutor(new RetryPolicy(1, null, null), breakers);
+
+		ShopifyDiagnostics diagnostics = new ShopifyDiagnostics("secret", clientService, null, null, null, null, callExecutor);
+		filter = new DiagnosticsFilter("/diagnostics", diagnostics, mapper);
+		chain = mock(FilterChain.class);
+	}
+
+	@Test
+	public void doFilterWhenOtherPathThenChain() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/info");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doFilter(request, response, chain);
+
+		verify(chain, times(1)).doFilter(request, response);
+	}
+
+	@Test
+	public void doFilterWhenNoTokenThenUnauthorized() throws Exception {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doFilter(new MockHttpServletRequest("GET", "/diagnostics"), response, chain);
+
+		Assert.assertEquals(HttpServletResponse.SC_UNAUTHORIZED, response.getStatus());
+		Assert.assertEquals("Bearer", response.getHeader("WWW-Authenticate"));
+		Assert.assertEquals(0, response.getContentAsByteArray().length);
+	}
+
+	@Test
+	public void doFilterWhenWrongTokenThenUnauthorized() throws Exception {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doFilter(request("GET", "guess"), response, chain);
+
+		Assert.assertEquals(HttpServletResponse.SC_UNAUTHORIZED, response.getStatus());
+	}
+
+	@Test
+	public void doFilterWhenGetThenSnapshot() throws Exception {
+		clientService.loadAuthorizedClient("shopify", "test-store");
+		clientService.loadAuthorizedClient("shopify", "test-store");
+		breakers.onFailure("other-store.myshopify.com");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doFilter(request("GET", "secret"), response, chain);
+
+		Assert.assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+		Assert.assertEquals("application/json;charset=UTF-8", response.getContentType());
+		Assert.assertEquals("no-store", response.getHeader("Cache-Control"));
+
+		JsonNode snapshot = mapper.readTree(response.getContentAsByteArray());
+		JsonNode loaded = snapshot.path("tokenCache").path("loaded");
+		Assert.assertEquals(1, loaded.path("size").asInt());
+		Assert.assertEquals(1, loaded.path("hits").asLong());
+		Assert.assertEquals(1, loaded.path("misses").asLong());
+		Assert.assertEquals("OPEN", snapshot.path("circuitBreakers").path("states").path("other-store.myshopify.com").asText());
+		// no bean for these sections
+		Assert.assertFalse(snapshot.has("webhookQueue"));
+		Assert.assertFalse(snapshot.has("httpPool"));
+	}
+
+	@Test
+	public void doFilterWhenPostShopThenEvicted() throws Exception {
+		clientService.loadAuthorizedClient("shopify", "test-store");
+		MockHttpServletRequest request = request("POST", "secret");
+		request.setParameter(DiagnosticsFilter.SHOP_PARAMETER, "test-store");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doFilter(request, response, chain);
+
+		Assert.assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+		Assert.assertEquals("test-store", mapper.readTree(response.getContentAsByteArray()).path("evicted").asText());
+
+		clientService.loadAuthorizedClient("shopify", "test-store");
+		verify(tokenService, times(2)).getStore("test-store");
+	}
+
+	@Test
+	public void doFilterWhenPostWithoutShopThenBadRequest() throws Exception {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doFilter(request("POST", "secret"), response, chain);
+
+		Assert.assertEquals(HttpServletResponse.SC_BAD_REQUEST, response.getStatus());
+	}
+
+	@Test
+	public void doFilterWhenOtherMethodThenNotAllowed() throws Exception {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doFilter(request("DELETE", "secret"), response, chain);
+
+		Assert.assertEquals(HttpServletResponse.SC_METHOD_NOT_ALLOWED, response.getStatus());
+		Assert.assertEquals("GET, POST", response.getHeader("Allow"));
+	}
+
+	private MockHttpServletRequest request(String method, String token) {
+		MockHttpServletRequest request = new MockHttpServletRequest(method, "/diagnostics");
+		request.addHeader("Authorization", "Bearer " + token);
+
+		return request;
+	}
+
+}
@@ -0,0 +1,125 @@
+package com.ppublica.shopify.security.filters;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import com.ppublica.shopify.security.web.ServerTiming;
+import com.ppublica.shopify.security.web.ServerTimingSampler;
+
+public class ServerTimingFilterTests {
+	
+	// a chain that goes through 2 stages, one of them twice
+	FilterChain stages = (req, resp) -> {
+		long start = ServerTiming.start();
+		ServerTiming.stop(ServerTiming.ORIGIN, start);
+		start = ServerTiming.start();
+		ServerTiming.stop(ServerTiming.TOKEN, start);
+		start = ServerTiming.start();
+		ServerTiming.stop(ServerTiming.ORIGIN, start);
+	};
+	
+	@After
+	public void cleanup() {
+		ServerTiming.unbind();
+	}
+	
+	@Test
+	public void doFilterWhenSampledThenHeaderWithStagesAndTotal() throws Exception {
+		ServerTimingFilter filter = new ServerTimingFilter(new ServerTimingSampler(1, null));
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		
+		filter.doFilter(new MockHttpServletRequest("GET", "/install/shopify"), response, stages);
+		
+		String header = response.getHeader(ServerTiming.HEADER);
+		Assert.assertNotNull(header);
+		Assert.assertTrue(header, header.matches("origin;dur=\\d+\\.\\d\\d, token;dur=\\d+\\.\\d\\d, total;dur=\\d+\\.\\d\\d"));
+		Assert.assertFalse(ServerTiming.isActive());
+	}
+	
+	@Test
+	public void doFilterWhenNotSampledThenNoHeaderAndStagesNotTimed() throws Exception {
+		ServerTimingFilter filter = new ServerTimingFilter(new ServerTimingSampler(0, "secret"));
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		
+		filter.doFilter(new MockHttpServletRequest("GET", "/install/shopify"), response, (req, resp) -> {
+			Assert.assertEquals(0, ServerTiming.start());
+		});
+		
+		Assert.assertNull(response.getHeader(ServerTiming.HEADER));
+	}
+	
+	@Test
+	public void doFilterWhenAdminCookieThenHeader() throws Exception {
+		ServerTimingFilter filter = new ServerTimingFilter(new ServerTimingSampler(0, "secret"));
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/install/shopify");
+		request.setCookies(new Cookie(ServerTimingSampler.ADMIN_COOKIE, "secret"));
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		
+		filter.doFilter(request, response, stages);
+		
+		Assert.assertNotNull(response.getHeader(ServerTiming.HEADER));
+	}
+	
+	@Test
+	public void doFilterWhenWrongAdminCookieThenNoHeader() throws Exception {
+		ServerTimingFilter filter = new ServerTimingFilter(new ServerTimingSampler(0, "secret"));
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/install/shopify");
+		request.setCookies(new Cookie(ServerTimingSampler.ADMIN_COOKIE, "guess"));
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		
+		filter.doFilter(request, response, stages);
+		
+		Assert.assertNull(response.getHeader(ServerTiming.HEADER));
+	}
+	
+	// the header can't be added once the body is flushed: it's added before
+	@Test
+	public void doFilterWhenResponseCommittedInChainThenHeaderAddedBefore() throws Exception {
+		ServerTimingFilter filter = new ServerTimingFilter(new ServerTimingSampler(1, null));
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		
+		filter.doFilter(new MockHttpServletRequest("GET", "/install/shopify"), response, (req, resp) -> {
+			long start = ServerTiming.start();
+			ServerTiming.stop(ServerTiming.RESOLVE, start);
+			resp.getWriter().write("<html></html>");
+			resp.flushBuffer();
+			
+			// too late
+			start = ServerTiming.start();
+			ServerTiming.stop(ServerTiming.EXCHANGE, start);
+		});
+		
+		Assert.assertTrue(response.isCommitted());
+		String header = response.getHeader(ServerTiming.HEADER);
+		Assert.assertTrue(header, header.startsWith("resolve;dur="));
+		Assert.assertFalse(header, header.contains(ServerTiming.EXCHANGE));
+	}
+	
+	@Test
+	public void doFilterWhenErrorSentThenHeader() throws Exception {
+		ServerTimingFilter filter = new ServerTimingFilter(new ServerTimingSampler(1, null));
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		
+		filter.doFilter(new MockHttpServletRequest("GET", "/login/app/oauth2/code/shopify"), response, (req, resp) -> {
+			long start = ServerTiming.start();
+			ServerTiming.stop(ServerTiming.ORIGIN, start);
+			((HttpServletResponse)resp).sendError(403);
+		});
+		
+		Assert.assertEquals(403, response.getStatus());
+		Assert.assertTrue(response.getHeader(ServerTiming.HEADER).startsWith("origin;dur="));
+	}
+	
+	@Test(expected=RuntimeException.class)
+	public void samplerWhenRateAboveOneThenException() {
+		new ServerTimingSampler(1.5, null);
+	}
+
+}
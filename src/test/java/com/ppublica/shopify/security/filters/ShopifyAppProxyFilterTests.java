@@ -0,0 +1,142 @@
+package com.ppublica.shopify.security.filters;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.servlet.FilterChain;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.Transient;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.ClientAuthenticationMethod;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+
+import com.ppublica.shopify.security.authentication.AppProxySignatureVerifier;
+import com.ppublica.shopify.security.authentication.ShopifyAppProxyToken;
+import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
+import com.ppublica.shopify.security.service.ShopifyStore;
+
+public class ShopifyAppProxyFilterTests {
+
+	ClientRegistration clientRegistration;
+	OAuth2AuthorizedClientService clientService;
+	ShopifyAppProxyFilter filter;
+
+	@Before
+	public void setup() {
+		clientRegistration = ClientRegistration.withRegistrationId("shopify")
+	            .clientId("client-id")
+	            .clientSecret("client-secret")
+	            .clientAuthenticationMethod(ClientAuthenticationMethod.POST)
+	            .authorizationGrantType(AuthorizationGrantType.AUTHORIZATION_CODE)
+	            .redirectUriTemplate("{baseUrl}/login/app/oauth2/code/{registrationId}")
+	            .scope("read_products", "write_products")
+	            .authorizationUri("https://{shop}/admin/oauth/authorize")
+	            .tokenUri("https://{shop}/admin/oauth/access_token")
+	            .clientName("Shopify")
+	            .build();
+
+		clientService = mock(OAuth2AuthorizedClientService.class);
+		OAuth2AuthorizedClient client = mock(OAuth2AuthorizedClient.class);
+		OAuth2AccessToken token = mock(OAuth2AccessToken.class);
+		when(token.getTokenValue()).thenReturn("test-token");
+		when(client.getAccessToken()).thenReturn(token);
+		when(client.getClientRegistration()).thenReturn(clientRegistration);
+		when(client.getPrincipalName()).thenReturn("test-store.myshopify.com");
+		doReturn(client).when(clientService).loadAuthorizedClient("shopify", "test-store.myshopify.com");
+
+		filter = new ShopifyAppProxyFilter("/apps", new AppProxySignatureVerifier("client-secret"), clientService);
+	}
+
+	@After
+	public void cleanup() {
+		SecurityContextHolder.clearContext();
+	}
+
+	@Test
+	public void doFilterWhenNotAppProxyPathThenContinue() throws Exception {
+		MockHttpServletRequest request = request("/other", "shop=test-store.myshopify.com");
+		FilterChain chain = mock(FilterChain.class);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doFilter(request, response, chain);
+
+		verify(chain).doFilter(request, response);
+		Assert.assertNull(SecurityContextHolder.getContext().getAuthentication());
+	}
+
+	@Test
+	public void doFilterWhenValidSignatureThenAppProxyToken() throws Exception {
+		String query = "shop=test-store.myshopify.com&logged_in_customer_id=123&path_prefix=%2Fapps%2Fproxy&timestamp=1317327555";
+		MockHttpServletRequest request = request("/apps/proxy/reviews", signed(query,
+				"logged_in_customer_id=123path_prefix=/apps/proxyshop=test-store.myshopify.comtimestamp=1317327555"));
+		FilterChain chain = mock(FilterChain.class);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doFilter(request, response, chain);
+
+		verify(chain).doFilter(request, response);
+		Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+		Assert.assertTrue(auth instanceof ShopifyAppProxyToken);
+		Assert.assertEquals("test-store.myshopify.com", auth.getName());
+		Assert.assertEquals("123", ((ShopifyAppProxyToken)auth).getLoggedInCustomerId());
+		Assert.assertEquals("test-token", ((ShopifyStore)auth.getPrincipal()).getAttributes().get(ShopifyStore.ACCESS_TOKEN_KEY));
+		Assert.assertNotNull(AnnotationUtils.findAnnotation(auth.getClass(), Transient.class));
+	}
+
+	@Test
+	public void doFilterWhenValidSignatureButNotInstalledThenNoAuthentication() throws Exception {
+		MockHttpServletRequest request = request("/apps/proxy", signed("shop=other.myshopify.com&logged_in_customer_id=",
+				"logged_in_customer_id=shop=other.myshopify.com"));
+		FilterChain chain = mock(FilterChain.class);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doFilter(request, response, chain);
+
+		verify(chain).doFilter(request, response);
+		Assert.assertNull(SecurityContextHolder.getContext().getAuthentication());
+	}
+
+	@Test
+	public void doFilterWhenInvalidSignatureThenForbidden() throws Exception {
+		MockHttpServletRequest request = request("/apps/proxy", "shop=test-store.myshopify.com&signature="
+				+ ShopifyVerificationStrategy.hash("client-secret", "shop=other.myshopify.com"));
+		FilterChain chain = mock(FilterChain.class);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doFilter(request, response, chain);
+
+		verify(chain, never()).doFilter(request, response);
+		Assert.assertEquals(403, response.getStatus());
+		Assert.assertNull(SecurityContextHolder.getContext().getAuthentication());
+	}
+
+	private String signed(String query, String canonical) {
+		return query + "&signature=" + ShopifyVerificationStrategy.hash("client-secret", canonical);
+	}
+
+	private MockHttpServletRequest request(String path, String query) {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", path);
+		request.setServletPath(path);
+		request.setQueryString(query);
+		for(String pair : query.split("&")) {
+			String[] keyValue = pair.split("=", 2);
+			request.addParameter(keyValue[0], keyValue.length > 1 ? keyValue[1] : "");
+		}
+		return request;
+	}
+}
@@ -0,0 +1,381 @@
+package com.ppublica.shopify.security.filters;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
+import com.ppublica.shopify.security.cache.ExpiringCache;
+import com.ppublica.shopify.security.webhook.InMemoryWebhookDeduplicationStore;
+import com.ppublica.shopify.security.webhook.ShopifyWebhook;
+import com.ppublica.shopify.security.webhook.WebhookBodyReader;
+import com.ppublica.shopify.security.webhook.WebhookDeduplicationStore;
+import com.ppublica.shopify.security.webhook.WebhookExecutor;
+import com.ppublica.shopify.security.webhook.WebhookHandler;
+import com.ppublica.shopify.security.webhook.WebhookJournal;
+
+public class ShopifyWebhookFilterTests {
+
+	String webhookUri = "/webhooks/shopify";
+	String secret = "secret";
+	String body = "{\"id\":123,\"shop_domain\":\"testStore.myshopify.com\"}";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	ShopifyVerificationStrategy verificationStrategy;
+	WebhookHandler handler;
+
+	@Before
+	public void setup() {
+		verificationStrategy = spy(new ShopifyVerificationStrategy(null, null));
+		doReturn(secret).when(verificationStrategy).getClientSecretByRegistrationId(any());
+
+		handler = mock(WebhookHandler.class);
+		doReturn(Arrays.asList("orders/create", "orders/updated")).when(handler).getTopics();
+		doAnswer(invocation -> {
+			handler.handle(invocation.getArgument(0));
+			return CompletableFuture.completedFuture(null);
+		}).when(handler).handleAsync(any());
+	}
+
+	@Test
+	public void doFilterWhenUriNotMatchThenNextFilter() throws Exception {
+		ShopifyWebhookFilter filter = new ShopifyWebhookFilter(webhookUri, verificationStrategy, Collections.singleton(handler), null, new ObjectMapper());
+		MockHttpServletRequest request = webhookRequest("/other", "orders/create", body, hmac(body));
+		FilterChain chain = mock(FilterChain.class);
+
+		filter.doFilter(request, new MockHttpServletResponse(), chain);
+
+		verify(chain).doFilter(any(HttpServletRequest.class), any(HttpServletResponse.class));
+		verify(handler, never()).handle(any());
+	}
+
+	@Test
+	public void doFilterWhenHmacInvalidThen403() throws Exception {
+		ShopifyWebhookFilter filter = new ShopifyWebhookFilter(webhookUri, verificationStrategy, Collections.singleton(handler), null, new ObjectMapper());
+		MockHttpServletRequest request = webhookRequest(webhookUri, "orders/create", body, hmac(body + "x"));
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		FilterChain chain = mock(FilterChain.class);
+
+		filter.doFilter(request, response, chain);
+
+		Assert.assertEquals(403, response.getStatus());
+		verify(chain, never()).doFilter(any(), any());
+		verify(handler, never()).handle(any());
+		Assert.assertEquals(1, filter.getVerificationFailureCount());
+	}
+
+	@Test
+	public void doFilterWhenVerifiedThenRouteToHandlerOfTopic() throws Exception {
+		ObjectMapper objectMapper = new ObjectMapper();
+		ShopifyWebhookFilter filter = new ShopifyWebhookFilter(webhookUri, verificationStrategy, Collections.singleton(handler), null, objectMapper);
+		MockHttpServletRequest request = webhookRequest(webhookUri, "orders/updated", body, hmac(body));
+		request.addHeader(ShopifyWebhook.SHOP_DOMAIN_HEADER, "testStore.myshopify.com");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doFilter(request, response, mock(FilterChain.class));
+
+		ArgumentCaptor<ShopifyWebhook> webhook = ArgumentCaptor.forClass(ShopifyWebhook.class);
+		verify(handler, times(1)).handle(webhook.capture());
+		Assert.assertEquals(200, response.getStatus());
+
+		Assert.assertEquals("orders/updated", webhook.getValue().getTopic());
+		Assert.assertEquals("testStore.myshopify.com", webhook.getValue().getShopDomain());
+		Assert.assertEquals(body, webhook.getValue().getBodyAsString());
+		Assert.assertEquals(123, webhook.getValue().getJson().get("id").asInt());
+		Assert.assertSame(webhook.getValue().getJson(), webhook.getValue().getJson());
+	}
+
+	@Test
+	public void doFilterWhenNoHandlerForTopicThenAcknowledge() throws Exception {
+		ShopifyWebhookFilter filter = new ShopifyWebhookFilter(webhookUri, verificationStrategy, Collections.singleton(handler), null, new ObjectMapper());
+		MockHttpServletRequest request = webhookRequest(webhookUri, "products/create", body, hmac(body));
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doFilter(request, response, mock(FilterChain.class));
+
+		Assert.assertEquals(200, response.getStatus());
+		verify(handler, never()).handle(any());
+		Assert.assertEquals(1, filter.getUnhandledCount());
+	}
+
+	@Test
+	public void doFilterWhenBodyTooLargeThen413() throws Exception {
+		ShopifyWebhookFilter filter = new ShopifyWebhookFilter(webhookUri, verificationStrategy, Collections.singleton(handler), null, new ObjectMapper());
+		filter.setBodyReader(new WebhookBodyReader(16L));
+		MockHttpServletRequest request = webhookRequest(webhookUri, "orders/create", body, hmac(body));
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doFilter(request, response, mock(FilterChain.class));
+
+		Assert.assertEquals(413, response.getStatus());
+		verify(verificationStrategy, never()).isHeaderShopifyRequest(any(), any(), any());
+		verify(handler, never()).handle(any());
+		Assert.assertEquals(1, filter.getTooLargeCount());
+	}
+
+	// a handler that throws doesn't keep the other handlers of the topic from running
+	@Test
+	public void doFilterWhenHandlerThrowsThenOtherHandlersStillRun() throws Exception {
+		WebhookHandler failing = mock(WebhookHandler.class);
+		doReturn(Collections.singleton("orders/create")).when(failing).getTopics();
+		doAnswer(invocation -> { throw new IllegalStateException("failed"); }).when(failing).handle(any());
+		WebhookDeduplicationStore store = new InMemoryWebhookDeduplicationStore(new ExpiringCache<>(60000, 10));
+
+		ShopifyWebhookFilter filter = new ShopifyWebhookFilter(webhookUri, verificationStrategy, Arrays.asList(failing, handler), null, new ObjectMapper());
+		filter.setDeduplicationStore(store);
+		MockHttpServletRequest request = webhookRequest(webhookUri, "orders/create", body, hmac(body));
+		request.addHeader(ShopifyWebhook.WEBHOOK_ID_HEADER, "webhook-1");
+
+		try {
+			filter.doFilter(request, new MockHttpServletResponse(), mock(FilterChain.class));
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			// the request fails, so Shopify retries it
+		}
+
+		verify(handler, times(1)).handle(any());
+		Assert.assertEquals(1, filter.getHandlerFailureCount());
+		Assert.assertTrue(store.markIfFirstDelivery("webhook-1"));
+	}
+
+	// a delivery that fails in the shared store isn't marked, so its retry is processed
+	@Test
+	public void doFilterWhenBackingStoreThrowsThenRedeliveryIsProcessed() throws Exception {
+		WebhookDeduplicationStore backing = mock(WebhookDeduplicationStore.class);
+		doThrow(new IllegalStateException("database unavailable")).doReturn(true).when(backing).markIfFirstDelivery("webhook-1");
+		WebhookDeduplicationStore store = new InMemoryWebhookDeduplicationStore(new ExpiringCache<>(60000, 10), backing);
+
+		ShopifyWebhookFilter filter = new ShopifyWebhookFilter(webhookUri, verificationStrategy, Collections.singleton(handler), null, new ObjectMapper());
+		filter.setDeduplicationStore(store);
+
+		try {
+			filter.doFilter(deliveryOf("webhook-1"), new MockHttpServletResponse(), mock(FilterChain.class));
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			// the request fails, so Shopify retries it
+		}
+		verify(handler, never()).handle(any());
+
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		filter.doFilter(deliveryOf("webhook-1"), response, mock(FilterChain.class));
+
+		Assert.assertEquals(200, response.getStatus());
+		verify(handler, times(1)).handle(any());
+		Assert.assertEquals(0, filter.getDuplicateCount());
+	}
+
+	@Test
+	public void doFilterWhenExecutorThenQueueHandlers() throws Exception {
+		WebhookExecutor executor = mock(WebhookExecutor.class);
+		doReturn(true).when(executor).submit(any(), any(), any());
+		ShopifyWebhookFilter filter = new ShopifyWebhookFilter(webhookUri, verificationStrategy, Collections.singleton(handler), executor, new ObjectMapper());
+		MockHttpServletRequest request = webhookRequest(webhookUri, "orders/create", body, hmac(body));
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doFilter(request, response, mock(FilterChain.class));
+
+		ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+		verify(executor).submit(eq("orders/create"), any(), task.capture());
+		verify(handler, never()).handle(any());
+		Assert.assertEquals(200, response.getStatus());
+
+		task.getValue().run();
+		verify(handler, times(1)).handle(any());
+	}
+
+	@Test
+	public void doFilterWhenExecutorFullThen503() throws Exception {
+		WebhookExecutor executor = mock(WebhookExecutor.class);
+		doReturn(false).when(executor).submit(any(), any(), any());
+		ShopifyWebhookFilter filter = new ShopifyWebhookFilter(webhookUri, verificationStrategy, Collections.singleton(handler), executor, new ObjectMapper());
+		MockHttpServletRequest request = webhookRequest(webhookUri, "orders/create", body, hmac(body));
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doFilter(request, response, mock(FilterChain.class));
+
+		Assert.assertEquals(503, response.getStatus());
+	}
+
+	@Test
+	public void doFilterWhenDuplicateThenAcknowledgeWithoutDispatch() throws Exception {
+		WebhookDeduplicationStore store = new InMemoryWebhookDeduplicationStore(new ExpiringCache<>(60000, 10));
+		ShopifyWebhookFilter filter = new ShopifyWebhookFilter(webhookUri, verificationStrategy, Collections.singleton(handler), null, new ObjectMapper());
+		filter.setDeduplicationStore(store);
+
+		for(int i = 0; i < 2; i++) {
+			MockHttpServletRequest request = webhookRequest(webhookUri, "orders/create", body, hmac(body));
+			request.addHeader(ShopifyWebhook.WEBHOOK_ID_HEADER, "webhook-1");
+			MockHttpServletResponse response = new MockHttpServletResponse();
+
+			filter.doFilter(request, response, mock(FilterChain.class));
+			Assert.assertEquals(200, response.getStatus());
+		}
+
+		verify(handler, times(1)).handle(any());
+		Assert.assertEquals(1, filter.getDuplicateCount());
+	}
+
+	@Test
+	public void doFilterWhenRejectedThenRetryIsNotDuplicate() throws Exception {
+		WebhookExecutor executor = mock(WebhookExecutor.class);
+		doReturn(false).when(executor).submit(any(), any(), any());
+		WebhookDeduplicationStore store = new InMemoryWebhookDeduplicationStore(new ExpiringCache<>(60000, 10));
+		ShopifyWebhookFilter filter = new ShopifyWebhookFilter(webhookUri, verificationStrategy, Collections.singleton(handler), executor, new ObjectMapper());
+		filter.setDeduplicationStore(store);
+		MockHttpServletRequest request = webhookRequest(webhookUri, "orders/create", body, hmac(body));
+		request.addHeader(ShopifyWebhook.WEBHOOK_ID_HEADER, "webhook-1");
+
+		filter.doFilter(request, new MockHttpServletResponse(), mock(FilterChain.class));
+
+		Assert.assertTrue(store.markIfFirstDelivery("webhook-1"));
+	}
+
+	@Test
+	public void doFilterWhenJournalThenAcknowledgedAfterHandlers() throws Exception {
+		WebhookExecutor executor = mock(WebhookExecutor.class);
+		doReturn(true).when(executor).submit(any(), any(), any());
+		WebhookJournal journal = new WebhookJournal(folder.getRoot().toPath(), 4096, false);
+		ShopifyWebhookFilter filter = new ShopifyWebhookFilter(webhookUri, verificationStrategy, Collections.singleton(handler), executor, new ObjectMapper());
+		filter.setJournal(journal);
+
+		filter.doFilter(webhookRequest(webhookUri, "orders/create", body, hmac(body)), new MockHttpServletResponse(), mock(FilterChain.class));
+
+		ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+		verify(executor).submit(eq("orders/create"), any(), task.capture());
+		Assert.assertEquals(1, journal.getPendingCount());
+
+		task.getValue().run();
+		Assert.assertEquals(0, journal.getPendingCount());
+	}
+
+	@Test
+	public void startWhenJournalHasWebhooksThenReplay() throws Exception {
+		WebhookJournal journal = new WebhookJournal(folder.getRoot().toPath(), 4096, false);
+		journal.append(new ShopifyWebhook("orders/create", "testStore.myshopify.com", "webhook-1", null, body.getBytes(), null));
+		journal.append(new ShopifyWebhook("products/create", "testStore.myshopify.com", "webhook-2", null, body.getBytes(), null));
+		journal.destroy();
+
+		WebhookExecutor executor = mock(WebhookExecutor.class);
+		doReturn(true).when(executor).submit(any(), any(), any());
+		WebhookJournal reopened = new WebhookJournal(folder.getRoot().toPath(), 4096, false);
+		ShopifyWebhookFilter filter = new ShopifyWebhookFilter(webhookUri, verificationStrategy, Collections.singleton(handler), executor, new ObjectMapper());
+		filter.setJournal(reopened);
+		verify(executor, never()).submit(any(), any(), any());
+		
+		filter.start();
+		filter.start();
+
+		// products/create has no handler, so it's kept in the retry log
+		ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+		verify(executor, times(1)).submit(eq("orders/create"), eq("testStore.myshopify.com"), task.capture());
+		Assert.assertEquals(1, filter.getReplayedCount());
+		Assert.assertEquals(2, reopened.getPendingCount());
+		Assert.assertEquals(1, reopened.getRetryCount());
+
+		task.getValue().run();
+
+		ArgumentCaptor<ShopifyWebhook> webhook = ArgumentCaptor.forClass(ShopifyWebhook.class);
+		verify(handler).handle(webhook.capture());
+		Assert.assertEquals("webhook-1", webhook.getValue().getWebhookId());
+		Assert.assertEquals(123, webhook.getValue().getJson().get("id").asInt());
+		Assert.assertEquals(1, reopened.getPendingCount());
+	}
+
+	// when a lane is full, the rest of the journal is queued in the background, not run by start()
+	@Test
+	public void startWhenQueueFullThenReplayInBackground() throws Exception {
+		WebhookJournal journal = new WebhookJournal(folder.getRoot().toPath(), 4096, false);
+		journal.append(new ShopifyWebhook("orders/create", "testStore.myshopify.com", "webhook-1", null, body.getBytes(), null));
+		journal.append(new ShopifyWebhook("orders/create", "testStore.myshopify.com", "webhook-2", null, body.getBytes(), null));
+		journal.destroy();
+
+		WebhookExecutor executor = mock(WebhookExecutor.class);
+		doReturn(false).when(executor).submit(any(), any(), any());
+		doReturn(true).when(executor).submitWhenReady(any(), any(), any());
+		WebhookJournal reopened = new WebhookJournal(folder.getRoot().toPath(), 4096, false);
+		ShopifyWebhookFilter filter = new ShopifyWebhookFilter(webhookUri, verificationStrategy, Collections.singleton(handler), executor, new ObjectMapper());
+		filter.setJournal(reopened);
+		filter.start();
+
+		verify(executor, timeout(1000).times(2)).submitWhenReady(eq("orders/create"), eq("testStore.myshopify.com"), any());
+		verify(handler, never()).handle(any());
+		Assert.assertEquals(2, filter.getReplayedCount());
+		Assert.assertEquals(2, reopened.getPendingCount());
+	}
+
+	// a webhook whose handler fails isn't acknowledged: it's journaled again for the next startup
+	@Test
+	public void doFilterWhenJournalAndHandlerFailsThenKeptInJournal() throws Exception {
+		WebhookExecutor executor = mock(WebhookExecutor.class);
+		doReturn(true).when(executor).submit(any(), any(), any());
+		doAnswer(invocation -> { throw new IllegalStateException("failed"); }).when(handler).handle(any());
+		WebhookJournal journal = new WebhookJournal(folder.getRoot().toPath(), 4096, false);
+		ShopifyWebhookFilter filter = new ShopifyWebhookFilter(webhookUri, verificationStrategy, Collections.singleton(handler), executor, new ObjectMapper());
+		filter.setJournal(journal);
+
+		filter.doFilter(webhookRequest(webhookUri, "orders/create", body, hmac(body)), new MockHttpServletResponse(), mock(FilterChain.class));
+
+		ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+		verify(executor).submit(eq("orders/create"), any(), task.capture());
+		task.getValue().run();
+
+		Assert.assertEquals(1, filter.getHandlerFailureCount());
+		Assert.assertEquals(1, journal.getPendingCount());
+		journal.destroy();
+
+		List<WebhookJournal.Entry> entries = new WebhookJournal(folder.getRoot().toPath(), 4096, false).recover();
+		Assert.assertEquals(1, entries.size());
+		Assert.assertEquals(1, entries.get(0).getAttempts());
+	}
+
+	private MockHttpServletRequest webhookRequest(String uri, String topic, String body, String hmac) {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", uri);
+		request.setServletPath(uri);
+		request.setContent(body.getBytes());
+		request.addHeader(ShopifyWebhook.TOPIC_HEADER, topic);
+		request.addHeader(ShopifyVerificationStrategy.HMAC_HEADER, hmac);
+
+		return request;
+	}
+
+	private MockHttpServletRequest deliveryOf(String webhookId) {
+		MockHttpServletRequest request = webhookRequest(webhookUri, "orders/create", body, hmac(body));
+		request.addHeader(ShopifyWebhook.WEBHOOK_ID_HEADER, webhookId);
+
+		return request;
+	}
+
+	private String hmac(String body) {
+		return Base64.getEncoder().encodeToString(ShopifyVerificationStrategy.hash(secret, body).getBytes());
+	}
+}
@@ -5,6 +5,7 @@ import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.verify;
 
+import java.util.Base64;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -14,6 +15,7 @@ import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.eq;
 
 import javax.servlet.FilterChain;
 import javax.servlet.http.HttpServletRequest;
@@ -23,6 +25,7 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.springframework.http.converter.HttpMessageConverter;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
 import org.springframework.mock.web.MockHttpServletRequest;
@@ -30,6 +33,12 @@ import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
 
 import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
+import com.ppublica.shopify.security.cache.ExpiringCache;
+import com.ppublica.shopify.security.webhook.InMemoryWebhookDeduplicationStore;
+import com.ppublica.shopify.security.webhook.ShopifyWebhook;
+import com.ppublica.shopify.security.webhook.WebhookBodyReader;
+import com.ppublica.shopify.security.webhook.WebhookDeduplicationStore;
+import com.ppublica.shopify.security.webhook.WebhookExecutor;
 
 
 public class UninstallFilterTests {
@@ -68,7 +77,7 @@ public class UninstallFilterTests {
 		FilterChain chain = mock(FilterChain.class);
 		filter.doFilter(request, response, chain);
 		verify(chain).doFilter(any(HttpServletRequest.class), any(HttpServletResponse.class));
-		verify(verificationStrategy, never()).isHeaderShopifyRequest(any(), any());
+		verify(verificationStrategy, never()).isHeaderShopifyRequest(any(), any(), any());
 		verify(filter, never()).doUninstall(any(), any());
 
 	
@@ -81,6 +90,7 @@ public class UninstallFilterTests {
 		UninstallFilter filter = spy(new UninstallFilter(uninstallUri, verificationStrategy, clientService, converter));
 		MockHttpServletRequest request = new MockHttpServletRequest("POST", uninstallUri);
 		request.setServletPath(uninstallUri);
+		request.addHeader(ShopifyVerificationStrategy.HMAC_HEADER, "hmac");
 		MockHttpServletResponse response = new MockHttpServletResponse();
 
 
@@ -88,18 +98,19 @@ public class UninstallFilterTests {
 		filter.doFilter(request, response, chain);
 		
 		verify(chain, never()).doFilter(any(HttpServletRequest.class), any(HttpServletResponse.class));
-		verify(verificationStrategy, times(1)).isHeaderShopifyRequest(any(), any());
+		verify(verificationStrategy, times(1)).isHeaderShopifyRequest(any(), any(), any());
 		
 	}
 	
 	@Test
 	public void doFilterWhenVerificationStrategyTrueThenUninstall() throws Exception {
 		String uninstallUri = "/other/shopify";
-		doReturn(true).when(verificationStrategy).isHeaderShopifyRequest(any(), any());
+		doReturn(true).when(verificationStrategy).isHeaderShopifyRequest(any(), any(), any());
 		UninstallFilter filter = spy(new UninstallFilter(uninstallUri, verificationStrategy, clientService, converter));
 		doNothing().when(filter).doUninstall(any(), any());
 		MockHttpServletRequest request = new MockHttpServletRequest("POST", uninstallUri);
 		request.setServletPath(uninstallUri);
+		request.addHeader(ShopifyVerificationStrategy.HMAC_HEADER, "hmac");
 		MockHttpServletResponse response = new MockHttpServletResponse();
 
 
@@ -107,7 +118,7 @@ public class UninstallFilterTests {
 		filter.doFilter(request, response, chain);
 		
 		verify(chain, never()).doFilter(any(HttpServletRequest.class), any(HttpServletResponse.class));
-		verify(verificationStrategy, times(1)).isHeaderShopifyRequest(any(), any());
+		verify(verificationStrategy, times(1)).isHeaderShopifyRequest(any(), any(), any());
 		verify(filter, times(1)).doUninstall(any(), any());
 
 	}
@@ -115,10 +126,11 @@ public class UninstallFilterTests {
 	@Test
 	public void doFilterWhenVerificationStrategyFalseThenUninstallFailure() throws Exception {
 		String uninstallUri = "/other/shopify";
-		doReturn(false).when(verificationStrategy).isHeaderShopifyRequest(any(), any());
+		doReturn(false).when(verificationStrategy).isHeaderShopifyRequest(any(), any(), any());
 		UninstallFilter filter = spy(new UninstallFilter(uninstallUri, verificationStrategy, clientService, converter));
 		MockHttpServletRequest request = new MockHttpServletRequest("POST", uninstallUri);
 		request.setServletPath(uninstallUri);
+		request.addHeader(ShopifyVerificationStrategy.HMAC_HEADER, "hmac");
 		MockHttpServletResponse response = new MockHttpServletResponse();
 
 
@@ -126,7 +138,7 @@ public class UninstallFilterTests {
 		filter.doFilter(request, response, chain);
 		
 		verify(chain, never()).doFilter(any(HttpServletRequest.class), any(HttpServletResponse.class));
-		verify(verificationStrategy, times(1)).isHeaderShopifyRequest(any(), any());
+		verify(verificationStrategy, times(1)).isHeaderShopifyRequest(any(), any(), any());
 		verify(filter, never()).doUninstall(any(), any());
 		verify(filter, times(1)).uninstallFailure(any(), any());
 
@@ -211,6 +223,121 @@ public class UninstallFilterTests {
 
 	}
 	
+	// with an executor, doUninstall queues the removal and calls uninstall success
+	@Test
+	public void doUninstallWhenExecutorThenQueuesRemovalAndCallsUninstallSuccess() throws Exception {
+		String validBody = "{\"shop_id\": \"1234\", \"shop_domain\": \"domain\"}";
+		WebhookExecutor executor = mock(WebhookExecutor.class);
+		doReturn(true).when(executor).submit(any(), any(), any());
+		
+		String uninstallUri = "/other/shopify";
+		UninstallFilter filter = spy(new UninstallFilter(uninstallUri, verificationStrategy, clientService, new MappingJackson2HttpMessageConverter()));
+		filter.setWebhookExecutor(executor);
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", uninstallUri);
+		request.setContent(validBody.getBytes());
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doUninstall(request, response);
+		
+		ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+		verify(executor, times(1)).submit(eq(UninstallFilter.UNINSTALL_TOPIC), eq("domain"), task.capture());
+		verify(clientService, never()).removeAuthorizedClient(any(), any());
+		verify(filter, times(1)).uninstallSuccess(any(), any());
+		
+		task.getValue().run();
+		verify(clientService, times(1)).removeAuthorizedClient("shopify", "domain");
+
+	}
+	
+	// with a full executor, doUninstall calls uninstall rejected
+	@Test
+	public void doUninstallWhenExecutorRejectsThenCallsUninstallRejected() throws Exception {
+		String validBody = "{\"shop_id\": \"1234\", \"shop_domain\": \"domain\"}";
+		WebhookExecutor executor = mock(WebhookExecutor.class);
+		doReturn(false).when(executor).submit(any(), any(), any());
+		
+		String uninstallUri = "/other/shopify";
+		UninstallFilter filter = spy(new UninstallFilter(uninstallUri, verificationStrategy, clientService, new MappingJackson2HttpMessageConverter()));
+		filter.setWebhookExecutor(executor);
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", uninstallUri);
+		request.setContent(validBody.getBytes());
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doUninstall(request, response);
+		
+		verify(filter, never()).uninstallSuccess(any(), any());
+		verify(filter, times(1)).uninstallRejected(any(), any());
+		Assert.assertEquals(503, response.getStatus());
+
+	}
+	
+	// the body can be read after it was read to verify the hmac
+	@Test
+	public void doFilterWhenVerifiedThenBodyIsStillReadable() throws Exception {
+		String validBody = "{\"shop_id\": \"1234\", \"shop_domain\": \"domain\"}";
+		String uninstallUri = "/other/shopify";
+		ShopifyVerificationStrategy strategy = spy(new ShopifyVerificationStrategy(null, null));
+		doReturn("secret").when(strategy).getClientSecretByRegistrationId(any());
+		
+		UninstallFilter filter = new UninstallFilter(uninstallUri, strategy, clientService, new MappingJackson2HttpMessageConverter());
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", uninstallUri);
+		request.setServletPath(uninstallUri);
+		request.setContent(validBody.getBytes());
+		String hmac = Base64.getEncoder().encodeToString(ShopifyVerificationStrategy.hash("secret", validBody).getBytes());
+		request.addHeader(ShopifyVerificationStrategy.HMAC_HEADER, hmac);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doFilter(request, response, mock(FilterChain.class));
+		
+		verify(clientService, times(1)).removeAuthorizedClient("shopify", "domain");
+		Assert.assertEquals(200, response.getStatus());
+
+	}
+	
+	// a body over the maximum gets a 413 before it's verified
+	@Test
+	public void doFilterWhenBodyTooLargeThenUninstallTooLarge() throws Exception {
+		String uninstallUri = "/other/shopify";
+		
+		UninstallFilter filter = spy(new UninstallFilter(uninstallUri, verificationStrategy, clientService, converter));
+		filter.setBodyReader(new WebhookBodyReader(16L));
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", uninstallUri);
+		request.setServletPath(uninstallUri);
+		request.setContent(new byte[17]);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doFilter(request, response, mock(FilterChain.class));
+		
+		verify(verificationStrategy, never()).isHeaderShopifyRequest(any(), any(), any());
+		verify(filter, times(1)).uninstallTooLarge(any(), any());
+		Assert.assertEquals(413, response.getStatus());
+
+	}
+	
+	// a duplicate delivery is acknowledged without uninstalling again
+	@Test
+	public void doFilterWhenDuplicateThenUninstallSuccessWithoutUninstall() throws Exception {
+		String uninstallUri = "/other/shopify";
+		doReturn(true).when(verificationStrategy).isHeaderShopifyRequest(any(), any(), any());
+		WebhookDeduplicationStore store = new InMemoryWebhookDeduplicationStore(new ExpiringCache<>(60000, 10));
+		store.markIfFirstDelivery("webhook-1");
+		
+		UninstallFilter filter = spy(new UninstallFilter(uninstallUri, verificationStrategy, clientService, converter));
+		filter.setDeduplicationStore(store);
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", uninstallUri);
+		request.setServletPath(uninstallUri);
+		request.addHeader(ShopifyVerificationStrategy.HMAC_HEADER, "hmac");
+		request.addHeader(ShopifyWebhook.WEBHOOK_ID_HEADER, "webhook-1");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doFilter(request, response, mock(FilterChain.class));
+		
+		verify(filter, never()).doUninstall(any(), any());
+		verify(filter, times(1)).uninstallSuccess(any(), any());
+		Assert.assertEquals(200, response.getStatus());
+
+	}
+	
 	// uninstallsuccess sets 200 status code
 	@Test
 	public void uninstallSuccessSets200() throws Exception {
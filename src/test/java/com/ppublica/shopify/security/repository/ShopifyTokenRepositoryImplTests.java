@@ -1,7 +1,12 @@
 package com.ppublica.shopify.security.repository;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
@@ -196,4 +201,86 @@ public class ShopifyTokenRepositoryImplTests {
 		
 	}
 	
+	@Test
+	public void uninstallStoresRemovesAllStores() {
+		for(int i = 0; i < ShopifyTokenRepositoryImpl.MAX_STORES_PER_DELETE + 5; i++) {
+			template.update("INSERT INTO STOREACCESSTOKENS(storeDomain,tokenType,tokenValue,salt,issuedAt,expiresAt,scopes) VALUES(?,'BEARER','token-value','salt-value',2000,3000,'read_products')", "store" + i + ".myshopify.com");
+		}
+		
+		List<String> stores = new ArrayList<>();
+		for(int i = 0; i < ShopifyTokenRepositoryImpl.MAX_STORES_PER_DELETE + 5; i++) {
+			stores.add("store" + i + ".myshopify.com");
+		}
+		stores.add("non-existing-store");
+		
+		repo.uninstallStores(stores);
+		
+		Assert.assertEquals(Integer.valueOf(1), template.queryForObject("SELECT COUNT(*) FROM StoreAccessTokens", Integer.class));
+		Assert.assertNotNull(repo.findTokenForStore(shop));
+		
+	}
+	
+	@Test
+	public void updateLastActiveKeepsTheLatestTime() {
+		template.execute("ALTER TABLE STOREACCESSTOKENS ADD COLUMN lastActiveAt BIGINT");
+		
+		repo.updateLastActive(Collections.singletonMap(shop, 5000L));
+		repo.updateLastActive(Collections.singletonMap(shop, 4000L));
+		
+		Assert.assertEquals(Long.valueOf(5000), template.queryForObject("SELECT lastActiveAt FROM StoreAccessTokens WHERE storeDomain=?", Long.class, shop));
+		
+		repo.updateLastActive(Collections.singletonMap(shop, 6000L));
+		
+		Assert.assertEquals(Long.valueOf(6000), template.queryForObject("SELECT lastActiveAt FROM StoreAccessTokens WHERE storeDomain=?", Long.class, shop));
+		
+	}
+	
+	@Test
+	public void findRecentlyActiveStoresReturnsMostRecentFirst() {
+		template.execute("ALTER TABLE STOREACCESSTOKENS ADD COLUMN lastActiveAt BIGINT");
+		Map<String, Long> lastActive = new HashMap<>();
+		for(int i = 0; i < 5; i++) {
+			template.update("INSERT INTO STOREACCESSTOKENS(storeDomain,tokenType,tokenValue,salt,issuedAt,expiresAt,scopes) VALUES(?,'BEARER','token-value','salt-value',2000,3000,'read_products')", "store" + i + ".myshopify.com");
+			lastActive.put("store" + i + ".myshopify.com", 1000L + i);
+		}
+		repo.updateLastActive(lastActive);
+		
+		List<String> stores = new ArrayList<>();
+		repo.findRecentlyActiveStores(3, token -> stores.add(token.getStoreDomain()));
+		
+		Assert.assertEquals(Arrays.asList("store4.myshopify.com", "store3.myshopify.com", "store2.myshopify.com"), stores);
+		
+		List<String> allStores = new ArrayList<>();
+		repo.findRecentlyActiveStores(10, token -> allStores.add(token.getStoreDomain()));
+		
+		// the store never active isn't returned
+		Assert.assertEquals(5, allStores.size());
+		Assert.assertFalse(allStores.contains(shop));
+		
+	}
+	
+	@Test
+	public void findRecentlyActiveStoresWhenTimeoutPassesThenStopsReading() {
+		template.execute("ALTER TABLE STOREACCESSTOKENS ADD COLUMN lastActiveAt BIGINT");
+		Map<String, Long> lastActive = new HashMap<>();
+		for(int i = 0; i < 5; i++) {
+			template.update("INSERT INTO STOREACCESSTOKENS(storeDomain,tokenType,tokenValue,salt,issuedAt,expiresAt,scopes) VALUES(?,'BEARER','token-value','salt-value',2000,3000,'read_products')", "store" + i + ".myshopify.com");
+			lastActive.put("store" + i + ".myshopify.com", 1000L + i);
+		}
+		repo.updateLastActive(lastActive);
+		
+		List<String> stores = new ArrayList<>();
+		repo.findRecentlyActiveStores(10, 50, token -> {
+			stores.add(token.getStoreDomain());
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		
+		Assert.assertEquals(Arrays.asList("store4.myshopify.com"), stores);
+		
+	}
+	
 }
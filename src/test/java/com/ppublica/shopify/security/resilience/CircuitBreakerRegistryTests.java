@@ -0,0 +1,134 @@
+package com.ppublica.shopify.security.resilience;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CircuitBreakerRegistryTests {
+	
+	MutableClock clock;
+	CircuitBreakerRegistry registry;
+	
+	@Before
+	public void setup() {
+		clock = new MutableClock();
+		registry = new CircuitBreakerRegistry(3, 1000L, clock);
+	}
+	
+	@Test
+	public void hostWithoutFailuresHasNoBreaker() {
+		Assert.assertTrue(registry.tryAcquire("store1"));
+		registry.onSuccess("store1");
+		
+		Assert.assertTrue(registry.getStates().isEmpty());
+	}
+	
+	@Test
+	public void breakerOpensAfterThresholdAndRejects() {
+		registry.onFailure("store1");
+		registry.onFailure("store1");
+		Assert.assertEquals(CircuitBreaker.State.CLOSED, registry.getState("store1"));
+		Assert.assertTrue(registry.tryAcquire("store1"));
+		
+		registry.onFailure("store1");
+		Assert.assertEquals(CircuitBreaker.State.OPEN, registry.getState("store1"));
+		Assert.assertFalse(registry.tryAcquire("store1"));
+		Assert.assertTrue(registry.tryAcquire("store2"));
+		
+		Assert.assertEquals(1, registry.getOpenedCount());
+		Assert.assertEquals(1, registry.getRejectedCount());
+	}
+	
+	@Test
+	public void halfOpenAllowsSingleTrialAndClosesOnSuccess() {
+		openBreaker("store1");
+		
+		clock.advance(1000);
+		
+		Assert.assertTrue(registry.tryAcquire("store1"));
+		Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, registry.getState("store1"));
+		Assert.assertFalse(registry.tryAcquire("store1"));
+		
+		registry.onSuccess("store1");
+		Assert.assertEquals(CircuitBreaker.State.CLOSED, registry.getState("store1"));
+		Assert.assertTrue(registry.getStates().isEmpty());
+	}
+	
+	@Test
+	public void halfOpenReopensOnFailure() {
+		openBreaker("store1");
+		
+		clock.advance(1000);
+		Assert.assertTrue(registry.tryAcquire("store1"));
+		registry.onFailure("store1");
+		
+		Assert.assertEquals(CircuitBreaker.State.OPEN, registry.getState("store1"));
+		Assert.assertFalse(registry.tryAcquire("store1"));
+		Assert.assertEquals(2, registry.getOpenedCount());
+	}
+	
+	@Test
+	public void ignoredFailureReleasesTrial() {
+		openBreaker("store1");
+		
+		clock.advance(1000);
+		Assert.assertTrue(registry.tryAcquire("store1"));
+		registry.onIgnored("store1");
+		
+		Assert.assertTrue(registry.tryAcquire("store1"));
+	}
+	
+	@Test
+	public void backoffGrowsWithinBounds() {
+		RetryPolicy policy = new RetryPolicy(5, 100L, 400L);
+		
+		for(int i = 0; i < 20; i++) {
+			long first = policy.getBackoffMillis(1);
+			long third = policy.getBackoffMillis(3);
+			long tenth = policy.getBackoffMillis(10);
+			
+			Assert.assertTrue(first >= 50 && first <= 100);
+			Assert.assertTrue(third >= 200 && third <= 400);
+			Assert.assertTrue(tenth >= 200 && tenth <= 400);
+		}
+	}
+	
+	private void openBreaker(String host) {
+		for(int i = 0; i < 3; i++) {
+			registry.onFailure(host);
+		}
+	}
+	
+	static class MutableClock extends Clock {
+		private long millis = 1_000_000;
+		
+		void advance(long delta) {
+			millis += delta;
+		}
+
+		@Override
+		public ZoneOffset getZone() {
+			return ZoneOffset.UTC;
+		}
+
+		@Override
+		public Clock withZone(java.time.ZoneId zone) {
+			return this;
+		}
+
+		@Override
+		public Instant instant() {
+			return Instant.ofEpochMilli(millis);
+		}
+		
+		@Override
+		public long millis() {
+			return millis;
+		}
+	}
+
+}
@@ -0,0 +1,195 @@
+package com.ppublica.shopify.security.serialization;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
+
+import com.ppublica.shopify.security.authentication.ShopifyOriginToken;
+import com.ppublica.shopify.security.service.ShopifyStore;
+
+public class CompactSerializationTests {
+	
+	Collection<? extends GrantedAuthority> authorities;
+	ShopifyStore store;
+	OAuth2AuthorizationRequest authorizationRequest;
+	
+	@Before
+	public void setup() {
+		authorities = Arrays.asList(new SimpleGrantedAuthority("read"), new SimpleGrantedAuthority("write"));
+		store = new ShopifyStore("test-store.myshopify.com", "oauth-token", "api-key", authorities);
+		
+		Map<String, Object> additionalParameters = new HashMap<>();
+		additionalParameters.put("extra", "param");
+		Map<String, Object> attributes = new HashMap<>();
+		attributes.put(OAuth2ParameterNames.REGISTRATION_ID, "shopify");
+		attributes.put("count", 3);
+		
+		authorizationRequest = OAuth2AuthorizationRequest.authorizationCode()
+				.authorizationUri("https://test-store.myshopify.com/admin/oauth/authorize")
+				.clientId("client-id")
+				.redirectUri("https://localhost/login/app/oauth2/code/shopify")
+				.state("state-1")
+				.scopes(new java.util.LinkedHashSet<>(Arrays.asList("read_products", "write_products")))
+				.additionalParameters(additionalParameters)
+				.attributes(attributes)
+				.authorizationRequestUri("https://test-store.myshopify.com/admin/oauth/authorize?client_id=client-id&state=state-1")
+				.build();
+	}
+	
+	@Test
+	public void shopifyStoreRoundTrip() throws Exception {
+		ShopifyStore read = (ShopifyStore)roundTrip(store);
+		
+		Assert.assertEquals("test-store.myshopify.com", read.getName());
+		Assert.assertEquals("oauth-token", read.getAttributes().get(ShopifyStore.ACCESS_TOKEN_KEY));
+		Assert.assertEquals("api-key", read.getAttributes().get(ShopifyStore.API_KEY));
+		Assert.assertEquals(authorities, read.getAuthorities());
+	}
+	
+	@Test
+	public void shopifyOriginTokenRoundTrip() throws Exception {
+		Object read = roundTrip(new ShopifyOriginToken());
+		
+		Assert.assertTrue(read instanceof ShopifyOriginToken);
+	}
+	
+	@Test
+	public void authorizationRequestMapRoundTrip() throws Exception {
+		CompactAuthorizationRequestMap map = new CompactAuthorizationRequestMap();
+		map.put("state-1", authorizationRequest);
+		map.put("state-2", null);
+		
+		@SuppressWarnings("unchecked")
+		Map<String, OAuth2AuthorizationRequest> read = (Map<String, OAuth2AuthorizationRequest>)roundTrip(map);
+		
+		Assert.assertTrue(read instanceof CompactAuthorizationRequestMap);
+		Assert.assertEquals(2, read.size());
+		Assert.assertNull(read.get("state-2"));
+		
+		OAuth2AuthorizationRequest readRequest = read.get("state-1");
+		Assert.assertEquals(authorizationRequest.getGrantType(), readRequest.getGrantType());
+		Assert.assertEquals(authorizationRequest.getAuthorizationUri(), readRequest.getAuthorizationUri());
+		Assert.assertEquals(authorizationRequest.getClientId(), readRequest.getClientId());
+		Assert.assertEquals(authorizationRequest.getRedirectUri(), readRequest.getRedirectUri());
+		Assert.assertEquals(authorizationRequest.getState(), readRequest.getState());
+		Assert.assertEquals(authorizationRequest.getScopes(), readRequest.getScopes());
+		Assert.assertEquals(authorizationRequest.getAdditionalParameters(), readRequest.getAdditionalParameters());
+		Assert.assertEquals(authorizationRequest.getAttributes(), readRequest.getAttributes());
+		Assert.assertEquals(authorizationRequest.getAuthorizationRequestUri(), readRequest.getAuthorizationRequestUri());
+	}
+	
+	@Test
+	public void securityContextRoundTrip() throws Exception {
+		OAuth2AuthenticationToken token = new OAuth2AuthenticationToken(store, authorities, "shopify");
+		token.setDetails("details");
+		
+		SecurityContext read = (SecurityContext)roundTrip(new CompactSecurityContext(token));
+		
+		Assert.assertTrue(read instanceof CompactSecurityContext);
+		OAuth2AuthenticationToken readToken = (OAuth2AuthenticationToken)read.getAuthentication();
+		Assert.assertEquals(OAuth2AuthenticationToken.class, readToken.getClass());
+		Assert.assertEquals("shopify", readToken.getAuthorizedClientRegistrationId());
+		Assert.assertEquals("test-store.myshopify.com", readToken.getName());
+		Assert.assertEquals(authorities, readToken.getAuthorities());
+		Assert.assertEquals("details", readToken.getDetails());
+		Assert.assertTrue(readToken.isAuthenticated());
+	}
+	
+	@Test
+	public void securityContextWithoutOAuth2TokenUsesDefaultSerialization() throws Exception {
+		SecurityContext read = (SecurityContext)roundTrip(new CompactSecurityContext(new ShopifyOriginToken()));
+		
+		Assert.assertTrue(read instanceof CompactSecurityContext);
+		Assert.assertTrue(read.getAuthentication() instanceof ShopifyOriginToken);
+	}
+	
+	@Test
+	public void compactFormsAreSmallerThanDefaultForms() throws Exception {
+		Map<String, OAuth2AuthorizationRequest> plainMap = new HashMap<>();
+		plainMap.put("state-1", authorizationRequest);
+		
+		Assert.assertTrue(serialize(new CompactAuthorizationRequestMap(plainMap)).length < serialize(plainMap).length);
+		
+		OAuth2AuthenticationToken token = new OAuth2AuthenticationToken(store, authorities, "shopify");
+		
+		Assert.assertTrue(serialize(new CompactSecurityContext(token)).length < serialize(new SecurityContextImpl(token)).length);
+	}
+	
+	@Test
+	public void legacyFormsCanStillBeRead() throws Exception {
+		Map<String, OAuth2AuthorizationRequest> plainMap = new HashMap<>();
+		plainMap.put("state-1", authorizationRequest);
+		
+		@SuppressWarnings("unchecked")
+		Map<String, OAuth2AuthorizationRequest> readMap = (Map<String, OAuth2AuthorizationRequest>)roundTrip(plainMap);
+		Assert.assertEquals("state-1", readMap.get("state-1").getState());
+		
+		OAuth2AuthenticationToken token = new OAuth2AuthenticationToken(store, authorities, "shopify");
+		SecurityContext readContext = (SecurityContext)roundTrip(new SecurityContextImpl(token));
+		Assert.assertEquals("test-store.myshopify.com", readContext.getAuthentication().getName());
+	}
+
+	@Test
+	public void legacyShopifyStoreCanStillBeRead() throws Exception {
+		// written with default serialization by ShopifyStore before it had a compact form
+		ShopifyStore read;
+		try (ObjectInputStream in = new ObjectInputStream(getClass().getClassLoader().getResourceAsStream("legacy-shopify-store.ser"))) {
+			read = (ShopifyStore)in.readObject();
+		}
+
+		Assert.assertEquals("legacy-store.myshopify.com", read.getName());
+		Assert.assertEquals("oauth-token", read.getAttributes().get(ShopifyStore.ACCESS_TOKEN_KEY));
+		Assert.assertEquals("api-key", read.getAttributes().get(ShopifyStore.API_KEY));
+		Assert.assertEquals(authorities, read.getAuthorities());
+
+		// and it's written again in the compact form
+		Assert.assertEquals("legacy-store.myshopify.com", ((ShopifyStore)roundTrip(read)).getName());
+	}
+
+	@Test
+	public void installReplacesContext() {
+		OAuth2AuthenticationToken token = new OAuth2AuthenticationToken(store, authorities, "shopify");
+		
+		try {
+			CompactSecurityContext.install(token);
+			
+			Assert.assertTrue(SecurityContextHolder.getContext() instanceof CompactSecurityContext);
+			Assert.assertEquals(token, SecurityContextHolder.getContext().getAuthentication());
+		} finally {
+			SecurityContextHolder.clearContext();
+		}
+	}
+	
+	private static byte[] serialize(Object obj) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(obj);
+		}
+		return bytes.toByteArray();
+	}
+	
+	private static Object roundTrip(Object obj) throws IOException, ClassNotFoundException {
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialize(obj)))) {
+			return in.readObject();
+		}
+	}
+
+}
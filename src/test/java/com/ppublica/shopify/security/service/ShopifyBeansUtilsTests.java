@@ -41,6 +41,7 @@ import com.ppublica.shopify.security.authentication.CipherPassword;
 import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
 import com.ppublica.shopify.security.configuration.SecurityBeansConfig;
 import com.ppublica.shopify.security.configuration.ShopifyPaths;
+import com.ppublica.shopify.security.webhook.WebhookExecutor;
 
 @RunWith(SpringJUnit4ClassRunner.class)
 @ContextConfiguration
@@ -120,6 +121,19 @@ public class ShopifyBeansUtilsTests {
 		
 	}
 	
+	@Test
+	public void getWebhookExecutorFindsBean() {
+		WebhookExecutor res = ShopifyBeansUtils.getWebhookExecutor(builder);
+		Assert.assertNotNull(res);
+		
+	}
+	
+	@Test
+	public void getWebhookJournalWhenNoDirectoryThenNull() {
+		Assert.assertNull(ShopifyBeansUtils.getWebhookJournal(builder));
+		
+	}
+	
 	@EnableWebMvc
 	@Configuration
 	@Import(SecurityBeansConfig.class)
@@ -1,9 +1,15 @@
 package com.ppublica.shopify.security.service;
 
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -15,8 +21,11 @@ import org.junit.Test;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
 import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
 import org.springframework.security.oauth2.core.user.OAuth2User;
 
+import com.ppublica.shopify.security.cache.ExpiringCache;
+
 
 public class ShopifyOAuth2AuthorizedClientServiceTests {
 	
@@ -41,6 +50,24 @@ public class ShopifyOAuth2AuthorizedClientServiceTests {
 		
 	}
 	
+	@Test
+	public void loadAuthorizedClientWhenRecentlyLoadedThenCachedUntilRemoved() {
+		TokenService repo = mock(TokenService.class);
+		OAuth2AuthorizedClient client = mock(OAuth2AuthorizedClient.class);
+		when(repo.getStore("test-store")).thenReturn(client);
+		
+		ShopifyOAuth2AuthorizedClientService service = new ShopifyOAuth2AuthorizedClientService(repo, null, new ExpiringCache<>(60000, 10));
+		
+		Assert.assertEquals(client, service.loadAuthorizedClient("reg-id", "test-store"));
+		Assert.assertEquals(client, service.loadAuthorizedClient("reg-id", "test-store"));
+		verify(repo, times(1)).getStore("test-store");
+		
+		service.removeAuthorizedClient("reg-id", "test-store");
+		service.loadAuthorizedClient("reg-id", "test-store");
+		verify(repo, times(2)).getStore("test-store");
+		
+	}
+	
 	@Test
 	public void loadAuthorizedClientWhenStoreDoesntExistThenReturnNull() {
 		TokenService repo = mock(TokenService.class);
@@ -112,9 +139,170 @@ public class ShopifyOAuth2AuthorizedClientServiceTests {
 		service.removeAuthorizedClient("shopify", "test-store");
 
 		verify(repo).uninstallStore("test-store");
+
+
+	}
+
+	@Test
+	public void evictAuthorizedClientThenReloadedWithoutUninstalling() {
+		TokenService repo = mock(TokenService.class);
+		OAuth2AuthorizedClient client = mock(OAuth2AuthorizedClient.class);
+		when(repo.getStore("test-store")).thenReturn(client);
+
+		ShopifyOAuth2AuthorizedClientService service = new ShopifyOAuth2AuthorizedClientService(repo, null, new ExpiringCache<>(60000, 10));
+		service.loadAuthorizedClient("shopify", "test-store");
+		service.evictAuthorizedClient("test-store");
+		service.loadAuthorizedClient("shopify", "test-store");
+
+		verify(repo, times(2)).getStore("test-store");
+		verify(repo, never()).uninstallStore("test-store");
+	}
+
+	@Test
+	public void loadAuthorizedClientWhenFoundThenRecordsActivity() {
+		TokenService repo = mock(TokenService.class);
+		OAuth2AuthorizedClient client = mock(OAuth2AuthorizedClient.class);
+		when(repo.getStore("test-store")).thenReturn(client);
+		StoreActivityRecorder recorder = mock(StoreActivityRecorder.class);
+
+		ShopifyOAuth2AuthorizedClientService service = new ShopifyOAuth2AuthorizedClientService(repo, null, new ExpiringCache<>(60000, 10));
+		service.setActivityRecorder(recorder);
+		service.loadAuthorizedClient("shopify", "test-store");
+		service.loadAuthorizedClient("shopify", "test-store");
+		service.loadAuthorizedClient("shopify", "other-store");
+
+		verify(recorder, times(2)).recordActive("test-store");
+		verify(recorder, never()).recordActive("other-store");
+	}
+
+	@Test
+	public void cacheAuthorizedClientWhenAbsentThenLoadedFromCache() {
+		TokenService repo = mock(TokenService.class);
+		OAuth2AuthorizedClient client = mock(OAuth2AuthorizedClient.class);
+
+		ShopifyOAuth2AuthorizedClientService service = new ShopifyOAuth2AuthorizedClientService(repo, null, new ExpiringCache<>(60000, 10));
+
+		Assert.assertTrue(service.cacheAuthorizedClient("test-store", client));
+		Assert.assertFalse(service.cacheAuthorizedClient("test-store", mock(OAuth2AuthorizedClient.class)));
+		Assert.assertEquals(client, service.loadAuthorizedClient("shopify", "test-store"));
+		verify(repo, never()).getStore("test-store");
+
+		Assert.assertFalse(new ShopifyOAuth2AuthorizedClientService(repo).cacheAuthorizedClient("test-store", client));
+	}
+
+
+	@Test
+	public void removeAuthorizedClientWhenLoadedDuringDeleteThenEvicted() {
+		TokenService repo = mock(TokenService.class);
+		OAuth2AuthorizedClient client = mock(OAuth2AuthorizedClient.class);
+		when(repo.getStore("test-store")).thenReturn(client);
+		
+		ShopifyOAuth2AuthorizedClientService service = new ShopifyOAuth2AuthorizedClientService(repo, null, new ExpiringCache<>(60000, 10));
+		
+		// a concurrent request loads the store before the delete commits
+		doAnswer(i -> service.loadAuthorizedClient("reg-id", "test-store")).when(repo).uninstallStore("test-store");
+		doAnswer(i -> service.loadAuthorizedClient("reg-id", "test-store")).when(repo).uninstallStores(Arrays.asList("test-store"));
 		
+		service.removeAuthorizedClient("reg-id", "test-store");
+		Assert.assertNull(service.getRecentlyLoadedCache().get("test-store"));
+		
+		service.removeAuthorizedClients("reg-id", Arrays.asList("test-store"));
+		Assert.assertNull(service.getRecentlyLoadedCache().get("test-store"));
+		
+	}
+
+
+	// the store is read before the delete, but put in the cache after the delete's eviction
+	@Test
+	public void removeAuthorizedClientWhenLoadReadBeforeDeleteThenNotCached() throws Exception {
+		TokenService repo = mock(TokenService.class);
+		OAuth2AuthorizedClient client = mock(OAuth2AuthorizedClient.class);
+		CountDownLatch read = new CountDownLatch(1);
+		CountDownLatch deleted = new CountDownLatch(1);
+		when(repo.getStore("test-store")).thenAnswer(i -> {
+			read.countDown();
+			deleted.await(5, TimeUnit.SECONDS);
+			return client;
+		});
+		
+		ShopifyOAuth2AuthorizedClientService service = new ShopifyOAuth2AuthorizedClientService(repo, null, new ExpiringCache<>(60000, 10));
+		
+		Thread loader = new Thread(() -> service.loadAuthorizedClient("reg-id", "test-store"));
+		loader.start();
+		Assert.assertTrue(read.await(5, TimeUnit.SECONDS));
+		
+		service.removeAuthorizedClient("reg-id", "test-store");
+		deleted.countDown();
+		loader.join(5000);
+		
+		Assert.assertFalse(loader.isAlive());
+		Assert.assertNull(service.getRecentlyLoadedCache().get("test-store"));
+		
+	}
+
+
+	@Test
+	public void removeAuthorizedClientsDelegatesToTokenServiceAndEvicts() {
+		TokenService repo = mock(TokenService.class);
+		ExpiringCache<String, String> recentlySaved = new ExpiringCache<>(60000, 10);
+		recentlySaved.put("store-1", "token-1");
+		recentlySaved.put("store-3", "token-3");
+		
+		ShopifyOAuth2AuthorizedClientService service = new ShopifyOAuth2AuthorizedClientService(repo, recentlySaved);
+		service.removeAuthorizedClients("shopify", Arrays.asList("store-1", "store-2"));
+
+		verify(repo).uninstallStores(Arrays.asList("store-1", "store-2"));
+		Assert.assertNull(recentlySaved.get("store-1"));
+		Assert.assertEquals("token-3", recentlySaved.get("store-3"));
 				
 	}
 
 
+	@Test
+	public void saveAuthorizedClientKeepsOnlyHashOfToken() {
+		TokenService repo = mock(TokenService.class);
+		OAuth2AuthorizedClient client = mock(OAuth2AuthorizedClient.class);
+		when(client.getAccessToken()).thenReturn(new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "oauth-token", null, null));
+		
+		OAuth2AuthenticationToken token = mock(OAuth2AuthenticationToken.class);
+		OAuth2User pr = mock(OAuth2User.class);
+		when(pr.getName()).thenReturn("test-store");
+		when(token.getPrincipal()).thenReturn(pr);
+		
+		ExpiringCache<String, String> recentlySaved = new ExpiringCache<>(60000, 10);
+		new ShopifyOAuth2AuthorizedClientService(repo, recentlySaved).saveAuthorizedClient(client, token);
+		
+		Assert.assertNotNull(recentlySaved.get("test-store"));
+		Assert.assertFalse(recentlySaved.get("test-store").contains("oauth-token"));
+	}
+	
+	
+	@Test
+	public void saveAuthorizedClientWhenSameTokenJustSavedThenSkip() {
+		TokenService repo = mock(TokenService.class);
+		when(repo.doesStoreExist("test-store")).thenReturn(false, true);
+
+		OAuth2AuthorizedClient client = mock(OAuth2AuthorizedClient.class);
+		when(client.getAccessToken()).thenReturn(new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "oauth-token", null, null));
+		
+		OAuth2AuthenticationToken token = mock(OAuth2AuthenticationToken.class);
+		OAuth2User pr = mock(OAuth2User.class);
+		when(pr.getName()).thenReturn("test-store");
+		when(token.getPrincipal()).thenReturn(pr);
+		
+		ShopifyOAuth2AuthorizedClientService service = new ShopifyOAuth2AuthorizedClientService(repo, new ExpiringCache<>(60000, 10));
+		service.saveAuthorizedClient(client, token);
+		service.saveAuthorizedClient(client, token);
+		
+		verify(repo, times(1)).saveNewStore(client, token);
+		verify(repo, never()).updateStore(client, token);
+		
+		// after uninstalling, the token is saved again
+		service.removeAuthorizedClient("reg-id", "test-store");
+		service.saveAuthorizedClient(client, token);
+		
+		verify(repo).updateStore(client, token);
+		
+	}
+
 }
@@ -0,0 +1,141 @@
+package com.ppublica.shopify.security.service;
+
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StoreActivityRecorderTests {
+
+	TokenService tokenService;
+	MutableClock clock;
+	StoreActivityRecorder recorder;
+
+	@Before
+	public void setup() {
+		tokenService = mock(TokenService.class);
+		clock = new MutableClock();
+		// the recorder's own flush never runs during a test
+		recorder = new StoreActivityRecorder(tokenService, 1000L, 3600000L, 2, clock);
+	}
+
+	@After
+	public void cleanup() {
+		recorder.destroy();
+	}
+
+	@Test
+	public void recordActiveWhenRecordedWithinGranularityThenRecordedOnce() {
+		recorder.recordActive("store1.myshopify.com");
+		clock.advance(999);
+		recorder.recordActive("store1.myshopify.com");
+
+		recorder.flush();
+
+		Map<String, Long> expected = new HashMap<>();
+		expected.put("store1.myshopify.com", 1_000_000L);
+		verify(tokenService).updateLastActive(expected);
+		Assert.assertEquals(1, recorder.getFlushedCount());
+	}
+
+	@Test
+	public void recordActiveWhenGranularityPassedThenRecordedAgain() {
+		recorder.recordActive("store1.myshopify.com");
+		recorder.flush();
+		clock.advance(1000);
+		recorder.recordActive("store1.myshopify.com");
+
+		recorder.flush();
+
+		Map<String, Long> expected = new HashMap<>();
+		expected.put("store1.myshopify.com", 1_001_000L);
+		verify(tokenService).updateLastActive(expected);
+		Assert.assertEquals(2, recorder.getFlushedCount());
+	}
+
+	@Test
+	public void recordActiveWhenTooManyPendingThenSkipped() {
+		recorder.recordActive("store1.myshopify.com");
+		recorder.recordActive("store2.myshopify.com");
+		recorder.recordActive("store3.myshopify.com");
+
+		Assert.assertEquals(2, recorder.getPendingCount());
+		Assert.assertEquals(1, recorder.getSkippedCount());
+	}
+
+	@Test
+	public void flushWhenNothingPendingThenNoUpdate() {
+		recorder.flush();
+
+		verify(tokenService, never()).updateLastActive(anyMap());
+	}
+
+	@Test
+	public void flushWhenUpdateFailsThenDropped() {
+		doThrow(new RuntimeException("down")).when(tokenService).updateLastActive(anyMap());
+		recorder.recordActive("store1.myshopify.com");
+
+		recorder.flush();
+
+		Assert.assertEquals(0, recorder.getPendingCount());
+		Assert.assertEquals(1, recorder.getFailedFlushCount());
+		Assert.assertEquals(0, recorder.getFlushedCount());
+	}
+
+	@Test
+	public void destroyFlushesPending() {
+		recorder.recordActive("store1.myshopify.com");
+
+		recorder.destroy();
+
+		verify(tokenService).updateLastActive(anyMap());
+	}
+
+	@Test(expected=RuntimeException.class)
+	public void constructorWhenZeroGranularityThenException() {
+		new StoreActivityRecorder(tokenService, 0L, null, null);
+	}
+
+
+	static class MutableClock extends Clock {
+		private long millis = 1_000_000;
+
+		void advance(long delta) {
+			millis += delta;
+		}
+
+		@Override
+		public ZoneOffset getZone() {
+			return ZoneOffset.UTC;
+		}
+
+		@Override
+		public Clock withZone(ZoneId zone) {
+			return this;
+		}
+
+		@Override
+		public Instant instant() {
+			return Instant.ofEpochMilli(millis);
+		}
+
+		@Override
+		public long millis() {
+			return millis;
+		}
+	}
+
+}
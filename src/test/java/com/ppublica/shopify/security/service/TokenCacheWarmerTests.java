@@ -0,0 +1,116 @@
+package com.ppublica.shopify.security.service;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.function.Consumer;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+
+import com.ppublica.shopify.security.cache.ExpiringCache;
+import com.ppublica.shopify.security.repository.PersistedStoreAccessToken;
+
+public class TokenCacheWarmerTests {
+
+	TokenService tokenService;
+	ExpiringCache<String, OAuth2AuthorizedClient> cache;
+	ShopifyOAuth2AuthorizedClientService clientService;
+
+	@Before
+	public void setup() {
+		tokenService = mock(TokenService.class);
+		cache = new ExpiringCache<>(60000, 3);
+		clientService = new ShopifyOAuth2AuthorizedClientService(tokenService, null, cache);
+	}
+
+	@Test
+	public void warmCachesDecryptedStores() {
+		streamStores(3);
+		when(tokenService.decryptStore(any())).thenAnswer(i -> mock(OAuth2AuthorizedClient.class));
+
+		TokenCacheWarmer warmer = new TokenCacheWarmer(tokenService, clientService, 3, 2, null);
+
+		Assert.assertEquals(3, warmer.warm());
+		Assert.assertEquals(3, cache.size());
+		Assert.assertNotNull(clientService.loadAuthorizedClient("shopify", "store0.myshopify.com"));
+		verify(tokenService, never()).getStore(any());
+	}
+
+	@Test
+	public void warmLoadsNoMoreStoresThanTheCacheHolds() {
+		streamStores(3);
+		when(tokenService.decryptStore(any())).thenAnswer(i -> mock(OAuth2AuthorizedClient.class));
+
+		new TokenCacheWarmer(tokenService, clientService, 100, 2, null).warm();
+
+		verify(tokenService).findRecentlyActiveStores(eq(3), eq(TokenCacheWarmer.DEFAULT_TIMEOUT), any());
+	}
+
+	@Test
+	public void warmWhenStoreUndecryptableThenSkipped() {
+		streamStores(3);
+		when(tokenService.decryptStore(any())).thenAnswer(i -> "store1.myshopify.com".equals(i.<PersistedStoreAccessToken>getArgument(0).getStoreDomain()) ? null : mock(OAuth2AuthorizedClient.class));
+
+		TokenCacheWarmer warmer = new TokenCacheWarmer(tokenService, clientService, 3, 2, null);
+
+		Assert.assertEquals(2, warmer.warm());
+		Assert.assertEquals(1, warmer.getFailedCount());
+	}
+
+	@Test
+	public void warmWhenStoresCantBeReadThenNoException() {
+		doThrow(new RuntimeException("no lastActiveAt column")).when(tokenService).findRecentlyActiveStores(anyInt(), anyLong(), any());
+
+		Assert.assertEquals(0, new TokenCacheWarmer(tokenService, clientService, 3, 2, null).warm());
+	}
+
+	@Test
+	public void warmWhenNoCacheThenNothingRead() {
+		ShopifyOAuth2AuthorizedClientService uncached = new ShopifyOAuth2AuthorizedClientService(tokenService);
+
+		Assert.assertEquals(0, new TokenCacheWarmer(tokenService, uncached, 3, 2, null).warm());
+		verify(tokenService, never()).findRecentlyActiveStores(anyInt(), anyLong(), any());
+	}
+
+	@Test
+	public void warmWhenTimeoutPassedThenStopsWaiting() {
+		streamStores(3);
+		when(tokenService.decryptStore(any())).thenAnswer(i -> {
+			Thread.sleep(200);
+			return mock(OAuth2AuthorizedClient.class);
+		});
+
+		TokenCacheWarmer warmer = new TokenCacheWarmer(tokenService, clientService, 3, 1, 50L);
+
+		long started = System.nanoTime();
+		warmer.warm();
+
+		Assert.assertTrue(System.nanoTime() - started < 2_000_000_000L);
+		Assert.assertTrue(cache.size() < 3);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void streamStores(int count) {
+		doAnswer(i -> {
+			Consumer<PersistedStoreAccessToken> consumer = i.getArgument(2);
+			for(int s = 0; s < Math.min(count, i.<Integer>getArgument(0)); s++) {
+				PersistedStoreAccessToken store = new PersistedStoreAccessToken();
+				store.setStoreDomain("store" + s + ".myshopify.com");
+				consumer.accept(store);
+			}
+			return null;
+		}).when(tokenService).findRecentlyActiveStores(anyInt(), anyLong(), any(Consumer.class));
+	}
+
+}
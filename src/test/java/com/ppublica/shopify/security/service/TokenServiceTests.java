@@ -284,6 +284,38 @@ public class TokenServiceTests {
 	}
 	
 	
+	@Test
+	public void decryptStoreDecryptsWithoutReadingTheRepository() {
+		CipherPassword cp = new CipherPassword("password");
+		
+		ClientRegistrationRepository cR = mock(ClientRegistrationRepository.class);
+		doReturn(clientRegistration).when(cR).findByRegistrationId(SecurityBeansConfig.SHOPIFY_REGISTRATION_ID);
+		
+		String sampleSalt = KeyGenerators.string().generateKey();
+		String encryptedTokenValue = Encryptors.queryableText(cp.getPassword(), sampleSalt).encrypt("raw-value");
+		
+		PersistedStoreAccessToken persisted = new PersistedStoreAccessToken();
+		persisted.setTokenAndSalt(new EncryptedTokenAndSalt(encryptedTokenValue, sampleSalt));
+		
+		TokenRepository repo = mock(TokenRepository.class);
+		TokenService tS = new TokenService(repo, cp, cR);
+		PersistedStoreAccessTokenUtility utility = mock(PersistedStoreAccessTokenUtility.class);
+		tS.setPersistedStoreAccessTokenUtility(utility);
+		
+		ArgumentCaptor<DecryptedTokenAndSalt> dts = ArgumentCaptor.forClass(DecryptedTokenAndSalt.class);
+		
+		tS.decryptStore(persisted);
+		
+		verify(utility, times(1)).fromPersistedStoreAccessTokenToOAuth2AuthorizedClient(ArgumentMatchers.eq(persisted), dts.capture(), ArgumentMatchers.eq(clientRegistration));
+		verify(repo, never()).findTokenForStore(ArgumentMatchers.anyString());
+		Assert.assertEquals("raw-value", dts.getValue().getDecryptedToken());
+		
+		persisted.setTokenAndSalt(new EncryptedTokenAndSalt(encryptedTokenValue + "error", sampleSalt));
+		Assert.assertNull(tS.decryptStore(persisted));
+		
+	}
+	
+	
 	@Test
 	public void updateStoreWhenUpdatingDelegatesToTokenRepository() {
 		// create the TokenService
@@ -348,6 +380,20 @@ public class TokenServiceTests {
 		
 	}
 	
+	@Test
+	public void uninstallStoresWhenEmptyStoreNamesThenSkipThem() {
+		TokenRepository repo = mock(TokenRepository.class);
+		
+		TokenService tS = new TokenService(repo, new CipherPassword("password"), mock(ClientRegistrationRepository.class));
+		
+		tS.uninstallStores(Arrays.asList("one.myshopify.com", "", null, "two.myshopify.com", "one.myshopify.com"));
+		tS.uninstallStores(Arrays.asList("", null));
+		
+		verify(repo, times(1)).uninstallStores(Arrays.asList("one.myshopify.com", "two.myshopify.com"));
+		verify(repo, times(1)).uninstallStores(ArgumentMatchers.any());
+		
+	}
+	
 	@Test
 	public void uninstallStoreWhenNoStoreNameDontCallRepo() {
 		
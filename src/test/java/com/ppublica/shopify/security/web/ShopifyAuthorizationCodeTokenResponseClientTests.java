@@ -1,5 +1,6 @@
 package com.ppublica.shopify.security.web;
 
+import java.time.Clock;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -20,12 +21,19 @@ import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCo
 import org.springframework.security.oauth2.client.registration.ClientRegistration;
 import org.springframework.security.oauth2.core.AuthorizationGrantType;
 import org.springframework.security.oauth2.core.ClientAuthenticationMethod;
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+import org.springframework.security.oauth2.core.OAuth2ErrorCodes;
 import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenResponse;
 import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationExchange;
 import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
 import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationResponse;
 import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
 
+import com.ppublica.shopify.security.resilience.CircuitBreaker;
+import com.ppublica.shopify.security.resilience.CircuitBreakerRegistry;
+import com.ppublica.shopify.security.resilience.ResilientCallExecutor;
+import com.ppublica.shopify.security.resilience.RetryPolicy;
+
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
@@ -177,6 +185,77 @@ public class ShopifyAuthorizationCodeTokenResponseClientTests {
 	}
 	
 	
+	@Test
+	public void getTokenResponseWhenShopifyUnavailableThenRetries() throws Exception {
+		ResilientCallExecutor executor = new ResilientCallExecutor(new RetryPolicy(3, 1L, 5L), new CircuitBreakerRegistry());
+		tokenResponseClient = new ShopifyAuthorizationCodeTokenResponseClient(ShopifyHttpTransport.defaultJdkRequestFactory(), executor);
+		
+		this.server.enqueue(new MockResponse().setResponseCode(503));
+		this.server.enqueue(new MockResponse().setResponseCode(429));
+		this.server.enqueue(jsonResponse("{\"access_token\": \"access-token-1234\", \"scope\": \"read write\"}"));
+		
+		OAuth2AuthorizationCodeGrantRequest req = new OAuth2AuthorizationCodeGrantRequest(clientRegistration, authorizationExchange);
+		
+		OAuth2AccessTokenResponse response = tokenResponseClient.getTokenResponse(req);
+		
+		Assert.assertEquals("access-token-1234", response.getAccessToken().getTokenValue());
+		Assert.assertEquals(3, this.server.getRequestCount());
+		Assert.assertEquals(2, executor.getRetryCount());
+		Assert.assertEquals(CircuitBreaker.State.CLOSED, executor.getCircuitBreakers().getState("testStore"));
+		Assert.assertTrue(executor.getCircuitBreakers().getStates().isEmpty());
+	}
+	
+	@Test
+	public void getTokenResponseWhenOAuth2ErrorThenDoesNotRetry() throws Exception {
+		ResilientCallExecutor executor = new ResilientCallExecutor(new RetryPolicy(3, 1L, 5L), new CircuitBreakerRegistry());
+		tokenResponseClient = new ShopifyAuthorizationCodeTokenResponseClient(ShopifyHttpTransport.defaultJdkRequestFactory(), executor);
+		
+		this.server.enqueue(jsonResponse("{\"error\": \"invalid_request\"}").setResponseCode(400));
+		
+		OAuth2AuthorizationCodeGrantRequest req = new OAuth2AuthorizationCodeGrantRequest(clientRegistration, authorizationExchange);
+		
+		try {
+			tokenResponseClient.getTokenResponse(req);
+			Assert.fail("Expected an OAuth2AuthorizationException");
+		} catch (OAuth2AuthorizationException e) {
+			Assert.assertEquals("invalid_request", e.getError().getErrorCode());
+		}
+		
+		Assert.assertEquals(1, this.server.getRequestCount());
+		Assert.assertEquals(0, executor.getRetryCount());
+	}
+	
+	@Test
+	public void getTokenResponseWhenCircuitBreakerOpenThenFailsFast() throws Exception {
+		ResilientCallExecutor executor = new ResilientCallExecutor(new RetryPolicy(2, 1L, 5L), new CircuitBreakerRegistry(2, 60000L, Clock.systemUTC()));
+		tokenResponseClient = new ShopifyAuthorizationCodeTokenResponseClient(ShopifyHttpTransport.defaultJdkRequestFactory(), executor);
+		
+		this.server.enqueue(new MockResponse().setResponseCode(502));
+		this.server.enqueue(new MockResponse().setResponseCode(502));
+		
+		OAuth2AuthorizationCodeGrantRequest req = new OAuth2AuthorizationCodeGrantRequest(clientRegistration, authorizationExchange);
+		
+		try {
+			tokenResponseClient.getTokenResponse(req);
+			Assert.fail("Expected an OAuth2AuthorizationException");
+		} catch (OAuth2AuthorizationException e) {
+			
+		}
+		Assert.assertEquals(CircuitBreaker.State.OPEN, executor.getCircuitBreakers().getState("testStore"));
+		
+		try {
+			tokenResponseClient.getTokenResponse(req);
+			Assert.fail("Expected an OAuth2AuthorizationException");
+		} catch (OAuth2AuthorizationException e) {
+			Assert.assertEquals(OAuth2ErrorCodes.TEMPORARILY_UNAVAILABLE, e.getError().getErrorCode());
+		}
+		
+		Assert.assertEquals(2, this.server.getRequestCount());
+		Assert.assertEquals(1, executor.getCircuitBreakers().getOpenedCount());
+		Assert.assertEquals(1, executor.getCircuitBreakers().getRejectedCount());
+	}
+	
+	
 	private MockResponse jsonResponse(String json) {
 		return new MockResponse()
 				.setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
@@ -0,0 +1,150 @@
+package com.ppublica.shopify.security.web;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+public class ShopifyHttpTransportTests {
+	MockWebServer server;
+	ShopifyHttpTransport transport;
+
+	@Before
+	public void setup() throws Exception {
+		this.server = new MockWebServer();
+		this.server.start();
+	}
+
+	@After
+	public void cleanup() throws Exception {
+		if(transport != null) {
+			transport.destroy();
+		}
+		this.server.shutdown();
+	}
+
+	@Test
+	public void defaultsWhenNoSettings() {
+		transport = new ShopifyHttpTransport();
+
+		Assert.assertEquals(ShopifyHttpTransport.APACHE, transport.getImplementation());
+		Assert.assertEquals(ShopifyHttpTransport.DEFAULT_CONNECT_TIMEOUT, transport.getConnectTimeout());
+		Assert.assertEquals(ShopifyHttpTransport.DEFAULT_READ_TIMEOUT, transport.getReadTimeout());
+		Assert.assertEquals(ShopifyHttpTransport.DEFAULT_CONNECTION_REQUEST_TIMEOUT, transport.getConnectionRequestTimeout());
+		Assert.assertEquals(ShopifyHttpTransport.DEFAULT_MAX_CONNECTIONS, transport.getMaxConnections());
+		Assert.assertEquals(ShopifyHttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST, transport.getMaxConnectionsPerHost());
+		Assert.assertTrue(ReflectionTestUtils.getField(transport, "requestFactory") instanceof HttpComponentsClientHttpRequestFactory);
+	}
+
+	@Test
+	public void jdkImplementationWhenRequested() throws Exception {
+		transport = new ShopifyHttpTransport("jdk", 1000, 1000, 1000, 2, 1);
+
+		Assert.assertEquals(ShopifyHttpTransport.JDK, transport.getImplementation());
+
+		server.enqueue(new MockResponse().setBody("ok"));
+
+		try(ClientHttpResponse response = transport.getRequestFactory().createRequest(URI.create(server.url("/").toString()), HttpMethod.GET).execute()) {
+			Assert.assertEquals(200, response.getRawStatusCode());
+		}
+	}
+
+	@Test(expected=RuntimeException.class)
+	public void unknownImplementationThrowsException() {
+		new ShopifyHttpTransport("netty", null, null, null, null, null);
+	}
+
+	// tests run with the Java 8 classes: see Http2RequestFactoryBuilderTests for the Java 11 ones
+	@Test(expected=RuntimeException.class)
+	public void http2WhenNotAvailableThrowsException() {
+		new ShopifyHttpTransport("http2", null, null, null, null, null);
+	}
+
+	@Test(expected=RuntimeException.class)
+	public void nonPositiveSettingThrowsException() {
+		new ShopifyHttpTransport(null, 0, null, null, null, null);
+	}
+
+	@Test
+	public void maxConnectionsPerHostNeverExceedsMaxConnections() {
+		transport = new ShopifyHttpTransport("jdk", null, null, null, 3, 10);
+
+		Assert.assertEquals(3, transport.getMaxConnectionsPerHost());
+	}
+
+	@Test
+	public void apacheReusesPooledConnection() throws Exception {
+		transport = new ShopifyHttpTransport("apache", 1000, 1000, 1000, 2, 2);
+		URI uri = URI.create(server.url("/").toString());
+
+		server.enqueue(new MockResponse().setBody("first"));
+		server.enqueue(new MockResponse().setBody("second"));
+
+		for(int i = 0; i < 2; i++) {
+			try(ClientHttpResponse response = transport.getRequestFactory().createRequest(uri, HttpMethod.GET).execute()) {
+				Assert.assertEquals(200, response.getRawStatusCode());
+				response.getBody().close();
+			}
+		}
+
+		// the sequence number is per connection
+		Assert.assertEquals(0, server.takeRequest().getSequenceNumber());
+		Assert.assertEquals(1, server.takeRequest().getSequenceNumber());
+	}
+
+	@Test
+	public void slowResponseTimesOut() throws Exception {
+		transport = new ShopifyHttpTransport("apache", 1000, 200, 1000, 2, 2);
+
+		server.enqueue(new MockResponse().setBody("slow").setHeadersDelay(2, TimeUnit.SECONDS));
+
+		try {
+			transport.getRequestFactory().createRequest(URI.create(server.url("/").toString()), HttpMethod.GET).execute();
+			Assert.fail("Expected a timeout");
+		} catch (SocketTimeoutException e) {
+
+		}
+
+		Assert.assertEquals(0, transport.getActiveRequests());
+	}
+
+	@Test
+	public void requestRejectedWhenNoPermitAvailable() throws Exception {
+		transport = new ShopifyHttpTransport("jdk", 1000, 1000, 100, 1, 1);
+		URI uri = URI.create(server.url("/").toString());
+
+		server.enqueue(new MockResponse().setBody("first"));
+		server.enqueue(new MockResponse().setBody("second"));
+
+		ClientHttpResponse first = transport.getRequestFactory().createRequest(uri, HttpMethod.GET).execute();
+		Assert.assertEquals(1, transport.getActiveRequests());
+
+		try {
+			transport.getRequestFactory().createRequest(uri, HttpMethod.GET).execute();
+			Assert.fail("Expected the request to be rejected");
+		} catch (IOException e) {
+			Assert.assertEquals(1, transport.getRejectedRequests());
+		}
+
+		first.close();
+		Assert.assertEquals(0, transport.getActiveRequests());
+
+		try(ClientHttpResponse second = transport.getRequestFactory().createRequest(uri, HttpMethod.GET).execute()) {
+			Assert.assertEquals(200, second.getRawStatusCode());
+		}
+
+	}
+
+}
@@ -0,0 +1,157 @@
+package com.ppublica.shopify.security.webhook;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class GdprWebhookHandlerTests {
+
+	OAuth2AuthorizedClientService clientService;
+	GdprWebhookCallback callback;
+	GdprWebhookHandler handler;
+
+	@Before
+	public void setup() {
+		clientService = mock(OAuth2AuthorizedClientService.class);
+		callback = mock(GdprWebhookCallback.class);
+		handler = new GdprWebhookHandler(new UninstallWebhookHandler(clientService), Arrays.asList(callback));
+	}
+
+	@After
+	public void cleanup() {
+		handler.destroy();
+	}
+
+	@Test
+	public void getTopicsReturnsGdprTopics() {
+		Assert.assertTrue(handler.getTopics().containsAll(Arrays.asList("customers/data_request", "customers/redact", "shop/redact")));
+	}
+
+	@Test
+	public void handleWhenDataRequestThenCallbackWithFields() {
+		String body = "{\"shop_id\":954889,\"shop_domain\":\"store.myshopify.com\",\"orders_requested\":[299938,280263,220458],"
+				+ "\"customer\":{\"id\":191167,\"email\":\"john@example.com\",\"phone\":\"555-625-1199\",\"tags\":[\"a\",{\"b\":1}]},"
+				+ "\"data_request\":{\"id\":9999}}";
+
+		handler.handle(webhook("customers/data_request", body, "header.myshopify.com"));
+
+		ArgumentCaptor<GdprRequest> captor = ArgumentCaptor.forClass(GdprRequest.class);
+		verify(callback).customerDataRequested(captor.capture());
+		GdprRequest request = captor.getValue();
+		Assert.assertEquals("customers/data_request", request.getTopic());
+		Assert.assertEquals("id-1", request.getWebhookId());
+		Assert.assertEquals(Long.valueOf(954889), request.getShopId());
+		Assert.assertEquals("store.myshopify.com", request.getShopDomain());
+		Assert.assertEquals(Long.valueOf(191167), request.getCustomerId());
+		Assert.assertEquals("john@example.com", request.getCustomerEmail());
+		Assert.assertEquals("555-625-1199", request.getCustomerPhone());
+		Assert.assertArrayEquals(new long[] {299938, 280263, 220458}, request.getOrderIds());
+		Assert.assertEquals(Long.valueOf(9999), request.getDataRequestId());
+		Assert.assertEquals(1, handler.getDataRequestCount());
+		verify(clientService, never()).removeAuthorizedClient(any(), any());
+	}
+
+	@Test
+	public void handleWhenCustomerRedactThenSkipUnknownFields() {
+		StringBuilder orders = new StringBuilder();
+		for(int i = 0; i < 100; i++) {
+			orders.append(i == 0 ? "" : ",").append(i);
+		}
+		String body = "{\"extra\":{\"nested\":[1,2,{\"customer\":{\"id\":1}}]},\"shop_id\":\"954889\","
+				+ "\"customer\":{\"id\":191167},\"orders_to_redact\":[" + orders + "]}";
+
+		handler.handle(webhook("customers/redact", body, "header.myshopify.com"));
+
+		ArgumentCaptor<GdprRequest> captor = ArgumentCaptor.forClass(GdprRequest.class);
+		verify(callback).customerRedacted(captor.capture());
+		GdprRequest request = captor.getValue();
+		Assert.assertEquals(Long.valueOf(954889), request.getShopId());
+		Assert.assertEquals("header.myshopify.com", request.getShopDomain());
+		Assert.assertEquals(Long.valueOf(191167), request.getCustomerId());
+		Assert.assertNull(request.getCustomerEmail());
+		Assert.assertEquals(100, request.getOrderIds().length);
+		Assert.assertEquals(99, request.getOrderIds()[99]);
+		Assert.assertNull(request.getDataRequestId());
+	}
+
+	@Test
+	public void handleAsyncWhenShopRedactThenRemoveStoreBeforeCallback() {
+		CompletableFuture<Void> result = handler.handleAsync(webhook("shop/redact", "{\"shop_id\":954889,\"shop_domain\":\"store.myshopify.com\"}", null));
+		verify(clientService).removeAuthorizedClient("shopify", "store.myshopify.com");
+
+		result.join();
+		verify(callback).shopRedacted(any());
+		Assert.assertEquals(1, handler.getShopRedactCount());
+	}
+
+	// the callbacks run on their own executor, not on the webhook lane that called handleAsync(...)
+	@Test
+	public void handleAsyncThenCallbacksRunOnCallbackExecutor() {
+		List<Runnable> tasks = new ArrayList<>();
+		handler.setCallbackExecutor(tasks::add);
+
+		CompletableFuture<Void> result = handler.handleAsync(webhook("customers/redact", "{\"shop_id\":954889}", null));
+
+		Assert.assertFalse(result.isDone());
+		verify(callback, never()).customerRedacted(any());
+
+		tasks.get(0).run();
+		Assert.assertTrue(result.isDone());
+		verify(callback).customerRedacted(any());
+	}
+
+	@Test
+	public void handleAsyncWhenCallbackThrowsThenOthersCalledAndFutureFails() {
+		GdprWebhookCallback failing = mock(GdprWebhookCallback.class);
+		doThrow(new IllegalStateException("failed")).when(failing).customerDataRequested(any());
+		GdprWebhookHandler handler = new GdprWebhookHandler(new UninstallWebhookHandler(clientService), Arrays.asList(failing, callback));
+
+		try {
+			handler.handleAsync(webhook("customers/data_request", "{\"shop_id\":954889}", null)).join();
+			Assert.fail();
+		} catch (CompletionException e) {
+			Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+		} finally {
+			handler.destroy();
+		}
+
+		verify(callback).customerDataRequested(any());
+	}
+
+	@Test
+	public void handleWhenShopRedactWithoutShopThenDoNothing() {
+		handler.handle(webhook("shop/redact", "{\"shop_id\":954889}", null));
+
+		verify(clientService, never()).removeAuthorizedClient(any(), any());
+		verify(callback, never()).shopRedacted(any());
+	}
+
+	@Test(expected=RuntimeException.class)
+	public void handleWhenNotJsonObjectThenException() {
+		new GdprWebhookHandler(new UninstallWebhookHandler(clientService), Collections.emptyList())
+				.handle(webhook("customers/redact", "[1,2]", null));
+	}
+
+	private ShopifyWebhook webhook(String topic, String body, String shopDomain) {
+		return new ShopifyWebhook(topic, shopDomain, "id-1", "2020-01", body.getBytes(StandardCharsets.UTF_8), new ObjectMapper());
+	}
+}
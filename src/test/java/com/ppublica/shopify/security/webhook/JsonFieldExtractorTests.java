@@ -0,0 +1,55 @@
+package com.ppublica.shopify.security.webhook;
+
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+
+public class JsonFieldExtractorTests {
+
+	JsonFieldExtractor extractor = new JsonFieldExtractor(new JsonFactory(), "shop_domain", "shop_id");
+
+	@Test
+	public void extractWhenNestedThenSkipsSubtrees() throws Exception {
+		String body = "{\"address\":{\"shop_domain\":\"nested.myshopify.com\",\"lines\":[1,2,{\"shop_id\":9}]},"
+				+ "\"tags\":[[\"a\"],{\"b\":null}],\"shop_domain\":\"testStore.myshopify.com\",\"shop_id\":123}";
+
+		Map<String, String> fields = extractor.extract(body.getBytes());
+
+		Assert.assertEquals(2, fields.size());
+		Assert.assertEquals("testStore.myshopify.com", fields.get("shop_domain"));
+		Assert.assertEquals("123", fields.get("shop_id"));
+	}
+
+	@Test
+	public void extractWhenAllFieldsFoundThenStopReading() throws Exception {
+		// everything after the second field is not valid JSON
+		String body = "{\"shop_id\":123,\"shop_domain\":\"testStore.myshopify.com\",\"name\": !!!";
+
+		Map<String, String> fields = extractor.extract(new ByteArrayInputStream(body.getBytes()));
+
+		Assert.assertEquals("testStore.myshopify.com", fields.get("shop_domain"));
+		Assert.assertEquals("123", fields.get("shop_id"));
+	}
+
+	@Test
+	public void extractWhenFieldMissingOrStructuredThenAbsentOrNull() throws Exception {
+		String body = "{\"shop_domain\":{\"value\":\"testStore.myshopify.com\"},\"name\":\"test\"}";
+
+		Map<String, String> fields = extractor.extract(body.getBytes());
+
+		Assert.assertTrue(fields.containsKey("shop_domain"));
+		Assert.assertNull(fields.get("shop_domain"));
+		Assert.assertFalse(fields.containsKey("shop_id"));
+	}
+
+	@Test(expected=JsonParseException.class)
+	public void extractWhenNotObjectThenException() throws Exception {
+		extractor.extract("[{\"shop_domain\":\"testStore.myshopify.com\"}]".getBytes());
+	}
+
+}
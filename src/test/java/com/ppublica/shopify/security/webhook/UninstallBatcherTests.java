@@ -0,0 +1,102 @@
+package com.ppublica.shopify.security.webhook;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UninstallBatcherTests {
+
+	List<Collection<String>> batches = Collections.synchronizedList(new ArrayList<>());
+	UninstallBatcher batcher;
+
+	@After
+	public void cleanup() {
+		batcher.destroy();
+	}
+
+	@Test
+	public void addWhenBatchFullThenRemoveOnCallingThread() {
+		batcher = new UninstallBatcher(batches::add, 60000L, 3);
+
+		CompletableFuture<Void> first = batcher.add("one.myshopify.com");
+		batcher.add("two.myshopify.com");
+		Assert.assertFalse(first.isDone());
+
+		CompletableFuture<Void> third = batcher.add("three.myshopify.com");
+
+		Assert.assertTrue(first.isDone());
+		Assert.assertTrue(third.isDone());
+		Assert.assertEquals(Collections.singletonList(Arrays.asList("one.myshopify.com", "two.myshopify.com", "three.myshopify.com")), batches);
+		Assert.assertEquals(1, batcher.getBatchCount());
+		Assert.assertEquals(3, batcher.getLargestBatch());
+	}
+
+	@Test
+	public void addWhenWindowPassesThenRemoveBatch() throws Exception {
+		batcher = new UninstallBatcher(batches::add, 20L, 100);
+
+		CompletableFuture<Void> first = batcher.add("one.myshopify.com");
+		CompletableFuture<Void> second = batcher.add("two.myshopify.com");
+
+		CompletableFuture.allOf(first, second).get(5, TimeUnit.SECONDS);
+
+		Assert.assertEquals(1, batches.size());
+		Assert.assertEquals(2, batcher.getStoreCount());
+		Assert.assertEquals(0, batcher.getPendingCount());
+	}
+
+	@Test
+	public void addWhenSameStoreTwiceThenOnceInBatch() {
+		batcher = new UninstallBatcher(batches::add, 60000L, 100);
+
+		CompletableFuture<Void> first = batcher.add("one.myshopify.com");
+		CompletableFuture<Void> second = batcher.add("one.myshopify.com");
+		batcher.flush();
+
+		Assert.assertSame(first, second);
+		Assert.assertEquals(Collections.singletonList(Collections.singletonList("one.myshopify.com")), batches);
+	}
+
+	@Test
+	public void flushWhenRemoveFailsThenFuturesFail() {
+		batcher = new UninstallBatcher(stores -> { throw new IllegalStateException("database down"); }, 60000L, 100);
+
+		CompletableFuture<Void> future = batcher.add("one.myshopify.com");
+		batcher.flush();
+
+		Assert.assertTrue(future.isCompletedExceptionally());
+		Assert.assertEquals(1, batcher.getFailedBatchCount());
+		try {
+			future.join();
+			Assert.fail();
+		} catch (CompletionException e) {
+			Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
+
+	@Test
+	public void destroyThenRemovePendingAndRejectNew() {
+		batcher = new UninstallBatcher(batches::add, 60000L, 100);
+
+		CompletableFuture<Void> future = batcher.add("one.myshopify.com");
+		batcher.destroy();
+
+		Assert.assertTrue(future.isDone());
+		Assert.assertEquals(1, batches.size());
+		try {
+			batcher.add("two.myshopify.com");
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.ppublica.shopify.security.webhook;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ppublica.shopify.security.service.ShopifyOAuth2AuthorizedClientService;
+
+public class UninstallWebhookHandlerTests {
+
+	OAuth2AuthorizedClientService clientService;
+	UninstallWebhookHandler handler;
+
+	@Before
+	public void setup() {
+		clientService = mock(OAuth2AuthorizedClientService.class);
+		handler = new UninstallWebhookHandler(clientService);
+	}
+
+	@Test
+	public void getTopicsReturnsAppUninstalled() {
+		Assert.assertTrue(handler.getTopics().contains("app/uninstalled"));
+	}
+
+	@Test
+	public void handleWhenShopDomainInBodyThenRemoveStore() {
+		handler.handle(webhook("{\"shop_id\": 1234, \"shop_domain\": \"domain\"}", "header-domain"));
+
+		verify(clientService).removeAuthorizedClient("shopify", "domain");
+	}
+
+	@Test
+	public void handleWhenNoShopDomainInBodyThenUseHeader() {
+		handler.handle(webhook("{\"shop_id\": 1234}", "header-domain"));
+
+		verify(clientService).removeAuthorizedClient("shopify", "header-domain");
+	}
+
+	@Test
+	public void handleWhenNoShopDomainThenDoNothing() {
+		handler.handle(webhook("{\"shop_id\": 1234}", null));
+
+		verify(clientService, never()).removeAuthorizedClient(any(), any());
+	}
+
+	@Test
+	public void handleAsyncWhenBatcherThenWaitForBatch() throws Exception {
+		ShopifyOAuth2AuthorizedClientService shopifyClientService = mock(ShopifyOAuth2AuthorizedClientService.class);
+		UninstallBatcher batcher = new UninstallBatcher(shopifyClientService, 60000L, 2);
+		UninstallWebhookHandler batchingHandler = new UninstallWebhookHandler(shopifyClientService, batcher);
+
+		// as on two lanes: the first waits until the second fills the batch
+		CompletableFuture<Void> first = CompletableFuture.runAsync(() -> batchingHandler.handleAsync(webhook("{\"shop_domain\": \"one\"}", null)));
+		while(batcher.getPendingCount() == 0) {
+			Thread.sleep(5);
+		}
+		Assert.assertFalse(first.isDone());
+
+		CompletableFuture<Void> second = batchingHandler.handleAsync(webhook("{\"shop_domain\": \"two\"}", null));
+
+		Assert.assertTrue(second.isDone());
+		first.get(1, TimeUnit.SECONDS);
+		verify(shopifyClientService).removeAuthorizedClients("shopify", Arrays.asList("one", "two"));
+		verify(shopifyClientService, never()).removeAuthorizedClient(any(), any());
+		batcher.destroy();
+	}
+
+	private ShopifyWebhook webhook(String body, String shopDomainHeader) {
+		return new ShopifyWebhook("app/uninstalled", shopDomainHeader, "webhook-id", "2019-10", body.getBytes(StandardCharsets.UTF_8), new ObjectMapper());
+	}
+}
@@ -0,0 +1,94 @@
+package com.ppublica.shopify.security.webhook;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+public class WebhookBodyReaderTests {
+
+	@Test
+	public void readWhenUnderMaximumThenReturnsBody() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/webhooks");
+		request.setContent("{\"id\":1}".getBytes(StandardCharsets.UTF_8));
+
+		Assert.assertEquals("{\"id\":1}", new String(new WebhookBodyReader(8L).read(request), StandardCharsets.UTF_8));
+	}
+
+	@Test(expected=WebhookBodyReader.BodyTooLargeException.class)
+	public void readWhenContentLengthOverMaximumThenThrowsException() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/webhooks");
+		request.setContent(new byte[9]);
+
+		new WebhookBodyReader(8L).read(request);
+	}
+
+	// a chunked body has no Content-Length: it's read up to one byte over the maximum
+	@Test
+	public void readWhenNoContentLengthAndOverMaximumThenThrowsException() throws Exception {
+		ByteArrayInputStream in = new ByteArrayInputStream(new byte[100]);
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/webhooks") {
+			@Override
+			public ServletInputStream getInputStream() {
+				return new ServletInputStream() {
+					public int read() { return in.read(); }
+					public boolean isFinished() { return in.available() == 0; }
+					public boolean isReady() { return true; }
+					public void setReadListener(ReadListener readListener) { }
+				};
+			}
+		};
+
+		try {
+			new WebhookBodyReader(8L).read(request);
+			Assert.fail();
+		} catch (WebhookBodyReader.BodyTooLargeException e) {
+			Assert.assertEquals(100 - 9, in.available());
+		}
+	}
+
+	@Test(expected=RuntimeException.class)
+	public void negativeMaximumThrowsException() {
+		new WebhookBodyReader(-1L);
+	}
+
+	@Test
+	public void cachedBodyRequestCallsReadListener() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/webhooks");
+		request.setContent("body".getBytes(StandardCharsets.UTF_8));
+		ServletInputStream in = new CachedBodyRequest(request).getInputStream();
+		List<String> calls = new ArrayList<>();
+
+		in.setReadListener(new ReadListener() {
+			@Override
+			public void onDataAvailable() throws IOException {
+				calls.add("available");
+				while(in.isReady() && !in.isFinished()) {
+					in.read();
+				}
+			}
+			@Override
+			public void onAllDataRead() {
+				calls.add("done");
+			}
+			@Override
+			public void onError(Throwable t) {
+				calls.add("error");
+			}
+		});
+
+		Assert.assertTrue(in.isFinished());
+		Assert.assertEquals(2, calls.size());
+		Assert.assertEquals("available", calls.get(0));
+		Assert.assertEquals("done", calls.get(1));
+	}
+
+}
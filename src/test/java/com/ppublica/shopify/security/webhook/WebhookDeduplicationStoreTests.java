@@ -0,0 +1,116 @@
+package com.ppublica.shopify.security.webhook;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.doReturn;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import com.ppublica.shopify.TestDataSource;
+import com.ppublica.shopify.security.cache.ExpiringCache;
+
+public class WebhookDeduplicationStoreTests {
+
+	TestDataSource dataSource;
+	JdbcTemplate template;
+
+	@Before
+	public void setup() {
+		dataSource = new TestDataSource("shopifywebhooktest");
+		template = new JdbcTemplate(dataSource);
+
+		template.execute("CREATE TABLE SHOPIFYWEBHOOKS(webhookId VARCHAR(100) NOT NULL PRIMARY KEY, receivedAt BIGINT NOT NULL);");
+	}
+
+	@After
+	public void cleanup() {
+		dataSource.destroy();
+	}
+
+	@Test
+	public void inMemoryMarkIfFirstDeliveryWhenDuplicateThenFalse() {
+		InMemoryWebhookDeduplicationStore store = new InMemoryWebhookDeduplicationStore(new ExpiringCache<>(60000, 10));
+
+		Assert.assertTrue(store.markIfFirstDelivery("id-1"));
+		Assert.assertFalse(store.markIfFirstDelivery("id-1"));
+		Assert.assertTrue(store.markIfFirstDelivery("id-2"));
+		Assert.assertEquals(1, store.getDuplicateCount());
+	}
+
+	@Test
+	public void inMemoryForgetThenNextDeliveryIsFirst() {
+		InMemoryWebhookDeduplicationStore store = new InMemoryWebhookDeduplicationStore(new ExpiringCache<>(60000, 10));
+
+		store.markIfFirstDelivery("id-1");
+		store.forget("id-1");
+
+		Assert.assertTrue(store.markIfFirstDelivery("id-1"));
+	}
+
+	@Test
+	public void inMemoryWhenSeenLocallyThenBackingStoreNotCalled() {
+		WebhookDeduplicationStore backing = mock(WebhookDeduplicationStore.class);
+		doReturn(true).when(backing).markIfFirstDelivery("id-1");
+		InMemoryWebhookDeduplicationStore store = new InMemoryWebhookDeduplicationStore(new ExpiringCache<>(60000, 10), backing);
+
+		Assert.assertTrue(store.markIfFirstDelivery("id-1"));
+		Assert.assertFalse(store.markIfFirstDelivery("id-1"));
+
+		verify(backing, times(1)).markIfFirstDelivery("id-1");
+	}
+
+	@Test
+	public void inMemoryWhenBackingStoreHasSeenThenFalse() {
+		WebhookDeduplicationStore backing = mock(WebhookDeduplicationStore.class);
+		doReturn(false).when(backing).markIfFirstDelivery("id-1");
+		InMemoryWebhookDeduplicationStore store = new InMemoryWebhookDeduplicationStore(new ExpiringCache<>(60000, 10), backing);
+
+		Assert.assertFalse(store.markIfFirstDelivery("id-1"));
+		verify(backing, never()).forget("id-1");
+	}
+
+	@Test
+	public void jdbcMarkIfFirstDeliveryWhenDuplicateThenFalse() {
+		JdbcWebhookDeduplicationStore store = new JdbcWebhookDeduplicationStore(template, 60000);
+
+		Assert.assertTrue(store.markIfFirstDelivery("id-1"));
+		Assert.assertFalse(store.markIfFirstDelivery("id-1"));
+
+		// another node
+		JdbcWebhookDeduplicationStore other = new JdbcWebhookDeduplicationStore(template, 60000);
+		Assert.assertFalse(other.markIfFirstDelivery("id-1"));
+	}
+
+	@Test
+	public void jdbcWhenExpiredThenFirstAgainAndPurged() {
+		JdbcWebhookDeduplicationStore before = new JdbcWebhookDeduplicationStore(template, 60000, Clock.fixed(Instant.ofEpochMilli(1000000), ZoneOffset.UTC));
+		JdbcWebhookDeduplicationStore after = new JdbcWebhookDeduplicationStore(template, 60000, Clock.fixed(Instant.ofEpochMilli(1070000), ZoneOffset.UTC));
+
+		before.markIfFirstDelivery("id-1");
+		before.markIfFirstDelivery("id-2");
+
+		Assert.assertTrue(after.markIfFirstDelivery("id-1"));
+		Assert.assertEquals(1, after.purgeExpired());
+		Assert.assertEquals(Integer.valueOf(1), template.queryForObject("SELECT COUNT(*) FROM ShopifyWebhooks", Integer.class));
+	}
+
+	@Test
+	public void jdbcForgetThenNextDeliveryIsFirst() {
+		JdbcWebhookDeduplicationStore store = new JdbcWebhookDeduplicationStore(template, 60000);
+
+		store.markIfFirstDelivery("id-1");
+		store.forget("id-1");
+
+		Assert.assertTrue(store.markIfFirstDelivery("id-1"));
+	}
+}
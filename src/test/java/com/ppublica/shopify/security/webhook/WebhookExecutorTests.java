@@ -0,0 +1,173 @@
+package com.ppublica.shopify.security.webhook;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WebhookExecutorTests {
+
+	WebhookExecutor executor;
+
+	@After
+	public void cleanup() {
+		if(executor != null) {
+			executor.destroy();
+		}
+	}
+
+	@Test
+	public void constructorWhenNullsThenDefaults() {
+		executor = new WebhookExecutor();
+
+		Assert.assertEquals(WebhookExecutor.DEFAULT_THREADS, executor.getThreads());
+		Assert.assertEquals(WebhookExecutor.DEFAULT_QUEUE_CAPACITY, executor.getQueueCapacity());
+		Assert.assertEquals(WebhookExecutor.DEFAULT_SHUTDOWN_TIMEOUT, executor.getShutdownTimeoutMillis());
+	}
+
+	@Test(expected=RuntimeException.class)
+	public void constructorWhenNoThreadsThenThrow() {
+		new WebhookExecutor(0, null, null);
+	}
+
+	@Test
+	public void submitRunsTaskAndCountsIt() throws Exception {
+		executor = new WebhookExecutor(1, 10, null);
+		CountDownLatch done = new CountDownLatch(2);
+
+		Assert.assertTrue(executor.submit("app/uninstalled", done::countDown));
+		Assert.assertTrue(executor.submit("app/uninstalled", () -> {
+			done.countDown();
+			throw new RuntimeException("failed");
+		}));
+
+		Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+		executor.destroy();
+
+		Assert.assertEquals(1, executor.getCompletedCount());
+		Assert.assertEquals(1, executor.getFailedCount());
+	}
+
+	@Test
+	public void submitWhenQueueFullThenReject() throws Exception {
+		executor = new WebhookExecutor(1, 1, null);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+
+		executor.submit("topic", () -> {
+			started.countDown();
+			await(release);
+		});
+		Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		Assert.assertTrue(executor.submit("topic", () -> { }));
+		Assert.assertEquals(1, executor.getQueueDepth());
+
+		Assert.assertFalse(executor.submit("topic", () -> { }));
+		Assert.assertEquals(1, executor.getRejectedCount());
+
+		release.countDown();
+	}
+
+	@Test
+	public void destroyDrainsQueueAndRecordsLag() throws Exception {
+		executor = new WebhookExecutor(1, 10, 5000L);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger processed = new AtomicInteger();
+
+		executor.submit("topic", () -> await(release));
+		for(int i = 0; i < 5; i++) {
+			executor.submit("topic", processed::incrementAndGet);
+		}
+		Thread.sleep(20);
+		release.countDown();
+
+		executor.destroy();
+
+		Assert.assertEquals(5, processed.get());
+		Assert.assertEquals(0, executor.getQueueDepth());
+		Assert.assertTrue(executor.getMaxLagMillis() >= 20);
+		Assert.assertFalse(executor.submit("topic", () -> { }));
+	}
+
+	@Test
+	public void submitWhenSameShopThenInOrderOnOneLane() throws Exception {
+		executor = new WebhookExecutor(4, 400, null);
+		List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch done = new CountDownLatch(50);
+
+		for(int i = 0; i < 50; i++) {
+			int n = i;
+			Assert.assertTrue(executor.submit("topic", "testStore.myshopify.com", () -> {
+				order.add(n);
+				done.countDown();
+			}));
+		}
+
+		Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+		for(int i = 0; i < 50; i++) {
+			Assert.assertEquals(Integer.valueOf(i), order.get(i));
+		}
+		Assert.assertEquals(executor.laneFor("testStore.myshopify.com"), executor.laneFor("testStore.myshopify.com"));
+	}
+
+	@Test
+	public void submitWhenShopLaneBusyThenOtherShopsRun() throws Exception {
+		executor = new WebhookExecutor(2, 10, null);
+		String busyShop = "busy.myshopify.com";
+		String otherShop = shopOnOtherLane(busyShop);
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch other = new CountDownLatch(1);
+
+		executor.submit("topic", busyShop, () -> await(release));
+		executor.submit("topic", otherShop, other::countDown);
+
+		Assert.assertTrue(other.await(5, TimeUnit.SECONDS));
+		release.countDown();
+	}
+
+	@Test
+	public void submitWhenLaneFullThenRejectOnlyThatLane() throws Exception {
+		executor = new WebhookExecutor(2, 2, null);
+		String busyShop = "busy.myshopify.com";
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch started = new CountDownLatch(1);
+
+		executor.submit("topic", busyShop, () -> {
+			started.countDown();
+			await(release);
+		});
+		Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		// each lane queues 1
+		Assert.assertTrue(executor.submit("topic", busyShop, () -> { }));
+		Assert.assertFalse(executor.submit("topic", busyShop, () -> { }));
+		Assert.assertTrue(executor.submit("topic", shopOnOtherLane(busyShop), () -> { }));
+		Assert.assertEquals(1, executor.getMaxLaneDepth());
+
+		release.countDown();
+	}
+
+	private String shopOnOtherLane(String shop) {
+		for(int i = 0; ; i++) {
+			String candidate = "shop" + i + ".myshopify.com";
+			if(executor.laneFor(candidate) != executor.laneFor(shop)) {
+				return candidate;
+			}
+		}
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,275 @@
+package com.ppublica.shopify.security.webhook;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class WebhookJournalTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	ObjectMapper objectMapper = new ObjectMapper();
+
+	@Test
+	public void recoverWhenReopenedThenOnlyUnacknowledged() throws Exception {
+		Path dir = folder.getRoot().toPath();
+		WebhookJournal journal = new WebhookJournal(dir, 4096, false);
+
+		long first = journal.append(webhook("id-1", "{\"shop_domain\":\"one.myshopify.com\"}"));
+		journal.append(webhook("id-2", "{\"shop_domain\":\"two.myshopify.com\"}"));
+		long third = journal.append(webhook("id-3", "{}"));
+		journal.acknowledge(first);
+		journal.acknowledge(third);
+		journal.destroy();
+
+		WebhookJournal reopened = new WebhookJournal(dir, 4096, false);
+		List<WebhookJournal.Entry> entries = reopened.recover();
+
+		// id-3 is after the checkpoint, but it's marked as acknowledged
+		Assert.assertEquals(1, entries.size());
+		ShopifyWebhook webhook = entries.get(0).toWebhook(objectMapper);
+		Assert.assertEquals("app/uninstalled", webhook.getTopic());
+		Assert.assertEquals("id-2", webhook.getWebhookId());
+		Assert.assertEquals("two.myshopify.com", webhook.getShopDomain());
+		Assert.assertNull(webhook.getApiVersion());
+		Assert.assertEquals("{\"shop_domain\":\"two.myshopify.com\"}", webhook.getBodyAsString());
+		Assert.assertEquals(1, reopened.getPendingCount());
+		Assert.assertTrue(reopened.recover().isEmpty());
+	}
+
+	@Test
+	public void recoverWhenAllAcknowledgedThenEmpty() throws Exception {
+		Path dir = folder.getRoot().toPath();
+		WebhookJournal journal = new WebhookJournal(dir, 4096, true);
+
+		long first = journal.append(webhook("id-1", "{}"));
+		long second = journal.append(webhook("id-2", "{}"));
+		journal.acknowledge(second);
+		journal.acknowledge(first);
+		journal.destroy();
+
+		WebhookJournal reopened = new WebhookJournal(dir, 4096, false);
+
+		Assert.assertTrue(reopened.recover().isEmpty());
+		Assert.assertTrue(reopened.append(webhook("id-3", "{}")) > second);
+	}
+
+	@Test
+	public void recoverWhenTornRecordThenStopAndOverwrite() throws Exception {
+		Path dir = folder.getRoot().toPath();
+		WebhookJournal journal = new WebhookJournal(dir, 4096, false);
+
+		journal.append(webhook("id-1", "{}"));
+		long torn = journal.append(webhook("id-2", "{\"shop_domain\":\"two.myshopify.com\"}"));
+		journal.destroy();
+
+		// corrupt the last byte of the second record, as if the process died while writing it
+		Path segment = segments(dir).get(0);
+		try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+			int length = readInt(file, torn);
+			file.seek(torn + 9 + length - 1);
+			file.write('x');
+		}
+
+		WebhookJournal reopened = new WebhookJournal(dir, 4096, false);
+		List<WebhookJournal.Entry> entries = reopened.recover();
+
+		Assert.assertEquals(1, entries.size());
+		Assert.assertEquals("id-1", entries.get(0).toWebhook(objectMapper).getWebhookId());
+		Assert.assertEquals(torn, reopened.append(webhook("id-3", "{}")));
+	}
+
+	@Test
+	public void appendWhenSegmentFullThenRollAndCompact() throws Exception {
+		Path dir = folder.getRoot().toPath();
+		WebhookJournal journal = new WebhookJournal(dir, 1024, false);
+		String body = "{\"padding\":\"" + new String(new char[400]).replace('\0', 'a') + "\"}";
+
+		long first = journal.append(webhook("id-1", body));
+		long second = journal.append(webhook("id-2", body));
+		long third = journal.append(webhook("id-3", body));
+
+		Assert.assertEquals(2, journal.getSegmentCount());
+		Assert.assertEquals(2, segments(dir).size());
+
+		journal.acknowledge(second);
+		Assert.assertEquals(2, journal.getSegmentCount());
+
+		journal.acknowledge(first);
+		Assert.assertEquals(third, journal.getCheckpoint());
+		Assert.assertEquals(1, journal.getSegmentCount());
+		Assert.assertEquals(1, segments(dir).size());
+		journal.destroy();
+
+		WebhookJournal reopened = new WebhookJournal(dir, 1024, false);
+		List<WebhookJournal.Entry> entries = reopened.recover();
+
+		Assert.assertEquals(1, entries.size());
+		Assert.assertEquals(third, entries.get(0).getOffset());
+	}
+
+	@Test
+	public void appendWhenRecordLargerThanSegmentThenOwnSegment() throws Exception {
+		Path dir = folder.getRoot().toPath();
+		WebhookJournal journal = new WebhookJournal(dir, 1024, false);
+		String body = "{\"padding\":\"" + new String(new char[3000]).replace('\0', 'a') + "\"}";
+
+		long offset = journal.append(webhook("id-1", body));
+		journal.destroy();
+
+		List<WebhookJournal.Entry> entries = new WebhookJournal(dir, 1024, false).recover();
+		Assert.assertEquals(offset, entries.get(0).getOffset());
+		Assert.assertEquals(body, entries.get(0).toWebhook(objectMapper).getBodyAsString());
+	}
+
+	// the first record of an empty segment goes into that segment, grown to fit it
+	@Test
+	public void appendWhenFirstRecordLargerThanSegmentThenSegmentGrows() throws Exception {
+		Path dir = folder.getRoot().toPath();
+		WebhookJournal journal = new WebhookJournal(dir, 1024, false);
+		String body = "{\"padding\":\"" + new String(new char[3000]).replace('\0', 'a') + "\"}";
+
+		long first = journal.append(webhook("id-1", body));
+
+		Assert.assertEquals(0, first);
+		Assert.assertEquals(1, journal.getSegmentCount());
+		Assert.assertEquals(1, segments(dir).size());
+
+		long second = journal.append(webhook("id-2", "{}"));
+		Assert.assertEquals(2, segments(dir).size());
+		journal.destroy();
+
+		List<WebhookJournal.Entry> entries = new WebhookJournal(dir, 1024, false).recover();
+		Assert.assertEquals(2, entries.size());
+		Assert.assertEquals(body, entries.get(0).toWebhook(objectMapper).getBodyAsString());
+		Assert.assertEquals(second, entries.get(1).getOffset());
+	}
+
+	@Test
+	public void failThenReplayedUntilMaxAttempts() throws Exception {
+		Path dir = folder.getRoot().toPath();
+		WebhookJournal journal = new WebhookJournal(dir, 4096, false, 2);
+
+		long offset = journal.append(webhook("id-1", "{}"));
+		Assert.assertTrue(journal.fail(offset, webhook("id-1", "{}")));
+		Assert.assertEquals(1, journal.getPendingCount());
+		Assert.assertTrue(journal.getCheckpoint() > offset);
+		journal.destroy();
+
+		WebhookJournal reopened = new WebhookJournal(dir, 4096, false, 2);
+		List<WebhookJournal.Entry> entries = reopened.recover();
+		Assert.assertEquals(1, entries.size());
+		Assert.assertEquals(1, entries.get(0).getAttempts());
+		Assert.assertEquals("id-1", entries.get(0).toWebhook(objectMapper).getWebhookId());
+
+		Assert.assertTrue(entries.get(0).getOffset() != offset);
+
+		// the second failure is the last attempt
+		Assert.assertFalse(reopened.fail(entries.get(0).getOffset(), entries.get(0).toWebhook(objectMapper)));
+		Assert.assertEquals(0, reopened.getPendingCount());
+		Assert.assertEquals(1, reopened.getDeadCount());
+		reopened.destroy();
+
+		Assert.assertTrue(new WebhookJournal(dir, 4096, false, 2).recover().isEmpty());
+	}
+
+	@Test
+	public void failWhenClosedThenRecordKept() throws Exception {
+		Path dir = folder.getRoot().toPath();
+		WebhookJournal journal = new WebhookJournal(dir, 4096, false);
+
+		long offset = journal.append(webhook("id-1", "{}"));
+		journal.destroy();
+
+		Assert.assertTrue(journal.fail(offset, webhook("id-1", "{}")));
+
+		List<WebhookJournal.Entry> entries = new WebhookJournal(dir, 4096, false).recover();
+		Assert.assertEquals(offset, entries.get(0).getOffset());
+		Assert.assertEquals(0, entries.get(0).getAttempts());
+	}
+
+	@Test
+	public void failThenOnlyFailedRecordReplayedAndSegmentsDeleted() throws Exception {
+		Path dir = folder.getRoot().toPath();
+		WebhookJournal journal = new WebhookJournal(dir, 1024, false);
+		String body = "{\"padding\":\"" + new String(new char[400]).replace('\0', 'a') + "\"}";
+
+		long failed = journal.append(webhook("id-1", body));
+		Assert.assertTrue(journal.fail(failed, webhook("id-1", body)));
+
+		// the failed record doesn't hold back the checkpoint
+		for(int i = 2; i < 8; i++) {
+			journal.acknowledge(journal.append(webhook("id-" + i, body)));
+		}
+		Assert.assertEquals(1, journal.getSegmentCount());
+		Assert.assertEquals(1, segments(dir).size());
+		Assert.assertEquals(1, journal.getRetryCount());
+		journal.destroy();
+
+		WebhookJournal reopened = new WebhookJournal(dir, 1024, false);
+		List<WebhookJournal.Entry> entries = reopened.recover();
+
+		Assert.assertEquals(1, entries.size());
+		Assert.assertEquals("id-1", entries.get(0).toWebhook(objectMapper).getWebhookId());
+		Assert.assertEquals(1, entries.get(0).getAttempts());
+
+		reopened.acknowledge(entries.get(0).getOffset());
+		reopened.destroy();
+
+		Assert.assertTrue(new WebhookJournal(dir, 1024, false).recover().isEmpty());
+	}
+
+	@Test
+	public void deferThenReplayedWithoutAttempt() throws Exception {
+		Path dir = folder.getRoot().toPath();
+		WebhookJournal journal = new WebhookJournal(dir, 4096, false);
+
+		long deferred = journal.append(webhook("id-1", "{}"));
+		long next = journal.append(webhook("id-2", "{}"));
+		Assert.assertTrue(journal.defer(deferred, webhook("id-1", "{}")));
+		journal.acknowledge(next);
+
+		Assert.assertTrue(journal.getCheckpoint() > next);
+		journal.destroy();
+
+		List<WebhookJournal.Entry> entries = new WebhookJournal(dir, 4096, false).recover();
+		Assert.assertEquals(1, entries.size());
+		Assert.assertEquals("id-1", entries.get(0).toWebhook(objectMapper).getWebhookId());
+		Assert.assertEquals(0, entries.get(0).getAttempts());
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void appendWhenClosedThenException() {
+		WebhookJournal journal = new WebhookJournal(folder.getRoot().toPath(), 4096, false);
+		journal.destroy();
+
+		journal.append(webhook("id-1", "{}"));
+	}
+
+	private ShopifyWebhook webhook(String webhookId, String body) {
+		String shopDomain = body.contains("two") ? "two.myshopify.com" : "one.myshopify.com";
+		return new ShopifyWebhook("app/uninstalled", shopDomain, webhookId, null, body.getBytes(), objectMapper);
+	}
+
+	private List<Path> segments(Path dir) throws Exception {
+		try (Stream<Path> files = Files.list(dir)) {
+			return files.filter(p -> p.toString().endsWith(".journal")).sorted().collect(Collectors.toList());
+		}
+	}
+
+	private int readInt(RandomAccessFile file, long position) throws Exception {
+		file.seek(position);
+		return file.readInt();
+	}
+}
@@ -0,0 +1,218 @@
+package com.ppublica.shopify.simulator;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+
+import com.ppublica.shopify.HttpsRequestPostProcessor;
+
+/*
+ * Runs many install flows at once through the app's filter chain, against a ShopifySimulator. For each store:
+ *
+ * 	1. install: the merchant opens the app from the admin; the app doesn't know the store, and redirects to Shopify
+ * 	2. authorize: the browser follows the redirect to the simulator, which sends it back with a code
+ * 	3. callback: the app exchanges the code for a token with the simulator, and saves the store
+ * 	4. open: the merchant opens the embedded app again, in a new session; the store is found
+ * 	5. uninstall: Shopify sends the "app/uninstalled" webhook
+ *
+ * The latency of every step is recorded, and reported with the throughput when all the flows are done. A flow
+ * stops at the first step that fails.
+ */
+public class InstallFlowLoadDriver {
+
+	public static final String[] STEPS = { "install", "authorize", "callback", "open", "uninstall" };
+
+	private static final Pattern AUTHORIZATION_URI = Pattern.compile("var redirectFromParentPath = '([^']+)'");
+
+	private final MockMvc mockMvc;
+	private final ShopifySimulator simulator;
+	private final String installPath;
+	private final String uninstallPath;
+	private final HttpsRequestPostProcessor https = new HttpsRequestPostProcessor();
+
+	public InstallFlowLoadDriver(MockMvc mockMvc, ShopifySimulator simulator, String installPath, String uninstallPath) {
+		this.mockMvc = mockMvc;
+		this.simulator = simulator;
+		this.installPath = installPath;
+		this.uninstallPath = uninstallPath;
+	}
+
+	/*
+	 * Run a flow for each shop, with the given number of threads. The flows are released together.
+	 */
+	public Report run(List<String> shops, int threads) throws InterruptedException {
+		Report report = new Report(shops.size());
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(shops.size());
+
+		for(String shop : shops) {
+			executor.execute(() -> {
+				try {
+					start.await();
+					runFlow(shop, report);
+				} catch (Exception e) {
+					report.fail(e);
+				} finally {
+					done.countDown();
+				}
+			});
+		}
+
+		long began = System.nanoTime();
+		start.countDown();
+		done.await();
+		report.elapsedNanos = System.nanoTime() - began;
+
+		executor.shutdown();
+		executor.awaitTermination(10, TimeUnit.SECONDS);
+
+		return report;
+	}
+
+	private void runFlow(String shop, Report report) throws Exception {
+		// 1. install
+		long begin = System.nanoTime();
+		MvcResult install = perform(get(installPath + "?" + simulator.signedShopQuery(shop)), "install", shop);
+		report.record(0, begin);
+
+		Matcher matcher = AUTHORIZATION_URI.matcher(install.getResponse().getContentAsString());
+		if(!matcher.find()) {
+			throw new IllegalStateException("No redirect to Shopify for " + shop);
+		}
+		MockHttpSession session = (MockHttpSession)install.getRequest().getSession();
+
+		// 2. authorize
+		begin = System.nanoTime();
+		String callback = simulator.authorize(matcher.group(1));
+		report.record(1, begin);
+
+		// 3. callback
+		begin = System.nanoTime();
+		MvcResult result = perform(get(URI.create(callback)).session(session), "callback", shop);
+		report.record(2, begin);
+		expectContent(result, "SUCCESS", shop);
+
+		// 4. open
+		begin = System.nanoTime();
+		result = perform(get(installPath + "?" + simulator.signedShopQuery(shop)), "open", shop);
+		report.record(3, begin);
+		expectContent(result, "WELCOME", shop);
+
+		// 5. uninstall
+		begin = System.nanoTime();
+		perform(simulator.uninstallWebhook(uninstallPath, shop), "uninstall", shop);
+		report.record(4, begin);
+	}
+
+	private MvcResult perform(MockHttpServletRequestBuilder request, String step, String shop) throws Exception {
+		MvcResult result = mockMvc.perform(request.with(https)).andReturn();
+		MockHttpServletResponse response = result.getResponse();
+
+		if(response.getStatus() != 200) {
+			throw new IllegalStateException(step + " returned " + response.getStatus() + " for " + shop + (response.getRedirectedUrl() != null ? ", redirected to " + response.getRedirectedUrl() : ""));
+		}
+
+		return result;
+	}
+
+	private static void expectContent(MvcResult result, String expected, String shop) throws Exception {
+		if(!result.getResponse().getContentAsString().contains(expected)) {
+			throw new IllegalStateException("Unexpected page for " + shop);
+		}
+	}
+
+	/*
+	 * The latencies of each step, and the failures.
+	 */
+	public static class Report {
+		private final long[][] latencies;
+		private final AtomicInteger[] counts;
+		private final AtomicInteger failures = new AtomicInteger();
+		private final AtomicReference<Exception> firstFailure = new AtomicReference<>();
+		private final int flows;
+		private volatile long elapsedNanos;
+
+		Report(int flows) {
+			this.flows = flows;
+			this.latencies = new long[STEPS.length][flows];
+			this.counts = new AtomicInteger[STEPS.length];
+			for(int i = 0; i < STEPS.length; i++) {
+				counts[i] = new AtomicInteger();
+			}
+		}
+
+		void record(int step, long beginNanos) {
+			latencies[step][counts[step].getAndIncrement()] = System.nanoTime() - beginNanos;
+		}
+
+		void fail(Exception e) {
+			failures.incrementAndGet();
+			firstFailure.compareAndSet(null, e);
+		}
+
+		public int getCompleted(String step) {
+			return counts[Arrays.asList(STEPS).indexOf(step)].get();
+		}
+
+		public int getFailures() {
+			return failures.get();
+		}
+
+		public Exception getFirstFailure() {
+			return firstFailure.get();
+		}
+
+		/*
+		 * The latency below which the given fraction of the step's calls completed, in milliseconds.
+		 */
+		public double percentile(String step, double fraction) {
+			int index = Arrays.asList(STEPS).indexOf(step);
+			long[] sorted = Arrays.copyOf(latencies[index], counts[index].get());
+
+			if(sorted.length == 0) {
+				return 0;
+			}
+
+			Arrays.sort(sorted);
+			int rank = (int)Math.ceil(fraction * sorted.length) - 1;
+
+			return sorted[Math.max(0, Math.min(rank, sorted.length - 1))] / 1e6;
+		}
+
+		@Override
+		public String toString() {
+			double seconds = elapsedNanos / 1e9;
+			List<String> lines = new ArrayList<>();
+
+			lines.add(String.format("%d flows in %.2fs (%.1f flows/s), %d failed", flows, seconds, (flows - failures.get()) / seconds, failures.get()));
+			lines.add(String.format("%-10s %8s %10s %10s %10s %10s", "step", "count", "ops/s", "p50 ms", "p99 ms", "p999 ms"));
+
+			for(String step : STEPS) {
+				int count = getCompleted(step);
+				lines.add(String.format("%-10s %8d %10.1f %10.2f %10.2f %10.2f", step, count, count / seconds,
+						percentile(step, 0.5), percentile(step, 0.99), percentile(step, 0.999)));
+			}
+
+			return String.join(System.lineSeparator(), lines);
+		}
+	}
+
+}
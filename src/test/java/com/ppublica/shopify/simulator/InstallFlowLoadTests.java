@@ -0,0 +1,181 @@
+package com.ppublica.shopify.simulator;
+
+import static org.springframework.security.test.web.servlet.setup.SecurityMockMvcConfigurers.springSecurity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.Filter;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.env.Environment;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.config.annotation.web.builders.HttpSecurity;
+import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
+import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AccessTokenResponseClient;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
+import org.springframework.security.oauth2.client.http.OAuth2ErrorResponseErrorHandler;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.servlet.config.annotation.EnableWebMvc;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import com.ppublica.shopify.TestDataSource;
+import com.ppublica.shopify.security.configuration.SecurityBeansConfig;
+import com.ppublica.shopify.security.configuration.ShopifyPaths;
+import com.ppublica.shopify.security.web.ShopifyAuthorizationCodeTokenResponseClient;
+import com.ppublica.shopify.security.web.ShopifyHttpTransport;
+
+/*
+ * Runs install, embedded-open and uninstall flows at once through the full filter chain, against a ShopifySimulator,
+ * and prints the throughput and latencies of each step.
+ *
+ * A small run is part of the build, to keep the simulator and the flow working. For a load test, raise the number
+ * of flows and threads:
+ *
+ * 	mvn test -Dtest=InstallFlowLoadTests -Dshopify.load.flows=5000 -Dshopify.load.threads=32
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration
+@TestPropertySource("classpath:test-application.properties")
+@WebAppConfiguration
+public class InstallFlowLoadTests {
+
+	private static final int FLOWS = Integer.getInteger("shopify.load.flows", 100);
+	private static final int THREADS = Integer.getInteger("shopify.load.threads", 8);
+
+	@Autowired
+	WebApplicationContext wac;
+
+	@Autowired
+	Filter springSecurityFilterChain;
+
+	@Autowired
+	ShopifyPaths shopifyPaths;
+
+	@Autowired
+	Environment env;
+
+	@Autowired
+	OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> accessTokenResponseClient;
+
+	@Autowired
+	ShopifyHttpTransport shopifyHttpTransport;
+
+	@Autowired
+	JdbcTemplate jdbc;
+
+	ShopifySimulator simulator;
+	InstallFlowLoadDriver driver;
+
+	@Before
+	public void setup() throws Exception {
+		simulator = new ShopifySimulator(env.getProperty("ppublica.shopify.security.client.client_id"),
+				env.getProperty("ppublica.shopify.security.client.client_secret"));
+		simulator.start();
+
+		// the token exchange goes to the simulator, through the app's transport
+		RestTemplate restTemplate = new RestTemplate(simulator.requestFactory(shopifyHttpTransport.getRequestFactory()));
+		restTemplate.setErrorHandler(new OAuth2ErrorResponseErrorHandler());
+		((ShopifyAuthorizationCodeTokenResponseClient)accessTokenResponseClient).setRestOperations(restTemplate);
+
+		MockMvc mockMvc = MockMvcBuilders
+				.webAppContextSetup(wac)
+				.apply(springSecurity(springSecurityFilterChain))
+				.build();
+
+		driver = new InstallFlowLoadDriver(mockMvc, simulator, shopifyPaths.getInstallPath() + "/shopify",
+				shopifyPaths.getUninstallUri() + "/shopify");
+	}
+
+	@After
+	public void cleanup() throws Exception {
+		simulator.close();
+	}
+
+	@Test
+	public void whenConcurrentFlowsThenEveryStoreIsInstalledAndUninstalled() throws Exception {
+		List<String> shops = new ArrayList<>();
+		for(int i = 0; i < FLOWS; i++) {
+			shops.add("load-" + i + ".myshopify.com");
+		}
+
+		InstallFlowLoadDriver.Report report = driver.run(shops, THREADS);
+
+		System.out.println(report);
+
+		if(report.getFirstFailure() != null) {
+			throw new AssertionError("A flow failed", report.getFirstFailure());
+		}
+		Assert.assertEquals(FLOWS, report.getCompleted("uninstall"));
+		Assert.assertEquals(FLOWS, simulator.getAuthorizeCount());
+		Assert.assertEquals(FLOWS, simulator.getTokenCount());
+		Assert.assertEquals(0, simulator.getRejectedCount());
+
+		// the stores are removed in the background
+		long deadline = System.currentTimeMillis() + 10000;
+		while(storeCount() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		Assert.assertEquals(0, storeCount());
+	}
+
+	private int storeCount() {
+		return jdbc.queryForObject("SELECT COUNT(*) FROM STOREACCESSTOKENS WHERE storeDomain LIKE 'load-%'", Integer.class);
+	}
+
+
+	@EnableWebSecurity
+	static class WebSecurityConfig extends WebSecurityConfigurerAdapter {
+		@Override
+		protected void configure(HttpSecurity http) throws Exception {
+			http.authorizeRequests()
+					.anyRequest().authenticated().and()
+				.requiresChannel().and()
+				.oauth2Login();
+		}
+	}
+
+	@EnableWebMvc
+	@Configuration
+	@Import(SecurityBeansConfig.class)
+	static class WebMvcConfig implements WebMvcConfigurer {
+
+		@Bean
+		TestDataSource testDataSource() {
+			return new TestDataSource("installflowloadtest");
+		}
+
+		@Bean
+		public JdbcTemplate getJdbcTemplate(TestDataSource tds) {
+			JdbcTemplate template = new JdbcTemplate(tds);
+
+			template.execute("CREATE TABLE STOREACCESSTOKENS(id BIGINT NOT NULL IDENTITY, storeDomain VARCHAR(50) NOT NULL, tokenType VARCHAR(50) NOT NULL, tokenValue VARCHAR(100) NOT NULL, salt VARCHAR(100) NOT NULL, issuedAt BIGINT NOT NULL, expiresAt BIGINT NOT NULL, scopes VARCHAR(200) NOT NULL);");
+
+			return template;
+		}
+
+		@Bean
+		public MappingJackson2HttpMessageConverter getMappingJackson2HttpMessageConverter() {
+			return new MappingJackson2HttpMessageConverter();
+		}
+
+	}
+
+}
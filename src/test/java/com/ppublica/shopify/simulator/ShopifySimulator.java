@@ -0,0 +1,291 @@
+package com.ppublica.shopify.simulator;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import com.ppublica.shopify.security.authentication.ShopifyVerificationStrategy;
+import com.ppublica.shopify.security.webhook.ShopifyWebhook;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/*
+ * A local stand-in for the Shopify endpoints the install flow calls, served by MockWebServer:
+ *
+ * 	- GET /admin/oauth/authorize: the merchant approves right away, and the browser is redirected to the app's
+ * 	  redirect_uri with a new authorization code, the shop, the state, a timestamp and the hmac
+ * 	- POST /admin/oauth/access_token: an authorization code issued for the shop is exchanged, once, for a new
+ * 	  access token
+ *
+ * Every store shares the server, so a request to "https://{shop}/..." is sent to the server with the shop in the
+ * SHOP_HEADER header (see requestFactory(...) and authorize(...)).
+ *
+ * Webhooks are signed as Shopify signs them, and delivered to the app with MockMvc (see webhook(...)).
+ */
+public class ShopifySimulator implements Closeable {
+
+	public static final String SHOP_HEADER = "X-Simulator-Shop";
+	public static final String AUTHORIZE_PATH = "/admin/oauth/authorize";
+	public static final String ACCESS_TOKEN_PATH = "/admin/oauth/access_token";
+	public static final String SCOPE = "read_products,write_products";
+
+	// MockWebServer logs every request; kept here so the level isn't lost when the logger is collected
+	private static final Logger SERVER_LOGGER = Logger.getLogger(MockWebServer.class.getName());
+
+	private final String clientId;
+	private final String clientSecret;
+	private final MockWebServer server = new MockWebServer();
+	private final OkHttpClient browser = new OkHttpClient.Builder()
+			.followRedirects(false)
+			.build();
+
+	// authorization code -> shop
+	private final Map<String, String> codes = new ConcurrentHashMap<>();
+
+	private final AtomicLong authorizeCount = new AtomicLong();
+	private final AtomicLong tokenCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong shopIds = new AtomicLong(1000);
+
+	public ShopifySimulator(String clientId, String clientSecret) {
+		this.clientId = clientId;
+		this.clientSecret = clientSecret;
+	}
+
+	public void start() throws IOException {
+		SERVER_LOGGER.setLevel(Level.WARNING);
+
+		server.setDispatcher(new Dispatcher() {
+			@Override
+			public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+				// the server keeps every request it receives; this one won't be needed again
+				server.takeRequest(0, TimeUnit.MILLISECONDS);
+
+				String path = request.getRequestUrl().encodedPath();
+
+				if(AUTHORIZE_PATH.equals(path) && "GET".equals(request.getMethod())) {
+					return authorize(request);
+				}
+				if(ACCESS_TOKEN_PATH.equals(path) && "POST".equals(request.getMethod())) {
+					return accessToken(request);
+				}
+
+				return new MockResponse().setResponseCode(404);
+			}
+		});
+		server.start();
+	}
+
+	@Override
+	public void close() throws IOException {
+		server.shutdown();
+		browser.dispatcher().executorService().shutdown();
+		browser.connectionPool().evictAll();
+	}
+
+	/*
+	 * Wrap the app's ClientHttpRequestFactory so that its calls to any store reach this server.
+	 */
+	public ClientHttpRequestFactory requestFactory(ClientHttpRequestFactory delegate) {
+		return (uri, method) -> {
+			ClientHttpRequest request = delegate.createRequest(toServer(uri), method);
+			request.getHeaders().set(SHOP_HEADER, uri.getHost());
+			return request;
+		};
+	}
+
+	/*
+	 * Follow the app's redirect to the authorization uri, as the merchant's browser would, and return the path and
+	 * query of the app's redirect_uri Shopify sends the browser back to.
+	 */
+	public String authorize(String authorizationUri) throws IOException {
+		HttpUrl url = HttpUrl.get(authorizationUri);
+
+		Request request = new Request.Builder()
+				.url(url.newBuilder().scheme("http").host(server.getHostName()).port(server.getPort()).build())
+				.header(SHOP_HEADER, url.host())
+				.build();
+
+		try(Response response = browser.newCall(request).execute()) {
+			String location = response.header("Location");
+
+			if(response.code() != 302 || location == null) {
+				throw new IOException("Authorization failed with status " + response.code());
+			}
+
+			URI redirect = URI.create(location);
+			return redirect.getRawPath() + "?" + redirect.getRawQuery();
+		}
+	}
+
+	/*
+	 * The query Shopify adds when the merchant opens the app from the admin, already signed. The session parameter
+	 * differs every time, so that two openings within the same second aren't taken for a replay.
+	 */
+	public String signedShopQuery(String shop) {
+		String query = "session=" + UUID.randomUUID().toString().replace("-", "") + "&shop=" + shop + "&timestamp=" + Instant.now().getEpochSecond();
+
+		return sign(query);
+	}
+
+	/*
+	 * A webhook, signed with the client secret, ready to be delivered to the app with MockMvc.
+	 */
+	public MockHttpServletRequestBuilder webhook(String path, String topic, String shop, String body) {
+		byte[] content = body.getBytes(StandardCharsets.UTF_8);
+		String hmac = Base64.getEncoder().encodeToString(ShopifyVerificationStrategy.hash(clientSecret, content).getBytes(StandardCharsets.US_ASCII));
+
+		return post(path)
+				.contentType(MediaType.APPLICATION_JSON)
+				.content(content)
+				.header(ShopifyVerificationStrategy.HMAC_HEADER, hmac)
+				.header(ShopifyWebhook.TOPIC_HEADER, topic)
+				.header(ShopifyWebhook.SHOP_DOMAIN_HEADER, shop)
+				.header(ShopifyWebhook.WEBHOOK_ID_HEADER, UUID.randomUUID().toString());
+	}
+
+	/*
+	 * The "app/uninstalled" webhook for the shop.
+	 */
+	public MockHttpServletRequestBuilder uninstallWebhook(String path, String shop) {
+		long shopId = shopIds.incrementAndGet();
+		String body = "{\"id\":" + shopId + ",\"shop_id\":" + shopId + ",\"shop_domain\":\"" + shop + "\",\"domain\":\"" + shop + "\"}";
+
+		return webhook(path, "app/uninstalled", shop, body);
+	}
+
+	public long getAuthorizeCount() {
+		return authorizeCount.get();
+	}
+
+	public long getTokenCount() {
+		return tokenCount.get();
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	private MockResponse authorize(RecordedRequest request) {
+		HttpUrl url = request.getRequestUrl();
+		String shop = request.getHeader(SHOP_HEADER);
+		String redirectUri = url.queryParameter("redirect_uri");
+		String state = url.queryParameter("state");
+
+		if(shop == null || !clientId.equals(url.queryParameter("client_id")) || redirectUri == null || state == null) {
+			return reject("invalid_request");
+		}
+
+		String code = UUID.randomUUID().toString().replace("-", "");
+		codes.put(code, shop);
+		authorizeCount.incrementAndGet();
+
+		String query = "code=" + code + "&shop=" + shop + "&state=" + encode(state) + "&timestamp=" + Instant.now().getEpochSecond();
+
+		return new MockResponse()
+				.setResponseCode(302)
+				.setHeader("Location", redirectUri + "?" + sign(query));
+	}
+
+	private MockResponse accessToken(RecordedRequest request) {
+		Map<String, String> form = parseForm(request.getBody().readUtf8());
+		String shop = request.getHeader(SHOP_HEADER);
+		String code = form.get("code");
+
+		if(!clientId.equals(form.get("client_id")) || !clientSecret.equals(form.get("client_secret"))) {
+			return reject("invalid_client");
+		}
+
+		// a code is only accepted once, and only for the shop it was issued for
+		if(code == null || shop == null || !codes.remove(code, shop)) {
+			return reject("invalid_grant");
+		}
+
+		tokenCount.incrementAndGet();
+
+		return new MockResponse()
+				.setHeader("Content-Type", "application/json")
+				.setBody("{\"access_token\":\"shpat_" + UUID.randomUUID().toString().replace("-", "") + "\",\"scope\":\"" + SCOPE + "\"}");
+	}
+
+	private MockResponse reject(String error) {
+		rejectedCount.incrementAndGet();
+
+		return new MockResponse()
+				.setResponseCode(400)
+				.setHeader("Content-Type", "application/json")
+				.setBody("{\"error\":\"" + error + "\"}");
+	}
+
+	private String sign(String query) {
+		return query + "&" + ShopifyVerificationStrategy.HMAC_PARAMETER + "=" + ShopifyVerificationStrategy.hash(clientSecret, query);
+	}
+
+	private URI toServer(URI uri) {
+		return UriComponentsBuilder.fromUri(uri)
+				.scheme("http")
+				.host(server.getHostName())
+				.port(server.getPort())
+				.build(true)
+				.toUri();
+	}
+
+	private static Map<String, String> parseForm(String body) {
+		Map<String, String> form = new HashMap<>();
+
+		for(String pair : body.split("&")) {
+			int eq = pair.indexOf('=');
+			if(eq > 0) {
+				form.put(decode(pair.substring(0, eq)), decode(pair.substring(eq + 1)));
+			}
+		}
+
+		return form;
+	}
+
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String decode(String value) {
+		try {
+			return URLDecoder.decode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+package com.ppublica.shopify.security.events;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/*
+ * Tests run with the classes directory, where the Java 11 classes are under META-INF/versions/11 and aren't used.
+ * The events package is loaded again, with the Java 11 classes first, as it would be from the multi-release jar.
+ */
+public class ShopifyEventsTests {
+	
+	private static final String PACKAGE = "com.ppublica.shopify.security.events.";
+	
+	ClassLoader versionedLoader;
+	Path dump;
+	
+	@Before
+	public void setup() throws Exception {
+		File classes = new File(ShopifyEvent.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+		File versions = new File(classes, "META-INF/versions/11");
+		Assume.assumeTrue(versions.isDirectory());
+		
+		versionedLoader = new EventsClassLoader(new URL[] { versions.toURI().toURL(), classes.toURI().toURL() }, getClass().getClassLoader());
+		dump = Files.createTempFile("shopify-events", ".jfr");
+	}
+	
+	@After
+	public void cleanup() throws IOException {
+		if(dump != null) {
+			Files.deleteIfExists(dump);
+		}
+	}
+	
+	@Test
+	public void whenNotRecordingThenSharedDisabledEvent() throws Exception {
+		Object first = start("hmacVerify");
+		
+		Assert.assertSame(first, start("hmacVerify"));
+		Assert.assertSame(first, start("tokenLookup"));
+		Assert.assertEquals(PACKAGE + "DisabledEvent", first.getClass().getName());
+	}
+	
+	@Test
+	public void whenRecordingThenEventsHaveShopRouteAndOutcome() throws Exception {
+		try(Recording recording = new Recording()) {
+			recording.enable(PACKAGE + "ShopifyHmacVerify");
+			recording.enable(PACKAGE + "ShopifyWebhookHandled");
+			recording.disable(PACKAGE + "ShopifyNonceCheck");
+			recording.start();
+			
+			record(start("hmacVerify"), "lmdev.myshopify.com", "/install/shopify", "valid");
+			record(start("webhookHandled"), "other.myshopify.com", "/store/uninstall/shopify", "queued");
+			// disabled
+			record(start("nonceCheck"), "lmdev.myshopify.com", "/login/app/oauth2/code/shopify", "valid");
+			
+			recording.stop();
+			recording.dump(dump);
+		}
+		
+		List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+		
+		Assert.assertEquals(2, events.size());
+		
+		RecordedEvent hmac = events(events, "ShopifyHmacVerify").get(0);
+		Assert.assertEquals("lmdev.myshopify.com", hmac.getString("shop"));
+		Assert.assertEquals("/install/shopify", hmac.getString("route"));
+		Assert.assertEquals("valid", hmac.getString("outcome"));
+		Assert.assertEquals("Shopify", hmac.getEventType().getCategoryNames().get(0));
+		
+		RecordedEvent webhook = events(events, "ShopifyWebhookHandled").get(0);
+		Assert.assertEquals("other.myshopify.com", webhook.getString("shop"));
+		Assert.assertEquals("queued", webhook.getString("outcome"));
+	}
+	
+	@Test
+	public void whenRecordingTokenLookupThenDatabaseAndDecryptDurations() throws Exception {
+		try(Recording recording = new Recording()) {
+			recording.enable(PACKAGE + "ShopifyTokenLookup");
+			recording.start();
+			
+			Class<?> lookupEvent = versionedLoader.loadClass(PACKAGE + "TokenLookupEvent");
+			Object event = start("tokenLookup");
+			Thread.sleep(5);
+			lookupEvent.getMethod("databaseDone").invoke(event);
+			Thread.sleep(5);
+			lookupEvent.getMethod("decryptDone").invoke(event);
+			record(event, "lmdev.myshopify.com", "getStore", "found");
+			
+			recording.stop();
+			recording.dump(dump);
+		}
+		
+		RecordedEvent lookup = events(RecordingFile.readAllEvents(dump), "ShopifyTokenLookup").get(0);
+		
+		Assert.assertEquals("found", lookup.getString("outcome"));
+		Assert.assertTrue(lookup.getDuration("databaseDuration").toMillis() >= 5);
+		Assert.assertTrue(lookup.getDuration("decryptDuration").toMillis() >= 5);
+		Assert.assertTrue(lookup.getDuration().compareTo(lookup.getDuration("databaseDuration").plus(lookup.getDuration("decryptDuration"))) >= 0);
+	}
+	
+	private Object start(String event) throws Exception {
+		return versionedLoader.loadClass(PACKAGE + "ShopifyEvents").getMethod(event).invoke(null);
+	}
+	
+	private void record(Object event, String shop, String route, String outcome) throws Exception {
+		Method record = versionedLoader.loadClass(PACKAGE + "ShopifyEvent").getMethod("record", String.class, String.class, String.class);
+		record.invoke(event, shop, route, outcome);
+	}
+	
+	private static List<RecordedEvent> events(List<RecordedEvent> events, String name) {
+		return events.stream()
+				.filter(e -> e.getEventType().getName().equals(PACKAGE + name))
+				.collect(Collectors.toList());
+	}
+	
+	/*
+	 * Loads the events package itself, from the given directories in order; everything else from the parent.
+	 */
+	static class EventsClassLoader extends URLClassLoader {
+		
+		EventsClassLoader(URL[] urls, ClassLoader parent) {
+			super(urls, parent);
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			if(!name.startsWith(PACKAGE)) {
+				return super.loadClass(name, resolve);
+			}
+			
+			synchronized(getClassLoadingLock(name)) {
+				Class<?> loaded = findLoadedClass(name);
+				
+				return loaded != null ? loaded : findClass(name);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,150 @@
+package com.ppublica.shopify.security.web;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.util.StreamUtils;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/*
+ * Tests run with the classes directory, where the Java 11 classes are under META-INF/versions/11 and aren't used.
+ * The builder is loaded again, with the Java 11 classes first, as it would be from the multi-release jar.
+ */
+public class Http2RequestFactoryBuilderTests {
+
+	private static final String PACKAGE = "com.ppublica.shopify.security.web.";
+
+	MockWebServer server;
+	ClassLoader versionedLoader;
+
+	@Before
+	public void setup() throws Exception {
+		File classes = new File(ShopifyHttpTransport.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+		File versions = new File(classes, "META-INF/versions/11");
+		Assume.assumeTrue(new File(versions, "com/ppublica/shopify/security/web/Http2RequestFactoryBuilder.class").isFile());
+
+		versionedLoader = new BuilderClassLoader(new URL[] { versions.toURI().toURL() }, getClass().getClassLoader());
+
+		server = new MockWebServer();
+		server.start();
+	}
+
+	@After
+	public void cleanup() throws IOException {
+		if(server != null) {
+			server.shutdown();
+		}
+	}
+
+	@Test
+	public void isAvailable() throws Exception {
+		Method isAvailable = builder().getDeclaredMethod("isAvailable");
+		isAvailable.setAccessible(true);
+
+		Assert.assertEquals(Boolean.TRUE, isAvailable.invoke(null));
+	}
+
+	@Test
+	public void postSendsHeadersAndBody() throws Exception {
+		server.enqueue(new MockResponse().setResponseCode(201).setHeader("X-Test", "yes").setBody("{\"ok\":true}"));
+
+		ClientHttpRequest request = build(1000, 1000).createRequest(URI.create(server.url("/admin/oauth/access_token").toString()), HttpMethod.POST);
+		request.getHeaders().setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+		request.getHeaders().setContentLength(11);
+		request.getBody().write("code=abc123".getBytes(StandardCharsets.UTF_8));
+
+		try(ClientHttpResponse response = request.execute()) {
+			Assert.assertEquals(201, response.getRawStatusCode());
+			Assert.assertEquals("Created", response.getStatusText());
+			Assert.assertEquals("yes", response.getHeaders().getFirst("X-Test"));
+			Assert.assertEquals("{\"ok\":true}", StreamUtils.copyToString(response.getBody(), StandardCharsets.UTF_8));
+		}
+
+		RecordedRequest recorded = server.takeRequest();
+		Assert.assertEquals("POST", recorded.getMethod());
+		Assert.assertEquals("/admin/oauth/access_token", recorded.getPath());
+		Assert.assertEquals(MediaType.APPLICATION_FORM_URLENCODED_VALUE, recorded.getHeader("Content-Type"));
+		Assert.assertEquals("code=abc123", recorded.getBody().readUtf8());
+	}
+
+	@Test
+	public void reusesConnection() throws Exception {
+		ClientHttpRequestFactory factory = build(1000, 1000);
+		URI uri = URI.create(server.url("/").toString());
+
+		server.enqueue(new MockResponse().setBody("first"));
+		server.enqueue(new MockResponse().setBody("second"));
+
+		for(int i = 0; i < 2; i++) {
+			try(ClientHttpResponse response = factory.createRequest(uri, HttpMethod.GET).execute()) {
+				StreamUtils.drain(response.getBody());
+			}
+		}
+
+		// the sequence number is per connection
+		Assert.assertEquals(0, server.takeRequest().getSequenceNumber());
+		Assert.assertEquals(1, server.takeRequest().getSequenceNumber());
+	}
+
+	@Test(expected=HttpTimeoutException.class)
+	public void slowResponseTimesOut() throws Exception {
+		server.enqueue(new MockResponse().setBody("slow").setHeadersDelay(2, TimeUnit.SECONDS));
+
+		build(1000, 200).createRequest(URI.create(server.url("/").toString()), HttpMethod.GET).execute();
+	}
+
+	private Class<?> builder() throws ClassNotFoundException {
+		return versionedLoader.loadClass(PACKAGE + "Http2RequestFactoryBuilder");
+	}
+
+	private ClientHttpRequestFactory build(int connectTimeout, int readTimeout) throws Exception {
+		Method build = builder().getDeclaredMethod("build", int.class, int.class);
+		build.setAccessible(true);
+
+		return (ClientHttpRequestFactory)build.invoke(null, connectTimeout, readTimeout);
+	}
+
+	/*
+	 * Loads the Java 11 classes of the web package from the given directories; everything else from the parent.
+	 */
+	static class BuilderClassLoader extends URLClassLoader {
+
+		BuilderClassLoader(URL[] urls, ClassLoader parent) {
+			super(urls, parent);
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			if(!name.startsWith(PACKAGE + "Http2RequestFactoryBuilder") && !name.startsWith(PACKAGE + "JdkHttpClientRequestFactory")) {
+				return super.loadClass(name, resolve);
+			}
+
+			synchronized(getClassLoadingLock(name)) {
+				Class<?> loaded = findLoadedClass(name);
+
+				return loaded != null ? loaded : findClass(name);
+			}
+		}
+	}
+
+}